@@ -50,6 +50,15 @@ public class ConfigsManager {
 
     }
 
+    /**
+     * 修改配置，用于测试或者在代码中覆盖配置文件
+     * @param name 配置名
+     * @param value 配置值
+     */
+    public static void set(String name, String value){
+        properties.setProperty(name, value);
+    }
+
     public static String get(String name){
         return properties.getProperty(name);
     }
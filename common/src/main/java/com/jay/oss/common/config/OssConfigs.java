@@ -4,6 +4,8 @@ import com.jay.dove.transport.Url;
 
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * <p>
@@ -40,6 +42,11 @@ public class OssConfigs {
     private static final String DATA_PATH = "oss.data.path";
     public static final String DEFAULT_DATA_PATH = "./data";
 
+    private static final String DATA_PATHS = "oss.data.paths";
+
+    private static final String DISK_IO_THREADS = "oss.fs.disk_io_threads";
+    private static final int DEFAULT_DISK_IO_THREADS = 4;
+
     /**
      * Tracker服务器 地址
      */
@@ -67,15 +74,113 @@ public class OssConfigs {
     private static final String ENABLE_MMAP = "oss.fs.enable_mmap";
     private static final boolean DEFAULT_ENABLE_MMAP = false;
 
+    private static final String ENABLE_ZERO_COPY_DOWNLOAD = "oss.fs.enable_zero_copy_download";
+    private static final boolean DEFAULT_ENABLE_ZERO_COPY_DOWNLOAD = false;
+
+    private static final String ENABLE_CONCURRENT_APPEND = "oss.fs.enable_concurrent_append";
+    private static final boolean DEFAULT_ENABLE_CONCURRENT_APPEND = false;
+
+    private static final String DURABILITY_MODE = "oss.fs.durability";
+    private static final String DEFAULT_DURABILITY_MODE = "none";
+
+    private static final String SYNC_INTERVAL = "oss.fs.sync_interval";
+    private static final long DEFAULT_SYNC_INTERVAL = 1000;
+
+    private static final String GROUP_COMMIT_BATCH_SIZE = "oss.fs.group_commit_batch_size";
+    private static final int DEFAULT_GROUP_COMMIT_BATCH_SIZE = 64;
+
+    private static final String GROUP_COMMIT_MAX_DELAY = "oss.fs.group_commit_max_delay";
+    private static final long DEFAULT_GROUP_COMMIT_MAX_DELAY = 2;
+
+    private static final String VERIFY_CHECKSUM_ON_READ = "oss.fs.verify_checksum_on_read";
+    private static final boolean DEFAULT_VERIFY_CHECKSUM_ON_READ = true;
+
     private static final String BLOCK_COMPACT_INTERVAL = "oss.fs.block_compact_interval";
     private static final int DEFAULT_COMPACT_INTERVAL = 1;
 
+    private static final String ENABLE_READ_CACHE = "oss.fs.enable_read_cache";
+    private static final boolean DEFAULT_ENABLE_READ_CACHE = false;
+
+    private static final String READ_CACHE_SIZE = "oss.fs.read_cache_size";
+    private static final int DEFAULT_READ_CACHE_SIZE = 256;
+
+    private static final String READ_CACHE_MAX_OBJECT_SIZE = "oss.fs.read_cache_max_object_size";
+    private static final int DEFAULT_READ_CACHE_MAX_OBJECT_SIZE = 4096;
+
+    private static final String ENABLE_STREAMING_UPLOAD = "oss.fs.enable_streaming_upload";
+    private static final boolean DEFAULT_ENABLE_STREAMING_UPLOAD = false;
+
+    private static final String STREAMING_UPLOAD_THRESHOLD = "oss.fs.streaming_upload_threshold";
+    private static final int DEFAULT_STREAMING_UPLOAD_THRESHOLD = 1024;
+
+    private static final String STREAMING_UPLOAD_BUFFER = "oss.fs.streaming_upload_buffer";
+    private static final int DEFAULT_STREAMING_UPLOAD_BUFFER = 4096;
+
+    private static final String ENABLE_COMPRESSION = "oss.fs.enable_compression";
+    private static final boolean DEFAULT_ENABLE_COMPRESSION = false;
+
+    private static final String COMPRESSION_CODEC = "oss.fs.compression_codec";
+    private static final String DEFAULT_COMPRESSION_CODEC = "lz4";
+
+    private static final String COMPRESSION_MIN_SIZE = "oss.fs.compression_min_size";
+    private static final int DEFAULT_COMPRESSION_MIN_SIZE = 4;
+
+    private static final String COMPRESSION_CHUNK_SIZE = "oss.fs.compression_chunk_size";
+    private static final int DEFAULT_COMPRESSION_CHUNK_SIZE = 64;
+
+    private static final String COMPRESSION_MIN_SAVING = "oss.fs.compression_min_saving";
+    private static final int DEFAULT_COMPRESSION_MIN_SAVING = 20;
+
+    private static final String BLOCK_POOL_SIZE = "oss.fs.block_pool_size";
+    private static final int DEFAULT_BLOCK_POOL_SIZE = 2;
+
+    private static final String COMPACT_GARBAGE_PERCENT = "oss.fs.compact_garbage_percent";
+    private static final int DEFAULT_COMPACT_GARBAGE_PERCENT = 30;
+
+    private static final String COMPACT_RATE_LIMIT = "oss.fs.compact_rate_limit";
+    private static final int DEFAULT_COMPACT_RATE_LIMIT = 32;
+
+    private static final String COMPACT_LATENCY_THRESHOLD = "oss.fs.compact_latency_threshold";
+    private static final long DEFAULT_COMPACT_LATENCY_THRESHOLD = 50;
+
+    private static final String INDEX_CHECKPOINT_INTERVAL = "oss.fs.index_checkpoint_interval";
+    private static final int DEFAULT_INDEX_CHECKPOINT_INTERVAL = 10;
+
+    private static final String BLOCK_RECOVERY_PARALLELISM = "oss.fs.block_recovery_parallelism";
+
     private static final String ENABLE_TRACKER_REGISTRY = "oss.tracker.enable-tracker-registry";
     private static final boolean DEFAULT_ENABLE_TRACKER_REGISTRY = false;
 
     private static final String ENABLE_TRACKER_MESSAGING = "oss.tracker.enable-tracker-messaging";
     private static final boolean DEFAULT_ENABLE_TRACKER_MESSAGING = false;
 
+    private static final String ENABLE_DEDUPLICATION = "oss.tracker.enable-dedup";
+    private static final boolean DEFAULT_ENABLE_DEDUPLICATION = false;
+
+    private static final String ENABLE_ERASURE_CODING = "oss.ec.enable";
+    private static final boolean DEFAULT_ENABLE_ERASURE_CODING = false;
+
+    private static final String EC_DATA_SHARDS = "oss.ec.data-shards";
+    private static final int DEFAULT_EC_DATA_SHARDS = 6;
+
+    private static final String EC_PARITY_SHARDS = "oss.ec.parity-shards";
+    private static final int DEFAULT_EC_PARITY_SHARDS = 3;
+
+    private static final String EC_MIN_SIZE = "oss.ec.min-size";
+    private static final int DEFAULT_EC_MIN_SIZE = 1024;
+
+    private static final String KV_SHARDS = "oss.kv.shards";
+    private static final int DEFAULT_KV_SHARDS = 1;
+
+    private static final String KV_COMPACT_INTERVAL = "oss.kv.compact-interval";
+    private static final int DEFAULT_KV_COMPACT_INTERVAL = 10;
+
+    private static final String KV_COMPACT_GARBAGE_RATIO = "oss.kv.compact-garbage-ratio";
+    private static final int DEFAULT_KV_COMPACT_GARBAGE_RATIO = 50;
+
+    private static final String KV_RECOVERY_PARALLELISM = "oss.kv.recovery-parallelism";
+    private static final int DEFAULT_KV_RECOVERY_PARALLELISM = Runtime.getRuntime().availableProcessors();
+
     private static final String BALANCE_REPLICA_INTERVAL = "oss.replica.balance-interval";
     private static final long DEFAULT_BALANCE_REPLICA_INTERVAL = 30 * 60 * 1000;
 
@@ -87,6 +192,28 @@ public class OssConfigs {
         return ConfigsManager.get(DATA_PATH, DEFAULT_DATA_PATH);
     }
 
+    /**
+     * block文件的数据目录列表，多个目录用逗号分隔，默认为oss.data.path
+     * @return data paths
+     */
+    public static String[] dataPaths(){
+        String paths = ConfigsManager.get(DATA_PATHS);
+        if(paths == null || paths.trim().isEmpty()){
+            return new String[]{dataPath()};
+        }
+        List<String> result = new ArrayList<>();
+        for (String path : paths.split(",")) {
+            if(!path.trim().isEmpty()){
+                result.add(path.trim());
+            }
+        }
+        return result.isEmpty() ? new String[]{dataPath()} : result.toArray(new String[0]);
+    }
+
+    public static int diskIoThreads(){
+        return ConfigsManager.getInt(DISK_IO_THREADS, DEFAULT_DISK_IO_THREADS);
+    }
+
     public static int port(){
         return ConfigsManager.getInt("server.port", DEFAULT_SERVER_PORT);
     }
@@ -123,10 +250,143 @@ public class OssConfigs {
         return ConfigsManager.getBoolean(ENABLE_MMAP, DEFAULT_ENABLE_MMAP);
     }
 
+    public static boolean enableZeroCopyDownload(){
+        return ConfigsManager.getBoolean(ENABLE_ZERO_COPY_DOWNLOAD, DEFAULT_ENABLE_ZERO_COPY_DOWNLOAD);
+    }
+
+    public static boolean enableConcurrentAppend(){
+        return ConfigsManager.getBoolean(ENABLE_CONCURRENT_APPEND, DEFAULT_ENABLE_CONCURRENT_APPEND);
+    }
+
+    /**
+     * block写入持久化模式：none、periodic、group_commit
+     * @return String
+     */
+    public static String durabilityMode(){
+        return ConfigsManager.get(DURABILITY_MODE, DEFAULT_DURABILITY_MODE);
+    }
+
+    public static long syncInterval(){
+        return ConfigsManager.getLong(SYNC_INTERVAL, DEFAULT_SYNC_INTERVAL);
+    }
+
+    public static int groupCommitBatchSize(){
+        return ConfigsManager.getInt(GROUP_COMMIT_BATCH_SIZE, DEFAULT_GROUP_COMMIT_BATCH_SIZE);
+    }
+
+    public static long groupCommitMaxDelay(){
+        return ConfigsManager.getLong(GROUP_COMMIT_MAX_DELAY, DEFAULT_GROUP_COMMIT_MAX_DELAY);
+    }
+
+    public static boolean verifyChecksumOnRead(){
+        return ConfigsManager.getBoolean(VERIFY_CHECKSUM_ON_READ, DEFAULT_VERIFY_CHECKSUM_ON_READ);
+    }
+
     public static int blockCompactInterval(){
         return ConfigsManager.getInt(BLOCK_COMPACT_INTERVAL, DEFAULT_COMPACT_INTERVAL);
     }
 
+    public static boolean enableReadCache(){
+        return ConfigsManager.getBoolean(ENABLE_READ_CACHE, DEFAULT_ENABLE_READ_CACHE);
+    }
+
+    public static int readCacheSize(){
+        return ConfigsManager.getInt(READ_CACHE_SIZE, DEFAULT_READ_CACHE_SIZE);
+    }
+
+    public static int readCacheMaxObjectSize(){
+        return ConfigsManager.getInt(READ_CACHE_MAX_OBJECT_SIZE, DEFAULT_READ_CACHE_MAX_OBJECT_SIZE);
+    }
+
+    public static boolean enableStreamingUpload(){
+        return ConfigsManager.getBoolean(ENABLE_STREAMING_UPLOAD, DEFAULT_ENABLE_STREAMING_UPLOAD);
+    }
+
+    /**
+     * 使用流式上传的最小对象大小，单位KB
+     * @return int
+     */
+    public static int streamingUploadThreshold(){
+        return ConfigsManager.getInt(STREAMING_UPLOAD_THRESHOLD, DEFAULT_STREAMING_UPLOAD_THRESHOLD);
+    }
+
+    /**
+     * 每个连接正在写入磁盘的流式上传数据上限，单位KB，超过后暂停读取该连接
+     * @return int
+     */
+    public static int streamingUploadBuffer(){
+        return ConfigsManager.getInt(STREAMING_UPLOAD_BUFFER, DEFAULT_STREAMING_UPLOAD_BUFFER);
+    }
+
+    public static boolean enableCompression(){
+        return ConfigsManager.getBoolean(ENABLE_COMPRESSION, DEFAULT_ENABLE_COMPRESSION);
+    }
+
+    /**
+     * 对象压缩算法，lz4或gzip
+     * @return String
+     */
+    public static String compressionCodec(){
+        return ConfigsManager.get(COMPRESSION_CODEC, DEFAULT_COMPRESSION_CODEC);
+    }
+
+    /**
+     * 压缩对象的最小大小，单位KB
+     * @return int
+     */
+    public static int compressionMinSize(){
+        return ConfigsManager.getInt(COMPRESSION_MIN_SIZE, DEFAULT_COMPRESSION_MIN_SIZE);
+    }
+
+    /**
+     * 压缩分块大小，单位KB，范围读取只解压覆盖的分块
+     * @return int
+     */
+    public static int compressionChunkSize(){
+        return ConfigsManager.getInt(COMPRESSION_CHUNK_SIZE, DEFAULT_COMPRESSION_CHUNK_SIZE);
+    }
+
+    /**
+     * 压缩至少节省的空间百分比，达不到时按原样存储
+     * @return int
+     */
+    public static int compressionMinSaving(){
+        return ConfigsManager.getInt(COMPRESSION_MIN_SAVING, DEFAULT_COMPRESSION_MIN_SAVING);
+    }
+
+    /**
+     * 每个数据目录预先创建的空block数量，0表示不预先创建
+     * @return int
+     */
+    public static int blockPoolSize(){
+        return ConfigsManager.getInt(BLOCK_POOL_SIZE, DEFAULT_BLOCK_POOL_SIZE);
+    }
+
+    public static int compactGarbagePercent(){
+        return ConfigsManager.getInt(COMPACT_GARBAGE_PERCENT, DEFAULT_COMPACT_GARBAGE_PERCENT);
+    }
+
+    public static int compactRateLimit(){
+        return ConfigsManager.getInt(COMPACT_RATE_LIMIT, DEFAULT_COMPACT_RATE_LIMIT);
+    }
+
+    public static long compactLatencyThreshold(){
+        return ConfigsManager.getLong(COMPACT_LATENCY_THRESHOLD, DEFAULT_COMPACT_LATENCY_THRESHOLD);
+    }
+
+    public static int indexCheckpointInterval(){
+        return ConfigsManager.getInt(INDEX_CHECKPOINT_INTERVAL, DEFAULT_INDEX_CHECKPOINT_INTERVAL);
+    }
+
+    /**
+     * 启动时每个数据目录并行扫描block的线程数，默认为CPU核心数平分到每个数据目录
+     * @return int
+     */
+    public static int blockRecoveryParallelism(){
+        int defaultParallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / dataPaths().length);
+        return Math.max(1, ConfigsManager.getInt(BLOCK_RECOVERY_PARALLELISM, defaultParallelism));
+    }
+
     public static boolean enableTrackerRegistry(){
         return ConfigsManager.getBoolean(ENABLE_TRACKER_REGISTRY, DEFAULT_ENABLE_TRACKER_REGISTRY);
     }
@@ -135,6 +395,66 @@ public class OssConfigs {
         return ConfigsManager.getBoolean(ENABLE_TRACKER_MESSAGING, DEFAULT_ENABLE_TRACKER_MESSAGING);
     }
 
+    /**
+     * 是否对md5和大小相同的对象去重，md5由proxy根据上传的内容计算
+     * @return boolean
+     */
+    public static boolean enableDeduplication(){
+        return ConfigsManager.getBoolean(ENABLE_DEDUPLICATION, DEFAULT_ENABLE_DEDUPLICATION);
+    }
+
+    /**
+     * 是否对大对象使用纠删码存储代替多副本
+     * @return boolean
+     */
+    public static boolean enableErasureCoding(){
+        return ConfigsManager.getBoolean(ENABLE_ERASURE_CODING, DEFAULT_ENABLE_ERASURE_CODING);
+    }
+
+    public static int erasureCodingDataShards(){
+        return ConfigsManager.getInt(EC_DATA_SHARDS, DEFAULT_EC_DATA_SHARDS);
+    }
+
+    public static int erasureCodingParityShards(){
+        return ConfigsManager.getInt(EC_PARITY_SHARDS, DEFAULT_EC_PARITY_SHARDS);
+    }
+
+    /**
+     * 使用纠删码的最小对象大小，单位KB
+     * @return int
+     */
+    public static int erasureCodingMinSize(){
+        return ConfigsManager.getInt(EC_MIN_SIZE, DEFAULT_EC_MIN_SIZE);
+    }
+
+    /**
+     * 元数据BitCask存储的分区数量，大于1时按key哈希分区写入
+     * @return int
+     */
+    public static int kvShards(){
+        return ConfigsManager.getInt(KV_SHARDS, DEFAULT_KV_SHARDS);
+    }
+
+    /**
+     * BitCask检查是否需要压缩的时间间隔，单位分钟
+     * @return int
+     */
+    public static int kvCompactInterval(){
+        return ConfigsManager.getInt(KV_COMPACT_INTERVAL, DEFAULT_KV_COMPACT_INTERVAL);
+    }
+
+    /**
+     * 已封存chunk中垃圾数据超过该百分比时压缩
+     * @return int
+     */
+    public static int kvCompactGarbageRatio(){
+        return ConfigsManager.getInt(KV_COMPACT_GARBAGE_RATIO, DEFAULT_KV_COMPACT_GARBAGE_RATIO);
+    }
+
+    public static int kvRecoveryParallelism(){
+        return ConfigsManager.getInt(KV_RECOVERY_PARALLELISM, DEFAULT_KV_RECOVERY_PARALLELISM);
+    }
+
     public static long balanceReplicaInterval(){
         return ConfigsManager.getLong(BALANCE_REPLICA_INTERVAL, DEFAULT_BALANCE_REPLICA_INTERVAL);
     }
@@ -0,0 +1,158 @@
+package com.jay.oss.common.ec;
+
+/**
+ * <p>
+ *  GF(2^8)有限域运算
+ *  使用本原多项式 x^8 + x^4 + x^3 + x^2 + 1 (0x11D)，生成元为2。
+ *  加法和减法都是异或，乘法和除法通过对数表计算，编码的内层循环使用完整的乘法表。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/12 10:05
+ */
+public final class GaloisField {
+
+    private static final int PRIMITIVE_POLYNOMIAL = 0x11D;
+
+    private static final int FIELD_SIZE = 256;
+
+    /**
+     * 指数表，长度为两倍，避免乘法时取模
+     */
+    private static final byte[] EXP = new byte[FIELD_SIZE * 2];
+
+    private static final int[] LOG = new int[FIELD_SIZE];
+
+    /**
+     * 乘法表，MUL[a][b] = a * b
+     */
+    static final byte[][] MUL = new byte[FIELD_SIZE][FIELD_SIZE];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < FIELD_SIZE - 1; i++) {
+            EXP[i] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if(x >= FIELD_SIZE){
+                x ^= PRIMITIVE_POLYNOMIAL;
+            }
+        }
+        for (int i = FIELD_SIZE - 1; i < EXP.length; i++) {
+            EXP[i] = EXP[i - (FIELD_SIZE - 1)];
+        }
+        for (int a = 0; a < FIELD_SIZE; a++) {
+            for (int b = 0; b < FIELD_SIZE; b++) {
+                MUL[a][b] = multiply0(a, b);
+            }
+        }
+    }
+
+    private GaloisField(){}
+
+    private static byte multiply0(int a, int b){
+        if(a == 0 || b == 0){
+            return 0;
+        }
+        return EXP[LOG[a] + LOG[b]];
+    }
+
+    public static byte multiply(byte a, byte b){
+        return MUL[a & 0xff][b & 0xff];
+    }
+
+    public static byte divide(byte a, byte b){
+        if(b == 0){
+            throw new ArithmeticException("Divide by zero in GF(2^8)");
+        }
+        if(a == 0){
+            return 0;
+        }
+        return EXP[LOG[a & 0xff] - LOG[b & 0xff] + FIELD_SIZE - 1];
+    }
+
+    /**
+     * a的n次方
+     */
+    public static byte power(byte a, int n){
+        if(n == 0){
+            return 1;
+        }
+        if(a == 0){
+            return 0;
+        }
+        return EXP[(LOG[a & 0xff] * n) % (FIELD_SIZE - 1)];
+    }
+
+    /**
+     * 矩阵乘法
+     * @param left 左矩阵
+     * @param right 右矩阵
+     * @return left * right
+     */
+    static byte[][] multiply(byte[][] left, byte[][] right){
+        int rows = left.length;
+        int columns = right[0].length;
+        int inner = right.length;
+        byte[][] result = new byte[rows][columns];
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < columns; c++) {
+                byte value = 0;
+                for (int i = 0; i < inner; i++) {
+                    value ^= multiply(left[r][i], right[i][c]);
+                }
+                result[r][c] = value;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 高斯消元求逆矩阵
+     * @param matrix 方阵，不会被修改
+     * @return 逆矩阵
+     * @throws IllegalArgumentException 矩阵不可逆
+     */
+    static byte[][] invert(byte[][] matrix){
+        int n = matrix.length;
+        // 增广矩阵 [matrix | I]
+        byte[][] work = new byte[n][2 * n];
+        for (int r = 0; r < n; r++) {
+            System.arraycopy(matrix[r], 0, work[r], 0, n);
+            work[r][n + r] = 1;
+        }
+        for (int c = 0; c < n; c++) {
+            int pivot = c;
+            while(pivot < n && work[pivot][c] == 0){
+                pivot++;
+            }
+            if(pivot == n){
+                throw new IllegalArgumentException("Matrix is singular");
+            }
+            byte[] swap = work[c];
+            work[c] = work[pivot];
+            work[pivot] = swap;
+            // 主元归一
+            byte scale = work[c][c];
+            if(scale != 1){
+                for (int i = 0; i < 2 * n; i++) {
+                    work[c][i] = divide(work[c][i], scale);
+                }
+            }
+            // 消去其他行的该列
+            for (int r = 0; r < n; r++) {
+                if(r != c && work[r][c] != 0){
+                    byte factor = work[r][c];
+                    for (int i = 0; i < 2 * n; i++) {
+                        work[r][i] ^= multiply(factor, work[c][i]);
+                    }
+                }
+            }
+        }
+        byte[][] inverse = new byte[n][n];
+        for (int r = 0; r < n; r++) {
+            System.arraycopy(work[r], n, inverse[r], 0, n);
+        }
+        return inverse;
+    }
+}
@@ -0,0 +1,219 @@
+package com.jay.oss.common.ec;
+
+/**
+ * <p>
+ *  Reed-Solomon纠删码
+ *  k个数据分片生成m个校验分片，任意k个分片可以恢复全部分片。
+ *  编码矩阵由范德蒙矩阵变换为系统形式：前k行是单位矩阵，数据分片就是对象数据本身，
+ *  读取时所有数据分片都在的情况下不需要解码。
+ *  对象按照分片大小ceil(size / k)切分，最后一个数据分片不足的部分补0。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/12 10:40
+ */
+public class ReedSolomon {
+    private final int dataShards;
+    private final int parityShards;
+
+    /**
+     * (k + m) * k 的编码矩阵
+     */
+    private final byte[][] matrix;
+
+    public ReedSolomon(int dataShards, int parityShards) {
+        if(dataShards <= 0 || parityShards <= 0 || dataShards + parityShards > 256){
+            throw new IllegalArgumentException("Invalid shard count, data: " + dataShards + ", parity: " + parityShards);
+        }
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        this.matrix = buildMatrix(dataShards, dataShards + parityShards);
+    }
+
+    /**
+     * 系统形式的编码矩阵
+     * 范德蒙矩阵任意k行线性无关，乘以前k行的逆矩阵之后仍然保持该性质
+     */
+    private static byte[][] buildMatrix(int dataShards, int totalShards){
+        byte[][] vandermonde = new byte[totalShards][dataShards];
+        for (int r = 0; r < totalShards; r++) {
+            for (int c = 0; c < dataShards; c++) {
+                vandermonde[r][c] = GaloisField.power((byte) r, c);
+            }
+        }
+        byte[][] top = new byte[dataShards][];
+        System.arraycopy(vandermonde, 0, top, 0, dataShards);
+        return GaloisField.multiply(vandermonde, GaloisField.invert(top));
+    }
+
+    public int getDataShards() {
+        return dataShards;
+    }
+
+    public int getParityShards() {
+        return parityShards;
+    }
+
+    public int getTotalShards() {
+        return dataShards + parityShards;
+    }
+
+    /**
+     * 对象大小对应的分片大小
+     * @param size 对象大小
+     * @return 分片大小
+     */
+    public int shardSize(int size){
+        return Math.max(1, (size + dataShards - 1) / dataShards);
+    }
+
+    /**
+     * 切分对象并生成校验分片
+     * @param data 对象数据
+     * @param offset 对象在数组中的偏移
+     * @param size 对象大小
+     * @return k + m 个分片
+     */
+    public byte[][] encode(byte[] data, int offset, int size){
+        int shardSize = shardSize(size);
+        byte[][] shards = new byte[getTotalShards()][shardSize];
+        for (int i = 0; i < dataShards; i++) {
+            int from = i * shardSize;
+            int length = Math.max(0, Math.min(shardSize, size - from));
+            if(length > 0){
+                System.arraycopy(data, offset + from, shards[i], 0, length);
+            }
+        }
+        encodeParity(shards);
+        return shards;
+    }
+
+    /**
+     * 根据数据分片计算校验分片
+     * @param shards k + m 个等长分片，校验分片被覆盖
+     */
+    public void encodeParity(byte[][] shards){
+        byte[][] rows = new byte[parityShards][];
+        byte[][] outputs = new byte[parityShards][];
+        for (int i = 0; i < parityShards; i++) {
+            rows[i] = matrix[dataShards + i];
+            outputs[i] = shards[dataShards + i];
+        }
+        codeSomeShards(rows, shards, outputs, shards[0].length);
+    }
+
+    /**
+     * 用缺失分片之外的任意k个分片恢复缺失的分片
+     * @param shards k + m 个分片，缺失的分片可以为null，恢复后填充
+     * @param present 每个分片是否可用
+     * @throws IllegalArgumentException 可用分片少于k个
+     */
+    public void reconstruct(byte[][] shards, boolean[] present){
+        int total = getTotalShards();
+        int shardSize = -1;
+        int presentCount = 0;
+        for (int i = 0; i < total; i++) {
+            if(present[i]){
+                presentCount++;
+                shardSize = shards[i].length;
+            }
+        }
+        if(presentCount == total){
+            return;
+        }
+        if(presentCount < dataShards){
+            throw new IllegalArgumentException("Not enough shards to reconstruct, present: " + presentCount + ", required: " + dataShards);
+        }
+        // 选取前k个可用分片，对应的编码矩阵行组成的方阵求逆即可解出数据分片
+        byte[][] subMatrix = new byte[dataShards][];
+        byte[][] subShards = new byte[dataShards][];
+        for (int i = 0, row = 0; i < total && row < dataShards; i++) {
+            if(present[i]){
+                subMatrix[row] = matrix[i];
+                subShards[row] = shards[i];
+                row++;
+            }
+        }
+        byte[][] decodeMatrix = GaloisField.invert(subMatrix);
+        int missingData = 0;
+        byte[][] rows = new byte[dataShards][];
+        byte[][] outputs = new byte[dataShards][];
+        for (int i = 0; i < dataShards; i++) {
+            if(!present[i]){
+                shards[i] = new byte[shardSize];
+                rows[missingData] = decodeMatrix[i];
+                outputs[missingData] = shards[i];
+                missingData++;
+            }
+        }
+        if(missingData > 0){
+            codeSomeShards(trim(rows, missingData), subShards, trim(outputs, missingData), shardSize);
+        }
+        // 数据分片完整后重新计算缺失的校验分片
+        int missingParity = 0;
+        rows = new byte[parityShards][];
+        outputs = new byte[parityShards][];
+        for (int i = dataShards; i < total; i++) {
+            if(!present[i]){
+                shards[i] = new byte[shardSize];
+                rows[missingParity] = matrix[i];
+                outputs[missingParity] = shards[i];
+                missingParity++;
+            }
+        }
+        if(missingParity > 0){
+            codeSomeShards(trim(rows, missingParity), shards, trim(outputs, missingParity), shardSize);
+        }
+    }
+
+    /**
+     * 从数据分片拼接对象数据
+     * @param shards 完整的数据分片
+     * @param size 对象大小
+     * @return 对象数据
+     */
+    public byte[] join(byte[][] shards, int size){
+        byte[] data = new byte[size];
+        int shardSize = shards[0].length;
+        for (int i = 0; i < dataShards; i++) {
+            int from = i * shardSize;
+            int length = Math.max(0, Math.min(shardSize, size - from));
+            if(length > 0){
+                System.arraycopy(shards[i], 0, data, from, length);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * outputs[r] = sum(rows[r][c] * inputs[c])
+     * 按输入分片逐个累加，每次内层循环只查同一行乘法表
+     */
+    private void codeSomeShards(byte[][] rows, byte[][] inputs, byte[][] outputs, int length){
+        for (int c = 0; c < dataShards; c++) {
+            byte[] input = inputs[c];
+            for (int r = 0; r < outputs.length; r++) {
+                byte[] table = GaloisField.MUL[rows[r][c] & 0xff];
+                byte[] output = outputs[r];
+                if(c == 0){
+                    for (int i = 0; i < length; i++) {
+                        output[i] = table[input[i] & 0xff];
+                    }
+                }else{
+                    for (int i = 0; i < length; i++) {
+                        output[i] ^= table[input[i] & 0xff];
+                    }
+                }
+            }
+        }
+    }
+
+    private static byte[][] trim(byte[][] array, int length){
+        if(array.length == length){
+            return array;
+        }
+        byte[][] result = new byte[length][];
+        System.arraycopy(array, 0, result, 0, length);
+        return result;
+    }
+}
@@ -6,6 +6,7 @@ import lombok.Setter;
 import lombok.ToString;
 
 import java.io.Serializable;
+import java.util.List;
 
 /**
  * <p>
@@ -26,4 +27,33 @@ public class ObjectMeta implements Serializable {
     private long createTime;
     private String md5;
     private String fileName;
+    /**
+     * 共享的数据所属的对象ID，对象去重时指向首次上传的对象，为0表示数据属于对象自己
+     */
+    private long dataObjectId;
+    /**
+     * 纠删码的数据分片数量，0表示使用多副本存储
+     */
+    private int dataShards;
+    private int parityShards;
+    /**
+     * 纠删码每个分片在storage中的对象ID
+     */
+    private List<Long> shardIds;
+
+    /**
+     * storage中保存该对象数据的对象ID
+     * @return long
+     */
+    public long storageObjectId(){
+        return dataObjectId == 0 ? objectId : dataObjectId;
+    }
+
+    /**
+     * 是否使用纠删码存储
+     * @return boolean
+     */
+    public boolean isErasureCoded(){
+        return dataShards > 0 && shardIds != null && !shardIds.isEmpty();
+    }
 }
@@ -5,6 +5,7 @@ import lombok.Getter;
 import lombok.Setter;
 
 import java.io.Serializable;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -21,4 +22,20 @@ import java.util.Set;
 public class LocateObjectResponse implements Serializable {
     private long objectId;
     private Set<String> locations;
+    /**
+     * 纠删码分片的对象ID，多副本存储时为null
+     */
+    private List<Long> shardIds;
+    /**
+     * 每个分片的一个位置，丢失的分片为空字符串
+     */
+    private List<String> shardLocations;
+    private int dataShards;
+    private int parityShards;
+    private int size;
+
+    public LocateObjectResponse(long objectId, Set<String> locations) {
+        this.objectId = objectId;
+        this.locations = locations;
+    }
 }
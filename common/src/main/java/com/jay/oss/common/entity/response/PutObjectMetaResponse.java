@@ -22,4 +22,14 @@ public class PutObjectMetaResponse implements Serializable {
     private long objectId;
     private List<String> locations;
     private String versionId;
+    /**
+     * 已经有相同内容的数据，不需要上传
+     */
+    private boolean duplicate;
+    /**
+     * 纠删码分片的对象ID，locations中的每个地址依次保存一个分片；多副本存储时为空
+     */
+    private List<Long> shardIds;
+    private int dataShards;
+    private int parityShards;
 }
@@ -2,6 +2,7 @@ package com.jay.oss.common.entity.response;
 
 import com.jay.oss.common.entity.task.DeleteTask;
 import com.jay.oss.common.entity.task.ReplicaTask;
+import com.jay.oss.common.entity.task.ShardRepairTask;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 
@@ -21,4 +22,5 @@ import java.util.List;
 public class StorageHeartBeatResponse implements Serializable {
     private List<ReplicaTask> replicaTasks;
     private List<DeleteTask> deleteTasks;
+    private List<ShardRepairTask> repairTasks;
 }
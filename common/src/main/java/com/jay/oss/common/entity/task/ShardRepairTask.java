@@ -0,0 +1,40 @@
+package com.jay.oss.common.entity.task;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * <p>
+ *  纠删码分片修复任务
+ *  目标storage从其他分片所在的节点读取k个分片，解码出丢失的分片后保存
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/12 16:10
+ */
+@AllArgsConstructor
+@Getter
+public class ShardRepairTask implements Serializable {
+    private long taskId;
+    /**
+     * 对象大小
+     */
+    private int size;
+    private int dataShards;
+    private int parityShards;
+    /**
+     * 需要修复的分片序号
+     */
+    private int shardIndex;
+    /**
+     * 所有分片的对象ID
+     */
+    private List<Long> shardIds;
+    /**
+     * 每个分片的一个位置，丢失的分片为空字符串
+     */
+    private List<String> shardLocations;
+}
@@ -2,23 +2,38 @@ package com.jay.oss.common.kv.bitcask;
 
 import com.jay.oss.common.config.OssConfigs;
 import com.jay.oss.common.kv.KvStorage;
+import com.jay.oss.common.util.Scheduler;
 import com.jay.oss.common.util.StringUtil;
+import com.jay.oss.common.util.ThreadPoolUtil;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 
 /**
@@ -39,6 +54,15 @@ import java.util.stream.Collectors;
  *  假设80%占用量，得出100W数量级下单机内存和磁盘使用情况：
  *  内存 = 130 / 0.8 = 162 MB
  *  磁盘 = 496 / 0.8 = 620 MB
+ *
+ *  压缩：
+ *  后台定时检查已封存chunk的垃圾比例，超过阈值时在线合并，合并过程中读写不阻塞。
+ *  chunkId越大数据越新，合并chunk的ID大于所有被合并的chunk，小于合并开始后写入的chunk，
+ *  重启时按ID顺序加载仍然能得到每个key最新的值。
+ *
+ *  Hint：
+ *  chunk封存后后台生成该chunk的Hint文件，记录chunk中每个key最后一条记录的位置和删除标记。
+ *  重启时有Hint的chunk并行读取Hint，只扫描没有Hint的chunk（通常只有重启前的activeChunk）。
  * </p>
  *
  * @author Jay
@@ -47,14 +71,14 @@ import java.util.stream.Collectors;
 @Slf4j
 public class BitCaskStorage implements KvStorage {
     /**
-     * Index Hash表
+     * Index Hash表，key保存在堆外，索引打包成long
      */
-    private final ConcurrentHashMap<String, Index> indexCache = new ConcurrentHashMap<>();
+    private final CompactKeyDir indexCache = new CompactKeyDir();
 
     /**
-     * chunk列表，列表下标和chunkId对应
+     * chunkId -> chunk
      */
-    private final List<Chunk> chunks = new ArrayList<>();
+    private final ConcurrentHashMap<Integer, Chunk> chunks = new ConcurrentHashMap<>();
 
     /**
      * 当前活跃chunk
@@ -73,9 +97,14 @@ public class BitCaskStorage implements KvStorage {
     private final Object activeChunkLock = new Object();
 
     /**
-     * 压缩old chunk的读写锁
+     * 回收旧chunk，读取不需要加锁
+     */
+    private final EpochManager epochManager = new EpochManager();
+
+    /**
+     * 同一时间只有一个合并任务
      */
-    private final ReentrantReadWriteLock compactLock = new ReentrantReadWriteLock();
+    private final Object compactTaskLock = new Object();
 
     /**
      * chunk文件自增ID
@@ -84,50 +113,90 @@ public class BitCaskStorage implements KvStorage {
 
     public static final String CHUNK_DIRECTORY = File.separator + "chunks";
 
+    private static final String HINT_FILE_PREFIX = "hint_";
+
+    /**
+     * 封存chunk的Hint文件写入线程
+     */
+    private static final ExecutorService HINT_WRITER = ThreadPoolUtil.newSingleThreadPool("bitcask-hint-writer");
+
+    /**
+     * 存储目录，chunk文件在目录的chunks子目录下，Hint文件在目录下
+     */
+    private final String path;
+
+    public BitCaskStorage() {
+        this(OssConfigs.dataPath());
+    }
+
+    public BitCaskStorage(String path) {
+        this.path = path;
+    }
+
     /**
      * 初始化BitCask存储模型
-     * 首先会加载目录下的chunk文件，然后读取Hint日志来加载索引信息。
+     * 首先会加载目录下的chunk文件，然后读取Hint文件和没有Hint的chunk来加载索引信息。
+     * 启动时不压缩，由定时任务按照垃圾比例压缩。
      * @throws Exception e
      */
     @Override
     public void init() throws Exception {
-        String path = OssConfigs.dataPath() + CHUNK_DIRECTORY;
-        File directory = new File(path);
+        File directory = new File(chunkDirectory());
         // 加载文件目录下的属于该存储的chunk文件
         File[] files = directory.listFiles((dir, fileName) -> fileName.startsWith("chunk_"));
         if(files != null){
             for(File chunkFile : files){
                 Chunk chunk = Chunk.getChunkInstance(chunkFile);
                 if(chunk != null){
-                    chunks.add(chunk);
+                    chunks.put(chunk.getChunkId(), chunk);
+                    chunkIdProvider.set(Math.max(chunkIdProvider.get(), chunk.getChunkId() + 1));
                 }
             }
-            chunks.sort(Comparator.comparingInt(Chunk::getChunkId));
         }
-        log.info("Loaded chunk files: {}", chunks);
+        log.info("Loaded chunk files: {}", chunks.values());
         // 加载索引
         loadIndex();
-        // 压缩chunks
-        compact();
-        if(!chunks.isEmpty()){
-            chunkIdProvider.set(1);
-        }
+        int interval = OssConfigs.kvCompactInterval();
+        Scheduler.scheduleAtFixedMinutes(this::compactIfNecessary, interval, interval);
         log.info("BitCask Storage loaded {} chunks", chunks.size());
     }
 
     /**
-     * 保证activeChunk可写入
+     * 写入一条记录并返回索引，调用者需要持有activeChunkLock
      * @throws IOException e
      */
-    private void ensureActiveChunk(String key, byte[] value) throws IOException {
-        if(this.activeChunk == null || activeChunk.isNotWritable(8 + key.length() + value.length)){
+    private Index append(byte[] keyBytes, byte[] value, boolean removed) throws IOException {
+        if(this.activeChunk == null || activeChunk.isNotWritable(8 + keyBytes.length + value.length)){
+            if(activeChunk != null){
+                // 封存写满的chunk
+                Chunk sealed = activeChunk;
+                HINT_WRITER.submit(() -> writeChunkHint(sealed, null));
+            }
             // 创建新的active chunk
-            this.activeChunk = Chunk.getNewChunk(chunkIdProvider.getAndIncrement());
-            if(chunks.size() >= activeChunk.getChunkId()){
-                chunks.add(activeChunk);
-            }else{
-                chunks.set(activeChunk.getChunkId(), activeChunk);
+            this.activeChunk = Chunk.getNewChunk(chunkDirectory(), chunkIdProvider.getAndIncrement());
+            chunks.put(activeChunk.getChunkId(), activeChunk);
+        }
+        int offset = activeChunk.writeMmap(keyBytes, value);
+        return new Index(activeChunk.getChunkId(), offset, removed);
+    }
+
+    /**
+     * 旧记录被覆盖，计入所在chunk的垃圾数据
+     * @param old 旧记录的索引
+     */
+    private void markGarbage(Index old){
+        if(old == null || old.isRemoved()){
+            return;
+        }
+        // 旧记录所在的chunk可能正在被合并回收
+        EpochManager.Slot slot = epochManager.enter();
+        try{
+            Chunk chunk = chunks.get(old.getChunkId());
+            if(chunk != null){
+                chunk.addGarbage(chunk.recordLength(old.getOffset()));
             }
+        }finally {
+            epochManager.exit(slot);
         }
     }
 
@@ -138,18 +207,17 @@ public class BitCaskStorage implements KvStorage {
      */
     @Override
     public byte[] get(String key) {
+        EpochManager.Slot slot = epochManager.enter();
         try{
-            compactLock.readLock().lock();
             Index index = indexCache.get(key);
             Chunk chunk;
-            if(index  != null && !index.isRemoved() && index.getChunkId() < chunks.size() && (chunk = chunks.get(index.getChunkId())) != null){
+            if(index  != null && !index.isRemoved() && (chunk = chunks.get(index.getChunkId())) != null){
                 return chunk.readMmap(index.getOffset());
             }
             return null;
         } finally {
-            compactLock.readLock().unlock();
+            epochManager.exit(slot);
         }
-
     }
 
     /**
@@ -163,10 +231,7 @@ public class BitCaskStorage implements KvStorage {
             synchronized (activeChunkLock){
                 try{
                     if(!containsKey(key)){
-                        ensureActiveChunk(key, value);
-                        byte[] keyBytes = StringUtil.getBytes(key);
-                        int offset = activeChunk.writeMmap(keyBytes, value);
-                        Index index = new Index(activeChunk.getChunkId(), offset, false);
+                        Index index = append(StringUtil.getBytes(key), value, false);
                         indexCache.put(key, index);
                         return true;
                     }
@@ -188,11 +253,8 @@ public class BitCaskStorage implements KvStorage {
     public boolean put(String key, byte[] value) {
         synchronized (activeChunkLock){
             try{
-                byte[] keyBytes = key.getBytes(OssConfigs.DEFAULT_CHARSET);
-                ensureActiveChunk(key, value);
-                int offset = activeChunk.writeMmap(keyBytes, value);
-                Index index = new Index(activeChunk.getChunkId(), offset, false);
-                indexCache.put(key, index);
+                Index index = append(key.getBytes(OssConfigs.DEFAULT_CHARSET), value, false);
+                markGarbage(indexCache.put(key, index));
                 return true;
             }catch (IOException e){
                 log.warn("Put kv failed, key: {} ",key, e);
@@ -203,6 +265,7 @@ public class BitCaskStorage implements KvStorage {
 
     /**
      * delete key
+     * 删除标记写入activeChunk，索引替换为指向删除标记的已删除索引
      * @param key key
      * @return boolean
      */
@@ -211,11 +274,13 @@ public class BitCaskStorage implements KvStorage {
         if(indexCache.containsKey(key)){
             synchronized (activeChunkLock){
                 try{
-                    Index index = indexCache.get(key);
-                    if(index != null){
-                        index.setRemoved(true);
-                        ensureActiveChunk(key, DELETE_TAG);
-                        activeChunk.writeMmap(StringUtil.getBytes(key), DELETE_TAG);
+                    Index old = indexCache.get(key);
+                    if(old != null){
+                        Index index = append(StringUtil.getBytes(key), DELETE_TAG, true);
+                        indexCache.put(key, index);
+                        markGarbage(old);
+                        // 删除标记只在被删除的记录合并前有用，直接计入垃圾
+                        activeChunk.addGarbage(activeChunk.recordLength(index.getOffset()));
                         return true;
                     }
                 }catch (IOException e){
@@ -228,159 +293,366 @@ public class BitCaskStorage implements KvStorage {
     }
 
     /**
-     * 压缩、合并chunk文件
-     * 1、读取所有索引，把没被删除的数据重新写到新的chunk中。
-     * 2、修改index的offset和chunkId
-     * 3、生成新的HintFile来记录索引
+     * 已封存chunk的垃圾比例超过阈值时合并
      */
-    public void compact(){
+    private void compactIfNecessary(){
         try{
-            // 加锁，避免有其他线程读取
-            compactLock.writeLock().lock();
-            if(indexCache.isEmpty()){
-                return;
+            long total = 0, garbage = 0;
+            synchronized (activeChunkLock){
+                for (Chunk chunk : chunks.values()) {
+                    if(chunk != activeChunk){
+                        total += chunk.getSize();
+                        garbage += chunk.getGarbage();
+                    }
+                }
             }
-            // 只有在有其他非活跃Chunk的时候才进行compact，不对activeChunk压缩
-            if(activeChunk == null || activeChunk.getChunkId() > 0){
-                // 在compact前删除旧的Hint文件，避免compact后没有成功写入Hint文件而导致Hint和实际位置不一致的情况
-                removeOldHintFile();
-                Chunk mergedChunk = Chunk.getMergeChunkInstance();
-                // 对index进行排序，可以使合并后的chunk文件中的键值对有序
-                List<Map.Entry<String, Index>> entries = indexCache.entrySet().stream().sorted(Map.Entry.comparingByKey()).collect(Collectors.toList());
-                for (Map.Entry<String, Index> entry : entries) {
-                    String key = entry.getKey();
-                    Index index = entry.getValue();
-                    // key没有被删除，且不是在activeChunk中
-                    if(!index.isRemoved()){
-                        if((activeChunk == null || index.getChunkId() != activeChunk.getChunkId())){
-                            byte[] keyBytes = StringUtil.getBytes(key);
-                            Chunk chunk = chunks.get(index.getChunkId());
-                            if(chunk != null){
-                                byte[] value = chunk.readMmap(index.getOffset());
-                                if(value == null){
-                                    break;
-                                }
-                                // 写入新chunk并更新index
-                                int offset = mergedChunk.write(keyBytes, value);
-                                index.setChunkId(0);
-                                index.setOffset(offset);
-                            }
-                        }
+            if(total > 0 && garbage * 100 >= total * OssConfigs.kvCompactGarbageRatio()){
+                log.info("BitCask garbage ratio {}% exceeds threshold, start compaction, path: {}", garbage * 100 / total, path);
+                compact();
+            }
+        }catch (Exception e){
+            log.warn("BitCask compaction check failed ", e);
+        }
+    }
+
+    /**
+     * 在线压缩、合并chunk文件，合并过程中读写不阻塞
+     * 1、封存activeChunk，分配合并chunk的ID，之后的写入进入ID更大的新chunk
+     * 2、逐个扫描封存chunk，把索引仍然指向的记录复制到合并chunk
+     * 3、扫描合并chunk，key的索引在复制期间没有被覆盖时，才替换为合并chunk中的位置，同时写入Hint文件
+     * 4、等待合并前开始的读请求结束，按ID从小到大删除旧chunk
+     */
+    public void compact(){
+        synchronized (compactTaskLock){
+            try{
+                int mergedId;
+                synchronized (activeChunkLock){
+                    if(chunks.isEmpty()){
+                        return;
                     }
+                    this.activeChunk = null;
+                    mergedId = chunkIdProvider.getAndIncrement();
                 }
-                mergedChunk.closeChannel();
-                // 生成HintFile
-                generateHintFile();
-                // 删除合并后的旧chunks，并重命名合并块为chunk0
-                deleteOldChunks();
+                List<Chunk> oldChunks = chunks.values().stream()
+                        .filter(chunk -> chunk.getChunkId() < mergedId)
+                        .sorted(Comparator.comparingInt(Chunk::getChunkId))
+                        .collect(Collectors.toList());
+                Chunk mergedChunk = mergeChunks(mergedId, oldChunks);
+                retireChunks(oldChunks);
+                log.info("BitCask compaction finished, merged {} chunks into {}", oldChunks.size(), mergedChunk);
+            }catch (Exception e){
+                log.warn("Compact BitCask chunk failed ", e);
             }
-        }catch (IOException e){
-            log.warn("Compact BitCask chunk failed ", e);
         }
-        finally {
-            compactLock.writeLock().unlock();
+    }
+
+    /**
+     * 合并ID小于mergedId的chunk
+     * 每次只扫描一个chunk，不在内存中保存所有存活的key
+     * @param mergedId 合并chunk的ID
+     * @param oldChunks 被合并的chunk，按ID从小到大排列
+     * @return 合并chunk
+     * @throws Exception e
+     */
+    private Chunk mergeChunks(int mergedId, List<Chunk> oldChunks) throws Exception {
+        Chunk writer = Chunk.getMergeChunkInstance(chunkDirectory(), mergedId);
+        try{
+            for (Chunk chunk : oldChunks) {
+                copyLiveRecords(chunk, writer);
+            }
+            writer.force();
+        }finally {
+            writer.closeChannel();
+        }
+        Chunk mergedChunk = Chunk.getChunkInstance(new File(chunkDirectory() + File.separator + "chunk_" + mergedId));
+        chunks.put(mergedId, mergedChunk);
+        // 合并开始后的写入都进入ID更大的chunk，索引仍然指向旧chunk说明复制期间没有被覆盖或删除
+        try(HintFileWriter hintWriter = new HintFileWriter(mergedId)){
+            mergedChunk.forEachRecord((offset, keyBytes, valLen) -> {
+                String key = StringUtil.toString(keyBytes);
+                Index current = indexCache.get(key);
+                Index index = new Index(mergedId, offset, false);
+                if(current != null && !current.isRemoved() && current.getChunkId() < mergedId && indexCache.replace(key, current, index)){
+                    hintWriter.append(keyBytes, index);
+                }else{
+                    // 复制期间被覆盖或删除的key保留新的索引，合并chunk中的副本计入垃圾
+                    mergedChunk.addGarbage(mergedChunk.recordLength(offset));
+                }
+            });
+            hintWriter.commit();
         }
+        return mergedChunk;
     }
 
     /**
-     * 删除旧的Hint文件
+     * 把一个旧chunk中索引仍然指向的记录复制到合并chunk
+     * 删除标记所在chunk之前的记录都会被合并，删除标记直接从索引中移除
+     * @param chunk 旧chunk
+     * @param writer 合并chunk
      */
-    private void removeOldHintFile(){
-        String path = OssConfigs.dataPath() + File.separator + "hint.log";
-        File file = new File(path);
-        file.deleteOnExit();
+    private void copyLiveRecords(Chunk chunk, Chunk writer) {
+        chunk.forEachRecord((offset, keyBytes, valLen) -> {
+            String key = StringUtil.toString(keyBytes);
+            Index current = indexCache.get(key);
+            if(current == null || current.getChunkId() != chunk.getChunkId() || current.getOffset() != offset){
+                return;
+            }
+            if(current.isRemoved()){
+                indexCache.remove(key, current);
+                return;
+            }
+            byte[] value = chunk.readMmap(offset);
+            if(value == null){
+                log.warn("BitCask record lost during compaction, key: {}, index: {}", key, current);
+                return;
+            }
+            try{
+                writer.write(keyBytes, value);
+            }catch (IOException e){
+                throw new UncheckedIOException(e);
+            }
+        });
     }
 
     /**
-     * 生成Hint 文件
+     * 删除已经合并的旧chunk
+     * 索引已经全部指向新chunk，等待之前拿到旧索引的读请求结束后才从chunk列表移除，
+     * 再等待移除前从列表拿到旧chunk的请求结束后关闭文件。
+     * 按ID从小到大删除，中途宕机时剩下的都是较新的chunk，删除标记不会先于被删除的记录消失
+     * @param oldChunks 旧chunk，按ID从小到大排列
+     * @throws IOException e
      */
-    private void generateHintFile() throws IOException {
-        ByteBuf buffer = Unpooled.buffer();
-        for (Map.Entry<String, Index> entry : indexCache.entrySet()) {
-            // key没有被删除
-            if(!entry.getValue().isRemoved()){
-                // key不是在activeChunk中
-                if(activeChunk == null || entry.getValue().getChunkId() != activeChunk.getChunkId()){
-                    byte[] keyBytes = StringUtil.getBytes(entry.getKey());
-                    Index index = entry.getValue();
-                    buffer.writeInt(keyBytes.length);
-                    buffer.writeBytes(keyBytes);
-                    buffer.writeInt(index.getChunkId());
-                    buffer.writeInt(index.getOffset());
-                }
+    private void retireChunks(List<Chunk> oldChunks) throws IOException {
+        epochManager.synchronize();
+        for (Chunk chunk : oldChunks) {
+            chunks.remove(chunk.getChunkId(), chunk);
+        }
+        epochManager.synchronize();
+        for (Chunk chunk : oldChunks) {
+            chunk.closeChannel();
+            File chunkFile = new File(chunkDirectory() + File.separator + "chunk_" + chunk.getChunkId());
+            if(chunkFile.exists() && chunkFile.delete()){
+                log.debug("Delete Old Chunk success, chunk: {}", chunkFile);
+            }else if(!chunkFile.exists()){
+                log.warn("Chunk: {} not exists", chunkFile);
             }
+            Files.deleteIfExists(hintFile(chunk.getChunkId()).toPath());
         }
-        String path = OssConfigs.dataPath() + File.separator + "hint.log";
-        File file = new File(path);
-        if(!file.exists() && !file.createNewFile()){
-            throw new RuntimeException("Generate Hint File failed");
+        // 旧版本的Hint文件对应的chunk已经被合并
+        Files.deleteIfExists(new File(hintFilePath()).toPath());
+        syncDirectory(chunkDirectory());
+    }
+
+    /**
+     * 刷写目录，保证文件的创建、重命名和删除已经持久化
+     * @param directory 目录
+     * @throws IOException e
+     */
+    private static void syncDirectory(String directory) throws IOException {
+        try(FileChannel channel = FileChannel.open(Paths.get(directory), StandardOpenOption.READ)){
+            channel.force(true);
         }
-        // 写入hint文件
-        try(FileOutputStream outputStream = new FileOutputStream(file);
-            FileChannel channel = outputStream.getChannel()){
-            buffer.readBytes(channel, channel.size(), buffer.readableBytes());
-        }catch (IOException e){
-            log.warn("Generate Hint File Failed ", e);
+    }
+
+    /**
+     * 生成封存chunk的Hint文件
+     * chunk可能已经被合并回收，持有epoch期间确认chunk仍在列表中，回收会等待Hint写完后再删除文件
+     * @param chunk 封存的chunk
+     * @param indexes 已经扫描出的索引，为null时扫描chunk
+     */
+    private void writeChunkHint(Chunk chunk, Map<String, Index> indexes){
+        EpochManager.Slot slot = epochManager.enter();
+        try{
+            if(chunks.get(chunk.getChunkId()) != chunk){
+                return;
+            }
+            // Hint持久化前保证chunk数据已经落盘
+            chunk.force();
+            generateHintFile(chunk.getChunkId(), indexes != null ? indexes : chunk.fullScanChunk());
+        }catch (Exception e){
+            log.warn("Generate hint file failed, chunk: {}", chunk, e);
+        }finally {
+            epochManager.exit(slot);
         }
     }
 
     /**
-     * 删除除了activeChunk以外的已经完成合并的chunks
+     * 生成Hint 文件
+     * @param chunkId chunkId
+     * @param indexes chunk中每个key最后一条记录的索引
      */
-    private void deleteOldChunks() throws IOException {
-        /*
-            删除所有合并后的chunk
-         */
-        for (Chunk chunk : chunks) {
-            if(chunk != activeChunk){
-                chunk.closeChannel();
-                String path = OssConfigs.dataPath() + CHUNK_DIRECTORY + File.separator + "chunk_" + chunk.getChunkId();
-                File chunkFile = new File(path);
-                if(chunkFile.exists() && chunkFile.delete()){
-                    log.debug("Delete Old Chunk success, chunk: {}", path);
-                }else if(!chunkFile.exists()){
-                    log.warn("Chunk: {} not exists", path);
-                }
+    private void generateHintFile(int chunkId, Map<String, Index> indexes) throws IOException {
+        try(HintFileWriter hintWriter = new HintFileWriter(chunkId)){
+            for (Map.Entry<String, Index> entry : indexes.entrySet()) {
+                hintWriter.append(StringUtil.getBytes(entry.getKey()), entry.getValue());
+            }
+            hintWriter.commit();
+        }
+    }
+
+    /**
+     * Hint文件写入器
+     * 先顺序写入临时文件，提交时刷盘再重命名，Hint文件存在时内容一定完整；没有提交的临时文件在关闭时删除
+     * 数据格式如下：
+     * +----------+-------+----------+-----------+
+     * |  keyLen  |  key  |  offset  |  removed  |
+     * +----------+-------+----------+-----------+
+     */
+    private class HintFileWriter implements Closeable {
+        private final File hintFile;
+        private final File temp;
+        private final FileOutputStream fileStream;
+        private final DataOutputStream outputStream;
+        private boolean committed = false;
+
+        HintFileWriter(int chunkId) throws IOException {
+            this.hintFile = hintFile(chunkId);
+            this.temp = new File(hintFile.getPath() + ".tmp");
+            this.fileStream = new FileOutputStream(temp);
+            this.outputStream = new DataOutputStream(new BufferedOutputStream(fileStream));
+        }
+
+        void append(byte[] keyBytes, Index index){
+            try{
+                outputStream.writeInt(keyBytes.length);
+                outputStream.write(keyBytes);
+                outputStream.writeInt(index.getOffset());
+                outputStream.writeBoolean(index.isRemoved());
+            }catch (IOException e){
+                throw new UncheckedIOException(e);
             }
         }
-        /*
-            重命名merged_chunks为chunk0
-         */
-        File merged = new File(OssConfigs.dataPath() + CHUNK_DIRECTORY + File.separator + "merged_chunks");
-        File chunk0 = new File(OssConfigs.dataPath() + CHUNK_DIRECTORY + File.separator + "chunk_0");
-        if(merged.exists() && !chunk0.exists() && merged.renameTo(chunk0)){
-            Chunk chunk = Chunk.getNewChunk(0);
-            chunks.set(0, chunk);
-        }else if(!merged.exists()){
-            throw new RuntimeException("Merged chunks file doesn't exist");
-        }else if(chunk0.exists()){
-            throw new RuntimeException("Chunk_0 file already exists");
-        }else{
-            throw new RuntimeException("Rename merged chunks failed");
+
+        void commit() throws IOException {
+            outputStream.flush();
+            fileStream.getFD().sync();
+            outputStream.close();
+            Files.move(temp.toPath(), hintFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(!committed){
+                outputStream.close();
+                Files.deleteIfExists(temp.toPath());
+            }
         }
     }
 
     /**
      * 启动时读取Hint文件和chunk文件来加载key的索引信息
+     * 多个chunk并行读取Hint或扫描，按chunkId从小到大合并到索引中，同一个key后写入的记录覆盖先写入的记录。
+     * 同时加载的chunk数量有上限，避免所有chunk的索引同时留在内存中。
+     * 扫描的chunk在后台补充生成Hint，下次启动不需要再扫描。
      */
     public void loadIndex() {
-        String path = OssConfigs.dataPath() + File.separator + "hint.log";
-        File hintFile = new File(path);
-        // Hint文件存在，扫描Hint中的索引
+        long start = System.currentTimeMillis();
+        File legacyHintFile = new File(hintFilePath());
+        Map<String, Index> legacyIndexes = legacyHintFile.exists() ? parseLegacyHintFile(legacyHintFile) : new HashMap<>(0);
+        int legacyChunkId = legacyIndexes.isEmpty() ? -1 : legacyIndexes.values().iterator().next().getChunkId();
+        List<Chunk> sorted = chunks.values().stream()
+                .sorted((c1, c2) -> Integer.compare(c1.getChunkId(), c2.getChunkId()))
+                .collect(Collectors.toList());
+        int parallelism = Math.max(1, Math.min(OssConfigs.kvRecoveryParallelism(), sorted.size()));
+        ForkJoinPool recoveryPool = ThreadPoolUtil.newForkJoinPool(parallelism, "bitcask-recovery-");
+        AtomicInteger scanned = new AtomicInteger(0);
+        try{
+            Deque<ForkJoinTask<Map<String, Index>>> loading = new ArrayDeque<>();
+            int next = 0;
+            for (int i = 0; i < sorted.size(); i++) {
+                while(next < sorted.size() && loading.size() < parallelism * 2){
+                    Chunk chunk = sorted.get(next++);
+                    Map<String, Index> legacy = chunk.getChunkId() == legacyChunkId ? legacyIndexes : null;
+                    loading.add(recoveryPool.submit(() -> loadChunkIndex(chunk, legacy, scanned)));
+                }
+                applyIndexes(loading.poll().join());
+            }
+        }finally {
+            recoveryPool.shutdown();
+        }
+        log.info("BitCask index loaded, path: {}, chunks: {}, scanned: {}, keys: {}, time used: {}ms",
+                path, sorted.size(), scanned.get(), indexCache.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * 加载一个chunk的索引，优先读取Hint
+     * @param chunk {@link Chunk}
+     * @param legacyIndexes 旧版本Hint中该chunk的索引
+     * @param scanned 扫描的chunk数量
+     * @return chunk中每个key最后一条记录的索引
+     */
+    private Map<String, Index> loadChunkIndex(Chunk chunk, Map<String, Index> legacyIndexes, AtomicInteger scanned){
+        File hintFile = hintFile(chunk.getChunkId());
         if(hintFile.exists()){
-            parseHintFile(hintFile);
-            indexCache.putAll(chunks.get(chunks.size() - 1).fullScanChunk());
-        }else{
-            parseAllChunks();
+            Map<String, Index> indexes = parseHintFile(hintFile, chunk.getChunkId());
+            if(indexes != null){
+                return indexes;
+            }
         }
+        if(legacyIndexes != null){
+            return legacyIndexes;
+        }
+        Map<String, Index> indexes = chunk.fullScanChunk();
+        scanned.incrementAndGet();
+        HINT_WRITER.submit(() -> writeChunkHint(chunk, indexes));
+        return indexes;
     }
 
     /**
-     * 加载并解析Hint文件
-     * 该情况下只解析Hint文件，不解析chunk0
+     * 按顺序合并一个chunk的索引，被覆盖的旧记录和删除标记计入垃圾
+     * @param indexes chunk的索引
+     */
+    private void applyIndexes(Map<String, Index> indexes){
+        for (Map.Entry<String, Index> entry : indexes.entrySet()) {
+            Index index = entry.getValue();
+            markGarbage(indexCache.put(entry.getKey(), index));
+            Chunk chunk;
+            if(index.isRemoved() && (chunk = chunks.get(index.getChunkId())) != null){
+                chunk.addGarbage(chunk.recordLength(index.getOffset()));
+            }
+        }
+    }
+
+    /**
+     * 解析chunk的Hint文件
      * @param file {@link File} Hint文件
+     * @param chunkId chunkId
+     * @return Hint中的索引，Hint文件损坏时返回null
      */
-    private void parseHintFile(File file){
+    private Map<String, Index> parseHintFile(File file, int chunkId){
+        Map<String, Index> indexes = new HashMap<>(256);
+        try(FileInputStream inputStream = new FileInputStream(file);
+            FileChannel channel = inputStream.getChannel()){
+            ByteBuf buffer = Unpooled.buffer((int) channel.size());
+            buffer.writeBytes(channel, 0, (int)channel.size());
+            while(buffer.isReadable()){
+                int keyLen = buffer.readInt();
+                // 损坏的长度不能用来分配数组
+                if(keyLen <= 0 || keyLen + 5 > buffer.readableBytes()){
+                    log.warn("Hint File corrupted at {}, scan chunk instead, file: {}", buffer.readerIndex() - 4, file);
+                    return null;
+                }
+                byte[] keyBytes = new byte[keyLen];
+                buffer.readBytes(keyBytes);
+                int offset = buffer.readInt();
+                boolean removed = buffer.readBoolean();
+                indexes.put(StringUtil.toString(keyBytes), new Index(chunkId, offset, removed));
+            }
+            return indexes;
+        }catch (Exception e){
+            log.warn("Parse Hint File Failed, scan chunk instead, file: {}", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * 加载并解析旧版本的Hint文件，只记录合并chunk的索引
+     * @param file {@link File} Hint文件
+     * @return Hint中的索引
+     */
+    private Map<String, Index> parseLegacyHintFile(File file){
+        Map<String, Index> indexes = new HashMap<>(256);
         try(FileInputStream inputStream = new FileInputStream(file);
             FileChannel channel = inputStream.getChannel()){
             ByteBuf buffer = Unpooled.buffer();
@@ -392,25 +664,35 @@ public class BitCaskStorage implements KvStorage {
                 int chunkId = buffer.readInt();
                 int offset = buffer.readInt();
                 Index index = new Index(chunkId, offset, false);
-                indexCache.put(StringUtil.toString(keyBytes), index);
+                indexes.put(StringUtil.toString(keyBytes), index);
             }
         }catch (IOException e){
             log.warn("Parse Hint File Failed ", e);
         }
+        return indexes;
     }
 
-    /**
-     * 解析所有的chunk文件
-     */
-    private void parseAllChunks() {
-        for (Chunk chunk : chunks) {
-            indexCache.putAll(chunk.fullScanChunk());
-        }
+    private String chunkDirectory(){
+        return path + CHUNK_DIRECTORY;
+    }
+
+    private String hintFilePath(){
+        return path + File.separator + "hint.log";
+    }
+
+    private File hintFile(int chunkId){
+        return new File(chunkDirectory() + File.separator + HINT_FILE_PREFIX + chunkId);
     }
 
     @Override
     public List<String> keys(){
-        return new ArrayList<>(indexCache.keySet());
+        List<String> keys = new ArrayList<>();
+        indexCache.forEach((key, index) -> {
+            if(!index.isRemoved()){
+                keys.add(key);
+            }
+        });
+        return keys;
     }
 
     @Override
@@ -1,6 +1,5 @@
 package com.jay.oss.common.kv.bitcask;
 
-import com.jay.oss.common.config.OssConfigs;
 import com.jay.oss.common.util.StringUtil;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
@@ -40,24 +39,31 @@ public class Chunk {
     private final FileChannel activeChannel;
     private final MappedByteBuffer mappedByteBuffer;
     private static final AtomicInteger ID_PROVIDER = new AtomicInteger(0);
+    /**
+     * 被覆盖或删除的记录占用的字节数
+     */
+    private final AtomicInteger garbage = new AtomicInteger(0);
 
     /**
      * 创建新的chunk
+     * @param directory chunk文件目录
      * @param chunkId chunkID
      * @return {@link Chunk}
      * @throws IOException IOException
      */
-    public static Chunk getNewChunk(int chunkId) throws IOException {
-        return new Chunk(false, chunkId);
+    public static Chunk getNewChunk(String directory, int chunkId) throws IOException {
+        return new Chunk(directory, false, chunkId);
     }
 
     /**
-     * 创建合并chunk
+     * 创建合并chunk，合并chunk使用FileChannel顺序写入，写完后通过{@link #getChunkInstance(File)}重新打开读取
+     * @param directory chunk文件目录
+     * @param chunkId chunkID
      * @return {@link Chunk}
      * @throws IOException IOException
      */
-    public static Chunk getMergeChunkInstance() throws IOException {
-        return new Chunk(true, 0);
+    public static Chunk getMergeChunkInstance(String directory, int chunkId) throws IOException {
+        return new Chunk(directory, true, chunkId);
     }
 
     /**
@@ -79,9 +85,9 @@ public class Chunk {
         return null;
     }
 
-    private Chunk(boolean merge, int chunkId) throws IOException {
+    private Chunk(String directory, boolean merge, int chunkId) throws IOException {
         this.chunkId = chunkId;
-        String path = OssConfigs.dataPath() + BitCaskStorage.CHUNK_DIRECTORY + File.separator + (merge ? "merged_chunks" : "chunk_" + chunkId);
+        String path = directory + File.separator + "chunk_" + chunkId;
         File file = new File(path);
         ensureChunkFilePresent(file);
         this.rf = new RandomAccessFile(file, "rw");
@@ -145,6 +151,38 @@ public class Chunk {
         return value;
     }
 
+    /**
+     * 记录在chunk中占用的字节数
+     * @param offset 记录的offset
+     * @return int
+     */
+    public int recordLength(int offset){
+        return 8 + mappedByteBuffer.getInt(offset) + mappedByteBuffer.getInt(offset + 4);
+    }
+
+    /**
+     * 记录被覆盖或删除，计入垃圾数据
+     * @param length 记录长度
+     */
+    public void addGarbage(int length){
+        garbage.addAndGet(length);
+    }
+
+    public int getGarbage(){
+        return garbage.get();
+    }
+
+    /**
+     * 刷盘
+     * @throws IOException e
+     */
+    public void force() throws IOException {
+        if(mappedByteBuffer != null){
+            mappedByteBuffer.force();
+        }
+        activeChannel.force(true);
+    }
+
     /**
      * 判断chunk是否处于不可写状态
      * @return boolean
@@ -158,26 +196,44 @@ public class Chunk {
      * @return {@link Map} 索引信息
      */
     protected Map<String, Index> fullScanChunk() {
-        ByteBuffer buffer = this.mappedByteBuffer.slice();
         Map<String, Index> indexMap = new HashMap<>(256);
-        while(buffer.hasRemaining()){
-            if(buffer.remaining() > 8){
-                int offset = buffer.position();
-                int keyLen = buffer.getInt();
-                int valLen = buffer.getInt();
-                if(keyLen > 0 && valLen > 0 && buffer.remaining() >= keyLen + valLen){
-                    byte[] keyBytes = new byte[keyLen];
-                    buffer.get(keyBytes, 0, keyLen);
-                    buffer.position(buffer.position() + valLen);
-                    indexMap.put(StringUtil.toString(keyBytes), new Index(chunkId, offset, valLen == 1));
-                }else{
-                    break;
-                }
+        forEachRecord((offset, keyBytes, valLen) -> indexMap.put(StringUtil.toString(keyBytes), new Index(chunkId, offset, valLen == 1)));
+        return indexMap;
+    }
+
+    /**
+     * 按写入顺序遍历chunk中的每条记录，遇到不完整的记录时停止
+     * @param visitor {@link RecordVisitor}
+     */
+    protected void forEachRecord(RecordVisitor visitor) {
+        ByteBuffer buffer = this.mappedByteBuffer.slice();
+        while(buffer.remaining() > 8){
+            int offset = buffer.position();
+            int keyLen = buffer.getInt();
+            int valLen = buffer.getInt();
+            if(keyLen > 0 && valLen > 0 && buffer.remaining() >= keyLen + valLen){
+                byte[] keyBytes = new byte[keyLen];
+                buffer.get(keyBytes, 0, keyLen);
+                buffer.position(buffer.position() + valLen);
+                visitor.visit(offset, keyBytes, valLen);
             }else{
                 break;
             }
         }
-        return indexMap;
+    }
+
+    /**
+     * chunk记录遍历回调
+     */
+    @FunctionalInterface
+    protected interface RecordVisitor {
+        /**
+         * 访问一条记录
+         * @param offset 记录的offset
+         * @param key key
+         * @param valueLength value长度，删除标记的长度为1
+         */
+        void visit(int offset, byte[] key, int valueLength);
     }
 
     /**
@@ -219,7 +275,8 @@ public class Chunk {
     }
 
     public byte[] readMmap(int offset){
-        ByteBuffer slice = mappedByteBuffer.slice();
+        // 写入时会修改mappedByteBuffer的position，读取使用duplicate从绝对位置开始
+        ByteBuffer slice = mappedByteBuffer.duplicate();
         slice.position(offset);
         if(slice.remaining() > 8){
             int keyLen = slice.getInt();
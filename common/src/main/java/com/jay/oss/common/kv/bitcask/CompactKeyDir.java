@@ -0,0 +1,452 @@
+package com.jay.oss.common.kv.bitcask;
+
+import com.jay.oss.common.util.StringUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+
+/**
+ * <p>
+ *  紧凑的BitCask内存索引
+ *  ConcurrentHashMap&lt;String, Index&gt;每个key需要一个String、一个byte[]、一个Node和一个Index对象，
+ *  对象头和引用的开销远大于key本身。这里用开放寻址表代替：
+ *  每个槽位只有两个long：key引用和索引。key的UTF-8字节保存在堆外arena中，key引用中带有哈希标签，
+ *  探测时标签不同不需要比较key；索引的chunkId、offset和删除标记打包成一个long。
+ *
+ *  空间计算(假设Key=40 B, 平均装载因子0.56)：
+ *  堆内 = 16 / 0.56 ≈ 29 bytes，堆外 = 40 bytes
+ *  原ConcurrentHashMap：Node 32 + String 24 + byte[] 56 + Index 24 + 桶数组引用 ≈ 140 bytes
+ *
+ *  表被分成多个段，每个段一个StampedLock，读取使用乐观读，不修改共享状态，写入加段写锁。
+ *  扩容在段写锁下重建整个段，段的数量足够多时单个段很小，扩容期间阻塞的只是落在该段的少量写入。
+ *  arena只追加，删除的key在扩容时随整理一起回收，旧的arena页由GC回收，乐观读不会访问已释放的内存。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/15 10:40
+ */
+public class CompactKeyDir {
+
+    /**
+     * 段数量，取哈希的高8位选择段
+     */
+    private static final int SEGMENT_COUNT = 256;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * key引用：| tag (8 bits) | page (18 bits) | offset (22 bits) | length (16 bits) |
+     * tag最高位总是1，有效引用不会是EMPTY；key长度小于0xFFFF，有效引用不会是DELETED
+     */
+    private static final long EMPTY = 0L;
+
+    private static final long DELETED = -1L;
+
+    private static final int MAX_KEY_LENGTH = 0xFFFE;
+
+    private static final int MIN_PAGE_SIZE = 4 * 1024;
+
+    private static final int MAX_PAGE_SIZE = 4 * 1024 * 1024;
+
+    private static final long NONE = -1L;
+
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+
+    public CompactKeyDir() {
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * 索引打包：| chunkId (31 bits) | offset (32 bits) | removed (1 bit) |
+     */
+    private static long pack(Index index){
+        return ((long) index.getChunkId() << 33) | ((index.getOffset() & 0xFFFFFFFFL) << 1) | (index.isRemoved() ? 1 : 0);
+    }
+
+    private static Index unpack(long value){
+        return value == NONE ? null : new Index((int) (value >>> 33), (int) (value >>> 1), (value & 1) == 1);
+    }
+
+    private static int hash(byte[] key){
+        int h = 1;
+        for (byte b : key) {
+            h = 31 * h + b;
+        }
+        // murmur3 finalizer，打散低位
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private Segment segmentOf(int hash){
+        return segments[hash >>> 24];
+    }
+
+    private static long tagOf(int hash){
+        // 标签不使用选择段的高8位
+        return (0x80L | ((hash >>> 17) & 0x7F)) << 56;
+    }
+
+    private static byte[] keyBytes(String key){
+        byte[] bytes = StringUtil.getBytes(key);
+        if(bytes.length > MAX_KEY_LENGTH){
+            throw new IllegalArgumentException("Key too long: " + bytes.length + " bytes");
+        }
+        return bytes;
+    }
+
+    public Index get(String key){
+        byte[] bytes = keyBytes(key);
+        int hash = hash(bytes);
+        return unpack(segmentOf(hash).get(bytes, hash));
+    }
+
+    /**
+     * 写入索引
+     * @return 原来的索引，不存在时返回null
+     */
+    public Index put(String key, Index index){
+        byte[] bytes = keyBytes(key);
+        int hash = hash(bytes);
+        return unpack(segmentOf(hash).put(bytes, hash, pack(index), NONE));
+    }
+
+    /**
+     * key当前的索引和expect相同时替换为update
+     * 索引的chunkId和offset唯一确定一条记录，比较值等价于比较是否为同一条记录
+     */
+    public boolean replace(String key, Index expect, Index update){
+        byte[] bytes = keyBytes(key);
+        int hash = hash(bytes);
+        long expected = pack(expect);
+        return segmentOf(hash).put(bytes, hash, pack(update), expected) == expected;
+    }
+
+    /**
+     * key当前的索引和expect相同时删除
+     */
+    public boolean remove(String key, Index expect){
+        byte[] bytes = keyBytes(key);
+        int hash = hash(bytes);
+        return segmentOf(hash).remove(bytes, hash, pack(expect));
+    }
+
+    public boolean containsKey(String key){
+        return get(key) != null;
+    }
+
+    /**
+     * 遍历所有索引，每个段在读锁下复制后再回调，回调中可以修改索引
+     * @param consumer 回调
+     */
+    public void forEach(BiConsumer<String, Index> consumer){
+        for (Segment segment : segments) {
+            List<String> keys = new ArrayList<>();
+            List<Long> values = new ArrayList<>();
+            segment.snapshot(keys, values);
+            for (int i = 0; i < keys.size(); i++) {
+                consumer.accept(keys.get(i), unpack(values.get(i)));
+            }
+        }
+    }
+
+    /**
+     * 槽位数组占用的堆内存，每个槽位两个long
+     * @return bytes
+     */
+    public long heapBytes(){
+        long bytes = 0;
+        for (Segment segment : segments) {
+            long stamp = segment.readLock();
+            try{
+                bytes += (long) segment.keyRefs.length * 16;
+            }finally {
+                segment.unlockRead(stamp);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * 保存key的arena页占用的堆外内存
+     * @return bytes
+     */
+    public long offHeapBytes(){
+        long bytes = 0;
+        for (Segment segment : segments) {
+            long stamp = segment.readLock();
+            try{
+                bytes += segment.arenaBytes;
+            }finally {
+                segment.unlockRead(stamp);
+            }
+        }
+        return bytes;
+    }
+
+    public int size(){
+        int size = 0;
+        for (Segment segment : segments) {
+            long stamp = segment.readLock();
+            try{
+                size += segment.size;
+            }finally {
+                segment.unlockRead(stamp);
+            }
+        }
+        return size;
+    }
+
+
+    /**
+     * 开放寻址段，线性探测
+     */
+    private static final class Segment extends StampedLock {
+        private long[] keyRefs = new long[INITIAL_CAPACITY];
+        private long[] values = new long[INITIAL_CAPACITY];
+        /**
+         * 有效key数量
+         */
+        private int size;
+        /**
+         * 有效key和删除标记占用的槽位数量
+         */
+        private int used;
+
+        private ByteBuffer[] pages = new ByteBuffer[0];
+        private int pagePosition;
+        private long arenaBytes;
+        private long liveKeyBytes;
+
+        long get(byte[] key, int hash){
+            long stamp = tryOptimisticRead();
+            if(stamp != 0){
+                try{
+                    long value = find(key, hash);
+                    if(validate(stamp)){
+                        return value;
+                    }
+                }catch (RuntimeException ignored){
+                    // 乐观读期间数组被替换，读到不一致的状态，退回到读锁
+                }
+            }
+            stamp = readLock();
+            try{
+                return find(key, hash);
+            }finally {
+                unlockRead(stamp);
+            }
+        }
+
+        private long find(byte[] key, int hash){
+            long[] keyRefs = this.keyRefs;
+            long[] values = this.values;
+            int slot = indexOf(keyRefs, pages, key, hash);
+            return slot < 0 ? NONE : values[slot];
+        }
+
+        /**
+         * 查找key所在的槽位
+         * @return 槽位，不存在时返回-1
+         */
+        private static int indexOf(long[] keyRefs, ByteBuffer[] pages, byte[] key, int hash){
+            long tag = tagOf(hash);
+            int mask = keyRefs.length - 1;
+            int slot = hash & mask;
+            for (int probe = 0; probe < keyRefs.length; probe++) {
+                long ref = keyRefs[slot];
+                if(ref == EMPTY){
+                    return -1;
+                }
+                if(ref != DELETED && (ref & 0xFF00_0000_0000_0000L) == tag && keyEquals(pages, ref, key)){
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private static int lengthOf(long ref){
+            return (int) (ref & 0xFFFF);
+        }
+
+        private static int offsetOf(long ref){
+            return (int) ((ref >>> 16) & 0x3FFFFF);
+        }
+
+        private static int pageOf(long ref){
+            return (int) ((ref >>> 38) & 0x3FFFF);
+        }
+
+        private static boolean keyEquals(ByteBuffer[] pages, long ref, byte[] key){
+            if(lengthOf(ref) != key.length){
+                return false;
+            }
+            ByteBuffer page = pages[pageOf(ref)];
+            int offset = offsetOf(ref);
+            for (int i = 0; i < key.length; i++) {
+                if(page.get(offset + i) != key[i]){
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 写入或替换索引
+         * @param expect NONE表示无条件写入，否则只在当前值等于expect时替换
+         * @return 写入前的值，不存在时返回NONE
+         */
+        long put(byte[] key, int hash, long value, long expect){
+            long stamp = writeLock();
+            try{
+                int slot = indexOf(keyRefs, pages, key, hash);
+                if(slot >= 0){
+                    long old = values[slot];
+                    if(expect == NONE || old == expect){
+                        values[slot] = value;
+                    }
+                    return old;
+                }
+                if(expect != NONE){
+                    return NONE;
+                }
+                if((used + 1) * 4 > keyRefs.length * 3){
+                    rehash();
+                }
+                insert(keyRefs, values, tagOf(hash) | allocate(key), hash, value);
+                size++;
+                used++;
+                return NONE;
+            }finally {
+                unlockWrite(stamp);
+            }
+        }
+
+        boolean remove(byte[] key, int hash, long expect){
+            long stamp = writeLock();
+            try{
+                int slot = indexOf(keyRefs, pages, key, hash);
+                if(slot < 0 || values[slot] != expect){
+                    return false;
+                }
+                keyRefs[slot] = DELETED;
+                liveKeyBytes -= key.length;
+                size--;
+                return true;
+            }finally {
+                unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * 插入新槽位，复用遇到的第一个删除标记或空槽位
+         */
+        private void insert(long[] keyRefs, long[] values, long ref, int hash, long value){
+            int mask = keyRefs.length - 1;
+            int slot = hash & mask;
+            while(keyRefs[slot] != EMPTY && keyRefs[slot] != DELETED){
+                slot = (slot + 1) & mask;
+            }
+            if(keyRefs[slot] == DELETED){
+                used--;
+            }
+            values[slot] = value;
+            // key引用最后写入，乐观读看到key时索引已经写好
+            keyRefs[slot] = ref;
+        }
+
+        /**
+         * 在arena中保存key
+         * @return key引用，不包括标签
+         */
+        private long allocate(byte[] key){
+            ByteBuffer page = pages.length == 0 ? null : pages[pages.length - 1];
+            if(page == null || pagePosition + key.length > page.capacity()){
+                // 页按倍数增长，超长的key单独占用一个足够大的页
+                int pageSize = Math.max(key.length, Math.min(MAX_PAGE_SIZE, MIN_PAGE_SIZE << Math.min(pages.length, 10)));
+                ByteBuffer[] newPages = new ByteBuffer[pages.length + 1];
+                System.arraycopy(pages, 0, newPages, 0, pages.length);
+                page = ByteBuffer.allocateDirect(pageSize);
+                newPages[pages.length] = page;
+                pages = newPages;
+                pagePosition = 0;
+                arenaBytes += pageSize;
+            }
+            for (int i = 0; i < key.length; i++) {
+                page.put(pagePosition + i, key[i]);
+            }
+            long ref = ((long) (pages.length - 1) << 38) | ((long) pagePosition << 16) | key.length;
+            pagePosition += key.length;
+            liveKeyBytes += key.length;
+            return ref;
+        }
+
+        /**
+         * 扩容并清除删除标记，arena中一半以上是已删除的key时同时整理arena
+         * 新数组和新arena页填充完成后才替换，乐观读要么看到旧状态，要么校验失败重读
+         */
+        private void rehash(){
+            int capacity = keyRefs.length;
+            if((size + 1) * 2 > capacity){
+                capacity *= 2;
+            }
+            long[] oldKeyRefs = keyRefs;
+            long[] oldValues = values;
+            ByteBuffer[] oldPages = pages;
+            boolean compactArena = liveKeyBytes * 2 < arenaBytes;
+            if(compactArena){
+                pages = new ByteBuffer[0];
+                arenaBytes = 0;
+                liveKeyBytes = 0;
+            }
+            long[] newKeyRefs = new long[capacity];
+            long[] newValues = new long[capacity];
+            for (int i = 0; i < oldKeyRefs.length; i++) {
+                long ref = oldKeyRefs[i];
+                if(ref != EMPTY && ref != DELETED){
+                    byte[] key = readKey(oldPages, ref);
+                    int hash = hash(key);
+                    long newRef = compactArena ? tagOf(hash) | allocate(key) : ref;
+                    insert(newKeyRefs, newValues, newRef, hash, oldValues[i]);
+                }
+            }
+            used = size;
+            keyRefs = newKeyRefs;
+            values = newValues;
+        }
+
+        private static byte[] readKey(ByteBuffer[] pages, long ref){
+            byte[] key = new byte[lengthOf(ref)];
+            ByteBuffer page = pages[pageOf(ref)];
+            int offset = offsetOf(ref);
+            for (int i = 0; i < key.length; i++) {
+                key[i] = page.get(offset + i);
+            }
+            return key;
+        }
+
+        void snapshot(List<String> keys, List<Long> values){
+            long stamp = readLock();
+            try{
+                for (int i = 0; i < keyRefs.length; i++) {
+                    long ref = keyRefs[i];
+                    if(ref != EMPTY && ref != DELETED){
+                        keys.add(StringUtil.toString(readKey(pages, ref)));
+                        values.add(this.values[i]);
+                    }
+                }
+            }finally {
+                unlockRead(stamp);
+            }
+        }
+    }
+}
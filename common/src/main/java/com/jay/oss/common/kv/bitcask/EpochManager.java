@@ -0,0 +1,109 @@
+package com.jay.oss.common.kv.bitcask;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *  基于epoch的chunk回收
+ *  读线程进入时把当前全局epoch写入自己的槽位，退出时清空，只写本线程的槽位，不需要对共享计数器CAS。
+ *  回收线程先把旧chunk从所有索引中摘除，然后推进全局epoch并等待所有在推进前进入的读线程退出，
+ *  之后进入的读线程只能看到新的索引，旧chunk可以安全关闭。
+ *  同一个线程可以嵌套进入，最外层退出时才清空槽位；线程结束后槽位在注册新线程和推进epoch时移除。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/14 10:30
+ */
+public class EpochManager {
+    private static final long IDLE = Long.MAX_VALUE;
+
+    private final AtomicLong globalEpoch = new AtomicLong(0);
+
+    /**
+     * 所有读线程的槽位，只在线程第一次读取时注册
+     */
+    private final CopyOnWriteArrayList<Slot> slots = new CopyOnWriteArrayList<>();
+
+    private final ThreadLocal<Slot> localSlot = ThreadLocal.withInitial(() -> {
+        removeDeadSlots();
+        Slot slot = new Slot(Thread.currentThread());
+        slots.add(slot);
+        return slot;
+    });
+
+    /**
+     * 读线程进入，之后读取的chunk在退出前不会被回收
+     * 已经进入的线程再次进入时只增加嵌套深度，保持最外层进入时的epoch
+     * @return 本线程的槽位
+     */
+    public Slot enter(){
+        Slot slot = localSlot.get();
+        if(slot.depth++ == 0){
+            slot.epoch = globalEpoch.get();
+        }
+        return slot;
+    }
+
+    /**
+     * 读线程退出，和{@link #enter()}成对调用，最外层退出时清空槽位
+     * @param slot {@link #enter()}返回的槽位
+     */
+    public void exit(Slot slot){
+        if(--slot.depth == 0){
+            slot.epoch = IDLE;
+        }
+    }
+
+    /**
+     * 推进epoch并等待之前进入的读线程全部退出
+     * 调用前需要保证新的读线程已经不能访问到要回收的对象
+     */
+    public void synchronize(){
+        long epoch = globalEpoch.incrementAndGet();
+        for (Slot slot : slots) {
+            while(slot.epoch < epoch){
+                Thread.yield();
+            }
+        }
+        removeDeadSlots();
+    }
+
+    /**
+     * 移除已经结束的线程的槽位，线程结束前一定已经退出，槽位是空闲的
+     */
+    private void removeDeadSlots(){
+        slots.removeIf(slot -> {
+            Thread owner = slot.owner.get();
+            return owner == null || !owner.isAlive();
+        });
+    }
+
+    /**
+     * @return 已注册的读线程槽位数量
+     */
+    public int slotCount(){
+        return slots.size();
+    }
+
+    /**
+     * 读线程槽位，填充字段避免不同线程的槽位落在同一个缓存行
+     */
+    public static final class Slot {
+        @SuppressWarnings("unused")
+        private long p1, p2, p3, p4, p5, p6, p7;
+        private volatile long epoch = IDLE;
+        /**
+         * 嵌套深度，只由所属线程读写
+         */
+        private int depth;
+        private final WeakReference<Thread> owner;
+        @SuppressWarnings("unused")
+        private long q1, q2, q3, q4, q5, q6, q7;
+
+        private Slot(Thread owner) {
+            this.owner = new WeakReference<>(owner);
+        }
+    }
+}
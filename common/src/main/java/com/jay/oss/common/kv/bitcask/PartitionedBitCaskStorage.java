@@ -0,0 +1,134 @@
+package com.jay.oss.common.kv.bitcask;
+
+import com.jay.oss.common.config.OssConfigs;
+import com.jay.oss.common.kv.KvStorage;
+import com.jay.oss.common.util.StringUtil;
+import com.jay.oss.common.util.ThreadPoolUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * <p>
+ *  按key哈希分区的BitCask存储
+ *  每个分区是一个独立的BitCaskStorage，有自己的chunk序列、activeChunk、写锁、Hint文件和压缩，
+ *  不同分区的写入互不阻塞，元数据写入吞吐可以随CPU核心数扩展。
+ *  分区目录为 数据目录/kv_partition_{n}，分区数量记录在 数据目录/kv_partitions 文件中，
+ *  key到分区的映射依赖分区数量，已有数据的情况下不能修改分区数量。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/13 10:20
+ */
+@Slf4j
+public class PartitionedBitCaskStorage implements KvStorage {
+
+    public static final String PARTITION_DIRECTORY = File.separator + "kv_partition_";
+
+    private static final String PARTITION_COUNT_FILE = File.separator + "kv_partitions";
+
+    private final BitCaskStorage[] partitions;
+
+    public PartitionedBitCaskStorage(int partitionCount) {
+        if(partitionCount <= 0){
+            throw new IllegalArgumentException("Invalid BitCask partition count: " + partitionCount);
+        }
+        this.partitions = new BitCaskStorage[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new BitCaskStorage(OssConfigs.dataPath() + PARTITION_DIRECTORY + i);
+        }
+    }
+
+    /**
+     * 检查分区数量后并行初始化所有分区
+     * @throws Exception e
+     */
+    @Override
+    public void init() throws Exception {
+        checkPartitionCount();
+        ExecutorService executor = ThreadPoolUtil.newIoThreadPool("bitcask-partition-init-");
+        try{
+            List<Future<?>> futures = new ArrayList<>(partitions.length);
+            for (BitCaskStorage partition : partitions) {
+                futures.add(executor.submit(() -> {
+                    partition.init();
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }finally {
+            executor.shutdown();
+        }
+        log.info("Partitioned BitCask Storage loaded {} partitions", partitions.length);
+    }
+
+    /**
+     * 检查分区数量和已有数据是否一致
+     * 首次启动时记录分区数量，之后分区数量不一致或者存在未分区的数据时拒绝启动
+     */
+    private void checkPartitionCount() throws Exception {
+        File countFile = new File(OssConfigs.dataPath() + PARTITION_COUNT_FILE);
+        if(countFile.exists()){
+            int existing = Integer.parseInt(StringUtil.toString(Files.readAllBytes(countFile.toPath())).trim());
+            if(existing != partitions.length){
+                throw new IllegalStateException("BitCask partition count changed from " + existing + " to " + partitions.length + ", existing data can't be located");
+            }
+            return;
+        }
+        String[] legacyChunks = new File(OssConfigs.dataPath() + BitCaskStorage.CHUNK_DIRECTORY).list((dir, name) -> name.startsWith("chunk_"));
+        if(legacyChunks != null && legacyChunks.length > 0){
+            throw new IllegalStateException("Found non-partitioned BitCask chunks in " + OssConfigs.dataPath() + ", partitioned storage can't load them");
+        }
+        File parent = countFile.getParentFile();
+        if(!parent.exists() && !parent.mkdirs()){
+            throw new RuntimeException("can't make data directory " + parent);
+        }
+        Files.write(countFile.toPath(), StringUtil.getBytes(Integer.toString(partitions.length)));
+    }
+
+    private BitCaskStorage partitionOf(String key){
+        // String.hashCode由语言规范定义，重启后分区不变
+        return partitions[(key.hashCode() & 0x7fffffff) % partitions.length];
+    }
+
+    @Override
+    public byte[] get(String key) {
+        return partitionOf(key).get(key);
+    }
+
+    @Override
+    public boolean putIfAbsent(String key, byte[] value) {
+        return partitionOf(key).putIfAbsent(key, value);
+    }
+
+    @Override
+    public boolean put(String key, byte[] value) {
+        return partitionOf(key).put(key, value);
+    }
+
+    @Override
+    public boolean delete(String key) {
+        return partitionOf(key).delete(key);
+    }
+
+    @Override
+    public List<String> keys() {
+        List<String> keys = new ArrayList<>();
+        for (BitCaskStorage partition : partitions) {
+            keys.addAll(partition.keys());
+        }
+        return keys;
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        return partitionOf(key).containsKey(key);
+    }
+}
@@ -14,8 +14,33 @@ import io.netty.channel.ChannelHandler;
  * @date 2022/01/17 14:35
  */
 public class TinyOssCodec implements Codec {
+
+    /**
+     * 流式上传接收端工厂，null表示不开启流式上传
+     */
+    private final UploadStreamFactory uploadStreamFactory;
+
+    private final int streamingThreshold;
+
+    public TinyOssCodec() {
+        this(null, 0);
+    }
+
+    /**
+     * @param uploadStreamFactory 流式上传接收端工厂
+     * @param streamingThreshold 使用流式上传的最小数据长度，单位字节
+     */
+    public TinyOssCodec(UploadStreamFactory uploadStreamFactory, int streamingThreshold) {
+        this.uploadStreamFactory = uploadStreamFactory;
+        this.streamingThreshold = streamingThreshold;
+    }
+
     @Override
     public ChannelHandler newDecoder() {
+        if(uploadStreamFactory != null){
+            // 流式上传解码器在添加到pipeline时会在其后添加协议解码器
+            return new UploadStreamDecoder(uploadStreamFactory, streamingThreshold);
+        }
         return new ProtocolCodeBasedDecoder();
     }
 
@@ -48,6 +48,11 @@ public class TinyOssCommand implements RemotingCommand {
     private byte compressor;
 
     private byte[] content;
+    /**
+     * 对象数据，引用计数由持有者管理：
+     * 解码得到的data是接收缓冲区的切片，处理器处理完成后必须释放；
+     * 发送的data交给编码器，写出后由编码器释放，发送者不能再使用
+     */
     private ByteBuf data;
     private DefaultFileRegion fileRegion;
 
@@ -74,6 +74,10 @@ public class TinyOssCommandFactory implements CommandFactory {
         if(o instanceof ByteBuf){
             return strategyHolder.get(ByteBuf.class).build(builder, o);
         }
+        // FileRegion可能是DefaultFileRegion的子类
+        if(o instanceof DefaultFileRegion){
+            return strategyHolder.get(DefaultFileRegion.class).build(builder, o);
+        }
         BuilderStrategy strategy;
         return (strategy = strategyHolder.get(o.getClass())) == null ? null : strategy.build(builder, o);
     }
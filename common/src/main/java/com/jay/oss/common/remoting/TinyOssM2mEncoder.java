@@ -22,7 +22,7 @@ public class TinyOssM2mEncoder implements ProtocolM2mEncoder {
         if(o instanceof TinyOssCommand){
             TinyOssCommand command = (TinyOssCommand) o;
             // 创建header
-            ByteBuf header = createHeader(command);
+            ByteBuf header = createHeader(context, command);
             // 输出header
             out.add(header);
             CommandCode code = command.getCommandCode();
@@ -32,7 +32,7 @@ public class TinyOssM2mEncoder implements ProtocolM2mEncoder {
             }
             // 处理下载的fileRegion
             else if(TinyOssProtocol.DOWNLOAD_RESPONSE.equals(code)){
-                out.add(command.getData());
+                out.add(command.getFileRegion() != null ? command.getFileRegion() : command.getData());
             }
             // 处理序列化的content
             else if(command.getContent() != null){
@@ -43,11 +43,13 @@ public class TinyOssM2mEncoder implements ProtocolM2mEncoder {
 
     /**
      * 创建Header
+     * 从channel的内存池分配，写出后由Netty释放
+     * @param context {@link ChannelHandlerContext}
      * @param command {@link TinyOssCommand}
      * @return {@link ByteBuf}
      */
-    private ByteBuf createHeader(TinyOssCommand command){
-        ByteBuf header = Unpooled.directBuffer(TinyOssProtocol.HEADER_LENGTH);
+    private ByteBuf createHeader(ChannelHandlerContext context, TinyOssCommand command){
+        ByteBuf header = context.alloc().directBuffer(TinyOssProtocol.HEADER_LENGTH);
         header.writeByte(TinyOssProtocol.PROTOCOL_CODE.value());
         header.writeInt(command.getLength());
         header.writeInt(command.getId());
@@ -0,0 +1,30 @@
+package com.jay.oss.common.remoting;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * <p>
+ *  流式上传的接收端
+ *  解码器在IO线程中按顺序把上传请求的数据部分交给接收端，不等待完整的报文到达。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/08 10:12
+ */
+public interface UploadStream {
+    /**
+     * 接收一段数据
+     * @param chunk 数据，所有权交给接收端，接收端负责释放
+     */
+    void append(ByteBuf chunk);
+
+    /**
+     * 报文的数据部分已经全部接收
+     */
+    void complete();
+
+    /**
+     * 连接在接收完成之前断开
+     */
+    void abort();
+}
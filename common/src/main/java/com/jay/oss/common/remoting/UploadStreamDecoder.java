@@ -0,0 +1,158 @@
+package com.jay.oss.common.remoting;
+
+import com.jay.dove.transport.codec.ProtocolCodeBasedDecoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+
+/**
+ * <p>
+ *  流式上传解码器
+ *  位于协议解码器之前，按照报文头部的长度划分报文：
+ *  普通报文原样转发给协议解码器；数据部分超过阈值的上传请求在收到头部、对象ID和大小之后就交给{@link UploadStream}，
+ *  之后到达的数据直接交给接收端写入，不在接收缓冲区中累积完整的报文。
+ *  每个连接一个解码器实例，流式上传的状态保存在解码器中。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/08 10:30
+ */
+@Slf4j
+public class UploadStreamDecoder extends ByteToMessageDecoder {
+
+    private final UploadStreamFactory streamFactory;
+
+    /**
+     * 使用流式上传的最小数据长度
+     */
+    private final int threshold;
+
+    /**
+     * 正在转发的报文剩余长度
+     */
+    private long forwarding = 0;
+
+    /**
+     * 正在接收的流式上传
+     */
+    private UploadStream stream;
+
+    /**
+     * 流式上传剩余的数据长度
+     */
+    private long streamRemaining = 0;
+
+    /**
+     * 不是TinyOss协议的连接，之后的数据全部转发
+     */
+    private boolean passThrough = false;
+
+    /**
+     * 上传请求数据部分的头部：objectId(8) | size(4)
+     */
+    private static final int UPLOAD_HEADER_LENGTH = 12;
+
+    public UploadStreamDecoder(UploadStreamFactory streamFactory, int threshold) {
+        this.streamFactory = streamFactory;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        super.handlerAdded(ctx);
+        // 协议解码器处理转发的普通报文
+        ctx.pipeline().addAfter(ctx.name(), null, new ProtocolCodeBasedDecoder());
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        if(passThrough){
+            out.add(in.readRetainedSlice(in.readableBytes()));
+            return;
+        }
+        if(stream != null){
+            feed(in);
+            return;
+        }
+        if(forwarding > 0){
+            forward(in, out);
+            return;
+        }
+        if(in.readableBytes() < TinyOssProtocol.HEADER_LENGTH){
+            return;
+        }
+        int base = in.readerIndex();
+        if(in.getByte(base) != TinyOssProtocol.PROTOCOL_CODE.value()){
+            passThrough = true;
+            out.add(in.readRetainedSlice(in.readableBytes()));
+            return;
+        }
+        int length = in.getInt(base + 1);
+        int commandId = in.getInt(base + 5);
+        short code = in.getShort(base + 9);
+        int bodyLength = length - TinyOssProtocol.HEADER_LENGTH;
+        // 已经完整到达的报文按照普通报文处理
+        if(code == TinyOssProtocol.UPLOAD_REQUEST.value() && bodyLength >= threshold && in.readableBytes() < length){
+            if(in.readableBytes() < TinyOssProtocol.HEADER_LENGTH + UPLOAD_HEADER_LENGTH){
+                return;
+            }
+            long objectId = in.getLong(base + TinyOssProtocol.HEADER_LENGTH);
+            int size = in.getInt(base + TinyOssProtocol.HEADER_LENGTH + 8);
+            int remaining = bodyLength - UPLOAD_HEADER_LENGTH;
+            UploadStream uploadStream = streamFactory.open(ctx.pipeline().lastContext(), commandId, objectId, size, remaining);
+            if(uploadStream != null){
+                in.skipBytes(TinyOssProtocol.HEADER_LENGTH + UPLOAD_HEADER_LENGTH);
+                stream = uploadStream;
+                streamRemaining = remaining;
+                feed(in);
+                return;
+            }
+        }
+        forwarding = length;
+        forward(in, out);
+    }
+
+    private void forward(ByteBuf in, List<Object> out){
+        int length = (int) Math.min(in.readableBytes(), forwarding);
+        if(length > 0){
+            out.add(in.readRetainedSlice(length));
+            forwarding -= length;
+        }
+    }
+
+    private void feed(ByteBuf in){
+        int length = (int) Math.min(in.readableBytes(), streamRemaining);
+        if(length > 0){
+            stream.append(in.readRetainedSlice(length));
+            streamRemaining -= length;
+        }
+        if(streamRemaining == 0){
+            UploadStream completed = stream;
+            stream = null;
+            completed.complete();
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        abortStream();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    protected void handlerRemoved0(ChannelHandlerContext ctx) {
+        abortStream();
+    }
+
+    private void abortStream(){
+        if(stream != null){
+            log.warn("Connection closed during streaming upload, {} bytes not received", streamRemaining);
+            UploadStream aborted = stream;
+            stream = null;
+            aborted.abort();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.jay.oss.common.remoting;
+
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * <p>
+ *  流式上传接收端工厂
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/08 10:15
+ */
+public interface UploadStreamFactory {
+    /**
+     * 根据上传请求的头部创建接收端
+     * @param context 用于发送回复的{@link ChannelHandlerContext}
+     * @param commandId 报文ID
+     * @param objectId 对象ID
+     * @param size 对象大小
+     * @param remaining 头部之后的数据长度，包括对象数据和副本位置
+     * @return {@link UploadStream} null表示不使用流式上传，按照完整报文处理
+     */
+    UploadStream open(ChannelHandlerContext context, int commandId, long objectId, int size, int remaining);
+}
@@ -0,0 +1,94 @@
+package com.jay.oss.common.util;
+
+import com.jay.oss.common.prometheus.GaugeManager;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocatorMetric;
+import io.prometheus.client.Gauge;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ *  数据路径的ByteBuf池
+ *  读写对象数据使用和Netty相同的PooledByteBufAllocator，避免每次读写都分配新的堆外内存，
+ *  减少DirectByteBuffer的Cleaner回收和GC压力。
+ *  所有权规则：
+ *  1. 从池中分配的ByteBuf由分配者持有，传递给其他组件时所有权随之转移，最终持有者负责release一次；
+ *  2. 放入{@link com.jay.oss.common.remoting.TinyOssCommand}的data交给编码器，编码器写出后释放，发送之后不能再使用；
+ *  3. 解码得到的data由处理器持有，处理完成后必须释放，包括写入失败和重复对象的情况。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/07 14:30
+ */
+public class BufferPool {
+
+    private static final PooledByteBufAllocator ALLOCATOR = PooledByteBufAllocator.DEFAULT;
+
+    private static final LongAdder ALLOCATIONS = new LongAdder();
+
+    private static final LongAdder ALLOCATED_BYTES = new LongAdder();
+
+    private static long lastAllocations = 0;
+
+    private static long lastAllocatedBytes = 0;
+
+    private static long lastRecordTime = System.nanoTime();
+
+    /**
+     * 分配堆外内存，用于读取block数据和写入记录头
+     * @param capacity 容量
+     * @return {@link ByteBuf} 调用者负责释放
+     */
+    public static ByteBuf directBuffer(int capacity){
+        ALLOCATIONS.increment();
+        ALLOCATED_BYTES.add(capacity);
+        return ALLOCATOR.directBuffer(capacity, capacity);
+    }
+
+    public static PooledByteBufAllocator allocator(){
+        return ALLOCATOR;
+    }
+
+    public static PooledByteBufAllocatorMetric metric(){
+        return ALLOCATOR.metric();
+    }
+
+    public static long allocations(){
+        return ALLOCATIONS.sum();
+    }
+
+    public static long allocatedBytes(){
+        return ALLOCATED_BYTES.sum();
+    }
+
+    /**
+     * 更新分配速率和内存池占用指标
+     */
+    public static synchronized void recordMetrics(){
+        long now = System.nanoTime();
+        double seconds = Math.max(1, now - lastRecordTime) / 1e9;
+        long allocations = allocations();
+        long allocatedBytes = allocatedBytes();
+        Gauge allocationRate = GaugeManager.getGauge("buffer_allocation_rate");
+        if(allocationRate != null){
+            allocationRate.set((allocations - lastAllocations) / seconds);
+        }
+        Gauge allocationBytesRate = GaugeManager.getGauge("buffer_allocation_bytes_rate");
+        if(allocationBytesRate != null){
+            allocationBytesRate.set((allocatedBytes - lastAllocatedBytes) / seconds);
+        }
+        Gauge usedDirect = GaugeManager.getGauge("buffer_pool_used_direct_memory");
+        if(usedDirect != null){
+            usedDirect.set(metric().usedDirectMemory());
+        }
+        Gauge usedHeap = GaugeManager.getGauge("buffer_pool_used_heap_memory");
+        if(usedHeap != null){
+            usedHeap.set(metric().usedHeapMemory());
+        }
+        lastAllocations = allocations;
+        lastAllocatedBytes = allocatedBytes;
+        lastRecordTime = now;
+    }
+}
@@ -14,6 +14,10 @@ public class CompressUtil {
 
     private static final Compressor COMPRESSOR = new GzipCompressor();
 
+    private static final Compressor GZIP = COMPRESSOR;
+
+    private static final Compressor LZ4 = new Lz4Compressor();
+
     /**
      * 压缩数据
      * @param content 源数据
@@ -31,4 +35,26 @@ public class CompressUtil {
     public static byte[] decompress(byte[] content){
         return COMPRESSOR.decompress(content);
     }
+
+    /**
+     * 根据压缩算法编号获取压缩工具
+     * @param code {@link Compressor#getCode()}
+     * @return {@link Compressor} null if no such codec
+     */
+    public static Compressor getCompressor(byte code){
+        switch (code){
+            case GzipCompressor.CODE: return GZIP;
+            case Lz4Compressor.CODE: return LZ4;
+            default: return null;
+        }
+    }
+
+    /**
+     * 根据压缩算法名称获取压缩工具，未知的名称使用GZIP
+     * @param name lz4 或 gzip
+     * @return {@link Compressor}
+     */
+    public static Compressor getCompressor(String name){
+        return "lz4".equalsIgnoreCase(name) ? LZ4 : GZIP;
+    }
 }
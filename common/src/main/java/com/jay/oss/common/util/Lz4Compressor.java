@@ -0,0 +1,53 @@
+package com.jay.oss.common.util;
+
+import com.jay.dove.compress.Compressor;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ *  LZ4压缩工具
+ *  压缩速度远快于GZIP，适合在写入路径上压缩对象数据。
+ *  压缩结果的前4字节是原始数据长度，解压时按照原始长度分配输出。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/10 10:20
+ */
+public class Lz4Compressor implements Compressor {
+
+    public static final byte CODE = 2;
+
+    private static final LZ4Factory FACTORY = LZ4Factory.fastestInstance();
+
+    private final LZ4Compressor compressor = FACTORY.fastCompressor();
+
+    private final LZ4FastDecompressor decompressor = FACTORY.fastDecompressor();
+
+    @Override
+    public byte[] compress(byte[] bytes) {
+        int maxLength = compressor.maxCompressedLength(bytes.length);
+        byte[] output = new byte[4 + maxLength];
+        ByteBuffer.wrap(output).putInt(bytes.length);
+        int length = compressor.compress(bytes, 0, bytes.length, output, 4, maxLength);
+        byte[] result = new byte[4 + length];
+        System.arraycopy(output, 0, result, 0, result.length);
+        return result;
+    }
+
+    @Override
+    public byte[] decompress(byte[] bytes) {
+        int length = ByteBuffer.wrap(bytes).getInt();
+        byte[] output = new byte[length];
+        decompressor.decompress(bytes, 4, output, 0, length);
+        return output;
+    }
+
+    @Override
+    public byte getCode() {
+        return CODE;
+    }
+}
@@ -5,10 +5,15 @@ import com.jay.oss.common.registry.StorageNodeInfo;
 import org.apache.commons.io.FileUtils;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * <p>
@@ -24,17 +29,41 @@ public class NodeInfoCollector {
     private static String localAddress = null;
 
     public static StorageNodeInfo getStorageNodeInfo(int port) {
-        String path = OssConfigs.dataPath();
-        File dir = new File(path);
-        long usedSpace = FileUtils.sizeOfDirectory(dir);
+        // 多磁盘时统计所有数据目录，同一个文件系统上的目录剩余空间只统计一次
+        long usedSpace = 0;
+        long usableSpace = 0;
+        Set<FileStore> fileStores = new HashSet<>();
+        for (String path : OssConfigs.dataPaths()) {
+            File dir = new File(path);
+            if(dir.isDirectory()){
+                usedSpace += FileUtils.sizeOfDirectory(dir);
+                FileStore fileStore = fileStoreOf(dir);
+                if(fileStore == null || fileStores.add(fileStore)){
+                    usableSpace += dir.getUsableSpace();
+                }
+            }
+        }
         return StorageNodeInfo.builder()
                 .url(getLocalAddress() + ":" + port)
-                .space(dir.getUsableSpace())
+                .space(usableSpace)
                 .usedSpace(usedSpace)
                 .memoryTotal(Runtime.getRuntime().totalMemory())
                 .available(true).build();
     }
 
+    /**
+     * 目录所在的文件系统，无法获取时把目录本身当作独立的文件系统
+     * @param dir 目录
+     * @return {@link FileStore}，null表示无法获取
+     */
+    private static FileStore fileStoreOf(File dir){
+        try{
+            return Files.getFileStore(dir.toPath());
+        }catch (IOException e){
+            return null;
+        }
+    }
+
     public static String getAddress() {
         if(localAddress == null){
             localAddress = getLocalAddress();
@@ -3,6 +3,7 @@ package com.jay.oss.common.util;
 import com.jay.dove.util.NamedThreadFactory;
 
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * <p>
@@ -34,4 +35,19 @@ public class ThreadPoolUtil {
         return newThreadPool(2 * Runtime.getRuntime().availableProcessors(),
                 2 * Runtime.getRuntime().availableProcessors(), name, new ThreadPoolExecutor.CallerRunsPolicy());
     }
+
+    /**
+     * 新建ForkJoin线程池，用于可拆分的并行计算任务
+     * @param parallelism 并行度
+     * @param name 线程名
+     * @return {@link ForkJoinPool}
+     */
+    public static ForkJoinPool newForkJoinPool(int parallelism, String name){
+        AtomicInteger threadIndex = new AtomicInteger(0);
+        return new ForkJoinPool(Math.max(1, parallelism), pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName(name + threadIndex.getAndIncrement());
+            return thread;
+        }, null, false);
+    }
 }
@@ -0,0 +1,207 @@
+import com.jay.oss.common.kv.bitcask.BitCaskStorage;
+import com.jay.oss.common.kv.bitcask.EpochManager;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * <p>
+ *  BitCask并发读取测试
+ *  压缩和回收旧chunk期间的无锁读取不会读到空值或者错误的值；
+ *  epoch槽位支持同一线程嵌套进入，结束的线程的槽位会被移除；
+ *  对比get外层加读写锁的读锁（原来防止压缩删除chunk的方式）和基于epoch回收的无锁读取，
+ *  分别在1、8、32个线程下测量吞吐量
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/14 15:10
+ */
+@Slf4j
+public class TestBitCaskConcurrentRead {
+
+    private static final int KEY_COUNT = 20000;
+
+    private static final int READER_COUNT = 8;
+
+    private static final int COMPACT_ROUNDS = 5;
+
+    private static final long DURATION = 1000;
+
+    private static final int[] THREADS = {1, 8, 32};
+
+    private File dataPath;
+
+    @Before
+    public void setUp() throws IOException {
+        dataPath = Files.createTempDirectory("bitcask_read").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dataPath);
+    }
+
+    @Test
+    public void testGetDuringCompaction() throws Exception {
+        // 不调用init，不启动定时压缩，只由测试线程压缩
+        BitCaskStorage storage = new BitCaskStorage(dataPath.getPath());
+        for (int i = 0; i < KEY_COUNT; i++) {
+            storage.put(key(i), value(i));
+        }
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicInteger missing = new AtomicInteger(0);
+        AtomicInteger wrong = new AtomicInteger(0);
+        LongAdder reads = new LongAdder();
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < READER_COUNT; t++) {
+            int seed = t;
+            Thread reader = new Thread(() -> {
+                Random random = new Random(seed);
+                while(running.get()){
+                    int i = random.nextInt(KEY_COUNT);
+                    byte[] value = storage.get(key(i));
+                    if(value == null){
+                        missing.incrementAndGet();
+                    }else if(!new String(value, StandardCharsets.UTF_8).equals(new String(value(i), StandardCharsets.UTF_8))){
+                        wrong.incrementAndGet();
+                    }
+                    reads.increment();
+                }
+            });
+            readers.add(reader);
+            reader.start();
+        }
+        try{
+            for (int round = 0; round < COMPACT_ROUNDS; round++) {
+                // 每轮覆盖一部分key写入相同的值，压缩时有垃圾需要回收
+                for (int i = round; i < KEY_COUNT; i += COMPACT_ROUNDS) {
+                    storage.put(key(i), value(i));
+                }
+                storage.compact();
+            }
+        }finally {
+            running.set(false);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+        log.info("Reads during compaction: {}", reads.sum());
+        Assert.assertTrue(reads.sum() > 0);
+        Assert.assertEquals(0, missing.get());
+        Assert.assertEquals(0, wrong.get());
+        // 旧chunk已经回收，只剩下最后一次压缩的合并chunk
+        String[] chunkFiles = new File(dataPath.getPath() + BitCaskStorage.CHUNK_DIRECTORY).list((dir, name) -> name.startsWith("chunk_"));
+        Assert.assertNotNull(chunkFiles);
+        Assert.assertEquals(1, chunkFiles.length);
+    }
+
+    @Test
+    public void testNestedEnter() throws Exception {
+        EpochManager epochManager = new EpochManager();
+        EpochManager.Slot outer = epochManager.enter();
+        EpochManager.Slot inner = epochManager.enter();
+        epochManager.exit(inner);
+        // 内层退出后仍然处于外层的读取中，回收需要等待外层退出
+        Thread reclaimer = new Thread(epochManager::synchronize);
+        reclaimer.start();
+        reclaimer.join(200);
+        Assert.assertTrue(reclaimer.isAlive());
+        epochManager.exit(outer);
+        reclaimer.join(5000);
+        Assert.assertFalse(reclaimer.isAlive());
+    }
+
+    @Test
+    public void testDeadThreadSlotsRemoved() throws Exception {
+        EpochManager epochManager = new EpochManager();
+        for (int i = 0; i < 100; i++) {
+            Thread reader = new Thread(() -> epochManager.exit(epochManager.enter()));
+            reader.start();
+            reader.join();
+        }
+        // 注册新线程时已经移除之前结束的线程的槽位
+        Assert.assertTrue(epochManager.slotCount() <= 1);
+        epochManager.synchronize();
+        Assert.assertEquals(0, epochManager.slotCount());
+    }
+
+    @Test
+    public void testGetThroughput() throws Exception {
+        BitCaskStorage storage = new BitCaskStorage(dataPath.getPath());
+        for (int i = 0; i < KEY_COUNT; i++) {
+            storage.put(key(i), value(i));
+        }
+        ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        Function<String, byte[]> lockedGet = key -> {
+            lock.readLock().lock();
+            try{
+                return storage.get(key);
+            }finally {
+                lock.readLock().unlock();
+            }
+        };
+        // 预热
+        measure(storage::get, 8);
+        measure(lockedGet, 8);
+        for (int threads : THREADS) {
+            long locked = measure(lockedGet, threads);
+            long epoch = measure(storage::get, threads);
+            log.info("threads: {}, read lock: {} ops/s, epoch: {} ops/s", threads, locked, epoch);
+        }
+    }
+
+    /**
+     * 多个线程在固定时间内循环读取，返回每秒读取次数
+     */
+    private long measure(Function<String, byte[]> get, int threads) throws InterruptedException {
+        LongAdder operations = new LongAdder();
+        AtomicInteger missing = new AtomicInteger(0);
+        long deadline = System.currentTimeMillis() + DURATION;
+        List<Thread> workers = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            Thread worker = new Thread(() -> {
+                Random random = new Random(seed);
+                long count = 0;
+                while((count & 1023) != 0 || System.currentTimeMillis() < deadline){
+                    if(get.apply(key(random.nextInt(KEY_COUNT))) == null){
+                        missing.incrementAndGet();
+                    }
+                    count++;
+                }
+                operations.add(count);
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Assert.assertEquals(0, missing.get());
+        return operations.sum() * 1000 / DURATION;
+    }
+
+    private static String key(int i){
+        return "bucket/object" + i;
+    }
+
+    private static byte[] value(int i){
+        return ("value-" + i + "-0123456789abcdef").getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,168 @@
+import com.jay.oss.common.kv.bitcask.CompactKeyDir;
+import com.jay.oss.common.kv.bitcask.Index;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *  紧凑索引单元测试
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/15 16:20
+ */
+@Slf4j
+public class TestCompactKeyDir {
+
+    private static final int KEY_COUNT = 1000000;
+
+    private static String key(int i){
+        return "bucket-1654321/objects/photo-" + i + ".png";
+    }
+
+    @Test
+    public void testOperations(){
+        CompactKeyDir keyDir = new CompactKeyDir();
+        Map<String, Index> expected = new HashMap<>();
+        Random random = new Random(3);
+        for (int i = 0; i < 200000; i++) {
+            String key = key(random.nextInt(50000));
+            Index index = new Index(random.nextInt(1000), random.nextInt(Integer.MAX_VALUE), random.nextInt(10) == 0);
+            switch (random.nextInt(4)){
+                case 0:
+                    Index old = expected.get(key);
+                    if(old != null){
+                        Assert.assertTrue(keyDir.remove(key, old));
+                        expected.remove(key);
+                    }
+                    break;
+                case 1:
+                    old = expected.get(key);
+                    if(old != null){
+                        Assert.assertTrue(keyDir.replace(key, old, index));
+                        expected.put(key, index);
+                    }
+                    break;
+                default:
+                    keyDir.put(key, index);
+                    expected.put(key, index);
+            }
+        }
+        Assert.assertEquals(expected.size(), keyDir.size());
+        Map<String, Index> actual = new HashMap<>();
+        keyDir.forEach(actual::put);
+        Assert.assertEquals(expected.size(), actual.size());
+        for (Map.Entry<String, Index> entry : expected.entrySet()) {
+            Index index = keyDir.get(entry.getKey());
+            Assert.assertEquals(entry.getValue().getChunkId(), index.getChunkId());
+            Assert.assertEquals(entry.getValue().getOffset(), index.getOffset());
+            Assert.assertEquals(entry.getValue().isRemoved(), index.isRemoved());
+            Assert.assertEquals(entry.getValue().getOffset(), actual.get(entry.getKey()).getOffset());
+        }
+        // 值不同时不替换、不删除
+        String key = expected.keySet().iterator().next();
+        Assert.assertFalse(keyDir.replace(key, new Index(-1, 0, false), new Index(1, 1, false)));
+        Assert.assertFalse(keyDir.remove(key, new Index(-1, 0, false)));
+        Assert.assertNull(keyDir.get("missing"));
+    }
+
+    @Test
+    public void testConcurrentReadDuringWrite() throws InterruptedException {
+        CompactKeyDir keyDir = new CompactKeyDir();
+        int count = 200000;
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicLong errors = new AtomicLong();
+        // 写线程插入新key触发扩容，读线程检查已经写入的key一直可见
+        AtomicLong written = new AtomicLong();
+        Thread reader = new Thread(() -> {
+            Random random = new Random(1);
+            while(!stop.get()){
+                long limit = written.get();
+                if(limit == 0){
+                    continue;
+                }
+                int i = random.nextInt((int) limit);
+                Index index = keyDir.get(key(i));
+                if(index == null || index.getOffset() != i){
+                    errors.incrementAndGet();
+                }
+            }
+        });
+        reader.start();
+        for (int i = 0; i < count; i++) {
+            keyDir.put(key(i), new Index(0, i, false));
+            written.set(i + 1);
+            if(i % 3 == 0){
+                // 写入后删除其他key，制造删除标记和arena垃圾
+                keyDir.put("garbage-" + i, new Index(1, i, false));
+                keyDir.remove("garbage-" + i, new Index(1, i, false));
+            }
+        }
+        stop.set(true);
+        reader.join();
+        Assert.assertEquals(count, keyDir.size());
+        Assert.assertEquals(0, errors.get());
+    }
+
+    /**
+     * 按数组和arena页的实际大小计算内存占用，不依赖GC后的堆使用量
+     * 装载因子在3/8到3/4之间，每个key的槽位数组最多 16 / 0.375 ≈ 43 bytes，
+     * ConcurrentHashMap每个key的对象开销约140 bytes
+     */
+    @Test
+    public void testHeapUsage(){
+        CompactKeyDir keyDir = new CompactKeyDir();
+        long keyBytes = 0;
+        for (int i = 0; i < KEY_COUNT; i++) {
+            keyDir.put(key(i), new Index(i & 1023, i, false));
+            keyBytes += key(i).length();
+        }
+        Assert.assertEquals(KEY_COUNT, keyDir.size());
+        long heapPerKey = keyDir.heapBytes() / KEY_COUNT;
+        log.info("Heap per key: {} bytes, off-heap per key: {} bytes", heapPerKey, keyDir.offHeapBytes() / KEY_COUNT);
+        Assert.assertTrue(heapPerKey <= 43);
+        Assert.assertTrue(keyDir.offHeapBytes() >= keyBytes);
+        // arena页按倍数增长，最后一页没有写满的部分不超过已经写入的key
+        Assert.assertTrue(keyDir.offHeapBytes() <= keyBytes * 2);
+    }
+
+    @Test
+    public void testLongKey(){
+        CompactKeyDir keyDir = new CompactKeyDir();
+        StringBuilder builder = new StringBuilder();
+        while(builder.length() < 60 * 1024){
+            builder.append("long-key-");
+        }
+        String longKey = builder.toString();
+        // 新建的段第一页只有4KB，超长的key需要分配足够大的页
+        keyDir.put("short", new Index(1, 1, false));
+        keyDir.put(longKey, new Index(2, 2, false));
+        keyDir.put(longKey + "-2", new Index(3, 3, false));
+        Assert.assertEquals(2, keyDir.get(longKey).getOffset());
+        Assert.assertEquals(3, keyDir.get(longKey + "-2").getOffset());
+        Assert.assertEquals(1, keyDir.get("short").getOffset());
+        Assert.assertTrue(keyDir.offHeapBytes() >= longKey.length() * 2L);
+        // 超过长度上限的key拒绝写入
+        try{
+            keyDir.put(builder.append(builder).toString(), new Index(4, 4, false));
+            Assert.fail("key too long");
+        }catch (IllegalArgumentException e){
+            log.info("Rejected: {}", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testEmptyFootprint(){
+        // 分区存储每个分区一个索引，空索引不预先分配arena页
+        CompactKeyDir keyDir = new CompactKeyDir();
+        Assert.assertEquals(0, keyDir.offHeapBytes());
+        Assert.assertTrue(keyDir.heapBytes() <= 64 * 1024);
+    }
+}
@@ -0,0 +1,91 @@
+import com.jay.oss.common.ec.ReedSolomon;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * <p>
+ *  Reed-Solomon纠删码单元测试
+ *  6+3编码下丢失任意不超过3个分片都能恢复原始数据
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/12 15:20
+ */
+@Slf4j
+public class TestReedSolomon {
+
+    private static final int DATA_SHARDS = 6;
+    private static final int PARITY_SHARDS = 3;
+
+    @Test
+    public void testReconstructAnyMissingShards(){
+        ReedSolomon codec = new ReedSolomon(DATA_SHARDS, PARITY_SHARDS);
+        Random random = new Random(7);
+        byte[] data = new byte[100 * 1024 + 3];
+        random.nextBytes(data);
+        byte[][] encoded = codec.encode(data, 0, data.length);
+        int total = codec.getTotalShards();
+        int cases = 0;
+        // 遍历所有丢失1到3个分片的组合
+        for (int mask = 1; mask < (1 << total); mask++) {
+            int missing = Integer.bitCount(mask);
+            if(missing > PARITY_SHARDS){
+                continue;
+            }
+            byte[][] shards = new byte[total][];
+            boolean[] present = new boolean[total];
+            for (int i = 0; i < total; i++) {
+                present[i] = (mask & (1 << i)) == 0;
+                shards[i] = present[i] ? encoded[i].clone() : null;
+            }
+            codec.reconstruct(shards, present);
+            for (int i = 0; i < total; i++) {
+                Assert.assertArrayEquals(encoded[i], shards[i]);
+            }
+            Assert.assertArrayEquals(data, codec.join(shards, data.length));
+            cases++;
+        }
+        log.info("Reconstructed {} missing shard combinations", cases);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManyMissingShards(){
+        ReedSolomon codec = new ReedSolomon(DATA_SHARDS, PARITY_SHARDS);
+        byte[][] shards = codec.encode(new byte[1000], 0, 1000);
+        boolean[] present = new boolean[codec.getTotalShards()];
+        for (int i = PARITY_SHARDS + 1; i < present.length; i++) {
+            present[i] = true;
+        }
+        codec.reconstruct(shards, present);
+    }
+
+    @Test
+    public void testSmallObject(){
+        ReedSolomon codec = new ReedSolomon(DATA_SHARDS, PARITY_SHARDS);
+        byte[] data = {1, 2, 3};
+        byte[][] shards = codec.encode(data, 0, data.length);
+        Assert.assertEquals(1, shards[0].length);
+        boolean[] present = {false, false, false, true, true, true, true, true, true};
+        codec.reconstruct(shards, present);
+        Assert.assertArrayEquals(data, codec.join(shards, data.length));
+    }
+
+    @Test
+    public void testEncodeThroughput(){
+        ReedSolomon codec = new ReedSolomon(DATA_SHARDS, PARITY_SHARDS);
+        byte[] data = new byte[16 * 1024 * 1024];
+        new Random(1).nextBytes(data);
+        // 预热
+        codec.encode(data, 0, data.length);
+        long start = System.nanoTime();
+        int loop = 5;
+        for (int i = 0; i < loop; i++) {
+            codec.encode(data, 0, data.length);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        log.info("RS({},{}) encode throughput: {} MB/s", DATA_SHARDS, PARITY_SHARDS, (long) (loop * 16 / seconds));
+    }
+}
@@ -0,0 +1,198 @@
+import com.jay.dove.transport.codec.ProtocolCodeBasedDecoder;
+import com.jay.oss.common.remoting.TinyOssProtocol;
+import com.jay.oss.common.remoting.UploadStream;
+import com.jay.oss.common.remoting.UploadStreamDecoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ *  流式上传解码器测试
+ *  普通报文和已经完整到达的报文原样转发；数据部分超过阈值的上传请求在收到头部后交给接收端，
+ *  分多次到达的数据按顺序交给接收端，连接断开时放弃接收
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/16 17:10
+ */
+@Slf4j
+public class TestUploadStreamDecoder {
+
+    private static final int THRESHOLD = 64;
+
+    private static final int OBJECT_SIZE = 200;
+
+    private static final byte[] LOCATIONS = "127.0.0.1:9993".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * 记录接收到的数据和完成状态
+     */
+    private static class RecordingStream implements UploadStream {
+        private final ByteBuf received = Unpooled.buffer();
+        private int completed = 0;
+        private boolean aborted = false;
+
+        @Override
+        public void append(ByteBuf chunk) {
+            received.writeBytes(chunk);
+            chunk.release();
+        }
+
+        @Override
+        public void complete() {
+            completed++;
+        }
+
+        @Override
+        public void abort() {
+            aborted = true;
+        }
+    }
+
+    private RecordingStream stream;
+
+    private int opened;
+
+    private EmbeddedChannel channel(boolean accept){
+        stream = new RecordingStream();
+        opened = 0;
+        EmbeddedChannel channel = new EmbeddedChannel(new UploadStreamDecoder((context, commandId, objectId, size, remaining) -> {
+            opened++;
+            Assert.assertEquals(1L, objectId);
+            Assert.assertEquals(OBJECT_SIZE, size);
+            Assert.assertEquals(OBJECT_SIZE + LOCATIONS.length, remaining);
+            return accept ? stream : null;
+        }, THRESHOLD));
+        // 只检查解码器转发的原始报文
+        channel.pipeline().remove(ProtocolCodeBasedDecoder.class);
+        return channel;
+    }
+
+    @Test
+    public void testSmallMessageForwarded(){
+        EmbeddedChannel channel = channel(true);
+        ByteBuf frame = uploadFrame(1, 16);
+        byte[] expected = bytes(frame);
+        channel.writeInbound(frame);
+        Assert.assertArrayEquals(expected, readForwarded(channel));
+        Assert.assertEquals(0, opened);
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testLargeUploadStreamed(){
+        EmbeddedChannel channel = channel(true);
+        ByteBuf frame = uploadFrame(1, OBJECT_SIZE);
+        int bodyStart = TinyOssProtocol.HEADER_LENGTH + 12;
+        byte[] body = new byte[frame.readableBytes() - bodyStart];
+        frame.getBytes(bodyStart, body);
+        // 分三次到达，第一次只包含头部和少量数据
+        channel.writeInbound(frame.readRetainedSlice(bodyStart + 10));
+        Assert.assertEquals(1, opened);
+        channel.writeInbound(frame.readRetainedSlice(100));
+        Assert.assertEquals(0, stream.completed);
+        channel.writeInbound(frame.readRetainedSlice(frame.readableBytes()));
+        frame.release();
+        Assert.assertEquals(1, stream.completed);
+        Assert.assertArrayEquals(body, bytes(stream.received));
+        Assert.assertNull(channel.readInbound());
+
+        // 流式上传结束后的报文正常转发
+        ByteBuf next = uploadFrame(2, 16);
+        byte[] expected = bytes(next);
+        channel.writeInbound(next);
+        Assert.assertArrayEquals(expected, readForwarded(channel));
+        Assert.assertFalse(stream.aborted);
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testCompleteMessageForwarded(){
+        EmbeddedChannel channel = channel(true);
+        ByteBuf frame = uploadFrame(1, OBJECT_SIZE);
+        byte[] expected = bytes(frame);
+        channel.writeInbound(frame);
+        Assert.assertArrayEquals(expected, readForwarded(channel));
+        Assert.assertEquals(0, opened);
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testDeclinedUploadForwarded(){
+        EmbeddedChannel channel = channel(false);
+        ByteBuf frame = uploadFrame(1, OBJECT_SIZE);
+        byte[] expected = bytes(frame);
+        channel.writeInbound(frame.readRetainedSlice(TinyOssProtocol.HEADER_LENGTH + 20));
+        channel.writeInbound(frame.readRetainedSlice(frame.readableBytes()));
+        frame.release();
+        Assert.assertEquals(1, opened);
+        Assert.assertArrayEquals(expected, readForwarded(channel));
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testConnectionClosedAborts(){
+        EmbeddedChannel channel = channel(true);
+        ByteBuf frame = uploadFrame(1, OBJECT_SIZE);
+        channel.writeInbound(frame.readRetainedSlice(TinyOssProtocol.HEADER_LENGTH + 50));
+        frame.release();
+        channel.finishAndReleaseAll();
+        Assert.assertTrue(stream.aborted);
+        Assert.assertEquals(0, stream.completed);
+    }
+
+    /**
+     * 上传请求报文：协议头 | objectId(8) | size(4) | data | locations
+     */
+    private static ByteBuf uploadFrame(long objectId, int size){
+        ByteBuf frame = Unpooled.buffer();
+        int bodyLength = 12 + size + LOCATIONS.length;
+        frame.writeByte(TinyOssProtocol.PROTOCOL_CODE.value());
+        frame.writeInt(TinyOssProtocol.HEADER_LENGTH + bodyLength);
+        frame.writeInt(1);
+        frame.writeShort(TinyOssProtocol.UPLOAD_REQUEST.value());
+        frame.writeLong(0);
+        frame.writeByte(0);
+        frame.writeByte(0);
+        frame.writeLong(objectId);
+        frame.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            frame.writeByte(i);
+        }
+        frame.writeBytes(LOCATIONS);
+        return frame;
+    }
+
+    private static byte[] readForwarded(EmbeddedChannel channel){
+        List<byte[]> parts = new ArrayList<>();
+        int total = 0;
+        ByteBuf part;
+        while((part = channel.readInbound()) != null){
+            byte[] bytes = bytes(part);
+            part.release();
+            parts.add(bytes);
+            total += bytes.length;
+        }
+        byte[] result = new byte[total];
+        int position = 0;
+        for (byte[] bytes : parts) {
+            System.arraycopy(bytes, 0, result, position, bytes.length);
+            position += bytes.length;
+        }
+        return result;
+    }
+
+    private static byte[] bytes(ByteBuf buffer){
+        byte[] bytes = new byte[buffer.readableBytes()];
+        buffer.getBytes(buffer.readerIndex(), bytes);
+        return bytes;
+    }
+}
@@ -76,8 +76,9 @@ public class ProxyNode extends AbstractLifeCycle {
         commandHandler = new TinyOssCommandHandler(commandFactory, commandHandlerExecutor);
         // 存储节点客户端
         storageClient = new DoveClient(connectionManager, commandFactory);
-        uploadService = new UploadService(storageClient);
-        downloadService = new DownloadService(storageClient);
+        ErasureCodingService erasureCodingService = new ErasureCodingService(storageClient);
+        uploadService = new UploadService(storageClient, erasureCodingService);
+        downloadService = new DownloadService(storageClient, erasureCodingService);
         objectService = new ObjectService(storageClient);
         bucketService = new BucketService(storageClient);
         prometheusServer = new PrometheusServer();
@@ -15,6 +15,7 @@ import com.jay.oss.common.util.KeyUtil;
 import com.jay.oss.common.util.SerializeUtil;
 import com.jay.oss.common.util.StringUtil;
 import com.jay.oss.proxy.util.HttpUtil;
+import io.netty.buffer.ByteBuf;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
@@ -37,8 +38,10 @@ import java.util.Set;
 @Slf4j
 public class DownloadService {
     private final DoveClient client;
-    public DownloadService(DoveClient client) {
+    private final ErasureCodingService erasureCodingService;
+    public DownloadService(DoveClient client, ErasureCodingService erasureCodingService) {
         this.client = client;
+        this.erasureCodingService = erasureCodingService;
     }
 
     /**
@@ -71,6 +74,14 @@ public class DownloadService {
             if(urls == null || urls.isEmpty()){
                 return HttpUtil.notFoundResponse("No Replica of this object found");
             }
+            if(response.getShardIds() != null && !response.getShardIds().isEmpty()){
+                // 纠删码对象，读取分片
+                ByteBuf data = erasureCodingService.download(response, rangeStart, rangeEnd);
+                if(data == null){
+                    return HttpUtil.notFoundResponse("No enough shards of this object found");
+                }
+                return rangeEnd == -1 ? HttpUtil.okResponse(data) : HttpUtil.partialContentResponse(data);
+            }
             // 尝试从url列表中下载object
             return tryDownload(new ArrayList<>(urls), objectId, rangeStart, rangeEnd, commandCode);
         }catch (Exception e){
@@ -0,0 +1,203 @@
+package com.jay.oss.proxy.service;
+
+import com.jay.dove.DoveClient;
+import com.jay.dove.transport.Url;
+import com.jay.dove.transport.command.CommandCode;
+import com.jay.dove.transport.command.RemotingCommand;
+import com.jay.oss.common.ec.ReedSolomon;
+import com.jay.oss.common.entity.request.GetObjectRequest;
+import com.jay.oss.common.entity.response.LocateObjectResponse;
+import com.jay.oss.common.entity.response.PutObjectMetaResponse;
+import com.jay.oss.common.remoting.TinyOssCommand;
+import com.jay.oss.common.remoting.TinyOssProtocol;
+import com.jay.oss.common.util.ThreadPoolUtil;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * <p>
+ *  纠删码对象的上传和下载
+ *  上传时把对象切分成k个数据分片并计算m个校验分片，每个分片并行上传到Tracker分配的一个节点；
+ *  下载时优先只读取和请求范围重叠的数据分片，数据分片不可用时读取任意k个分片解码。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/12 17:30
+ */
+@Slf4j
+public class ErasureCodingService {
+    private final DoveClient storageClient;
+
+    /**
+     * 分片并行上传下载的线程池
+     */
+    private final ExecutorService shardExecutor = ThreadPoolUtil.newIoThreadPool("erasure-coding-");
+
+    public ErasureCodingService(DoveClient storageClient) {
+        this.storageClient = storageClient;
+    }
+
+    /**
+     * 上传纠删码对象，所有分片都上传成功才算成功
+     * @param resp {@link PutObjectMetaResponse}
+     * @param content 对象数据
+     * @param size 对象大小
+     * @return 上传是否成功
+     */
+    public boolean upload(PutObjectMetaResponse resp, ByteBuf content, int size){
+        ReedSolomon codec = new ReedSolomon(resp.getDataShards(), resp.getParityShards());
+        byte[] data = new byte[size];
+        content.getBytes(content.readerIndex(), data);
+        byte[][] shards = codec.encode(data, 0, size);
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            String location = resp.getLocations().get(i);
+            long shardId = resp.getShardIds().get(i);
+            byte[] shard = shards[i];
+            futures.add(CompletableFuture.supplyAsync(() -> uploadShard(location, shardId, shard), shardExecutor));
+        }
+        boolean success = true;
+        for (CompletableFuture<Boolean> future : futures) {
+            success &= future.join();
+        }
+        return success;
+    }
+
+    private boolean uploadShard(String location, long shardId, byte[] shard){
+        // 分片没有其他副本，请求中的副本地址为空
+        ByteBuf buffer = Unpooled.buffer(12 + shard.length);
+        buffer.writeLong(shardId);
+        buffer.writeInt(shard.length);
+        buffer.writeBytes(shard);
+        try{
+            RemotingCommand command = storageClient.getCommandFactory().createRequest(buffer, TinyOssProtocol.UPLOAD_REQUEST);
+            RemotingCommand response = storageClient.sendSync(Url.parseString(location), command, null);
+            return response.getCommandCode().equals(TinyOssProtocol.SUCCESS);
+        }catch (Exception e){
+            log.warn("Upload shard {} to {} failed ", shardId, location, e);
+            return false;
+        }
+    }
+
+    /**
+     * 下载纠删码对象
+     * @param resp {@link LocateObjectResponse}
+     * @param start 范围开始位置
+     * @param end 范围结束位置，-1表示下载到对象末尾
+     * @return {@link ByteBuf} null if not enough shards available
+     */
+    public ByteBuf download(LocateObjectResponse resp, int start, int end){
+        int size = resp.getSize();
+        end = end == -1 ? size : Math.min(end, size);
+        if(start < 0 || start > end){
+            return null;
+        }
+        if(start == end){
+            return Unpooled.EMPTY_BUFFER;
+        }
+        ReedSolomon codec = new ReedSolomon(resp.getDataShards(), resp.getParityShards());
+        ByteBuf data = readDataShards(resp, codec.shardSize(size), start, end);
+        return data != null ? data : reconstruct(resp, codec, start, end);
+    }
+
+    /**
+     * 直接读取和范围重叠的数据分片，不需要解码
+     * @return {@link ByteBuf} null if any data shard is unavailable
+     */
+    private ByteBuf readDataShards(LocateObjectResponse resp, int shardSize, int start, int end){
+        int first = start / shardSize;
+        int last = (end - 1) / shardSize;
+        List<CompletableFuture<ByteBuf>> futures = new ArrayList<>(last - first + 1);
+        for (int i = first; i <= last; i++) {
+            String location = resp.getShardLocations().get(i);
+            if(location.isEmpty()){
+                return null;
+            }
+            long shardId = resp.getShardIds().get(i);
+            int from = Math.max(start, i * shardSize) - i * shardSize;
+            int to = Math.min(end, (i + 1) * shardSize) - i * shardSize;
+            futures.add(CompletableFuture.supplyAsync(() -> downloadShard(location, shardId, from, to), shardExecutor));
+        }
+        ByteBuf[] parts = new ByteBuf[futures.size()];
+        boolean failed = false;
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = futures.get(i).join();
+            failed |= parts[i] == null;
+        }
+        if(failed){
+            for (ByteBuf part : parts) {
+                if(part != null){
+                    part.release();
+                }
+            }
+            return null;
+        }
+        return parts.length == 1 ? parts[0] : Unpooled.wrappedBuffer(parts);
+    }
+
+    /**
+     * 读取任意k个完整分片解码出对象数据
+     * 优先读取数据分片，读取失败时继续读取其他分片，直到够k个或者没有可用的分片
+     */
+    private ByteBuf reconstruct(LocateObjectResponse resp, ReedSolomon codec, int start, int end){
+        int total = codec.getTotalShards();
+        byte[][] shards = new byte[total][];
+        boolean[] present = new boolean[total];
+        int available = 0;
+        int next = 0;
+        while(available < codec.getDataShards()){
+            List<Integer> batch = new ArrayList<>();
+            while(next < total && batch.size() < codec.getDataShards() - available){
+                if(!resp.getShardLocations().get(next).isEmpty()){
+                    batch.add(next);
+                }
+                next++;
+            }
+            if(batch.isEmpty()){
+                log.warn("Object {} has not enough shards, available: {}, required: {}", resp.getObjectId(), available, codec.getDataShards());
+                return null;
+            }
+            List<CompletableFuture<ByteBuf>> futures = new ArrayList<>(batch.size());
+            for (Integer index : batch) {
+                String location = resp.getShardLocations().get(index);
+                long shardId = resp.getShardIds().get(index);
+                futures.add(CompletableFuture.supplyAsync(() -> downloadShard(location, shardId, 0, -1), shardExecutor));
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                ByteBuf shard = futures.get(i).join();
+                if(shard != null){
+                    int index = batch.get(i);
+                    shards[index] = new byte[shard.readableBytes()];
+                    shard.readBytes(shards[index]);
+                    shard.release();
+                    present[index] = true;
+                    available++;
+                }
+            }
+        }
+        codec.reconstruct(shards, present);
+        byte[] data = codec.join(shards, resp.getSize());
+        return Unpooled.wrappedBuffer(data, start, end - start);
+    }
+
+    private ByteBuf downloadShard(String location, long shardId, int start, int end){
+        CommandCode code = end == -1 ? TinyOssProtocol.DOWNLOAD_FULL : TinyOssProtocol.DOWNLOAD_RANGED;
+        GetObjectRequest request = new GetObjectRequest(shardId, start, end);
+        RemotingCommand command = storageClient.getCommandFactory().createRequest(request, code, GetObjectRequest.class);
+        try{
+            TinyOssCommand response = (TinyOssCommand) storageClient.sendSync(Url.parseString(location), command, null);
+            if(TinyOssProtocol.DOWNLOAD_RESPONSE.equals(response.getCommandCode()) && response.getData() != null){
+                return response.getData();
+            }
+        }catch (Exception e){
+            log.warn("Download shard {} from {} failed ", shardId, location, e);
+        }
+        return null;
+    }
+}
@@ -16,10 +16,14 @@ import com.jay.oss.common.util.StringUtil;
 import com.jay.oss.proxy.entity.Result;
 import com.jay.oss.proxy.util.HttpUtil;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.http.FullHttpResponse;
 import lombok.extern.slf4j.Slf4j;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
@@ -40,8 +44,11 @@ public class UploadService {
      */
     private final DoveClient storageClient;
 
-    public UploadService(DoveClient storageClient) {
+    private final ErasureCodingService erasureCodingService;
+
+    public UploadService(DoveClient storageClient, ErasureCodingService erasureCodingService) {
         this.storageClient = storageClient;
+        this.erasureCodingService = erasureCodingService;
     }
 
 
@@ -59,17 +66,27 @@ public class UploadService {
             return HttpUtil.badRequestResponse("Missing important parameters for Put Object");
         }
         int size = content.readableBytes();
+        // Tracker按照md5去重，不能信任客户端的md5，由proxy根据内容计算，客户端提供的md5必须和内容一致
+        byte[] digest = md5(content);
+        String contentMd5 = Base64.getEncoder().encodeToString(digest);
+        if(!StringUtil.isNullOrEmpty(md5) && !md5.equals(contentMd5) && !md5.equalsIgnoreCase(ByteBufUtil.hexDump(digest))){
+            return HttpUtil.badRequestResponse("Content-MD5 mismatch");
+        }
         String objectKey = KeyUtil.getObjectKey(key, bucket, null);
         // 向存储桶put object
-        TinyOssCommand bucketResponse = bucketPutObject(bucket, objectKey, key, size, System.currentTimeMillis(), token, md5);
+        TinyOssCommand bucketResponse = bucketPutObject(bucket, objectKey, key, size, System.currentTimeMillis(), token, contentMd5);
         CommandCode code = bucketResponse.getCommandCode();
         // 向桶内添加对象记录
         if(!code.equals(TinyOssProtocol.SUCCESS)){
             return HttpUtil.errorResponse(code);
         }else {
             PutObjectMetaResponse resp = SerializeUtil.deserialize(bucketResponse.getContent(), PutObjectMetaResponse.class);
-            // 向storage上传
-            if(doUpload(resp.getLocations(), content, size, resp.getObjectId())){
+            // 已经有相同内容的数据，不需要上传；否则向storage上传，纠删码对象上传所有分片
+            boolean uploaded = resp.isDuplicate()
+                    || (resp.getShardIds() != null && !resp.getShardIds().isEmpty()
+                        ? erasureCodingService.upload(resp, content, size)
+                        : doUpload(resp.getLocations(), content, size, resp.getObjectId()));
+            if(uploaded){
                 Result result = new Result().message("Success")
                         .putData("versionId", resp.getVersionId());
                 return HttpUtil.okResponse(result);
@@ -133,6 +150,18 @@ public class UploadService {
         return successReplica != 0;
     }
 
+    /**
+     * 计算对象数据的md5，不改变readerIndex
+     * @param content 对象数据
+     * @return md5 digest
+     * @throws NoSuchAlgorithmException e
+     */
+    private static byte[] md5(ByteBuf content) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        digest.update(content.nioBuffer());
+        return digest.digest();
+    }
+
     /**
      * 存储桶put object
      * 向Tracker发送对象元数据
@@ -0,0 +1,315 @@
+import com.jay.dove.DoveClient;
+import com.jay.dove.DoveServer;
+import com.jay.dove.serialize.SerializerManager;
+import com.jay.dove.transport.command.CommandCode;
+import com.jay.dove.transport.command.CommandFactory;
+import com.jay.dove.transport.command.CommandHandler;
+import com.jay.dove.transport.command.Processor;
+import com.jay.dove.transport.connection.ConnectionManager;
+import com.jay.dove.transport.protocol.ProtocolManager;
+import com.jay.oss.common.config.ConfigsManager;
+import com.jay.oss.common.config.OssConfigs;
+import com.jay.oss.common.ec.ReedSolomon;
+import com.jay.oss.common.entity.response.LocateObjectResponse;
+import com.jay.oss.common.entity.response.PutObjectMetaResponse;
+import com.jay.oss.common.remoting.TinyOssCodec;
+import com.jay.oss.common.remoting.TinyOssCommandFactory;
+import com.jay.oss.common.remoting.TinyOssConnectionFactory;
+import com.jay.oss.common.remoting.TinyOssProtocol;
+import com.jay.oss.common.serialize.ProtostuffSerializer;
+import com.jay.oss.proxy.service.ErasureCodingService;
+import com.jay.oss.storage.command.StorageNodeCommandHandler;
+import com.jay.oss.storage.fs.BlockManager;
+import com.jay.oss.storage.fs.ObjectIndex;
+import com.jay.oss.storage.fs.ObjectIndexManager;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *  纠删码上传下载测试
+ *  进程内启动k+m个storage节点，每个节点使用独立的端口和数据目录，上传后每个节点只保存一个分片；
+ *  数据分片可用时直接读取和范围重叠的分片；关闭不超过m个节点时解码出完整对象，
+ *  Tracker还没有发现节点下线、仍然返回它的位置时也能解码；关闭超过m个节点时下载失败
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/17 11:05
+ */
+@Slf4j
+public class TestErasureCoding {
+
+    private static final int FIRST_PORT = 9932;
+
+    private static final int DATA_SHARDS = 4;
+
+    private static final int PARITY_SHARDS = 2;
+
+    private static final int OBJECT_SIZE = 100 * 1024 + 17;
+
+    private static final long OBJECT_ID = 1L;
+
+    private static final long FIRST_SHARD_ID = 100L;
+
+    private File dataPath;
+
+    private ExecutorService executor;
+
+    private final List<StorageNode> nodes = new ArrayList<>();
+
+    private ErasureCodingService erasureCodingService;
+
+    private byte[] content;
+
+    private List<Long> shardIds;
+
+    @Before
+    public void setUp() throws IOException {
+        dataPath = Files.createTempDirectory("erasure_coding").toFile();
+        // 不连接Kafka，上传完成的通知发送给Tracker，发送失败只记录日志
+        ConfigsManager.set("oss.tracker.enable-tracker-messaging", "true");
+        CommandFactory commandFactory = new TinyOssCommandFactory();
+        DoveClient client = new DoveClient(new ConnectionManager(new TinyOssConnectionFactory()), commandFactory);
+        executor = Executors.newFixedThreadPool(4);
+        SerializerManager.registerSerializer(OssConfigs.PROTOSTUFF_SERIALIZER, new ProtostuffSerializer());
+
+        // 每个分片上传到不同的storage节点
+        NodeRouter router = new NodeRouter();
+        for (int i = 0; i < DATA_SHARDS + PARITY_SHARDS; i++) {
+            ConfigsManager.set("oss.data.path", new File(dataPath, "node" + i).getPath());
+            StorageNode node = new StorageNode(FIRST_PORT + i);
+            node.blockManager.loadBlocks();
+            router.route(node.port, new StorageNodeCommandHandler(client, commandFactory, executor, node.indexManager, null, node.blockManager));
+            nodes.add(node);
+        }
+        ProtocolManager.registerProtocol(TinyOssProtocol.PROTOCOL_CODE, new TinyOssProtocol(router));
+        for (StorageNode node : nodes) {
+            node.server = new DoveServer(new TinyOssCodec(), node.port, commandFactory);
+            node.server.startup();
+        }
+        erasureCodingService = new ErasureCodingService(client);
+
+        content = new byte[OBJECT_SIZE];
+        new Random(17).nextBytes(content);
+        shardIds = new ArrayList<>();
+        List<String> locations = new ArrayList<>();
+        for (int i = 0; i < DATA_SHARDS + PARITY_SHARDS; i++) {
+            shardIds.add(FIRST_SHARD_ID + i);
+            locations.add(nodes.get(i).location());
+        }
+        PutObjectMetaResponse resp = new PutObjectMetaResponse(OBJECT_ID, locations, null, false, shardIds, DATA_SHARDS, PARITY_SHARDS);
+        Assert.assertTrue(erasureCodingService.upload(resp, Unpooled.wrappedBuffer(content), OBJECT_SIZE));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (StorageNode node : nodes) {
+            node.shutdown();
+        }
+        nodes.clear();
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+        FileUtils.deleteDirectory(dataPath);
+    }
+
+    @Test
+    public void testShardPerNode(){
+        byte[][] shards = new ReedSolomon(DATA_SHARDS, PARITY_SHARDS).encode(content, 0, OBJECT_SIZE);
+        for (int i = 0; i < shards.length; i++) {
+            StorageNode node = nodes.get(i);
+            for (int j = 0; j < shards.length; j++) {
+                if(j != i){
+                    Assert.assertNull(node.indexManager.getObjectIndex(shardIds.get(j)));
+                }
+            }
+            ObjectIndex index = node.indexManager.getObjectIndex(shardIds.get(i));
+            Assert.assertNotNull(index);
+            ByteBuf data = node.blockManager.getBlockById(index.getBlockId()).read(index, 0, index.getSize());
+            try{
+                byte[] stored = new byte[data.readableBytes()];
+                data.getBytes(data.readerIndex(), stored);
+                Assert.assertArrayEquals("shard " + i, shards[i], stored);
+            }finally {
+                data.release();
+            }
+        }
+    }
+
+    @Test
+    public void testReadDataShards(){
+        LocateObjectResponse resp = locate();
+        int shardSize = new ReedSolomon(DATA_SHARDS, PARITY_SHARDS).shardSize(OBJECT_SIZE);
+        assertDownload(resp, 0, -1);
+        assertDownload(resp, 0, 1);
+        // 跨越分片边界，最后一个分片的填充部分不会返回
+        assertDownload(resp, shardSize - 10, shardSize + 10);
+        assertDownload(resp, shardSize / 2, shardSize * 3 + 5);
+        assertDownload(resp, OBJECT_SIZE - 100, OBJECT_SIZE + 100);
+    }
+
+    @Test
+    public void testNodeLost(){
+        int shardSize = new ReedSolomon(DATA_SHARDS, PARITY_SHARDS).shardSize(OBJECT_SIZE);
+        // 两个数据分片所在的节点关闭，Tracker仍然返回它们的位置，读取失败后解码
+        kill(0, 2);
+        LocateObjectResponse resp = locate();
+        assertDownload(resp, 0, -1);
+        assertDownload(resp, shardSize - 10, shardSize * 2 + 10);
+        assertDownload(resp, shardSize * 3, OBJECT_SIZE);
+    }
+
+    @Test
+    public void testLocationLostAndNodeLost(){
+        int shardSize = new ReedSolomon(DATA_SHARDS, PARITY_SHARDS).shardSize(OBJECT_SIZE);
+        // Tracker已经发现节点1下线，节点3刚刚关闭
+        kill(1, 3);
+        LocateObjectResponse resp = locate(1);
+        assertDownload(resp, 0, -1);
+        assertDownload(resp, shardSize, shardSize * 2);
+        // 校验分片所在的节点也关闭，剩下的分片刚好够解码
+        kill(4);
+        resp = locate(1, 4);
+        assertDownload(resp, 0, -1);
+    }
+
+    @Test
+    public void testNotEnoughNodes(){
+        kill(0, 1, 5);
+        Assert.assertNull(erasureCodingService.download(locate(), 0, -1));
+        Assert.assertNull(erasureCodingService.download(locate(1), 10, 20));
+    }
+
+    /**
+     * 关闭storage节点，不修改定位结果中的位置
+     */
+    private void kill(int... indexes){
+        for (int i : indexes) {
+            nodes.get(i).shutdown();
+        }
+    }
+
+    /**
+     * 定位纠删码对象，分片i保存在节点i，Tracker已经发现丢失的分片位置为空
+     */
+    private LocateObjectResponse locate(int... lost){
+        List<String> locations = new ArrayList<>();
+        for (StorageNode node : nodes) {
+            locations.add(node.location());
+        }
+        for (int i : lost) {
+            locations.set(i, "");
+        }
+        return new LocateObjectResponse(OBJECT_ID, Collections.emptySet(), shardIds, locations, DATA_SHARDS, PARITY_SHARDS, OBJECT_SIZE);
+    }
+
+    private void assertDownload(LocateObjectResponse resp, int start, int end){
+        ByteBuf data = erasureCodingService.download(resp, start, end);
+        Assert.assertNotNull(data);
+        try{
+            int to = end == -1 ? OBJECT_SIZE : Math.min(end, OBJECT_SIZE);
+            byte[] expected = new byte[to - start];
+            System.arraycopy(content, start, expected, 0, expected.length);
+            byte[] actual = new byte[data.readableBytes()];
+            data.getBytes(data.readerIndex(), actual);
+            Assert.assertArrayEquals("range " + start + "-" + end, expected, actual);
+        }finally {
+            data.release();
+        }
+    }
+
+    /**
+     * 进程内的storage节点
+     */
+    private static class StorageNode {
+        private final int port;
+        private final ObjectIndexManager indexManager = new ObjectIndexManager();
+        private final BlockManager blockManager = new BlockManager(indexManager);
+        private DoveServer server;
+        private boolean alive = true;
+
+        StorageNode(int port) {
+            this.port = port;
+        }
+
+        String location(){
+            return "127.0.0.1:" + port;
+        }
+
+        void shutdown(){
+            if(alive){
+                alive = false;
+                server.shutdown();
+                blockManager.shutdown();
+            }
+        }
+    }
+
+    /**
+     * 协议在进程内只能注册一个CommandHandler，按照连接的本地端口把请求交给对应节点的handler；
+     * 客户端连接收到的响应不属于任何节点，由第一个节点处理
+     */
+    private static class NodeRouter implements CommandHandler {
+        private final Map<Integer, CommandHandler> handlers = new ConcurrentHashMap<>();
+        private CommandHandler fallback;
+
+        void route(int port, CommandHandler handler){
+            if(fallback == null){
+                fallback = handler;
+            }
+            handlers.put(port, handler);
+        }
+
+        private CommandHandler handlerOf(ChannelHandlerContext context){
+            SocketAddress address = context.channel().localAddress();
+            CommandHandler handler = address instanceof InetSocketAddress ? handlers.get(((InetSocketAddress) address).getPort()) : null;
+            return handler == null ? fallback : handler;
+        }
+
+        @Override
+        public void handleCommand(ChannelHandlerContext context, Object command) {
+            handlerOf(context).handleCommand(context, command);
+        }
+
+        @Override
+        public void registerProcessor(CommandCode code, Processor processor) {
+            handlers.values().forEach(handler -> handler.registerProcessor(code, processor));
+        }
+
+        @Override
+        public void registerDefaultExecutor(ExecutorService executor) {
+            handlers.values().forEach(handler -> handler.registerDefaultExecutor(executor));
+        }
+
+        @Override
+        public ExecutorService getDefaultExecutor() {
+            return fallback.getDefaultExecutor();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext context) {
+            handlerOf(context).channelInactive(context);
+        }
+    }
+}
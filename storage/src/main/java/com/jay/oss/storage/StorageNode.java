@@ -24,13 +24,14 @@ import com.jay.oss.common.remoting.TinyOssConnectionFactory;
 import com.jay.oss.common.remoting.TinyOssProtocol;
 import com.jay.oss.common.serialize.ProtostuffSerializer;
 import com.jay.oss.common.util.Banner;
+import com.jay.oss.common.util.BufferPool;
 import com.jay.oss.common.util.NodeInfoCollector;
 import com.jay.oss.common.util.Scheduler;
 import com.jay.oss.common.util.ThreadPoolUtil;
 import com.jay.oss.storage.command.StorageNodeCommandHandler;
 import com.jay.oss.storage.fs.BlockManager;
-import com.jay.oss.storage.fs.ObjectIndex;
 import com.jay.oss.storage.fs.ObjectIndexManager;
+import com.jay.oss.storage.fs.ObjectReadCache;
 import com.jay.oss.storage.kafka.handler.DeleteHandler;
 import com.jay.oss.storage.kafka.handler.ReplicaHandler;
 import com.jay.oss.storage.task.StorageNodeHeartBeatTask;
@@ -39,7 +40,6 @@ import io.prometheus.client.Gauge;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.List;
-import java.util.Map;
 import java.util.StringJoiner;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -91,8 +91,10 @@ public class StorageNode extends AbstractLifeCycle {
             ExecutorService commandHandlerExecutor = ThreadPoolUtil.newIoThreadPool("command-handler-worker-");
             // 命令处理器
             this.commandHandler = new StorageNodeCommandHandler(client, commandFactory, commandHandlerExecutor, objectIndexManager, storageNodeProducer, blockManager);
-            // FastOSS协议Dove服务器
-            this.server = new DoveServer(new TinyOssCodec(), port, commandFactory);
+            // FastOSS协议Dove服务器，开启流式上传时大对象边接收边写入block
+            TinyOssCodec codec = OssConfigs.enableStreamingUpload() ?
+                    new TinyOssCodec(commandHandler.getUploadStreamFactory(), OssConfigs.streamingUploadThreshold() * 1024) : new TinyOssCodec();
+            this.server = new DoveServer(codec, port, commandFactory);
             this.prometheusServer = new PrometheusServer();
         }catch (Exception e){
             throw new RuntimeException(e);
@@ -107,8 +109,11 @@ public class StorageNode extends AbstractLifeCycle {
         ProtocolManager.registerProtocol(TinyOssProtocol.PROTOCOL_CODE, new TinyOssProtocol(commandHandler));
         SerializerManager.registerSerializer(OssConfigs.PROTOSTUFF_SERIALIZER, new ProtostuffSerializer());
 
-        Map<Long, ObjectIndex> indexes = blockManager.loadBlocks();
-        objectIndexManager.putIndexes(indexes);
+        // 注册Prometheus Gauge，需要在加载block之前注册，记录恢复时间
+        registerPrometheusGauge();
+        blockManager.loadBlocks();
+        blockManager.startSyncer();
+        blockManager.startBlockPool();
         /*
             初始化注册中心客户端
          */
@@ -121,8 +126,6 @@ public class StorageNode extends AbstractLifeCycle {
             storageNodeInfo.setStoredObjects(storedObjects);
         }
         registry.register(storageNodeInfo);
-        // 注册Prometheus Gauge
-        registerPrometheusGauge();
 
         if(!OssConfigs.enableTrackerMessaging()){
             String topicSuffix = "_" + NodeInfoCollector.getAddress().replace(":", "_");
@@ -142,6 +145,15 @@ public class StorageNode extends AbstractLifeCycle {
                 OssConfigs.ZOOKEEPER_SESSION_TIMEOUT, TimeUnit.MILLISECONDS);
         // 没6小时尝试压缩block文件
         Scheduler.scheduleAtFixedMinutes(blockManager::compactBlocks, OssConfigs.blockCompactInterval(), OssConfigs.blockCompactInterval());
+        // 定时保存对象索引checkpoint
+        Scheduler.scheduleAtFixedMinutes(blockManager::checkpoint, OssConfigs.indexCheckpointInterval(), OssConfigs.indexCheckpointInterval());
+        // 定时更新读缓存指标
+        ObjectReadCache readCache = blockManager.getReadCache();
+        if(readCache != null){
+            Scheduler.scheduleAtFixedRate(readCache::recordMetrics, 10, 10, TimeUnit.SECONDS);
+        }
+        // 定时更新内存池分配指标
+        Scheduler.scheduleAtFixedRate(BufferPool::recordMetrics, 10, 10, TimeUnit.SECONDS);
     }
 
 
@@ -173,6 +185,10 @@ public class StorageNode extends AbstractLifeCycle {
         if(!OssConfigs.enableTrackerMessaging()){
             storageNodeConsumer.shutdown();
         }
+        // 刷写未刷盘的block
+        blockManager.shutdown();
+        // 关闭前保存索引checkpoint，下次启动不需要扫描block
+        blockManager.checkpoint();
     }
 
     public static void main(String[] args) {
@@ -189,5 +205,62 @@ public class StorageNode extends AbstractLifeCycle {
                 .name("storage_free")
                 .help("Show storage node used disk free space, unit: bytes")
                 .create());
+        GaugeManager.registerGauge("block_recovery_time", Gauge.build()
+                .name("block_recovery_time")
+                .help("Show time used to recover object index at startup, unit: ms")
+                .create());
+        GaugeManager.registerGauge("block_recovery_time_per_block", Gauge.build()
+                .name("block_recovery_time_per_block")
+                .help("Show time used to recover each block at startup, unit: ms")
+                .labelNames("block")
+                .create());
+        GaugeManager.registerGauge("block_fsync_latency", Gauge.build()
+                .name("block_fsync_latency")
+                .help("Show latency of the last block fsync batch, unit: us")
+                .create());
+        GaugeManager.registerGauge("block_fsync_batch_size", Gauge.build()
+                .name("block_fsync_batch_size")
+                .help("Show number of writes covered by the last block fsync batch")
+                .create());
+        GaugeManager.registerGauge("block_pool_misses", Gauge.build()
+                .name("block_pool_misses")
+                .help("Show number of blocks created synchronously because the preallocated block pool was empty")
+                .create());
+        GaugeManager.registerGauge("block_reclaimable_bytes", Gauge.build()
+                .name("block_reclaimable_bytes")
+                .help("Show space occupied by deleted objects before compaction, unit: bytes")
+                .create());
+        GaugeManager.registerGauge("read_cache_hit_rate", Gauge.build()
+                .name("read_cache_hit_rate")
+                .help("Show hit rate of the object read cache")
+                .create());
+        GaugeManager.registerGauge("read_cache_evictions", Gauge.build()
+                .name("read_cache_evictions")
+                .help("Show number of objects evicted from the read cache")
+                .create());
+        GaugeManager.registerGauge("read_cache_evicted_bytes", Gauge.build()
+                .name("read_cache_evicted_bytes")
+                .help("Show size of objects evicted from the read cache, unit: bytes")
+                .create());
+        GaugeManager.registerGauge("read_cache_size", Gauge.build()
+                .name("read_cache_size")
+                .help("Show size of objects in the read cache, unit: bytes")
+                .create());
+        GaugeManager.registerGauge("buffer_allocation_rate", Gauge.build()
+                .name("buffer_allocation_rate")
+                .help("Show pooled buffer allocations per second on the data path")
+                .create());
+        GaugeManager.registerGauge("buffer_allocation_bytes_rate", Gauge.build()
+                .name("buffer_allocation_bytes_rate")
+                .help("Show pooled buffer bytes allocated per second on the data path, unit: bytes")
+                .create());
+        GaugeManager.registerGauge("buffer_pool_used_direct_memory", Gauge.build()
+                .name("buffer_pool_used_direct_memory")
+                .help("Show direct memory held by the buffer pool, unit: bytes")
+                .create());
+        GaugeManager.registerGauge("buffer_pool_used_heap_memory", Gauge.build()
+                .name("buffer_pool_used_heap_memory")
+                .help("Show heap memory held by the buffer pool, unit: bytes")
+                .create());
     }
 }
@@ -5,6 +5,7 @@ import com.jay.dove.transport.command.CommandFactory;
 import com.jay.oss.common.kafka.RecordProducer;
 import com.jay.oss.common.remoting.TinyOssCommandHandler;
 import com.jay.oss.common.remoting.TinyOssProtocol;
+import com.jay.oss.common.remoting.UploadStreamFactory;
 import com.jay.oss.storage.fs.BlockManager;
 import com.jay.oss.storage.fs.ObjectIndexManager;
 import com.jay.oss.storage.processor.FileDownloadProcessor;
@@ -23,11 +24,13 @@ import java.util.concurrent.ExecutorService;
  */
 public class StorageNodeCommandHandler extends TinyOssCommandHandler {
 
+    private final FileUploadProcessor fileUploadProcessor;
+
     public StorageNodeCommandHandler(DoveClient trackerClient, CommandFactory commandFactory, ExecutorService executor, ObjectIndexManager objectIndexManager,
                                      RecordProducer storageNodeProducer, BlockManager blockManager) {
         super(commandFactory, executor);
         // 文件上传处理器
-        FileUploadProcessor fileUploadProcessor = new FileUploadProcessor(trackerClient, objectIndexManager, blockManager, commandFactory, storageNodeProducer);
+        this.fileUploadProcessor = new FileUploadProcessor(trackerClient, objectIndexManager, blockManager, commandFactory, storageNodeProducer, executor);
         FileDownloadProcessor fileDownloadProcessor = new FileDownloadProcessor(objectIndexManager, blockManager, commandFactory);
         /*
             Put Object处理器
@@ -39,4 +42,12 @@ public class StorageNodeCommandHandler extends TinyOssCommandHandler {
         this.registerProcessor(TinyOssProtocol.DOWNLOAD_FULL, fileDownloadProcessor);
         this.registerProcessor(TinyOssProtocol.DOWNLOAD_RANGED, fileDownloadProcessor);
     }
+
+    /**
+     * 流式上传接收端工厂，由上传处理器创建接收端
+     * @return {@link UploadStreamFactory}
+     */
+    public UploadStreamFactory getUploadStreamFactory(){
+        return fileUploadProcessor;
+    }
 }
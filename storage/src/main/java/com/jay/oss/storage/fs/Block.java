@@ -1,33 +1,52 @@
 package com.jay.oss.storage.fs;
 
 import com.jay.oss.common.config.OssConfigs;
+import com.jay.oss.common.util.BufferPool;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import lombok.extern.slf4j.Slf4j;
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.RoaringBitmap;
+import sun.nio.ch.FileChannelImpl;
 
-import java.io.File;
-import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.*;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
 
 /**
  * <p>
  *  Block文件是多个对象合并产生的
- *  block文件分为两部分，数据部分和头部分。
- *  数据部分是对象的实际数据
- *  头部分包括了block的大小和索引偏移量，头部大小为8字节
+ *  block文件由连续的记录组成，每条记录是记录头加上对象的实际数据，block没有单独的文件头。
  *
- *  设对象数量为N，对象平均大小为Size，Block文件大小计算公式如下：
- *  BlockSize = (Size+16) * N + 8
+ *  设对象数量为N，对象平均大小为Size，记录头长度为H（V1格式16字节，V2格式24字节），Block文件大小计算公式如下：
+ *  BlockSize = (Size+H) * N
  *  根据公式可以推出，当对象大小为1MB，128MB的block可以存127个对象
+ *
+ *  记录头格式有两个版本，同一个block中的记录格式相同，由第一条记录决定：
+ *  V1: objectId(8) | length(4) | mark(4)，mark为0或-1（删除）
+ *  V2: objectId(8) | length(4) | mark(4) | crc(4) | extra(4)
+ *      mark低8位为格式版本，最高位为删除标记，第8、9位为记录类型，crc是对象数据的CRC32校验和
+ *      跨block的大对象由多个extent记录和一个manifest记录组成，manifest记录的extra是对象的逻辑大小
+ *      第10位为压缩记录，数据是{@link CompressedRecord}格式，extra是解压后的大小
+ *  新创建的block使用V2格式，旧的block继续使用V1格式写入
+ *
+ *  删除对象时只把记录偏移加入墓碑位图，位图保存在block旁边的tombstone文件中，
+ *  记录头的删除标记在压缩调度时批量改写，改写完成并保存checkpoint后清除位图中对应的记录。
+ *  checkpoint之前的部分启动时不扫描，删除只有通过墓碑才能在重启后恢复。
+ *  墓碑清除时，记录占用的空间累加到markedDeadBytes并和位图一起保存，从checkpoint恢复时不扫描也能得到被删除数据的大小。
+ *  tombstone文件格式：magic(4) | markedDeadBytes(8) | RoaringBitmap
  * </p>
  *
  * @author Jay
@@ -51,8 +70,14 @@ public class Block {
 
     /**
      * chunk current size
+     * 已分配空间的末尾，并发追加时可能包含还没有写完的数据
+     */
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    /**
+     * 已发布的写入水位线，水位线之前的记录都已经完整写入
      */
-    private AtomicInteger size;
+    private final AtomicInteger committed = new AtomicInteger(0);
 
     /**
      * chunk id
@@ -67,22 +92,113 @@ public class Block {
 
     private final ReentrantReadWriteLock readWriteLock;
 
+    /**
+     * V1记录头长度
+     */
     public static final int INDEX_LENGTH = 16;
 
-    private static final int BUFFER_SIZE = 256 * 1024;
+    /**
+     * V2记录头长度
+     */
+    public static final int HEADER_LENGTH_V2 = 24;
+
+    private static final int FORMAT_V2 = 2;
+
+    private static final int FORMAT_MASK = 0xFF;
+
+    private static final int DELETED_FLAG = 0x80000000;
+
+    /**
+     * 记录类型：大对象的一个extent，不单独进入索引
+     */
+    static final int RECORD_EXTENT = 1 << 8;
+
+    /**
+     * 记录类型：大对象的extent列表，索引指向该记录
+     */
+    static final int RECORD_MANIFEST = 1 << 9;
+
+    /**
+     * 记录类型：压缩存储的对象
+     */
+    static final int RECORD_COMPRESSED = 1 << 10;
+
+    private static final int RECORD_TYPE_MASK = RECORD_EXTENT | RECORD_MANIFEST | RECORD_COMPRESSED;
 
     private static final int DELETE_MARK = -1;
 
-    private static final long COMPACT_WAIT_TIME = 1000;
+    /**
+     * 当前block的记录头长度，由记录格式版本决定
+     */
+    private final int headerLength;
+
+    /**
+     * 等待前面的写入者发布的锁，以及正在等待的写入者数量
+     */
+    private final Object publishLock = new Object();
+
+    private final AtomicInteger publishWaiters = new AtomicInteger(0);
+
+    /**
+     * 被删除对象占用的空间，包括记录头
+     */
+    private final AtomicLong deadBytes = new AtomicLong(0);
+
+    /**
+     * 只有记录头删除标记、已经不在墓碑位图中的记录占用的空间，和墓碑位图一起持久化，由写锁保护
+     */
+    private long markedDeadBytes;
+
+    /**
+     * 加载时扫描到的只有记录头删除标记的记录占用的空间
+     */
+    private long scannedMarkedDeadBytes;
+
+    private static final int TOMBSTONE_MAGIC = 0x544F4D42;
+
+    /**
+     * 已经废弃、等待读取者释放的block文件的后缀
+     */
+    static final String RETIRED_SUFFIX = ".retired";
+
+    /**
+     * 引用计数，block本身持有一个引用，读取者在读取期间持有引用
+     * 压缩完成后block被废弃，所有引用释放后才删除文件
+     */
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+
+    private final AtomicBoolean retired = new AtomicBoolean(false);
+
+    /**
+     * 是否接受无锁追加写入，只有目录的活跃block接受追加，在写锁中关闭
+     */
+    private volatile boolean appendable = false;
 
-    private AtomicBoolean needsCompact = new AtomicBoolean(false);
+    /**
+     * 已删除但记录头还没有改写的记录偏移，由写锁保护
+     */
+    private final RoaringBitmap tombstones;
+
+    /**
+     * 墓碑位图的持久化文件
+     */
+    private final File tombstoneFile;
+
+    /**
+     * block所在的数据目录
+     */
+    private final DataDirectory directory;
 
-    public Block(int blockId){
+    public Block(int blockId, DataDirectory directory){
         this.readWriteLock = new ReentrantReadWriteLock();
         this.id =blockId;
-        this.path = OssConfigs.dataPath() + File.separator + "block_" + blockId;
-        this.size = new AtomicInteger(0);
+        this.directory = directory;
+        this.path = directory.getPath() + File.separator + "block_" + blockId;
         this.file = new File(path);
+        this.headerLength = HEADER_LENGTH_V2;
+        this.tombstoneFile = tombstoneFile(directory, blockId);
+        this.tombstones = new RoaringBitmap();
+        this.markedDeadBytes = 0;
         try{
             RandomAccessFile rf = new RandomAccessFile(file, "rw");
             this.fileChannel = rf.getChannel();
@@ -92,15 +208,20 @@ public class Block {
         }
     }
 
-    public Block(File blockFile){
+    public Block(File blockFile, DataDirectory directory){
         String fileName = blockFile.getName();
         this.readWriteLock = new ReentrantReadWriteLock();
+        this.directory = directory;
         this.id = Integer.parseInt(fileName.substring(fileName.indexOf("_") + 1));
         this.path = blockFile.getPath();
         this.file = blockFile;
+        this.tombstoneFile = tombstoneFile(directory, id);
+        this.tombstones = new RoaringBitmap();
+        this.markedDeadBytes = loadTombstones();
         try{
             RandomAccessFile rf = new RandomAccessFile(file, "rw");
             this.fileChannel = rf.getChannel();
+            this.headerLength = detectHeaderLength(fileChannel);
             this.buffer = OssConfigs.enableMmap() ? fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, MAX_BLOCK_SIZE) : null;
         }catch (IOException e){
             throw new RuntimeException("Can't create block, id: " + id, e);
@@ -108,319 +229,1229 @@ public class Block {
     }
 
     public ObjectIndex write(long objectId, ByteBuf src, int length){
-        if(buffer == null){
-            return fileChannelWrite(objectId, src, length);
-        }
-        return mmapWrite(objectId, src, length);
+        return write(objectId, src, length, 0, 0);
     }
 
-    public ByteBuf read(int offset, int start, int length){
-        if(buffer == null){
-            return fileChannelRead(offset, start, length);
+    /**
+     * 写入带类型的记录，只有V2格式的block支持
+     * @param objectId 对象ID
+     * @param src 记录数据
+     * @param length 记录长度
+     * @param recordType 记录类型，{@link #RECORD_EXTENT}、{@link #RECORD_MANIFEST}或{@link #RECORD_COMPRESSED}，普通对象为0
+     * @param extra 记录头的extra字段，manifest和压缩记录为对象的逻辑大小
+     * @return {@link ObjectIndex} manifest和压缩记录返回以逻辑大小表示的索引；null if write failed
+     */
+    ObjectIndex write(long objectId, ByteBuf src, int length, int recordType, int extra){
+        if(recordType != 0 && !supportsRecordType()){
+            throw new IllegalStateException("Block " + id + " doesn't support typed records");
         }
-        return mmapReadBytes(offset, start, length);
+        ObjectIndex index = buffer == null ? fileChannelWrite(objectId, src, length, recordType, extra) : mmapWrite(objectId, src, length, recordType, extra);
+        if(index != null && recordType == RECORD_MANIFEST){
+            return new ObjectIndex(id, index.getOffset(), extra, false, true);
+        }
+        if(index != null && recordType == RECORD_COMPRESSED){
+            return new ObjectIndex(id, index.getOffset(), extra, false, false, true);
+        }
+        return index;
     }
 
     /**
-     * 小文件适用的mmap写入方法
-     * @param objectId objectId
-     * @param src {@link ByteBuf}
-     * @param length 写入内容长度
-     * @return {@link ObjectIndex}
+     * V1格式的记录头没有空间保存记录类型
+     * @return boolean
+     */
+    public boolean supportsRecordType(){
+        return headerLength == HEADER_LENGTH_V2;
+    }
+
+    /**
+     * 读取一条完整的记录，记录长度从记录头中获取
+     * @param offset 记录偏移
+     * @return {@link ByteBuf} null if read failed or checksum mismatch
      */
-    private ObjectIndex mmapWrite(long objectId, ByteBuf src, int length){
+    public ByteBuf readRecord(int offset){
+        int length;
         try{
-            readWriteLock.writeLock().lock();
-            // 写入数据
-            int offset = size.getAndAdd(length + INDEX_LENGTH);
-            ByteBuffer slice = buffer.slice();
-            slice.position(offset);
-            slice.putLong(objectId);
-            slice.putInt(length);
-            slice.putInt(0);
-            slice.put(src.nioBuffer());
-            return new ObjectIndex(this.id, offset, length, false);
+            readWriteLock.readLock().lock();
+            if(offset + headerLength > committed.get()){
+                return null;
+            }
+            length = readHeader(offset).getInt(8);
+        }catch (IOException e){
+            log.warn("Read record header failed, block: {}, offset: {}", id, offset, e);
+            return null;
         }finally {
-            readWriteLock.writeLock().unlock();
+            readWriteLock.readLock().unlock();
         }
+        return read(offset, 0, length);
     }
 
+    public ByteBuf read(int offset, int start, int length){
+        return read(offset, start, length, OssConfigs.verifyChecksumOnRead());
+    }
 
-    private ByteBuf mmapReadBytes(int offset, int start, int length){
+    /**
+     * 根据索引读取对象数据，压缩存储的对象透明解压
+     * @param index {@link ObjectIndex}
+     * @param start 读取的起始位置
+     * @param length 读取长度
+     * @return {@link ByteBuf} null if read failed or checksum mismatch
+     */
+    public ByteBuf read(ObjectIndex index, int start, int length){
+        if(index.isCompressed()){
+            return CompressedRecord.read(this, index.getOffset(), index.getSize(), start, length, OssConfigs.verifyChecksumOnRead());
+        }
+        return read(index.getOffset(), start, length);
+    }
+
+    /**
+     * 读取对象数据
+     * 只有读取完整对象时才能校验，范围读取和V1格式的block不校验
+     * @param offset 对象在block中的偏移
+     * @param start 读取的起始位置
+     * @param length 读取长度
+     * @param verify 是否校验checksum，热点读取可以跳过校验
+     * @return {@link ByteBuf} null if read failed or checksum mismatch
+     */
+    public ByteBuf read(int offset, int start, int length, boolean verify){
         try{
             readWriteLock.readLock().lock();
-            ByteBuf buffer = Unpooled.directBuffer(length);
-            ByteBuffer slice = this.buffer.slice();
-            int offset0 = offset + start + INDEX_LENGTH;
-            slice.position(offset0);
-            slice.limit(offset0 + length);
-            buffer.writeBytes(slice);
-            return buffer;
+            // 只能读取已经发布的记录
+            if(offset + headerLength + start + length > committed.get()){
+                log.warn("Read unpublished record, block: {}, offset: {}", id, offset);
+                return null;
+            }
+            ByteBuf result = buffer == null ? fileChannelRead(offset, start, length) : mmapReadBytes(offset, start, length);
+            if(result != null && verify && start == 0 && headerLength == HEADER_LENGTH_V2 && !checksumMatches(offset, result)){
+                log.warn("Object checksum mismatch, block: {}, offset: {}", id, offset);
+                result.release();
+                return null;
+            }
+            return result;
         }finally {
             readWriteLock.readLock().unlock();
         }
     }
 
     /**
-     * 大文件写入方法，使用FileChannel和16KB缓冲区优化
-     * @param objectId objectId
-     * @param src {@link ByteBuf}
-     * @param length 写入内容长度
-     * @return {@link ObjectIndex}
+     * 创建零拷贝读取的FileRegion
+     * 返回的FileRegion持有block的引用，直到FileRegion被释放
+     * @param offset 对象在block中的偏移
+     * @param start 读取的起始位置
+     * @param length 读取长度
+     * @return {@link BlockFileRegion} null if block is retired or the range is not published
      */
-    @SuppressWarnings("all")
-    private ObjectIndex fileChannelWriteBuffered(long objectId, ByteBuf src, int length){
-        try{
-            readWriteLock.writeLock().lock();
-            int lengthWithIndex = length + INDEX_LENGTH;
-            int offset0 = size.getAndAdd(lengthWithIndex);
-            ByteBuf header = Unpooled.buffer(INDEX_LENGTH);
-            header.writeLong(objectId);
-            header.writeInt(length);
-            header.writeInt(0);
-            ByteBuf fullBuffer = Unpooled.wrappedBuffer(header, src);
-            int loop = (int)Math.ceil((double)lengthWithIndex / BUFFER_SIZE);
-            for (int i = 0; i < loop; i++) {
-                int offset = offset0 + i * BUFFER_SIZE;
-                fullBuffer.readBytes(fileChannel, offset, i == loop - 1 ? fullBuffer.readableBytes() : BUFFER_SIZE);
-            }
-            return new ObjectIndex(id, offset0, length, false);
-        } catch (IOException e) {
-            log.warn("Write file channel failed ", e);
+    public BlockFileRegion readRegion(int offset, int start, int length){
+        // 只能读取已经发布的记录
+        if((long) offset + headerLength + start + length > committed.get()){
+            log.warn("Read unpublished record, block: {}, offset: {}", id, offset);
             return null;
-        } finally {
-            readWriteLock.writeLock().unlock();
         }
-    }
-
-    private ObjectIndex fileChannelWrite(long objectId, ByteBuf src, int length){
-        try{
-            // lock
-            readWriteLock.writeLock().lock();
-            int lengthWithIndex = length + INDEX_LENGTH;
-            // get offset
-            int offset0 = size.getAndAdd(lengthWithIndex);
-            ByteBuf header = Unpooled.buffer(INDEX_LENGTH);
-            header.writeLong(objectId);
-            header.writeInt(length);
-            header.writeInt(0);
-            ByteBuf fullBuffer = Unpooled.wrappedBuffer(header, src);
-            fullBuffer.readBytes(fileChannel, offset0, lengthWithIndex);
-            return new ObjectIndex(id, offset0, length, false);
-        } catch (IOException e) {
-            log.warn("Write file channel failed ", e);
+        if(!tryRetain()){
             return null;
-        } finally {
-            readWriteLock.writeLock().unlock();
         }
+        return new BlockFileRegion(this, fileChannel, (long) offset + headerLength + start, length);
     }
 
+    /**
+     * 尝试获取block的引用
+     * @return false if block is retired
+     */
+    public boolean tryRetain(){
+        int cnt;
+        do{
+            cnt = refCnt.get();
+            if(cnt <= 0){
+                return false;
+            }
+        }while(!refCnt.compareAndSet(cnt, cnt + 1));
+        return true;
+    }
 
-    private ByteBuf fileChannelRead(int offset, int startPos, int length){
-        try{
-            readWriteLock.readLock().lock();
-            ByteBuf result = Unpooled.directBuffer(length);
-            int offset0 = offset + INDEX_LENGTH + startPos;
-            result.writeBytes(fileChannel, offset0, length);
-            return result;
-        } catch (IOException e) {
-           log.warn("Read file channel failed ", e);
-           return null;
-        } finally {
-            readWriteLock.readLock().unlock();
+    /**
+     * 释放block的引用，最后一个引用释放后关闭并删除block文件
+     */
+    public void release(){
+        if(refCnt.decrementAndGet() == 0){
+            destroy();
         }
     }
 
-    public boolean delete(long objectId, int offset){
-        return buffer != null ? mmapDelete(objectId, offset) : fileChannelDelete(objectId, offset);
+    /**
+     * 废弃block，释放block自身持有的引用
+     * 已经获取引用的读取者可以继续读取，新的读取者无法再获取引用。
+     * 文件在最后一个读取者释放之后才删除，这之前先把文件改名为retired并同步目录，重启时不会再加载该block
+     * @return 改名是否已经持久化，失败时需要调用{@link #persistRetirement()}重试
+     */
+    boolean retire(){
+        if(!retired.compareAndSet(false, true)){
+            return true;
+        }
+        boolean persisted = persistRetirement();
+        release();
+        return persisted;
     }
 
-    private boolean mmapDelete(long objectId, int offset){
+    /**
+     * 把废弃的block文件改名为retired，并同步目录
+     * @return 是否成功
+     */
+    boolean persistRetirement(){
         try{
-            readWriteLock.writeLock().lock();
-            ByteBuffer slice = buffer.slice();
-            slice.position(offset);
-            if(slice.getLong() == objectId){
-                slice.position(slice.position() + 4);
-                slice.putInt(DELETE_MARK);
+            // 和删除文件互斥，文件已经被删除时只需要同步目录
+            synchronized (file){
+                if(file.exists()){
+                    Files.move(file.toPath(), retiredFile().toPath(), StandardCopyOption.ATOMIC_MOVE);
+                }
             }
-            needsCompact.set(true);
+            directory.sync();
             return true;
-        }catch (Exception e){
-            log.warn("Delete object in block failed, objectId: {}, offset: {}",objectId, offset, e);
+        }catch (IOException e){
+            log.error("Persist retirement of block {} failed ", id, e);
             return false;
-        } finally{
-            readWriteLock.writeLock().unlock();
         }
     }
 
-    private boolean fileChannelDelete(long objectId, int offset){
+    private File retiredFile(){
+        return new File(path + RETIRED_SUFFIX);
+    }
+
+    private void destroy(){
         try{
-            readWriteLock.writeLock().lock();
-            ByteBuffer buffer = ByteBuffer.allocate(INDEX_LENGTH);
-            fileChannel.read(buffer, offset);
-            buffer.rewind();
-            if(buffer.getLong() == objectId){
-                buffer.getInt();
-                buffer.putInt(DELETE_MARK);
-                buffer.rewind();
-                fileChannel.write(buffer, offset);
-                needsCompact.set(true);
+            if(buffer != null){
+                unmap();
+            }
+            fileChannel.close();
+            Files.deleteIfExists(tombstoneFile.toPath());
+            boolean deleted;
+            synchronized (file){
+                deleted = retiredFile().delete() || file.delete();
+            }
+            if(!deleted){
+                log.warn("Failed to delete retired block {}", path);
             }else{
-                return false;
+                log.info("Retired block {} deleted", id);
             }
-            return true;
-        } catch (IOException e) {
-            log.warn("");
-            return false;
-        } finally {
-            readWriteLock.writeLock().unlock();
+        }catch (IOException e){
+            log.warn("Close retired block {} failed ", id, e);
         }
     }
 
-    private Map<Long, ObjectIndex> mmapLoadIndex(){
-        Map<Long, ObjectIndex> indexes = new HashMap<>(16);
-        ByteBuffer slice = buffer.slice();
-        int size = 0;
-        while(slice.remaining() > INDEX_LENGTH){
-            int offset = slice.position();
-            long objectId = slice.getLong();
-            int length = slice.getInt();
-            int mark = slice.getInt();
-            if(objectId < 0 || length <= 0 || slice.remaining() < length){
-                break;
-            }
-            // 跳过data部分
-            slice.position(offset + length + INDEX_LENGTH);
-            ObjectIndex index = new ObjectIndex(this.id, offset, length, mark == DELETE_MARK);
-            indexes.put(objectId, index);
-            size += length + INDEX_LENGTH;
+    /**
+     * 释放block文件的内存映射，不等待GC回收MappedByteBuffer
+     * 所有引用释放后才调用，之后不能再访问buffer
+     */
+    private void unmap(){
+        try{
+            Method unmap = FileChannelImpl.class.getDeclaredMethod("unmap", MappedByteBuffer.class);
+            unmap.setAccessible(true);
+            unmap.invoke(fileChannel, buffer);
+        }catch (Exception e){
+            log.warn("Unmap retired block {} failed ", id, e);
         }
-        this.size = new AtomicInteger(size);
-        return indexes;
     }
 
-    private Map<Long, ObjectIndex> fileChannelLoadIndex()  {
-        Map<Long, ObjectIndex> indexes = new HashMap<>(16);
+    /**
+     * 无锁追加写入
+     * 写入者通过CAS预留写入区域，拷贝数据时只持有共享的读锁（与压缩互斥），多个写入者可以并发写入同一个block。
+     * 写入完成后按照预留顺序推进水位线，水位线之前的记录才对读取可见。
+     * 只有活跃block接受追加，block被切换或者废弃之后追加失败
+     * @param objectId objectId
+     * @param src {@link ByteBuf}
+     * @param length 写入内容长度
+     * @return {@link ObjectIndex} null if not appendable, no enough space or write failed
+     */
+    public ObjectIndex append(long objectId, ByteBuf src, int length){
+        int lengthWithHeader = length + headerLength;
+        int skipped = -1;
         try{
-            int position = 0;
-            int channelSize = (int)fileChannel.size();
-            this.size = new AtomicInteger(channelSize);
-            ByteBuffer buffer = ByteBuffer.allocate(INDEX_LENGTH);
-            while(position < channelSize){
-                if(channelSize - position > INDEX_LENGTH){
-                    fileChannel.read(buffer, position);
-                    buffer.rewind();
-                    long objectId = buffer.getLong();
-                    int size = buffer.getInt();
-                    int mark = buffer.getInt();
-                    indexes.put(objectId, new ObjectIndex(id, position, size, mark == DELETE_MARK));
-                    buffer.rewind();
-                    position += INDEX_LENGTH + size;
+            readWriteLock.readLock().lock();
+            if(!appendable || retired.get()){
+                return null;
+            }
+            int offset;
+            do{
+                offset = size.get();
+                if(offset + lengthWithHeader > MAX_BLOCK_SIZE){
+                    return null;
+                }
+            }while(!size.compareAndSet(offset, offset + lengthWithHeader));
+            ByteBuf header = null;
+            boolean written = false;
+            try{
+                header = createHeader(objectId, length, src);
+                if(buffer != null){
+                    ByteBuffer slice = buffer.slice();
+                    slice.position(offset);
+                    slice.put(header.nioBuffer());
+                    slice.put(src.nioBuffer());
                 }else{
-                    break;
+                    writeFully(header, offset);
+                    writeFully(src, offset + headerLength);
+                }
+                written = true;
+                return new ObjectIndex(id, offset, length, false);
+            }catch (IOException e){
+                log.warn("Append to block {} failed ", id, e);
+                return null;
+            }finally {
+                if(header != null){
+                    header.release();
+                }
+                if(!written){
+                    writeSkipHeader(objectId, offset, length);
+                    skipped = offset;
                 }
+                // 写入失败也要发布，否则后面的写入者会一直等待
+                publish(offset, offset + lengthWithHeader);
+            }
+        }finally {
+            readWriteLock.readLock().unlock();
+            if(skipped >= 0){
+                addTombstone(skipped);
             }
-        }catch (IOException e){
-            log.warn("Load index failed ", e);
-            this.size = new AtomicInteger(0);
         }
-        return indexes;
     }
+
     /**
-     * 启动时加载block文件的索引，获取到每个对象的位置
-     * @return Map
+     * 成为活跃block，开始接受追加写入
+     * 调用者需要独占block，并在发布为活跃block之前调用
      */
-    public Map<Long, ObjectIndex> loadIndex(){
-        if(buffer != null){
-            return mmapLoadIndex();
-        }
-        return fileChannelLoadIndex();
+    void activate(){
+        appendable = true;
     }
 
     /**
-     * 压缩整理block文件
-     * @return Map 更新后的索引列表
+     * 停止接受追加写入，等待正在进行的追加写入完成
+     * 返回之后不会再有追加写入，block可以放回空闲队列被独占使用
      */
-    public Map<Long, ObjectIndex> compact(){
+    void seal(){
         try{
-            // 尝试加排他锁，如果竞争超时，则视为当前block繁忙，目前不进行压缩
-            if(!readWriteLock.writeLock().tryLock(COMPACT_WAIT_TIME, TimeUnit.MILLISECONDS) && !needsCompact.get()){
+            readWriteLock.writeLock().lock();
+            appendable = false;
+        }finally {
+            readWriteLock.writeLock().unlock();
+        }
+    }
+
+    boolean isAppendable(){
+        return appendable;
+    }
+
+    /**
+     * 预留一条记录的空间，用于边接收边写入的流式上传
+     * 数据可以分段、乱序写入预留区域，全部写完后提交记录头，提交之前记录对读取不可见。
+     * 调用者需要独占block，否则后面的写入者要等待该记录提交后才能发布。
+     * @param objectId 对象ID
+     * @param length 对象长度
+     * @return {@link BlockReservation} null if no enough space
+     */
+    public BlockReservation reserve(long objectId, int length){
+        int lengthWithHeader = length + headerLength;
+        int offset;
+        do{
+            offset = size.get();
+            if(offset + lengthWithHeader > MAX_BLOCK_SIZE){
                 return null;
             }
-            Map<Long, ObjectIndex> indexMap = new HashMap<>(16);
-            long compactStartTime = System.currentTimeMillis();
-            ByteBuffer indexBuffer = ByteBuffer.allocate(INDEX_LENGTH);
-            ByteBuf contentBuffer = Unpooled.directBuffer();
-            int position = 0;
-            int channelSize = (int)fileChannel.size();
-            int writePosition = 0;
-            int truncateLength = 0;
-            // 遍历读取channel
-            while(position < channelSize){
-                if(channelSize - position > INDEX_LENGTH){
-                    // 读取一条索引
-                    fileChannel.read(indexBuffer, position);
-                    indexBuffer.rewind();
-                    long objectId = indexBuffer.getLong();
-                    int objectSize = indexBuffer.getInt();
-                    int mark = indexBuffer.getInt();
-                    indexBuffer.rewind();
-                    if(channelSize - position - INDEX_LENGTH >= objectSize){
-                        // 判断删除标志，如果没有被标记删除，则将数据向前移动
-                        if(mark == DELETE_MARK){
-                            truncateLength += objectSize;
-                        }
-                        else{
-                            if(position != writePosition){
-                                // 先读进直接内存的缓冲区，然后写回fileChannel
-                                fileChannel.write(indexBuffer, writePosition);
-                                contentBuffer.writeBytes(fileChannel, position + INDEX_LENGTH, objectSize);
-                                contentBuffer.readBytes(fileChannel, writePosition + INDEX_LENGTH, objectSize);
-                            }
-                            // 更新索引
-                            indexMap.put(objectId, new ObjectIndex(id, writePosition, objectSize, false));
-                            writePosition += INDEX_LENGTH + objectSize;
-                        }
-                        position += INDEX_LENGTH + objectSize;
-                    }else{
-                        break;
-                    }
-                }else{
-                    break;
-                }
-                indexBuffer.rewind();
+        }while(!size.compareAndSet(offset, offset + lengthWithHeader));
+        return new BlockReservation(this, objectId, offset, length);
+    }
 
+    /**
+     * 写入预留区域中的一段数据
+     * @param offset 记录偏移
+     * @param position 数据在对象中的位置
+     * @param src 数据
+     * @throws IOException e
+     */
+    void writeReserved(int offset, int position, ByteBuf src) throws IOException {
+        try{
+            readWriteLock.readLock().lock();
+            int start = offset + headerLength + position;
+            if(buffer != null){
+                ByteBuffer slice = buffer.slice();
+                slice.position(start);
+                slice.put(src.nioBuffer());
+            }else{
+                writeFully(src, start);
             }
-            if(truncateLength > 0){
-                // 截断文件
-                fileChannel.truncate(writePosition);
-                // 重置写入偏移
-                size.set(writePosition);
-                log.info("Block {} compact finished, released space: {} KB, time used: {}ms", id, truncateLength/1024, (System.currentTimeMillis() - compactStartTime));
-            }
-            // 释放buffer，避免内存泄漏
-            if(contentBuffer.refCnt() > 0){
-                contentBuffer.release(contentBuffer.refCnt());
-            }
-            needsCompact.set(false);
-            return indexMap;
-        } catch (Exception e) {
-            log.warn("Compact Block {} failed: ", id, e);
-            return null;
         }finally {
-            if(readWriteLock.writeLock().isHeldByCurrentThread()){
-                readWriteLock.writeLock().unlock();
-            }
+            readWriteLock.readLock().unlock();
         }
     }
-    public int getId(){
-        return id;
-    }
 
-    public int availableSpace(){
+    /**
+     * 提交预留的记录，写入记录头并发布
+     * 放弃的记录也要写入记录头并标记删除，保证扫描block时能跳过该区域
+     * @param objectId 对象ID
+     * @param offset 记录偏移
+     * @param length 对象长度
+     * @param crc 对象数据的校验和
+     * @param discard 是否放弃该记录
+     * @return {@link ObjectIndex} null if discarded or write failed
+     */
+    ObjectIndex commitReserved(long objectId, int offset, int length, int crc, boolean discard){
+        ByteBuf header = null;
+        try{
+            readWriteLock.readLock().lock();
+            header = createHeader(objectId, length, crc, 0, 0);
+            if(discard){
+                header.setInt(12, deletedMark(header.getInt(12)));
+                deadBytes.addAndGet(length + headerLength);
+            }
+            if(buffer != null){
+                ByteBuffer slice = buffer.slice();
+                slice.position(offset);
+                slice.put(header.nioBuffer());
+            }else{
+                writeFully(header, offset);
+            }
+            return discard ? null : new ObjectIndex(id, offset, length, false);
+        }catch (IOException e){
+            log.warn("Commit reserved record failed, block: {}, offset: {}", id, offset, e);
+            return null;
+        }finally {
+            if(header != null){
+                header.release();
+            }
+            publish(offset, offset + length + headerLength);
+            readWriteLock.readLock().unlock();
+            if(discard){
+                addTombstone(offset);
+            }
+        }
+    }
+
+    /**
+     * 写入失败的区域写入带删除标记的记录头
+     * 该区域仍然会被发布，没有合法的记录头时恢复扫描会停在这里，丢失后面所有的记录
+     * @param objectId 对象ID
+     * @param offset 记录偏移
+     * @param length 对象长度
+     */
+    private void writeSkipHeader(long objectId, int offset, int length){
+        ByteBuf header = createHeader(objectId, length, 0, 0, 0);
+        try{
+            header.setInt(12, deletedMark(header.getInt(12)));
+            if(buffer != null){
+                ByteBuffer slice = buffer.slice();
+                slice.position(offset);
+                slice.put(header.nioBuffer());
+            }else{
+                writeFully(header, offset);
+            }
+            deadBytes.addAndGet(length + headerLength);
+        }catch (IOException e){
+            log.error("Write skip header failed, records after offset {} in block {} can't be recovered", offset, id, e);
+        }finally {
+            header.release();
+        }
+    }
+
+    /**
+     * 按预留顺序推进水位线
+     * 前面预留的写入者还没有发布时阻塞等待，发布后唤醒等待的写入者
+     * @param start 记录起始位置
+     * @param end 记录结束位置
+     */
+    private void publish(int start, int end){
+        if(!committed.compareAndSet(start, end)){
+            boolean interrupted = false;
+            synchronized (publishLock){
+                // 先登记再检查，发布者看到登记后一定会唤醒
+                publishWaiters.incrementAndGet();
+                try{
+                    while(!committed.compareAndSet(start, end)){
+                        try{
+                            publishLock.wait();
+                        }catch (InterruptedException e){
+                            interrupted = true;
+                        }
+                    }
+                }finally {
+                    publishWaiters.decrementAndGet();
+                }
+            }
+            if(interrupted){
+                Thread.currentThread().interrupt();
+            }
+        }
+        if(publishWaiters.get() > 0){
+            synchronized (publishLock){
+                publishLock.notifyAll();
+            }
+        }
+    }
+
+    private void resetWritePosition(int position){
+        size.set(position);
+        committed.set(position);
+    }
+
+    /**
+     * 小文件适用的mmap写入方法
+     * @param objectId objectId
+     * @param src {@link ByteBuf}
+     * @param length 写入内容长度
+     * @return {@link ObjectIndex}
+     */
+    private ObjectIndex mmapWrite(long objectId, ByteBuf src, int length, int recordType, int extra){
+        try{
+            readWriteLock.writeLock().lock();
+            // 写入数据
+            int offset = size.getAndAdd(length + headerLength);
+            ByteBuffer slice = buffer.slice();
+            slice.position(offset);
+            ByteBuf header = createHeader(objectId, length, src, recordType, extra);
+            try{
+                slice.put(header.nioBuffer());
+            }finally {
+                header.release();
+            }
+            slice.put(src.nioBuffer());
+            committed.set(size.get());
+            return new ObjectIndex(this.id, offset, length, false);
+        }finally {
+            readWriteLock.writeLock().unlock();
+        }
+    }
+
+
+    private ByteBuf mmapReadBytes(int offset, int start, int length){
+        try{
+            readWriteLock.readLock().lock();
+            ByteBuf buffer = BufferPool.directBuffer(length);
+            ByteBuffer slice = this.buffer.slice();
+            int offset0 = offset + start + headerLength;
+            slice.position(offset0);
+            slice.limit(offset0 + length);
+            buffer.writeBytes(slice);
+            return buffer;
+        }finally {
+            readWriteLock.readLock().unlock();
+        }
+    }
+
+    private ObjectIndex fileChannelWrite(long objectId, ByteBuf src, int length, int recordType, int extra){
+        try{
+            // lock
+            readWriteLock.writeLock().lock();
+            int lengthWithIndex = length + headerLength;
+            // get offset
+            int offset0 = size.getAndAdd(lengthWithIndex);
+            ByteBuf header = createHeader(objectId, length, src, recordType, extra);
+            try{
+                // 分别写入记录头和数据，不需要组合成CompositeByteBuf
+                writeFully(header, offset0);
+                writeFully(src, offset0 + headerLength);
+            }finally {
+                header.release();
+            }
+            committed.set(size.get());
+            return new ObjectIndex(id, offset0, length, false);
+        } catch (IOException e) {
+            log.warn("Write file channel failed ", e);
+            return null;
+        } finally {
+            readWriteLock.writeLock().unlock();
+        }
+    }
+
+
+    private ByteBuf fileChannelRead(int offset, int startPos, int length){
+        ByteBuf result = null;
+        try{
+            readWriteLock.readLock().lock();
+            result = BufferPool.directBuffer(length);
+            int offset0 = offset + headerLength + startPos;
+            while(result.isWritable()){
+                if(result.writeBytes(fileChannel, offset0 + result.writerIndex(), result.writableBytes()) < 0){
+                    throw new IOException("Unexpected end of block " + id);
+                }
+            }
+            return result;
+        } catch (IOException e) {
+           log.warn("Read file channel failed ", e);
+           if(result != null){
+               result.release();
+           }
+           return null;
+        } finally {
+            readWriteLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 把ByteBuf的可读部分完整写入block文件，不改变ByteBuf的readerIndex
+     * @param src {@link ByteBuf}
+     * @param position 文件中的写入位置
+     * @throws IOException e
+     */
+    private void writeFully(ByteBuf src, long position) throws IOException {
+        int written = 0;
+        int length = src.readableBytes();
+        while(written < length){
+            written += src.getBytes(src.readerIndex() + written, fileChannel, position + written, length - written);
+        }
+    }
+
+    /**
+     * 删除单条记录
+     * 和批量删除一样加入墓碑位图，记录可能已经在checkpoint覆盖的范围内，只改写记录头的话重启后不会被重新扫描
+     * @param objectId 对象ID
+     * @param offset 记录偏移
+     * @return 记录是否由本次调用删除，记录不存在或者已经删除时返回false
+     */
+    public boolean delete(long objectId, int offset){
+        return delete(new long[]{objectId}, new int[]{offset})[0];
+    }
+
+    /**
+     * 批量删除block中的记录
+     * 所有记录在一次写锁中加入墓碑位图，位图只持久化一次，不改写记录头
+     * @param objectIds 对象ID
+     * @param offsets 对应的记录偏移
+     * @return 每条记录是否由本次调用删除，已经删除的记录返回false，并发删除同一个对象时只有一个删除者成功
+     */
+    public boolean[] delete(long[] objectIds, int[] offsets){
+        boolean[] deleted = new boolean[objectIds.length];
+        boolean changed = false;
+        try{
+            readWriteLock.writeLock().lock();
+            for (int i = 0; i < objectIds.length; i++) {
+                ByteBuffer header = readHeader(offsets[i]);
+                if(header.getLong(0) != objectIds[i]){
+                    continue;
+                }
+                if(!isDeleted(header.getInt(12)) && tombstones.checkedAdd(offsets[i])){
+                    deadBytes.addAndGet(header.getInt(8) + headerLength);
+                    deleted[i] = true;
+                    changed = true;
+                }
+            }
+            if(changed){
+                saveTombstones();
+            }
+            return deleted;
+        }catch (IOException e){
+            log.warn("Delete objects in block {} failed ", id, e);
+            return new boolean[objectIds.length];
+        }finally {
+            readWriteLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 把墓碑位图中的记录改写为删除标记并刷盘，位图保持不变，
+     * 索引checkpoint保存之后再调用{@link #clearTombstones(RoaringBitmap)}清除
+     * @return 改写的记录偏移，没有墓碑时返回null
+     * @throws IOException e
+     */
+    RoaringBitmap applyTombstones() throws IOException {
+        RoaringBitmap applied;
+        try{
+            readWriteLock.writeLock().lock();
+            if(tombstones.isEmpty()){
+                return null;
+            }
+            applied = tombstones.clone();
+            IntIterator iterator = applied.getIntIterator();
+            while(iterator.hasNext()){
+                int offset = iterator.next();
+                int mark = readHeader(offset).getInt(12);
+                writeMark(offset, deletedMark(mark));
+            }
+        }finally {
+            readWriteLock.writeLock().unlock();
+        }
+        force();
+        return applied;
+    }
+
+    /**
+     * 清除已经改写到记录头的墓碑
+     * @param applied {@link #applyTombstones()}返回的记录偏移
+     */
+    void clearTombstones(RoaringBitmap applied){
+        try{
+            readWriteLock.writeLock().lock();
+            IntIterator iterator = applied.getIntIterator();
+            while(iterator.hasNext()){
+                int offset = iterator.next();
+                if(tombstones.contains(offset)){
+                    markedDeadBytes += readHeader(offset).getInt(8) + headerLength;
+                }
+            }
+            tombstones.andNot(applied);
+            saveTombstones();
+        }catch (IOException e){
+            log.warn("Save tombstones of block {} failed ", id, e);
+        }finally {
+            readWriteLock.writeLock().unlock();
+        }
+    }
+
+    public boolean hasTombstones(){
+        try{
+            readWriteLock.readLock().lock();
+            return !tombstones.isEmpty();
+        }finally {
+            readWriteLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 从checkpoint恢复时，checkpoint之前的部分没有扫描，
+     * 返回这部分中的墓碑记录，用于补充checkpoint之后发生的删除。
+     * 墓碑记录的空间不在markedDeadBytes中，无论记录头是否已经改写都计入被删除的空间
+     * @param toOffset checkpoint保存的写入位置
+     * @return Map 对象ID和记录偏移
+     */
+    Map<Long, Integer> recoverTombstones(int toOffset){
+        Map<Long, Integer> records = new HashMap<>(16);
+        try{
+            readWriteLock.readLock().lock();
+            IntIterator iterator = tombstones.getIntIterator();
+            while(iterator.hasNext()){
+                int offset = iterator.next();
+                if(offset >= toOffset){
+                    break;
+                }
+                ByteBuffer header = readHeader(offset);
+                deadBytes.addAndGet(header.getInt(8) + headerLength);
+                records.put(header.getLong(0), offset);
+            }
+        }catch (IOException e){
+            log.warn("Recover tombstones of block {} failed ", id, e);
+        }finally {
+            readWriteLock.readLock().unlock();
+        }
+        return records;
+    }
+
+    /**
+     * 改写记录头的mark，调用者需要持有写锁
+     */
+    private void writeMark(int offset, int mark) throws IOException {
+        if(buffer != null){
+            buffer.putInt(offset + 12, mark);
+        }else{
+            ByteBuffer markBuffer = ByteBuffer.allocate(4);
+            markBuffer.putInt(0, mark);
+            while(markBuffer.hasRemaining()){
+                fileChannel.write(markBuffer, offset + 12 + markBuffer.position());
+            }
+        }
+    }
+
+    /**
+     * 把只改写了记录头的记录加入墓碑，记录占用的空间已经计入deadBytes
+     * 放弃和写入失败的记录在这里持久化，checkpoint之后重启时才能统计到这部分空间
+     * @param offset 记录偏移
+     */
+    private void addTombstone(int offset){
+        try{
+            readWriteLock.writeLock().lock();
+            if(tombstones.checkedAdd(offset)){
+                saveTombstones();
+            }
+        }catch (IOException e){
+            log.warn("Save tombstones of block {} failed ", id, e);
+        }finally {
+            readWriteLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 持久化墓碑位图和markedDeadBytes，两者都为空时删除文件
+     * 先写临时文件并刷盘再替换，替换之后刷写目录，宕机后不会出现空的或者没有生效的墓碑文件
+     * 调用者需要持有写锁
+     * @throws IOException e
+     */
+    private void saveTombstones() throws IOException {
+        if(tombstones.isEmpty() && markedDeadBytes == 0){
+            if(Files.deleteIfExists(tombstoneFile.toPath())){
+                syncDirectory();
+            }
+            return;
+        }
+        tombstones.runOptimize();
+        File temp = new File(tombstoneFile.getPath() + ".tmp");
+        try(FileOutputStream fileStream = new FileOutputStream(temp);
+            DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(fileStream))){
+            outputStream.writeInt(TOMBSTONE_MAGIC);
+            outputStream.writeLong(markedDeadBytes);
+            tombstones.serialize(outputStream);
+            outputStream.flush();
+            fileStream.getFD().sync();
+        }
+        Files.move(temp.toPath(), tombstoneFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+    }
+
+    /**
+     * 刷写数据目录，使墓碑文件的替换和删除持久化
+     * 部分平台不支持打开目录，忽略
+     */
+    private void syncDirectory(){
+        try(FileChannel dir = FileChannel.open(Paths.get(directory.getPath()), StandardOpenOption.READ)){
+            dir.force(true);
+        }catch (IOException e){
+            log.debug("Sync directory {} failed ", directory.getPath(), e);
+        }
+    }
+
+    /**
+     * 加载墓碑位图，旧版本的文件只有位图
+     * @return markedDeadBytes
+     */
+    private long loadTombstones(){
+        if(!tombstoneFile.exists()){
+            return 0;
+        }
+        try{
+            ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(tombstoneFile.toPath()));
+            long marked = 0;
+            if(content.remaining() >= 12 && content.getInt(0) == TOMBSTONE_MAGIC){
+                marked = content.getLong(4);
+                content.position(12);
+            }
+            tombstones.deserialize(content.slice());
+            return marked;
+        }catch (IOException | RuntimeException e){
+            log.warn("Load tombstones from {} failed ", tombstoneFile, e);
+            tombstones.clear();
+            return 0;
+        }
+    }
+
+    private static File tombstoneFile(DataDirectory directory, int blockId){
+        return new File(directory.getPath() + File.separator + "tombstone_" + blockId);
+    }
+
+    /**
+     * 记录是否已经删除，包括记录头的删除标记和墓碑
+     */
+    private boolean isDeleted(int offset, int mark){
+        return isDeleted(mark) || tombstones.contains(offset);
+    }
+
+    private Map<Long, ObjectIndex> mmapLoadIndex(int fromOffset){
+        Map<Long, ObjectIndex> indexes = new HashMap<>(16);
+        ByteBuffer slice = buffer.slice();
+        slice.position(fromOffset);
+        int size = fromOffset;
+        while(slice.remaining() > headerLength){
+            int offset = slice.position();
+            long objectId = slice.getLong();
+            int length = slice.getInt();
+            int mark = slice.getInt();
+            if(objectId < 0 || length <= 0 || slice.remaining() < length + headerLength - INDEX_LENGTH){
+                break;
+            }
+            int extra = headerLength == HEADER_LENGTH_V2 ? slice.getInt(offset + 20) : 0;
+            // 跳过data部分
+            slice.position(offset + length + headerLength);
+            size += length + headerLength;
+            countDeadRecord(offset, mark, length);
+            ObjectIndex index = recordIndex(offset, length, mark, extra);
+            if(index != null){
+                indexes.put(objectId, index);
+            }
+        }
+        resetWritePosition(size);
+        return indexes;
+    }
+
+    private Map<Long, ObjectIndex> fileChannelLoadIndex(int fromOffset)  {
+        Map<Long, ObjectIndex> indexes = new HashMap<>(16);
+        try{
+            int position = fromOffset;
+            int channelSize = (int)fileChannel.size();
+            resetWritePosition(channelSize);
+            ByteBuffer buffer = ByteBuffer.allocate(headerLength);
+            while(position < channelSize){
+                if(channelSize - position > headerLength){
+                    fileChannel.read(buffer, position);
+                    buffer.rewind();
+                    long objectId = buffer.getLong();
+                    int size = buffer.getInt();
+                    int mark = buffer.getInt();
+                    int extra = headerLength == HEADER_LENGTH_V2 ? buffer.getInt(20) : 0;
+                    countDeadRecord(position, mark, size);
+                    ObjectIndex index = recordIndex(position, size, mark, extra);
+                    if(index != null){
+                        indexes.put(objectId, index);
+                    }
+                    buffer.rewind();
+                    position += headerLength + size;
+                }else{
+                    break;
+                }
+            }
+        }catch (IOException e){
+            log.warn("Load index failed ", e);
+            resetWritePosition(0);
+        }
+        return indexes;
+    }
+    /**
+     * 启动时加载block文件的索引，获取到每个对象的位置
+     * @return Map
+     */
+    public Map<Long, ObjectIndex> loadIndex(){
+        return loadIndex(0);
+    }
+
+    /**
+     * 从指定位置开始加载block文件的索引，用于从checkpoint恢复时只扫描block的尾部
+     * @param fromOffset 开始扫描的位置，必须是一条记录的起始位置
+     * @return Map
+     */
+    public Map<Long, ObjectIndex> loadIndex(int fromOffset){
+        scannedMarkedDeadBytes = 0;
+        Map<Long, ObjectIndex> indexes = buffer != null ? mmapLoadIndex(fromOffset) : fileChannelLoadIndex(fromOffset);
+        restoreMarkedDeadBytes(fromOffset);
+        return indexes;
+    }
+
+    /**
+     * 统计加载时扫描到的被删除记录
+     */
+    private void countDeadRecord(int offset, int mark, int length){
+        if(isDeleted(offset, mark)){
+            deadBytes.addAndGet(length + headerLength);
+            if(!tombstones.contains(offset)){
+                scannedMarkedDeadBytes += length + headerLength;
+            }
+        }
+    }
+
+    /**
+     * 从checkpoint恢复时没有扫描的部分中只有记录头删除标记的记录由持久化的markedDeadBytes补充；
+     * 全量扫描时用扫描结果校正持久化的值
+     * @param fromOffset 开始扫描的位置
+     */
+    private void restoreMarkedDeadBytes(int fromOffset){
+        try{
+            readWriteLock.writeLock().lock();
+            if(fromOffset > 0){
+                deadBytes.addAndGet(markedDeadBytes);
+            }else if(scannedMarkedDeadBytes != markedDeadBytes){
+                markedDeadBytes = scannedMarkedDeadBytes;
+                saveTombstones();
+            }
+        }catch (IOException e){
+            log.warn("Save tombstones of block {} failed ", id, e);
+        }finally {
+            readWriteLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 根据记录头创建索引
+     * extent记录由manifest引用，不进入索引；manifest记录的索引大小为对象的逻辑大小
+     * @return {@link ObjectIndex} null if record is an extent
+     */
+    private ObjectIndex recordIndex(int offset, int length, int mark, int extra){
+        int recordType = recordType(mark);
+        if(recordType == RECORD_EXTENT){
+            return null;
+        }
+        if(recordType == RECORD_MANIFEST){
+            return new ObjectIndex(id, offset, extra, isDeleted(offset, mark), true);
+        }
+        if(recordType == RECORD_COMPRESSED){
+            return new ObjectIndex(id, offset, extra, isDeleted(offset, mark), false, true);
+        }
+        return new ObjectIndex(id, offset, length, isDeleted(offset, mark));
+    }
+
+    /**
+     * 扫描block中的所有记录，不改变block的状态，用于压缩时查找存活的对象
+     * extent记录不返回；manifest记录返回记录本身的长度，并标记为multiExtent；压缩记录返回存储的长度，并标记为compressed
+     * @return Map 对象ID和记录位置
+     */
+    public Map<Long, ObjectIndex> listIndexes(){
+        Map<Long, ObjectIndex> indexes = new HashMap<>(16);
+        try{
+            readWriteLock.readLock().lock();
+            int end = committed.get();
+            int position = 0;
+            ByteBuffer header = ByteBuffer.allocate(INDEX_LENGTH);
+            while(end - position > headerLength){
+                header.clear();
+                fileChannel.read(header, position);
+                long objectId = header.getLong(0);
+                int length = header.getInt(8);
+                int mark = header.getInt(12);
+                if(length <= 0){
+                    break;
+                }
+                int recordType = recordType(mark);
+                if(recordType != RECORD_EXTENT){
+                    indexes.put(objectId, new ObjectIndex(id, position, length, isDeleted(position, mark),
+                            recordType == RECORD_MANIFEST, recordType == RECORD_COMPRESSED));
+                }
+                position += headerLength + length;
+            }
+        }catch (IOException e){
+            log.warn("List block {} indexes failed ", id, e);
+        }finally {
+            readWriteLock.readLock().unlock();
+        }
+        return indexes;
+    }
+
+    /**
+     * 读取block的第一条记录，如果是未删除的extent，返回所属的对象ID
+     * 完整的extent都写入新创建的block，extent总是block中的第一条记录
+     * @return 对象ID，null if the first record is not a live extent
+     */
+    public Long firstLiveExtent(){
+        if(!supportsRecordType()){
+            return null;
+        }
+        try{
+            readWriteLock.readLock().lock();
+            if(committed.get() <= headerLength){
+                return null;
+            }
+            ByteBuffer header = ByteBuffer.allocate(INDEX_LENGTH);
+            fileChannel.read(header, 0);
+            int length = header.getInt(8);
+            int mark = header.getInt(12);
+            if(length <= 0 || recordType(mark) != RECORD_EXTENT || isDeleted(0, mark)){
+                return null;
+            }
+            return header.getLong(0);
+        }catch (IOException e){
+            log.warn("Read block {} first record failed ", id, e);
+            return null;
+        }finally {
+            readWriteLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 检查block中是否有未删除的extent记录
+     * extent的位置记录在其他block的manifest中，压缩无法移动extent
+     * @return boolean
+     */
+    public boolean hasLiveExtents(){
+        if(!supportsRecordType()){
+            return false;
+        }
+        try{
+            readWriteLock.readLock().lock();
+            int end = committed.get();
+            int position = 0;
+            ByteBuffer header = ByteBuffer.allocate(INDEX_LENGTH);
+            while(end - position > headerLength){
+                header.clear();
+                fileChannel.read(header, position);
+                int length = header.getInt(8);
+                int mark = header.getInt(12);
+                if(length <= 0){
+                    break;
+                }
+                if(recordType(mark) == RECORD_EXTENT && !isDeleted(position, mark)){
+                    return true;
+                }
+                position += headerLength + length;
+            }
+            return false;
+        }catch (IOException e){
+            log.warn("Scan block {} extents failed ", id, e);
+            return true;
+        }finally {
+            readWriteLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 判断checkpoint记录的写入位置对当前block文件是否有效
+     * block文件比记录的位置短，说明block文件被截断过，需要全量扫描
+     * @param mark checkpoint记录的写入位置
+     * @return boolean
+     */
+    public boolean isValidMark(int mark){
+        try{
+            return mark >= 0 && mark <= MAX_BLOCK_SIZE && fileChannel.size() >= mark;
+        }catch (IOException e){
+            return false;
+        }
+    }
+
+    /**
+     * 创建记录头
+     * @param objectId 对象ID
+     * @param length 对象长度
+     * @param src 对象数据，用于计算校验和
+     * @return {@link ByteBuf} 从池中分配，调用者负责释放
+     */
+    private ByteBuf createHeader(long objectId, int length, ByteBuf src){
+        return createHeader(objectId, length, src, 0, 0);
+    }
+
+    private ByteBuf createHeader(long objectId, int length, ByteBuf src, int recordType, int extra){
+        return createHeader(objectId, length, headerLength == HEADER_LENGTH_V2 ? checksum(src) : 0, recordType, extra);
+    }
+
+    private ByteBuf createHeader(long objectId, int length, int crc, int recordType, int extra){
+        ByteBuf header = BufferPool.directBuffer(headerLength);
+        header.writeLong(objectId);
+        header.writeInt(length);
+        if(headerLength == HEADER_LENGTH_V2){
+            header.writeInt(FORMAT_V2 | recordType);
+            header.writeInt(crc);
+            header.writeInt(extra);
+        }else{
+            header.writeInt(0);
+        }
+        return header;
+    }
+
+    /**
+     * 校验读取到的完整对象数据，调用者需要持有读锁
+     * @param offset 记录偏移
+     * @param data 对象数据
+     * @return boolean
+     */
+    private boolean checksumMatches(int offset, ByteBuf data){
+        ByteBuffer header;
+        try{
+            header = readHeader(offset);
+        }catch (IOException e){
+            log.warn("Read record header failed, block: {}, offset: {}", id, offset, e);
+            return false;
+        }
+        int length = header.getInt(8);
+        int crc = header.getInt(16);
+        // 只读取了部分数据，无法校验
+        if(length != data.readableBytes()){
+            return true;
+        }
+        return crc == checksum(data);
+    }
+
+    /**
+     * 读取记录头，调用者需要持有读锁
+     * @param offset 记录偏移
+     * @return {@link ByteBuffer}
+     * @throws IOException e
+     */
+    private ByteBuffer readHeader(int offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(headerLength);
+        if(buffer != null){
+            ByteBuffer slice = buffer.slice();
+            slice.position(offset);
+            slice.limit(offset + headerLength);
+            header.put(slice);
+        }else{
+            fileChannel.read(header, offset);
+        }
+        return header;
+    }
+
+    private static int checksum(ByteBuf src){
+        CRC32 crc32 = new CRC32();
+        for (ByteBuffer nioBuffer : src.nioBuffers(src.readerIndex(), src.readableBytes())) {
+            crc32.update(nioBuffer);
+        }
+        return (int) crc32.getValue();
+    }
+
+    private static boolean isDeleted(int mark){
+        // V1的删除标记-1最高位也是1
+        return (mark & DELETED_FLAG) != 0;
+    }
+
+    private int recordType(int mark){
+        return headerLength == HEADER_LENGTH_V2 ? mark & RECORD_TYPE_MASK : 0;
+    }
+
+    private int deletedMark(int mark){
+        return headerLength == HEADER_LENGTH_V2 ? mark | DELETED_FLAG : DELETE_MARK;
+    }
+
+    /**
+     * 根据第一条记录判断block的记录格式
+     * V1格式的mark只能是0或-1，空的block使用V2格式
+     * @param fileChannel block文件channel
+     * @return 记录头长度
+     * @throws IOException e
+     */
+    private static int detectHeaderLength(FileChannel fileChannel) throws IOException {
+        if(fileChannel.size() < INDEX_LENGTH){
+            return HEADER_LENGTH_V2;
+        }
+        ByteBuffer header = ByteBuffer.allocate(INDEX_LENGTH);
+        fileChannel.read(header, 0);
+        int length = header.getInt(8);
+        int mark = header.getInt(12);
+        if(length <= 0){
+            return HEADER_LENGTH_V2;
+        }
+        return (mark & FORMAT_MASK) == FORMAT_V2 && mark != DELETE_MARK ? HEADER_LENGTH_V2 : INDEX_LENGTH;
+    }
+
+    /**
+     * 将block的修改刷写到磁盘
+     * 已经删除的block不需要刷盘，它的映射已经释放
+     * @throws IOException e
+     */
+    public void force() throws IOException {
+        if(!tryRetain()){
+            return;
+        }
+        try{
+            if(buffer != null){
+                buffer.force();
+            }else{
+                fileChannel.force(false);
+            }
+        }finally {
+            release();
+        }
+    }
+
+    public int getId(){
+        return id;
+    }
+
+    public DataDirectory getDirectory(){
+        return directory;
+    }
+
+    /**
+     * block中被删除对象占用的空间
+     * @return bytes
+     */
+    public long deadBytes(){
+        return deadBytes.get();
+    }
+
+    /**
+     * 压缩可以回收的空间比例
+     * @return 0 ~ 1
+     */
+    public double reclaimableRatio(){
+        int used = committed.get();
+        return used == 0 ? 0 : (double) deadBytes.get() / used;
+    }
+
+    public int availableSpace(){
         return MAX_BLOCK_SIZE - this.size.get();
     }
 
+    /**
+     * 当前写入位置，即已发布的写入水位线
+     * @return int
+     */
+    public int writePosition(){
+        return this.committed.get();
+    }
+
 
 }
@@ -0,0 +1,133 @@
+package com.jay.oss.storage.fs;
+
+import io.netty.buffer.ByteBuf;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>
+ *  Copy-forward压缩器
+ *  将稀疏block中存活的对象复制到新的block，然后原子地替换对象索引，最后废弃旧的block。
+ *  压缩期间旧block只被读取，不会被加锁修改，读请求不受影响。
+ *  旧block在废弃时改名并同步目录，文件在所有读取者释放引用后才被删除，重启时不会再加载已经废弃的block。
+ *  废弃之前宕机时旧block仍然完整，新block中重复的对象在重启后按照固定的规则只有一份会进入索引。
+ *  大对象的manifest记录和普通对象一样被复制；extent的位置记录在manifest中，包含存活extent的block不压缩，
+ *  extent独占block，对象删除后整个block都是可回收空间。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/04 15:10
+ */
+@Slf4j
+public class BlockCompactor {
+
+    private final BlockManager blockManager;
+    private final ObjectIndexManager objectIndexManager;
+    private final CompactionThrottle throttle;
+
+    public BlockCompactor(BlockManager blockManager, ObjectIndexManager objectIndexManager, CompactionThrottle throttle) {
+        this.blockManager = blockManager;
+        this.objectIndexManager = objectIndexManager;
+        this.throttle = throttle;
+    }
+
+    /**
+     * 压缩一个block
+     * 调用者需要保证block已经不会被写入
+     * @param block {@link Block}
+     * @return 是否压缩完成，压缩失败时block保持可用
+     */
+    public boolean compact(Block block){
+        long start = System.currentTimeMillis();
+        if(block.hasLiveExtents()){
+            log.info("Block {} holds live extents, compaction skipped", block.getId());
+            return false;
+        }
+        // 写入block和保存索引都在写入屏障的读锁中完成，等待已经写入该block的对象进入索引，否则会被当作已删除
+        objectIndexManager.runWithoutWrites(() -> {});
+        Map<Long, ObjectIndex> records = block.listIndexes();
+        Set<Integer> targetBlocks = new HashSet<>();
+        int moved = 0;
+        long movedBytes = 0;
+        for (Map.Entry<Long, ObjectIndex> entry : records.entrySet()) {
+            long objectId = entry.getKey();
+            ObjectIndex record = entry.getValue();
+            ObjectIndex current = objectIndexManager.getObjectIndex(objectId);
+            // 只有索引仍然指向该记录的对象才是存活的
+            if(record.isRemoved() || current == null || current.isRemoved()){
+                // 被删除的对象不能继续从读缓存读取
+                invalidateCache(objectId);
+                continue;
+            }
+            if(current.getBlockId() != block.getId() || current.getOffset() != record.getOffset()){
+                continue;
+            }
+            // 读写各计一次IO
+            if(!throttle.acquire(record.getSize() * 2)){
+                log.info("Compaction of block {} aborted by foreground latency", block.getId());
+                return false;
+            }
+            ByteBuf data = block.read(record.getOffset(), 0, record.getSize(), true);
+            if(data == null){
+                log.warn("Read object {} from block {} failed, compaction aborted", objectId, block.getId());
+                return false;
+            }
+            try{
+                ObjectIndex copied;
+                if(record.isMultiExtent()){
+                    copied = blockManager.writeRecord(objectId, data, record.getSize(), Block.RECORD_MANIFEST, current.getSize());
+                }else if(record.isCompressed()){
+                    // 压缩记录原样复制，不需要重新压缩
+                    copied = blockManager.writeRecord(objectId, data, record.getSize(), Block.RECORD_COMPRESSED, current.getSize());
+                }else{
+                    copied = blockManager.write0(objectId, data, record.getSize());
+                }
+                if(copied == null){
+                    log.warn("Copy object {} from block {} failed, compaction aborted", objectId, block.getId());
+                    return false;
+                }
+                targetBlocks.add(copied.getBlockId());
+                if(objectIndexManager.replace(objectId, current, copied)){
+                    moved++;
+                    movedBytes += record.getSize();
+                }else{
+                    invalidateCache(objectId);
+                    // 复制期间对象被删除，删除新的副本
+                    Block target = blockManager.getBlockById(copied.getBlockId());
+                    if(target != null){
+                        target.delete(objectId, copied.getOffset());
+                    }
+                }
+            }finally {
+                data.release();
+            }
+        }
+        // 新block刷盘之后才能删除旧的block
+        for (Integer blockId : targetBlocks) {
+            Block target = blockManager.getBlockById(blockId);
+            try{
+                if(target != null){
+                    target.force();
+                }
+            }catch (IOException e){
+                log.warn("Force block {} failed, compaction aborted", blockId, e);
+                return false;
+            }
+        }
+        blockManager.retireBlock(block);
+        log.info("Block {} compacted, moved {} objects ({} KB) to {} blocks, time used: {}ms",
+                block.getId(), moved, movedBytes / 1024, targetBlocks.size(), (System.currentTimeMillis() - start));
+        return true;
+    }
+
+    private void invalidateCache(long objectId){
+        ObjectReadCache readCache = blockManager.getReadCache();
+        if(readCache != null){
+            readCache.invalidate(objectId);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.jay.oss.storage.fs;
+
+import io.netty.channel.DefaultFileRegion;
+
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>
+ *  Block文件的FileRegion
+ *  通过sendfile将block文件中的对象直接发送到网络，不需要把数据拷贝到用户态缓冲区。
+ *  FileRegion共享block的FileChannel，释放时不能关闭channel，只释放block的引用。
+ *  FileRegion持有引用期间，即使block被压缩废弃，文件也不会被删除。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/02 14:12
+ */
+public class BlockFileRegion extends DefaultFileRegion {
+
+    private final Block block;
+
+    BlockFileRegion(Block block, FileChannel fileChannel, long position, long count) {
+        super(fileChannel, position, count);
+        this.block = block;
+    }
+
+    @Override
+    protected void deallocate() {
+        // 不调用super.deallocate()，FileChannel属于block，由block管理
+        block.release();
+    }
+}
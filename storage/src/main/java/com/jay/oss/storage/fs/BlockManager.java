@@ -1,14 +1,30 @@
 package com.jay.oss.storage.fs;
 
+import com.jay.dove.compress.Compressor;
 import com.jay.oss.common.config.OssConfigs;
+import com.jay.oss.common.prometheus.GaugeManager;
+import com.jay.oss.common.util.CompressUtil;
+import com.jay.oss.common.util.ThreadPoolUtil;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.prometheus.client.Gauge;
 import lombok.extern.slf4j.Slf4j;
+import org.roaringbitmap.RoaringBitmap;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * <p>
@@ -21,10 +37,9 @@ import java.util.concurrent.atomic.AtomicInteger;
 @Slf4j
 public class BlockManager {
     /**
-     * blockSizeMap
-     * key为block剩余空间大小，value为该空间大小的所有block阻塞队列
+     * 数据目录，每个目录对应一块磁盘
      */
-    private final SortedMap<Integer, BlockingQueue<Block>> blockSizeMap = Collections.synchronizedSortedMap(new TreeMap<>());
+    private final List<DataDirectory> directories;
 
     private final ConcurrentHashMap<Integer, Block> blockMap = new ConcurrentHashMap<>();
 
@@ -33,12 +48,98 @@ public class BlockManager {
      */
     private final AtomicInteger blockIdProvider = new AtomicInteger(1);
 
-    private final Object mutex = new Object();
-
     private final ObjectIndexManager objectIndexManager;
 
+    private final IndexCheckpoint indexCheckpoint;
+
+    private final BlockSyncer blockSyncer;
+
+    private final BlockCompactor blockCompactor;
+
+    private final CompactionThrottle compactionThrottle;
+
+    /**
+     * 热点对象读缓存，未开启时为null
+     */
+    private final ObjectReadCache readCache;
+
+    /**
+     * 大对象extent读写线程池
+     * 不使用磁盘线程池，避免在磁盘线程中等待同一个线程池的任务
+     */
+    private final ExecutorService extentExecutor;
+
+    /**
+     * 预先创建的空block
+     */
+    private final BlockPool blockPool;
+
+    /**
+     * 对象压缩器，未开启压缩时为null
+     */
+    private final Compressor compressor;
+
+    /**
+     * block被压缩废弃时，重新查询索引的次数
+     */
+    private static final int RETRY_TIMES = 3;
+
+    /**
+     * 重新查询索引前的等待时间，每次重试翻倍
+     */
+    private static final long RETRY_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * 一个extent的最大长度，一个extent正好占满一个block
+     */
+    static final int EXTENT_SIZE = Block.MAX_BLOCK_SIZE - Block.HEADER_LENGTH_V2;
+
+    /**
+     * checkpoint和压缩互斥，压缩会移动block中对象的位置
+     */
+    private final Object checkpointMutex = new Object();
+
+    /**
+     * 改名没有持久化的废弃block，全部持久化之前不能保存checkpoint
+     */
+    private final Set<Block> unpersistedRetirements = ConcurrentHashMap.newKeySet();
+
     public BlockManager(ObjectIndexManager objectIndexManager) {
         this.objectIndexManager = objectIndexManager;
+        String[] paths = OssConfigs.dataPaths();
+        List<DataDirectory> dirs = new ArrayList<>(paths.length);
+        for (int i = 0; i < paths.length; i++) {
+            dirs.add(new DataDirectory(i, paths[i], sameFileStore(dirs, paths[i])));
+        }
+        this.directories = Collections.unmodifiableList(dirs);
+        this.indexCheckpoint = new IndexCheckpoint(OssConfigs.dataPath());
+        this.blockSyncer = new BlockSyncer();
+        this.compactionThrottle = new CompactionThrottle();
+        this.readCache = ObjectReadCache.create();
+        this.blockCompactor = new BlockCompactor(this, objectIndexManager, compactionThrottle);
+        this.extentExecutor = ThreadPoolUtil.newIoThreadPool("extent-io-");
+        this.blockPool = new BlockPool(directories, this::newBlock);
+        this.compressor = OssConfigs.enableCompression() ? CompressUtil.getCompressor(OssConfigs.compressionCodec()) : null;
+    }
+
+    /**
+     * 查找和新目录位于同一个文件系统的目录
+     * @param dirs 已经创建的目录
+     * @param path 新目录
+     * @return {@link DataDirectory} null if none
+     */
+    private static DataDirectory sameFileStore(List<DataDirectory> dirs, String path){
+        FileStore fileStore = DataDirectory.fileStoreOf(new File(path));
+        if(fileStore == null){
+            return null;
+        }
+        for (DataDirectory directory : dirs) {
+            if(fileStore.equals(directory.getFileStore())){
+                log.warn("Data directory {} is on the same file system as {}", path, directory.getPath());
+                return directory;
+            }
+        }
+        return null;
     }
 
     /**
@@ -47,42 +148,534 @@ public class BlockManager {
      * @return {@link Block}
      */
     public Block getBlockBySize(int size){
-        // 获取所有的剩余大小比当前文件大小大的block队列
-        SortedMap<Integer, BlockingQueue<Block>> tailMap = blockSizeMap.tailMap(size);
-        Block block;
-        /*
-            逆向遍历所有剩余大小大于等于该文件的block。
-            这样使文件落在block剩余大小较多的位置，使block大小分布更均匀
-         */
-        ArrayList<BlockingQueue<Block>> blockQueues = new ArrayList<>(tailMap.values());
-        for (int i = blockQueues.size() - 1; i >= 0; i--) {
-            BlockingQueue<Block> queue = blockQueues.get(i);
-            if((block = queue.poll()) != null){
-                return block;
+        return getBlockBySize(selectDirectory(size), size);
+    }
+
+    private Block getBlockBySize(DataDirectory directory, int size){
+        Block block = directory.poll(size);
+        // 没有block，创建新block
+        return block != null ? block : createBlockAndGet(directory);
+    }
+
+    /**
+     * 选择写入对象的数据目录
+     * 优先选择剩余空间多、读写队列短的磁盘
+     * @param size 对象大小
+     * @return {@link DataDirectory}
+     */
+    public DataDirectory selectDirectory(int size){
+        if(directories.size() == 1){
+            return directories.get(0);
+        }
+        DataDirectory selected = directories.get(0);
+        double maxScore = -1;
+        for (DataDirectory directory : directories) {
+            double score = directory.placementScore(size);
+            if(score > maxScore){
+                maxScore = score;
+                selected = directory;
             }
         }
-        // 没有block，创建新block
-        return createBlockAndGet();
+        return selected;
     }
 
     /**
-     * 向blockManager添加block
-     * @param block {@link Block}
+     * 获取block所在的数据目录
+     * @param blockId block id
+     * @return {@link DataDirectory} null if no such block
      */
-    public void offerBlock(Block block){
-        BlockingQueue<Block> queue;
-        int availableSpace = block.availableSpace();
-        // 保证线程安全，只有一个线程能创建新的queue
-        if((queue = blockSizeMap.get(availableSpace)) == null){
-            synchronized (mutex){
-                if((queue = blockSizeMap.get(availableSpace)) == null){
-                    queue = new LinkedBlockingQueue<>();
-                    blockSizeMap.put(availableSpace, queue);
+    public DataDirectory directoryOf(int blockId){
+        Block block = blockMap.get(blockId);
+        return block == null ? null : block.getDirectory();
+    }
+
+    public List<DataDirectory> getDirectories(){
+        return directories;
+    }
+
+    /**
+     * 写入对象到block
+     * 并发追加模式下写入共享的活跃block，否则独占一个剩余空间足够的block写入
+     * @param objectId 对象ID
+     * @param data 对象数据
+     * @param size 对象大小
+     * @return {@link ObjectIndex} null if write failed
+     */
+    public ObjectIndex write(long objectId, ByteBuf data, int size){
+        return write(selectDirectory(size), objectId, data, size);
+    }
+
+    /**
+     * 写入对象到指定的数据目录
+     * @param directory {@link DataDirectory} 由{@link #selectDirectory(int)}选出
+     * @param objectId 对象ID
+     * @param data 对象数据
+     * @param size 对象大小
+     * @return {@link ObjectIndex} null if write failed
+     */
+    public ObjectIndex write(DataDirectory directory, long objectId, ByteBuf data, int size){
+        long start = System.nanoTime();
+        try{
+            ByteBuf compressed = compress(data, size);
+            if(compressed == null){
+                return write0(directory, objectId, data, size);
+            }
+            try{
+                return writeRecord(directory, objectId, compressed, compressed.readableBytes(), Block.RECORD_COMPRESSED, size);
+            }finally {
+                compressed.release();
+            }
+        }finally {
+            compactionThrottle.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 压缩对象数据
+     * 压缩在选择block之前进行，压缩后的大小决定了写入哪个block
+     * @param data 对象数据
+     * @param size 对象大小
+     * @return 压缩后的记录，未开启压缩、对象太小、跨block或者压缩率不够时返回null
+     */
+    private ByteBuf compress(ByteBuf data, int size){
+        if(compressor == null || size < OssConfigs.compressionMinSize() * 1024 || isMultiExtent(size)){
+            return null;
+        }
+        try{
+            return CompressedRecord.encode(data, size, compressor, OssConfigs.compressionChunkSize() * 1024, OssConfigs.compressionMinSaving());
+        }catch (RuntimeException e){
+            log.warn("Compress object failed, stored uncompressed ", e);
+            return null;
+        }
+    }
+
+    /**
+     * 写入对象，不记录前台写入延迟
+     * 压缩复制对象使用该方法，避免压缩自身的写入触发限流
+     */
+    ObjectIndex write0(long objectId, ByteBuf data, int size){
+        return write0(selectDirectory(size), objectId, data, size);
+    }
+
+    private ObjectIndex write0(DataDirectory directory, long objectId, ByteBuf data, int size){
+        if(isMultiExtent(size)){
+            return writeExtents(objectId, data, size);
+        }
+        directory.beginIo();
+        try{
+            if(OssConfigs.enableConcurrentAppend()){
+                return appendToActiveBlock(directory, objectId, data, size);
+            }
+            Block block = getBlockBySize(directory, size);
+            try{
+                return block.write(objectId, data, size);
+            }finally {
+                blockSyncer.markDirty(block);
+                offerBlock(block);
+            }
+        }finally {
+            directory.endIo();
+        }
+    }
+
+    /**
+     * 为流式上传预留空间
+     * 预留的block从空闲队列中取出，直到提交或放弃后才放回
+     * @param directory {@link DataDirectory}
+     * @param objectId 对象ID
+     * @param size 对象大小
+     * @return {@link BlockReservation} null if object is too large for one block
+     */
+    public BlockReservation reserve(DataDirectory directory, long objectId, int size){
+        if(isMultiExtent(size)){
+            return null;
+        }
+        Block block = getBlockBySize(directory, size);
+        BlockReservation reservation = block.reserve(objectId, size);
+        if(reservation == null){
+            offerBlock(block);
+        }
+        return reservation;
+    }
+
+    /**
+     * 提交流式上传的记录
+     * @param reservation {@link BlockReservation}
+     * @return {@link ObjectIndex} null if commit failed
+     */
+    public ObjectIndex commit(BlockReservation reservation){
+        Block block = reservation.getBlock();
+        try{
+            return reservation.commit();
+        }finally {
+            blockSyncer.markDirty(block);
+            offerBlock(block);
+        }
+    }
+
+    /**
+     * 放弃流式上传的记录，预留的空间成为可回收空间
+     * @param reservation {@link BlockReservation}
+     */
+    public void discard(BlockReservation reservation){
+        Block block = reservation.getBlock();
+        try{
+            reservation.discard();
+        }finally {
+            blockSyncer.markDirty(block);
+            offerBlock(block);
+        }
+    }
+
+    /**
+     * 写入带类型的记录，独占一个V2格式的block写入
+     * @param objectId 对象ID
+     * @param data 记录数据
+     * @param length 记录长度
+     * @param recordType 记录类型
+     * @param extra 记录头的extra字段
+     * @return {@link ObjectIndex} null if write failed
+     */
+    ObjectIndex writeRecord(long objectId, ByteBuf data, int length, int recordType, int extra){
+        return writeRecord(selectDirectory(length), objectId, data, length, recordType, extra);
+    }
+
+    private ObjectIndex writeRecord(DataDirectory directory, long objectId, ByteBuf data, int length, int recordType, int extra){
+        directory.beginIo();
+        try{
+            Block block = getBlockBySize(directory, length);
+            if(!block.supportsRecordType()){
+                offerBlock(block);
+                block = createBlockAndGet(directory);
+            }
+            try{
+                return block.write(objectId, data, length, recordType, extra);
+            }finally {
+                blockSyncer.markDirty(block);
+                offerBlock(block);
+            }
+        }finally {
+            directory.endIo();
+        }
+    }
+
+    /**
+     * 对象加上记录头超过一个block时，拆分成多个extent存储
+     * @param size 对象大小
+     * @return boolean
+     */
+    public static boolean isMultiExtent(int size){
+        return (long) size + Block.HEADER_LENGTH_V2 > Block.MAX_BLOCK_SIZE;
+    }
+
+    /**
+     * 写入大对象
+     * 每个完整的extent写入一个新的block，多个extent在不同磁盘上并行写入；
+     * 所有extent刷盘之后，写入记录了extent列表和尾部数据的manifest，索引指向manifest
+     * @param objectId 对象ID
+     * @param data 对象数据
+     * @param size 对象大小
+     * @return {@link ObjectIndex} null if write failed
+     */
+    private ObjectIndex writeExtents(long objectId, ByteBuf data, int size){
+        int extentCount = size / EXTENT_SIZE;
+        int tail = size - extentCount * EXTENT_SIZE;
+        if(ExtentManifest.headerLength(extentCount) + tail + Block.HEADER_LENGTH_V2 > Block.MAX_BLOCK_SIZE){
+            // 尾部数据放不进manifest记录，单独作为一个extent
+            extentCount++;
+            tail = 0;
+        }
+        List<CompletableFuture<ObjectIndex>> futures = new ArrayList<>(extentCount);
+        for (int i = 0; i < extentCount; i++) {
+            int from = i * EXTENT_SIZE;
+            int length = Math.min(EXTENT_SIZE, size - tail - from);
+            ByteBuf extent = data.slice(data.readerIndex() + from, length);
+            futures.add(CompletableFuture.supplyAsync(() -> writeExtent(objectId, extent, length), extentExecutor));
+        }
+        ExtentManifest manifest = new ExtentManifest(extentCount);
+        List<ObjectIndex> written = new ArrayList<>(extentCount);
+        for (CompletableFuture<ObjectIndex> future : futures) {
+            ObjectIndex extent = joinQuietly(future);
+            if(extent != null){
+                manifest.set(written.size(), extent);
+                written.add(extent);
+            }
+        }
+        if(written.size() != extentCount){
+            log.warn("Write extents of object {} failed, written: {}/{}", objectId, written.size(), extentCount);
+            deleteExtents(objectId, written);
+            return null;
+        }
+        try{
+            // extent刷盘之后才能写入manifest，宕机后manifest不会指向不完整的extent
+            CompletableFuture<?>[] syncs = new CompletableFuture[extentCount];
+            for (int i = 0; i < extentCount; i++) {
+                syncs[i] = sync(written.get(i));
+            }
+            CompletableFuture.allOf(syncs).join();
+        }catch (CompletionException e){
+            log.warn("Sync extents of object {} failed ", objectId, e);
+            deleteExtents(objectId, written);
+            return null;
+        }
+        ByteBuf header = manifest.encode();
+        ByteBuf record = tail == 0 ? header : Unpooled.wrappedBuffer(header, data.slice(data.readerIndex() + size - tail, tail));
+        ObjectIndex index = writeRecord(objectId, record, record.readableBytes(), Block.RECORD_MANIFEST, size);
+        if(index == null){
+            deleteExtents(objectId, written);
+        }
+        return index;
+    }
+
+    private ObjectIndex writeExtent(long objectId, ByteBuf extent, int length){
+        DataDirectory directory = selectDirectory(length);
+        directory.beginIo();
+        try{
+            Block block = createBlockAndGet(directory);
+            try{
+                return block.write(objectId, extent, length, Block.RECORD_EXTENT, 0);
+            }finally {
+                blockSyncer.markDirty(block);
+                offerBlock(block);
+            }
+        }finally {
+            directory.endIo();
+        }
+    }
+
+    private void deleteExtents(long objectId, ExtentManifest manifest){
+        List<ObjectIndex> extents = new ArrayList<>(manifest.count());
+        for (int i = 0; i < manifest.count(); i++) {
+            extents.add(new ObjectIndex(manifest.blockId(i), manifest.offset(i), manifest.length(i), false));
+        }
+        deleteExtents(objectId, extents);
+    }
+
+    private void deleteExtents(long objectId, List<ObjectIndex> extents){
+        for (ObjectIndex extent : extents) {
+            Block block = retainBlock(extent.getBlockId());
+            if(block == null){
+                continue;
+            }
+            try{
+                block.delete(objectId, extent.getOffset());
+            }finally {
+                block.release();
+            }
+        }
+    }
+
+    /**
+     * 读取manifest记录中的extent列表
+     * @param block manifest所在的block，调用者持有引用
+     * @param offset manifest记录偏移
+     * @return {@link ExtentManifest} null if read failed
+     */
+    private ExtentManifest readManifest(Block block, int offset){
+        ByteBuf count = block.read(offset, 0, 4);
+        if(count == null){
+            return null;
+        }
+        int headerLength;
+        try{
+            headerLength = ExtentManifest.headerLength(count.getInt(count.readerIndex()));
+        }finally {
+            count.release();
+        }
+        ByteBuf header = block.read(offset, 0, headerLength);
+        if(header == null){
+            return null;
+        }
+        try{
+            return ExtentManifest.decode(header);
+        }catch (IllegalArgumentException e){
+            log.warn("Corrupted extent manifest, block: {}, offset: {}", block.getId(), offset, e);
+            return null;
+        }finally {
+            header.release();
+        }
+    }
+
+    /**
+     * 读取大对象的一个范围
+     * 只读取和范围重叠的extent，多个extent并行读取，按顺序组合成一个ByteBuf
+     * @param objectId 对象ID
+     * @param index 指向manifest的索引
+     * @param start 读取的起始位置
+     * @param length 读取长度
+     * @return {@link ByteBuf} null if read failed
+     */
+    public ByteBuf readExtents(long objectId, ObjectIndex index, int start, int length){
+        Block manifestBlock = retainBlock(index.getBlockId());
+        if(manifestBlock == null){
+            return null;
+        }
+        long begin = System.nanoTime();
+        try{
+            ExtentManifest manifest = readManifest(manifestBlock, index.getOffset());
+            if(manifest == null){
+                return null;
+            }
+            long end = (long) start + length;
+            List<CompletableFuture<ByteBuf>> parts = new ArrayList<>();
+            long position = 0;
+            for (int i = 0; i < manifest.count() && position < end; i++) {
+                long extentEnd = position + manifest.length(i);
+                if(extentEnd > start){
+                    int from = (int) (Math.max(start, position) - position);
+                    int readLength = (int) (Math.min(end, extentEnd) - position) - from;
+                    int blockId = manifest.blockId(i);
+                    int offset = manifest.offset(i);
+                    parts.add(CompletableFuture.supplyAsync(() -> readExtent(objectId, blockId, offset, from, readLength), extentExecutor));
+                }
+                position = extentEnd;
+            }
+            if(end > position){
+                // 尾部数据在manifest记录中
+                int from = (int) (Math.max(start, position) - position);
+                int readLength = (int) (end - position) - from;
+                parts.add(CompletableFuture.completedFuture(manifestBlock.read(index.getOffset(), manifest.headerLength() + from, readLength)));
+            }
+            return compose(parts);
+        }finally {
+            manifestBlock.release();
+            compactionThrottle.record(System.nanoTime() - begin);
+        }
+    }
+
+    private ByteBuf readExtent(long objectId, int blockId, int offset, int start, int length){
+        Block block = retainBlock(blockId);
+        if(block == null){
+            log.warn("Extent block {} of object {} not found", blockId, objectId);
+            return null;
+        }
+        try{
+            return block.read(offset, start, length);
+        }finally {
+            block.release();
+        }
+    }
+
+    /**
+     * 按顺序组合读取到的各个部分，任意部分读取失败则释放已读取的部分
+     */
+    private ByteBuf compose(List<CompletableFuture<ByteBuf>> parts){
+        ByteBuf[] buffers = new ByteBuf[parts.size()];
+        boolean failed = false;
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = joinQuietly(parts.get(i));
+            failed |= buffers[i] == null;
+        }
+        if(failed){
+            for (ByteBuf buffer : buffers) {
+                if(buffer != null){
+                    buffer.release();
                 }
             }
+            return null;
         }
-        // 添加block到queue中
-        queue.add(block);
+        return buffers.length == 1 ? buffers[0] : Unpooled.wrappedBuffer(buffers);
+    }
+
+    private static <T> T joinQuietly(CompletableFuture<T> future){
+        try{
+            return future.join();
+        }catch (CompletionException e){
+            log.warn("Extent IO failed ", e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * 获取读缓存
+     * @return {@link ObjectReadCache} null if read cache is disabled
+     */
+    public ObjectReadCache getReadCache(){
+        return readCache;
+    }
+
+    /**
+     * 记录一次前台读取的延迟，前台延迟过高时压缩会暂停
+     * @param nanos 读取耗时，单位纳秒
+     */
+    public void recordReadLatency(long nanos){
+        compactionThrottle.record(nanos);
+    }
+
+    /**
+     * 等待对象所在的block刷盘
+     * @param index 写入返回的索引
+     * @return {@link CompletableFuture} 按照持久化模式，在刷盘完成后完成
+     */
+    public CompletableFuture<Void> sync(ObjectIndex index){
+        Block block = blockMap.get(index.getBlockId());
+        return block == null ? CompletableFuture.completedFuture(null) : blockSyncer.sync(block);
+    }
+
+    public void startSyncer(){
+        blockSyncer.start();
+    }
+
+    /**
+     * 关闭时刷写所有未刷盘的block
+     */
+    public void shutdown(){
+        for (DataDirectory directory : directories) {
+            directory.shutdown();
+        }
+        extentExecutor.shutdown();
+        blockPool.shutdown();
+        blockSyncer.shutdown();
+    }
+
+    private ObjectIndex appendToActiveBlock(DataDirectory directory, long objectId, ByteBuf data, int size){
+        int required = size + Block.HEADER_LENGTH_V2;
+        while(true){
+            Block block = directory.getActiveBlock();
+            if(block != null){
+                ObjectIndex index = block.append(objectId, data, size);
+                blockSyncer.markDirty(block);
+                // 写入成功，或者仍然是活跃block、空间足够但写入失败；block已经被切换时重新获取活跃block
+                if(index != null || (block.isAppendable() && block.availableSpace() >= required)){
+                    return index;
+                }
+            }
+            rollActiveBlock(directory, block, required);
+        }
+    }
+
+    /**
+     * 活跃block空间不足时，切换到新的活跃block
+     * 切换之前读到旧block的写入者可能还在追加，旧block关闭追加并等待它们完成之后才放回空闲队列，
+     * 从空闲队列中取出block的压缩和流式写入因此独占该block
+     * @param directory 活跃block所在的数据目录
+     * @param expected 空间不足的活跃block
+     * @param required 需要的空间
+     */
+    private void rollActiveBlock(DataDirectory directory, Block expected, int required){
+        synchronized (directory.activeBlockLock()){
+            if(directory.getActiveBlock() != expected){
+                // 其他写入者已经切换
+                return;
+            }
+            Block block = getBlockBySize(directory, required);
+            blockMap.putIfAbsent(block.getId(), block);
+            block.activate();
+            directory.setActiveBlock(block);
+        }
+        if(expected != null){
+            expected.seal();
+            offerBlock(expected);
+        }
+    }
+
+    /**
+     * 向blockManager添加block
+     * @param block {@link Block}
+     */
+    public void offerBlock(Block block){
+        // 添加block到所在目录的空闲队列中
+        block.getDirectory().offer(block);
         blockMap.putIfAbsent(block.getId(), block);
     }
 
@@ -96,49 +689,503 @@ public class BlockManager {
     }
 
     /**
-     * 创建并获取block
+     * 在指定的数据目录获取一个新的空block
+     * 优先使用预先创建的block，池为空时同步创建
+     * @param directory {@link DataDirectory}
      * @return {@link Block}
      */
-    public Block createBlockAndGet(){
+    public Block createBlockAndGet(DataDirectory directory){
+        return blockPool.take(directory);
+    }
+
+    private Block newBlock(DataDirectory directory){
         int id = blockIdProvider.getAndIncrement();
-        return new Block(id);
+        return new Block(id, directory);
+    }
+
+    /**
+     * 开始在后台预先创建空block，需要在加载block之后调用
+     */
+    public void startBlockPool(){
+        blockPool.start();
     }
 
     /**
      * 初始化时加载block文件夹中的所有block
+     * 如果存在有效的checkpoint，先从checkpoint恢复索引，然后只扫描每个block在checkpoint之后写入的部分。
+     * 每个block在所在磁盘的ForkJoin线程池中并行扫描，扫描结果直接合并到并发的索引表中。
+     * 每块磁盘同时扫描的block数量由配置限制，所有磁盘同时恢复。
      */
-    public Map<Long, ObjectIndex> loadBlocks(){
-        Map<Long, ObjectIndex> indexes = new HashMap<>(256);
-        String path = OssConfigs.dataPath();
-        File dir = new File(path);
-        if(dir.isDirectory()){
-            long loadStart = System.currentTimeMillis();
-            File[] blocks = dir.listFiles((dir1, name) -> name.startsWith("block_"));
-            if(blocks != null && blocks.length > 0){
-                for (File blockFile : blocks) {
-                    Block block = new Block(blockFile);
-                    indexes.putAll(block.loadIndex());
-                    offerBlock(block);
+    public void loadBlocks(){
+        long loadStart = System.currentTimeMillis();
+        List<File[]> blockFiles = new ArrayList<>(directories.size());
+        int blockCount = 0;
+        for (DataDirectory directory : directories) {
+            // 已经废弃的block中的对象已经被压缩到其他block，不能再次加载
+            int retired = directory.deleteRetiredBlocks();
+            if(retired > 0){
+                log.info("Retired blocks deleted in {}: {}", directory, retired);
+            }
+            File[] files = directory.listBlockFiles();
+            blockFiles.add(files);
+            blockCount += files.length;
+        }
+        if(blockCount > 0){
+            Map<Integer, Integer> blockMarks = indexCheckpoint.loadBlockMarks();
+            List<Block> loadedBlocks = new ArrayList<>(blockCount);
+            Set<Integer> checkpointBlocks = new HashSet<>();
+            for (int d = 0; d < directories.size(); d++) {
+                for (File file : blockFiles.get(d)) {
+                    Block block = new Block(file, directories.get(d));
+                    loadedBlocks.add(block);
+                    Integer mark = blockMarks == null ? null : blockMarks.get(block.getId());
+                    if(mark != null && block.isValidMark(mark)){
+                        checkpointBlocks.add(block.getId());
+                    }
                 }
-                this.blockIdProvider.set(blocks.length);
             }
-            log.info("Object index loaded, object count: {}, time used: {}ms", indexes.keySet().size(), (System.currentTimeMillis() - loadStart));
+            long restored = restoreCheckpoint(checkpointBlocks);
+            if(restored < 0){
+                // checkpoint读取失败，全量扫描
+                checkpointBlocks.clear();
+            }
+            AtomicLong scanned = new AtomicLong(0);
+            // 每块磁盘使用独立的恢复线程池，慢磁盘的扫描不会占用其他磁盘的恢复线程
+            int parallelism = OssConfigs.blockRecoveryParallelism();
+            List<ForkJoinPool> recoveryPools = new ArrayList<>(directories.size());
+            for (int d = 0; d < directories.size(); d++) {
+                recoveryPools.add(ThreadPoolUtil.newForkJoinPool(Math.min(parallelism, blockFiles.get(d).length), "disk-" + d + "-recovery-"));
+            }
+            try{
+                List<ForkJoinTask<?>> tasks = new ArrayList<>(loadedBlocks.size());
+                for (Block block : loadedBlocks) {
+                    int fromOffset = checkpointBlocks.contains(block.getId()) ? blockMarks.get(block.getId()) : 0;
+                    tasks.add(recoveryPools.get(block.getDirectory().getIndex()).submit(() -> scanned.addAndGet(recoverBlock(block, fromOffset))));
+                }
+                for (ForkJoinTask<?> task : tasks) {
+                    task.join();
+                }
+                // 所有block的索引合并之后再恢复墓碑，墓碑只删除索引仍然指向的记录
+                tasks.clear();
+                for (Block block : loadedBlocks) {
+                    if(checkpointBlocks.contains(block.getId())){
+                        tasks.add(recoveryPools.get(block.getDirectory().getIndex()).submit(() -> recoverTombstones(block, blockMarks.get(block.getId()))));
+                    }
+                }
+                for (ForkJoinTask<?> task : tasks) {
+                    task.join();
+                }
+            }finally {
+                recoveryPools.forEach(ForkJoinPool::shutdown);
+            }
+            int maxBlockId = 0;
+            for (Block block : loadedBlocks) {
+                maxBlockId = Math.max(maxBlockId, block.getId());
+            }
+            this.blockIdProvider.set(maxBlockId + 1);
+            log.info("Index checkpoint restored: {} objects, {}/{} blocks tail scanned, {} objects scanned, disks: {}, parallelism per disk: {}",
+                    Math.max(restored, 0), checkpointBlocks.size(), blockCount, scanned.get(), directories.size(), parallelism);
+            sweepOrphanExtents(loadedBlocks);
+        }
+        long timeUsed = System.currentTimeMillis() - loadStart;
+        Gauge recoveryTime = GaugeManager.getGauge("block_recovery_time");
+        if(recoveryTime != null){
+            recoveryTime.set(timeUsed);
+        }
+        log.info("Object index loaded, object count: {}, time used: {}ms", objectIndexManager.size(), timeUsed);
+    }
+
+    /**
+     * 删除没有被任何存活manifest引用的extent
+     * extent刷盘之后、manifest写入之前宕机，或者manifest删除之后、extent删除之前宕机，都会留下孤立的extent，
+     * 孤立extent所在的block无法被压缩，这里在启动时把它们加入墓碑
+     * @param blocks 加载的blocks
+     */
+    private void sweepOrphanExtents(List<Block> blocks){
+        Map<Long, List<Block>> extentBlocks = new HashMap<>(16);
+        for (Block block : blocks) {
+            Long objectId = block.firstLiveExtent();
+            if(objectId != null){
+                extentBlocks.computeIfAbsent(objectId, k -> new ArrayList<>()).add(block);
+            }
+        }
+        int swept = 0;
+        for (Map.Entry<Long, List<Block>> entry : extentBlocks.entrySet()) {
+            long objectId = entry.getKey();
+            Set<Integer> referenced = referencedExtentBlocks(objectId);
+            if(referenced == null){
+                // manifest读取失败，无法判断extent是否孤立
+                continue;
+            }
+            for (Block block : entry.getValue()) {
+                if(!referenced.contains(block.getId()) && block.delete(objectId, 0)){
+                    log.warn("Orphan extent of object {} in block {} deleted", objectId, block.getId());
+                    swept++;
+                }
+            }
+        }
+        if(swept > 0){
+            log.info("Orphan extents swept: {}", swept);
+        }
+    }
+
+    /**
+     * 对象存活的manifest引用的extent所在的blocks
+     * @param objectId 对象ID
+     * @return block ids，对象不存在时为空；null if manifest read failed
+     */
+    private Set<Integer> referencedExtentBlocks(long objectId){
+        ObjectIndex index = objectIndexManager.getObjectIndex(objectId);
+        if(index == null || index.isRemoved() || !index.isMultiExtent()){
+            return Collections.emptySet();
+        }
+        Block block = retainBlock(index.getBlockId());
+        if(block == null){
+            return Collections.emptySet();
+        }
+        try{
+            ExtentManifest manifest = readManifest(block, index.getOffset());
+            if(manifest == null){
+                return null;
+            }
+            Set<Integer> blockIds = new HashSet<>();
+            for (int i = 0; i < manifest.count(); i++) {
+                blockIds.add(manifest.blockId(i));
+            }
+            return blockIds;
+        }finally {
+            block.release();
+        }
+    }
+
+    /**
+     * 扫描一个block并合并到索引中
+     * 压缩宕机时同一个对象可能同时存在于多个block，合并结果和block的恢复顺序无关
+     * @param block {@link Block}
+     * @param fromOffset 开始扫描的位置
+     * @return 扫描到的对象数量
+     */
+    private int recoverBlock(Block block, int fromOffset){
+        long start = System.currentTimeMillis();
+        Map<Long, ObjectIndex> indexes = block.loadIndex(fromOffset);
+        objectIndexManager.mergeIndexes(indexes);
+        offerBlock(block);
+        long timeUsed = System.currentTimeMillis() - start;
+        Gauge blockRecoveryTime = GaugeManager.getGauge("block_recovery_time_per_block");
+        if(blockRecoveryTime != null){
+            blockRecoveryTime.labels(Integer.toString(block.getId())).set(timeUsed);
+        }
+        log.debug("Block {} recovered, scanned from: {}, objects: {}, time used: {}ms", block.getId(), fromOffset, indexes.size(), timeUsed);
+        return indexes.size();
+    }
+
+    /**
+     * checkpoint之后删除的对象在checkpoint中仍然存活，根据墓碑位图重新标记删除
+     * @param block {@link Block}
+     * @param fromOffset checkpoint保存的写入位置
+     */
+    private void recoverTombstones(Block block, int fromOffset){
+        Map<Long, Integer> tombstones = block.recoverTombstones(fromOffset);
+        for (Map.Entry<Long, Integer> entry : tombstones.entrySet()) {
+            ObjectIndex index = objectIndexManager.getObjectIndex(entry.getKey());
+            if(index != null && index.getBlockId() == block.getId() && index.getOffset() == entry.getValue()){
+                objectIndexManager.markRemoved(entry.getKey());
+            }
+        }
+    }
+
+    private long restoreCheckpoint(Set<Integer> checkpointBlocks){
+        if(checkpointBlocks.isEmpty()){
+            return 0;
+        }
+        try{
+            return indexCheckpoint.restore(checkpointBlocks, objectIndexManager);
+        }catch (IOException e){
+            log.warn("Restore index checkpoint failed, fallback to full scan ", e);
+            return -1;
+        }
+    }
+
+    /**
+     * 保存对象索引checkpoint
+     * 在写入屏障中记录每个block的写入位置，此时位置之前的对象一定已经进入索引
+     */
+    public boolean checkpoint(){
+        synchronized (checkpointMutex){
+            if(!persistRetirements()){
+                // 废弃的block在重启后会被重新扫描，不能保存不包含它的checkpoint
+                log.warn("Index checkpoint skipped, retired blocks not persisted: {}", unpersistedRetirements.size());
+                return false;
+            }
+            try{
+                long start = System.currentTimeMillis();
+                Map<Integer, Integer> blockMarks = new HashMap<>(Math.max(16, blockMap.size() * 2));
+                objectIndexManager.runWithoutWrites(()->{
+                    for (Map.Entry<Integer, Block> entry : blockMap.entrySet()) {
+                        blockMarks.put(entry.getKey(), entry.getValue().writePosition());
+                    }
+                });
+                indexCheckpoint.write(blockMarks, objectIndexManager);
+                log.info("Index checkpoint saved, blocks: {}, time used: {}ms", blockMarks.size(), (System.currentTimeMillis() - start));
+                return true;
+            }catch (Exception e){
+                log.warn("Save index checkpoint failed ", e);
+                return false;
+            }
         }
-        return indexes;
     }
 
     /**
-     * 压缩所有的blocks
+     * 压缩被删除数据占比超过阈值的blocks，占比越高越先压缩
+     * 压缩把存活对象复制到新的block，checkpoint中指向被删除block的索引在恢复时会被忽略，
+     * 新block中的对象由尾部扫描恢复，压缩完成后重新保存checkpoint。
+     * 没有被压缩的block在这里把墓碑改写到记录头，checkpoint保存之后才清除墓碑位图
      */
     public void compactBlocks(){
-        for (Map.Entry<Integer, Block> entry : blockMap.entrySet()) {
-            Block block = entry.getValue();
-            // 压缩block
-            Map<Long, ObjectIndex> updatedIndex = block.compact();
-            if(updatedIndex != null && !updatedIndex.isEmpty()){
-                // 更新index
-                objectIndexManager.putIndexes(updatedIndex);
+        Gauge reclaimable = GaugeManager.getGauge("block_reclaimable_bytes");
+        if(reclaimable != null){
+            reclaimable.set(reclaimableBytes());
+        }
+        double threshold = OssConfigs.compactGarbagePercent() / 100.0;
+        List<Block> candidates = new ArrayList<>();
+        for (Block block : blockMap.values()) {
+            if(block.deadBytes() > 0 && block.reclaimableRatio() >= threshold){
+                candidates.add(block);
+            }
+        }
+        candidates.sort(Comparator.comparingDouble(Block::reclaimableRatio).reversed());
+        int compacted = 0;
+        synchronized (checkpointMutex){
+            for (Block block : candidates) {
+                // 从空闲队列中取出block，保证压缩期间没有写入；正在被写入的block跳过
+                if(!takeBlock(block)){
+                    continue;
+                }
+                if(blockCompactor.compact(block)){
+                    compacted++;
+                }else{
+                    offerBlock(block);
+                    // 前台繁忙导致压缩中止时，剩余的block等待下一次调度
+                    if(compactionThrottle.isForegroundBusy()){
+                        break;
+                    }
+                }
+            }
+            Map<Block, RoaringBitmap> applied = applyTombstones();
+            if((compacted > 0 || !applied.isEmpty()) && checkpoint()){
+                applied.forEach(Block::clearTombstones);
+            }
+        }
+    }
+
+    /**
+     * 把墓碑改写为记录头的删除标记并刷盘
+     * @return 每个block改写的记录偏移
+     */
+    private Map<Block, RoaringBitmap> applyTombstones(){
+        Map<Block, RoaringBitmap> applied = new HashMap<>();
+        long records = 0;
+        for (Block block : blockMap.values()) {
+            if(!block.hasTombstones()){
+                continue;
+            }
+            try{
+                RoaringBitmap offsets = block.applyTombstones();
+                if(offsets != null){
+                    applied.put(block, offsets);
+                    records += offsets.getLongCardinality();
+                }
+            }catch (IOException e){
+                log.warn("Apply tombstones of block {} failed ", block.getId(), e);
+            }
+        }
+        if(records > 0){
+            log.info("Tombstones applied to record headers, blocks: {}, records: {}", applied.size(), records);
+        }
+        return applied;
+    }
+
+    /**
+     * 所有block中被删除对象占用的空间
+     * @return bytes
+     */
+    public long reclaimableBytes(){
+        long bytes = 0;
+        for (Block block : blockMap.values()) {
+            bytes += block.deadBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * 从空闲队列中取出指定的block
+     * 空闲队列中的block都已经关闭追加写入，取出之后由调用者独占
+     * @param block {@link Block}
+     * @return 是否取出成功
+     */
+    private boolean takeBlock(Block block){
+        return block.getDirectory().take(block);
+    }
+
+    /**
+     * 废弃压缩完成的block
+     * 新的读取者找不到该block后会重新查询索引
+     * @param block {@link Block}
+     */
+    void retireBlock(Block block){
+        blockMap.remove(block.getId(), block);
+        if(!block.retire()){
+            unpersistedRetirements.add(block);
+        }
+    }
+
+    /**
+     * 重试持久化废弃block的改名
+     * @return 是否所有废弃的block都已经持久化
+     */
+    private boolean persistRetirements(){
+        unpersistedRetirements.removeIf(Block::persistRetirement);
+        return unpersistedRetirements.isEmpty();
+    }
+
+    /**
+     * 获取block并持有引用，使用完成后需要调用{@link Block#release()}
+     * @param blockId block id
+     * @return {@link Block} null if no such block or block is retired
+     */
+    public Block retainBlock(int blockId){
+        Block block = blockMap.get(blockId);
+        return block != null && block.tryRetain() ? block : null;
+    }
+
+    /**
+     * 删除对象
+     * 对象可能在删除期间被压缩移动到新的block，只有索引仍然指向删除的记录时才标记删除，
+     * 否则按照新的索引重新删除，避免复制出的新记录继续存活
+     * @param objectId 对象ID
+     * @return 是否删除成功
+     */
+    public boolean delete(long objectId){
+        for (int i = 0; i < RETRY_TIMES; i++) {
+            if(i > 0){
+                LockSupport.parkNanos(RETRY_BACKOFF_NANOS << (i - 1));
+            }
+            ObjectIndex index = objectIndexManager.getObjectIndex(objectId);
+            if(index == null || index.isRemoved()){
+                return false;
+            }
+            Block block = retainBlock(index.getBlockId());
+            if(block == null){
+                continue;
+            }
+            try{
+                // 大对象先读取extent列表，manifest删除之后再删除extent
+                ExtentManifest manifest = index.isMultiExtent() ? readManifest(block, index.getOffset()) : null;
+                if(index.isMultiExtent() && manifest == null){
+                    return false;
+                }
+                if(!block.delete(objectId, index.getOffset())){
+                    return false;
+                }
+                if(!objectIndexManager.markRemoved(objectId, index)){
+                    // 压缩已经把对象移动到新的位置，或者对象被并发删除
+                    continue;
+                }
+                if(readCache != null){
+                    readCache.invalidate(objectId);
+                }
+                if(manifest != null){
+                    deleteExtents(objectId, manifest);
+                }
+                return true;
+            }finally {
+                block.release();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 批量删除对象
+     * 按照对象所在的block分组，每个block只获取一次写锁、持久化一次墓碑位图，
+     * 所在block已经被压缩废弃、或者删除期间被压缩移动的对象按照单个删除重试
+     * @param objectIds 对象ID
+     * @return 删除成功的数量
+     */
+    public int delete(List<Long> objectIds){
+        Map<Integer, List<ObjectIndex>> blockGroups = new HashMap<>();
+        Map<Integer, List<Long>> blockObjects = new HashMap<>();
+        for (Long objectId : objectIds) {
+            ObjectIndex index = objectIndexManager.getObjectIndex(objectId);
+            if(index == null || index.isRemoved()){
+                continue;
+            }
+            blockGroups.computeIfAbsent(index.getBlockId(), k -> new ArrayList<>()).add(index);
+            blockObjects.computeIfAbsent(index.getBlockId(), k -> new ArrayList<>()).add(objectId);
+        }
+        int deleted = 0;
+        List<Long> retries = new ArrayList<>();
+        for (Map.Entry<Integer, List<ObjectIndex>> entry : blockGroups.entrySet()) {
+            List<Long> ids = blockObjects.get(entry.getKey());
+            Block block = retainBlock(entry.getKey());
+            if(block == null){
+                retries.addAll(ids);
+                continue;
+            }
+            try{
+                deleted += deleteInBlock(block, ids, entry.getValue(), retries);
+            }finally {
+                block.release();
+            }
+        }
+        for (Long objectId : retries) {
+            if(delete(objectId)){
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    private int deleteInBlock(Block block, List<Long> ids, List<ObjectIndex> indexes, List<Long> retries){
+        int count = ids.size();
+        long[] objectIds = new long[count];
+        int[] offsets = new int[count];
+        ObjectIndex[] expected = new ObjectIndex[count];
+        ExtentManifest[] manifests = new ExtentManifest[count];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            ObjectIndex index = indexes.get(i);
+            // 大对象先读取extent列表，manifest删除之后再删除extent
+            if(index.isMultiExtent()){
+                ExtentManifest manifest = readManifest(block, index.getOffset());
+                if(manifest == null){
+                    continue;
+                }
+                manifests[n] = manifest;
+            }
+            objectIds[n] = ids.get(i);
+            offsets[n] = index.getOffset();
+            expected[n] = index;
+            n++;
+        }
+        boolean[] results = block.delete(Arrays.copyOf(objectIds, n), Arrays.copyOf(offsets, n));
+        int deleted = 0;
+        for (int i = 0; i < n; i++) {
+            if(!results[i]){
+                continue;
+            }
+            if(!objectIndexManager.markRemoved(objectIds[i], expected[i])){
+                retries.add(objectIds[i]);
+                continue;
+            }
+            if(readCache != null){
+                readCache.invalidate(objectIds[i]);
+            }
+            if(manifests[i] != null){
+                deleteExtents(objectIds[i], manifests[i]);
             }
+            deleted++;
         }
+        return deleted;
     }
 }
@@ -0,0 +1,170 @@
+package com.jay.oss.storage.fs;
+
+import com.jay.oss.common.config.OssConfigs;
+import com.jay.oss.common.prometheus.GaugeManager;
+import com.jay.oss.common.util.ThreadPoolUtil;
+import io.prometheus.client.Gauge;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * <p>
+ *  预先创建的空block池
+ *  每个数据目录保留若干个已经创建文件、完成映射的空block，上传需要新block时直接取出，
+ *  文件创建和mmap映射等文件系统操作由后台线程完成，不在上传的延迟路径上。
+ *  取出block后通知后台线程补充，池为空时才同步创建。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/09 10:15
+ */
+@Slf4j
+public class BlockPool {
+
+    private final Map<DataDirectory, ArrayBlockingQueue<Block>> pools = new HashMap<>();
+
+    /**
+     * 创建新block的方法，由BlockManager分配block id
+     */
+    private final Function<DataDirectory, Block> blockCreator;
+
+    private final int poolSize;
+
+    private final ExecutorService refillExecutor;
+
+    /**
+     * 是否已经提交了补充任务，避免重复提交
+     */
+    private final AtomicBoolean refillPending = new AtomicBoolean(false);
+
+    private volatile boolean running = false;
+
+    /**
+     * 池为空时同步创建block的次数
+     */
+    private final AtomicLong misses = new AtomicLong(0);
+
+    public BlockPool(List<DataDirectory> directories, Function<DataDirectory, Block> blockCreator) {
+        this.blockCreator = blockCreator;
+        this.poolSize = Math.max(0, OssConfigs.blockPoolSize());
+        for (DataDirectory directory : directories) {
+            pools.put(directory, new ArrayBlockingQueue<>(Math.max(1, poolSize)));
+        }
+        this.refillExecutor = poolSize > 0 ? ThreadPoolUtil.newSingleThreadPool("block-pool-") : null;
+    }
+
+    /**
+     * 开始预先创建block
+     * 必须在加载已有的block之后启动，保证新block的id不会和已有的block重复
+     */
+    public void start(){
+        if(poolSize == 0){
+            return;
+        }
+        running = true;
+        requestRefill();
+        log.info("Block pool started, blocks per directory: {}", poolSize);
+    }
+
+    /**
+     * 取出一个预先创建的空block，池为空时同步创建
+     * @param directory {@link DataDirectory}
+     * @return {@link Block}
+     */
+    public Block take(DataDirectory directory){
+        ArrayBlockingQueue<Block> pool = pools.get(directory);
+        Block block = pool == null ? null : pool.poll();
+        if(block == null){
+            if(running){
+                misses.incrementAndGet();
+                Gauge gauge = GaugeManager.getGauge("block_pool_misses");
+                if(gauge != null){
+                    gauge.inc();
+                }
+            }
+            block = blockCreator.apply(directory);
+        }
+        requestRefill();
+        return block;
+    }
+
+    private void requestRefill(){
+        if(running && refillPending.compareAndSet(false, true)){
+            try{
+                refillExecutor.execute(this::refill);
+            }catch (RejectedExecutionException e){
+                refillPending.set(false);
+            }
+        }
+    }
+
+    /**
+     * 补充每个目录的空block，直到达到池的深度
+     */
+    private void refill(){
+        refillPending.set(false);
+        for (Map.Entry<DataDirectory, ArrayBlockingQueue<Block>> entry : pools.entrySet()) {
+            ArrayBlockingQueue<Block> pool = entry.getValue();
+            while(running && pool.size() < poolSize){
+                Block block;
+                try{
+                    block = blockCreator.apply(entry.getKey());
+                }catch (Exception e){
+                    log.warn("Create block in {} failed ", entry.getKey(), e);
+                    break;
+                }
+                if(!pool.offer(block)){
+                    block.release();
+                    break;
+                }
+                // 补充期间已经关闭，删除刚创建的block
+                if(!running && pool.remove(block)){
+                    block.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * 池为空时同步创建block的次数
+     * @return long
+     */
+    public long misses(){
+        return misses.get();
+    }
+
+    /**
+     * 池中可用的block数量
+     * @param directory {@link DataDirectory}
+     * @return int
+     */
+    public int available(DataDirectory directory){
+        ArrayBlockingQueue<Block> pool = pools.get(directory);
+        return pool == null ? 0 : pool.size();
+    }
+
+    /**
+     * 停止预先创建，删除没有使用过的空block文件
+     */
+    public void shutdown(){
+        running = false;
+        if(refillExecutor != null){
+            refillExecutor.shutdown();
+        }
+        for (ArrayBlockingQueue<Block> pool : pools.values()) {
+            Block block;
+            while((block = pool.poll()) != null){
+                block.release();
+            }
+        }
+    }
+}
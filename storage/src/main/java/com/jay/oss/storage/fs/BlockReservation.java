@@ -0,0 +1,90 @@
+package com.jay.oss.storage.fs;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ *  block中为流式上传预留的记录
+ *  接收线程按顺序调用{@link #accept(ByteBuf)}计算校验和并分配写入位置，
+ *  写入线程可以并发地把各段数据写入各自的位置，全部写完后提交。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/08 11:20
+ */
+public class BlockReservation {
+    private final Block block;
+    private final long objectId;
+    private final int offset;
+    private final int length;
+
+    private final CRC32 crc32 = new CRC32();
+
+    /**
+     * 已经接收的数据长度，只在接收线程中修改
+     */
+    private int received = 0;
+
+    BlockReservation(Block block, long objectId, int offset, int length) {
+        this.block = block;
+        this.objectId = objectId;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * 按顺序接收一段数据，更新校验和
+     * @param chunk 数据
+     * @return 该段数据在对象中的位置
+     */
+    public int accept(ByteBuf chunk){
+        int chunkLength = chunk.readableBytes();
+        if(received + chunkLength > length){
+            throw new IllegalArgumentException("Reserved record overflow, object: " + objectId + ", length: " + length);
+        }
+        for (ByteBuffer nioBuffer : chunk.nioBuffers(chunk.readerIndex(), chunkLength)) {
+            crc32.update(nioBuffer);
+        }
+        int position = received;
+        received += chunkLength;
+        return position;
+    }
+
+    /**
+     * 把一段数据写入预留区域
+     * @param chunk 数据
+     * @param position {@link #accept(ByteBuf)}返回的位置
+     * @throws IOException e
+     */
+    public void write(ByteBuf chunk, int position) throws IOException {
+        block.writeReserved(offset, position, chunk);
+    }
+
+    public boolean isComplete(){
+        return received == length;
+    }
+
+    ObjectIndex commit(){
+        return block.commitReserved(objectId, offset, length, (int) crc32.getValue(), false);
+    }
+
+    void discard(){
+        block.commitReserved(objectId, offset, length, 0, true);
+    }
+
+    Block getBlock(){
+        return block;
+    }
+
+    public long getObjectId() {
+        return objectId;
+    }
+
+    public int getLength() {
+        return length;
+    }
+}
@@ -0,0 +1,218 @@
+package com.jay.oss.storage.fs;
+
+import com.jay.oss.common.config.OssConfigs;
+import com.jay.oss.common.prometheus.GaugeManager;
+import com.jay.oss.common.util.Scheduler;
+import io.prometheus.client.Gauge;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * <p>
+ *  block刷盘器
+ *  NONE模式不刷盘；PERIODIC模式定时刷写被修改过的block；
+ *  GROUP_COMMIT模式下，写入者提交刷盘请求，提交线程把一段时间内的请求合并成一批，
+ *  每个block只force一次，然后一起完成这一批请求。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/03 10:32
+ */
+@Slf4j
+public class BlockSyncer {
+
+    private final DurabilityMode mode;
+
+    /**
+     * 一批刷盘请求的最大数量
+     */
+    private final int batchSize;
+
+    /**
+     * 第一个请求到达后，等待更多请求的最长时间
+     */
+    private final long maxDelayNanos;
+
+    private final LinkedBlockingQueue<SyncRequest> requests = new LinkedBlockingQueue<>();
+
+    /**
+     * 上次刷盘之后被修改过的block
+     */
+    private final Set<Block> dirtyBlocks = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean running = false;
+
+    private Thread committer;
+
+    private static final CompletableFuture<Void> COMPLETED = CompletableFuture.completedFuture(null);
+
+    public BlockSyncer() {
+        this.mode = DurabilityMode.parse(OssConfigs.durabilityMode());
+        this.batchSize = Math.max(1, OssConfigs.groupCommitBatchSize());
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(OssConfigs.groupCommitMaxDelay());
+    }
+
+    private static class SyncRequest {
+        private final Block block;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        SyncRequest(Block block) {
+            this.block = block;
+        }
+    }
+
+    public void start(){
+        running = true;
+        if(mode != DurabilityMode.NONE){
+            // GROUP_COMMIT模式下定时刷盘作为兜底，刷写没有提交刷盘请求的写入（比如副本复制）
+            long interval = OssConfigs.syncInterval();
+            Scheduler.scheduleAtFixedRate(this::syncDirtyBlocks, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        if(mode == DurabilityMode.GROUP_COMMIT){
+            committer = new Thread(this::commitLoop, "group-commit-thread");
+            committer.setDaemon(true);
+            committer.start();
+        }
+        log.info("Block syncer started, durability mode: {}", mode);
+    }
+
+    /**
+     * 记录被修改的block
+     * @param block {@link Block}
+     */
+    public void markDirty(Block block){
+        if(mode != DurabilityMode.NONE){
+            dirtyBlocks.add(block);
+        }
+    }
+
+    /**
+     * 提交刷盘请求
+     * 只有GROUP_COMMIT模式需要等待刷盘完成，其他模式立即返回
+     * @param block 写入的block
+     * @return {@link CompletableFuture} 刷盘完成后完成
+     */
+    public CompletableFuture<Void> sync(Block block){
+        if(mode != DurabilityMode.GROUP_COMMIT || !running){
+            return COMPLETED;
+        }
+        SyncRequest request = new SyncRequest(block);
+        requests.offer(request);
+        return request.future;
+    }
+
+    /**
+     * 停止刷盘器，并刷写所有未刷盘的block
+     */
+    public void shutdown(){
+        running = false;
+        if(committer != null){
+            committer.interrupt();
+        }
+        List<SyncRequest> remaining = new ArrayList<>();
+        requests.drainTo(remaining);
+        if(!remaining.isEmpty()){
+            commit(remaining);
+        }
+        syncDirtyBlocks();
+    }
+
+    private void commitLoop(){
+        List<SyncRequest> batch = new ArrayList<>(batchSize);
+        while(running){
+            try{
+                SyncRequest first = requests.take();
+                batch.add(first);
+                requests.drainTo(batch, batchSize - batch.size());
+                long deadline = System.nanoTime() + maxDelayNanos;
+                // 在延迟预算内等待更多的请求
+                while(batch.size() < batchSize){
+                    long remaining = deadline - System.nanoTime();
+                    if(remaining <= 0){
+                        break;
+                    }
+                    SyncRequest request = requests.poll(remaining, TimeUnit.NANOSECONDS);
+                    if(request == null){
+                        break;
+                    }
+                    batch.add(request);
+                    requests.drainTo(batch, batchSize - batch.size());
+                }
+                commit(batch);
+                batch.clear();
+            }catch (InterruptedException e){
+                // 关闭时由shutdown完成剩余请求
+                if(!batch.isEmpty()){
+                    commit(batch);
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * 刷写一批请求涉及的block，每个block只force一次
+     * @param batch 请求批次
+     */
+    private void commit(List<SyncRequest> batch){
+        long start = System.nanoTime();
+        Map<Block, IOException> failures = new IdentityHashMap<>();
+        Set<Block> blocks = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (SyncRequest request : batch) {
+            if(blocks.add(request.block)){
+                dirtyBlocks.remove(request.block);
+                try{
+                    request.block.force();
+                }catch (IOException e){
+                    log.warn("Force block {} failed ", request.block.getId(), e);
+                    failures.put(request.block, e);
+                }
+            }
+        }
+        for (SyncRequest request : batch) {
+            IOException e = failures.get(request.block);
+            if(e == null){
+                request.future.complete(null);
+            }else{
+                request.future.completeExceptionally(e);
+            }
+        }
+        recordMetrics(System.nanoTime() - start, batch.size());
+    }
+
+    private void syncDirtyBlocks(){
+        if(dirtyBlocks.isEmpty()){
+            return;
+        }
+        long start = System.nanoTime();
+        int count = 0;
+        Iterator<Block> iterator = dirtyBlocks.iterator();
+        while(iterator.hasNext()){
+            Block block = iterator.next();
+            // 先移除再刷盘，刷盘期间的新写入会重新标记
+            iterator.remove();
+            try{
+                block.force();
+                count++;
+            }catch (IOException e){
+                log.warn("Force block {} failed ", block.getId(), e);
+                dirtyBlocks.add(block);
+            }
+        }
+        recordMetrics(System.nanoTime() - start, count);
+    }
+
+    private void recordMetrics(long latencyNanos, int batchSize){
+        Gauge latency = GaugeManager.getGauge("block_fsync_latency");
+        if(latency != null){
+            latency.set(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+        }
+        Gauge size = GaugeManager.getGauge("block_fsync_batch_size");
+        if(size != null){
+            size.set(batchSize);
+        }
+    }
+}
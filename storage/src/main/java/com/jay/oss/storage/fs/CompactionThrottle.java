@@ -0,0 +1,113 @@
+package com.jay.oss.storage.fs;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.jay.oss.common.config.OssConfigs;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ *  压缩IO限流器
+ *  压缩复制对象前按字节数获取令牌，把压缩的IO限制在配置的MB/s预算内。
+ *  同时记录前台读写的平均延迟（指数加权移动平均），延迟超过阈值时暂停压缩，
+ *  暂停时间过长则放弃本次压缩，等待下一次调度。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/05 10:26
+ */
+@Slf4j
+public class CompactionThrottle {
+
+    private final RateLimiter rateLimiter;
+
+    private final long latencyThresholdNanos;
+
+    /**
+     * 前台读写延迟的移动平均值
+     */
+    private volatile double avgLatencyNanos = 0;
+
+    /**
+     * 最近一次前台读写的时间
+     */
+    private volatile long lastSampleTime = 0;
+
+    /**
+     * 新样本在移动平均中的权重
+     */
+    private static final double ALPHA = 0.2;
+
+    /**
+     * 超过该时间没有前台读写，认为前台空闲
+     */
+    private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final long PAUSE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * 单次最长暂停时间，超过后放弃本次压缩
+     */
+    private static final long MAX_PAUSE_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    public CompactionThrottle() {
+        this(OssConfigs.compactRateLimit(), OssConfigs.compactLatencyThreshold());
+    }
+
+    /**
+     * @param rateLimit 压缩IO预算，单位MB/s
+     * @param latencyThreshold 前台延迟阈值，单位毫秒，小于等于0表示不暂停
+     */
+    public CompactionThrottle(int rateLimit, long latencyThreshold) {
+        this.rateLimiter = RateLimiter.create(Math.max(1, rateLimit) * 1024.0 * 1024.0);
+        this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(latencyThreshold);
+    }
+
+    /**
+     * 记录一次前台读写的延迟
+     * 并发更新可能丢失个别样本，对移动平均没有影响
+     * @param nanos 延迟，单位纳秒
+     */
+    public void record(long nanos){
+        avgLatencyNanos = avgLatencyNanos * (1 - ALPHA) + nanos * ALPHA;
+        lastSampleTime = System.nanoTime();
+    }
+
+    /**
+     * 前台是否繁忙
+     * @return boolean
+     */
+    public boolean isForegroundBusy(){
+        return latencyThresholdNanos > 0
+                && System.nanoTime() - lastSampleTime < IDLE_NANOS
+                && avgLatencyNanos > latencyThresholdNanos;
+    }
+
+    /**
+     * 获取复制指定字节数的IO预算
+     * 前台繁忙时先暂停，直到延迟恢复
+     * @param bytes 字节数
+     * @return false 暂停超时，应放弃压缩
+     */
+    public boolean acquire(int bytes){
+        long pauseStart = System.nanoTime();
+        while(isForegroundBusy()){
+            if(System.nanoTime() - pauseStart > MAX_PAUSE_NANOS){
+                log.info("Foreground latency stays above threshold, avg: {}us, compaction paused too long",
+                        TimeUnit.NANOSECONDS.toMicros((long) avgLatencyNanos));
+                return false;
+            }
+            LockSupport.parkNanos(PAUSE_NANOS);
+        }
+        if(bytes > 0){
+            rateLimiter.acquire(bytes);
+        }
+        return true;
+    }
+
+    public long averageLatencyNanos(){
+        return (long) avgLatencyNanos;
+    }
+}
@@ -0,0 +1,250 @@
+package com.jay.oss.storage.fs;
+
+import com.jay.dove.compress.Compressor;
+import com.jay.oss.common.util.BufferPool;
+import com.jay.oss.common.util.CompressUtil;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ *  压缩存储的对象记录
+ *  对象按照固定的解压后大小分块，每块独立压缩，范围读取只读取和解压覆盖的分块。
+ *  记录格式：codec(1) | chunkSize(4) | count(4) | [storedLength(4)] * count | chunks
+ *  storedLength最高位为1表示该块压缩后没有变小，按原样存储。
+ *  记录头的crc是压缩后记录的校验和，extra是对象解压后的大小。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/10 11:05
+ */
+@Slf4j
+public class CompressedRecord {
+
+    private static final int PREFIX_LENGTH = 9;
+
+    private static final int RAW_FLAG = 0x80000000;
+
+    /**
+     * 采样判断后压缩对象
+     * 先压缩第一个分块作为样本，样本节省的空间达不到要求时直接放弃，不可压缩的数据只付出一个分块的压缩开销
+     * @param data 对象数据，不改变readerIndex
+     * @param size 对象大小
+     * @param compressor {@link Compressor}
+     * @param chunkSize 分块大小
+     * @param minSavingPercent 至少节省的空间百分比
+     * @return 压缩后的记录；压缩率不够时返回null
+     */
+    public static ByteBuf encode(ByteBuf data, int size, Compressor compressor, int chunkSize, int minSavingPercent){
+        int count = (size + chunkSize - 1) / chunkSize;
+        List<byte[]> chunks = new ArrayList<>(count);
+        int[] storedLengths = new int[count];
+        long storedTotal = 0;
+        for (int i = 0; i < count; i++) {
+            int chunkStart = i * chunkSize;
+            int chunkLength = Math.min(chunkSize, size - chunkStart);
+            byte[] raw = new byte[chunkLength];
+            data.getBytes(data.readerIndex() + chunkStart, raw);
+            byte[] compressed = compressor.compress(raw);
+            if(i == 0 && !worthIt(compressed.length, chunkLength, minSavingPercent)){
+                return null;
+            }
+            if(compressed.length < chunkLength){
+                chunks.add(compressed);
+                storedLengths[i] = compressed.length;
+            }else{
+                chunks.add(raw);
+                storedLengths[i] = chunkLength | RAW_FLAG;
+            }
+            storedTotal += chunks.get(i).length;
+        }
+        long recordLength = PREFIX_LENGTH + 4L * count + storedTotal;
+        if(!worthIt(recordLength, size, minSavingPercent)){
+            return null;
+        }
+        ByteBuf record = Unpooled.buffer((int) recordLength);
+        record.writeByte(compressor.getCode());
+        record.writeInt(chunkSize);
+        record.writeInt(count);
+        for (int storedLength : storedLengths) {
+            record.writeInt(storedLength);
+        }
+        for (byte[] chunk : chunks) {
+            record.writeBytes(chunk);
+        }
+        return record;
+    }
+
+    private static boolean worthIt(long compressedLength, long originalLength, int minSavingPercent){
+        return compressedLength * 100 <= originalLength * (100L - minSavingPercent);
+    }
+
+    /**
+     * 读取压缩记录中的一段数据
+     * 读取完整对象并需要校验时，读取整条记录校验checksum；否则只读取覆盖的分块
+     * @param block 记录所在的block，调用者持有引用
+     * @param offset 记录偏移
+     * @param size 对象解压后的大小
+     * @param start 读取的起始位置
+     * @param length 读取长度
+     * @param verify 是否校验checksum
+     * @return {@link ByteBuf} null if read failed or checksum mismatch
+     */
+    static ByteBuf read(Block block, int offset, int size, int start, int length, boolean verify){
+        if(start < 0 || length < 0 || (long) start + length > size){
+            return null;
+        }
+        if(verify && start == 0 && length == size){
+            ByteBuf record = block.readRecord(offset);
+            if(record == null){
+                return null;
+            }
+            try{
+                return decode(record, size, start, length);
+            }finally {
+                record.release();
+            }
+        }
+        ByteBuf prefix = block.read(offset, 0, PREFIX_LENGTH, false);
+        if(prefix == null){
+            return null;
+        }
+        int count;
+        try{
+            count = prefix.getInt(prefix.readerIndex() + 5);
+        }finally {
+            prefix.release();
+        }
+        ByteBuf table = block.read(offset, 0, PREFIX_LENGTH + 4 * count, false);
+        if(table == null){
+            return null;
+        }
+        try{
+            Layout layout = Layout.parse(table, size, start, length);
+            if(layout == null){
+                return null;
+            }
+            ByteBuf chunks = block.read(offset, layout.dataStart + layout.skip, layout.span, false);
+            if(chunks == null){
+                return null;
+            }
+            try{
+                return layout.decode(chunks);
+            }finally {
+                chunks.release();
+            }
+        }finally {
+            table.release();
+        }
+    }
+
+    /**
+     * 解压内存中的完整记录
+     */
+    private static ByteBuf decode(ByteBuf record, int size, int start, int length){
+        Layout layout = Layout.parse(record, size, start, length);
+        return layout == null ? null : layout.decode(record.slice(record.readerIndex() + layout.dataStart + layout.skip, layout.span));
+    }
+
+    /**
+     * 记录中和读取范围重叠的分块
+     */
+    private static class Layout {
+        private final Compressor compressor;
+        private final int chunkSize;
+        private final int[] storedLengths;
+        private final int size;
+        private final int start;
+        private final int length;
+        private final int firstChunk;
+        private final int lastChunk;
+        /**
+         * 分块数据在记录中的起始位置
+         */
+        private final int dataStart;
+        /**
+         * 第一个重叠分块之前的分块长度
+         */
+        private final int skip;
+        /**
+         * 重叠分块的总长度
+         */
+        private final int span;
+
+        static Layout parse(ByteBuf header, int size, int start, int length){
+            try{
+                return new Layout(header, size, start, length);
+            }catch (RuntimeException e){
+                log.warn("Parse compressed record failed ", e);
+                return null;
+            }
+        }
+
+        private Layout(ByteBuf header, int size, int start, int length){
+            int base = header.readerIndex();
+            byte codec = header.getByte(base);
+            this.compressor = CompressUtil.getCompressor(codec);
+            if(compressor == null){
+                throw new IllegalStateException("Unknown compression codec: " + codec);
+            }
+            this.chunkSize = header.getInt(base + 1);
+            int count = header.getInt(base + 5);
+            this.storedLengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                storedLengths[i] = header.getInt(base + PREFIX_LENGTH + 4 * i);
+            }
+            this.size = size;
+            this.start = start;
+            this.length = length;
+            this.dataStart = PREFIX_LENGTH + 4 * count;
+            this.firstChunk = length == 0 ? 0 : start / chunkSize;
+            this.lastChunk = length == 0 ? -1 : (start + length - 1) / chunkSize;
+            int skip = 0;
+            for (int i = 0; i < firstChunk; i++) {
+                skip += storedLengths[i] & ~RAW_FLAG;
+            }
+            int span = 0;
+            for (int i = firstChunk; i <= lastChunk; i++) {
+                span += storedLengths[i] & ~RAW_FLAG;
+            }
+            this.skip = skip;
+            this.span = span;
+        }
+
+        /**
+         * 解压重叠的分块，只保留读取范围内的数据
+         * @param chunks 从第一个重叠分块开始的分块数据
+         * @return {@link ByteBuf} 调用者负责释放
+         */
+        ByteBuf decode(ByteBuf chunks){
+            ByteBuf result = BufferPool.directBuffer(length);
+            try{
+                int position = chunks.readerIndex();
+                for (int i = firstChunk; i <= lastChunk; i++) {
+                    int storedLength = storedLengths[i] & ~RAW_FLAG;
+                    byte[] stored = new byte[storedLength];
+                    chunks.getBytes(position, stored);
+                    position += storedLength;
+                    byte[] raw = (storedLengths[i] & RAW_FLAG) != 0 ? stored : compressor.decompress(stored);
+                    int chunkStart = i * chunkSize;
+                    int expected = Math.min(chunkSize, size - chunkStart);
+                    if(raw.length != expected){
+                        throw new IllegalStateException("Corrupted compressed chunk " + i + ", length: " + raw.length + ", expected: " + expected);
+                    }
+                    int from = Math.max(start, chunkStart) - chunkStart;
+                    int to = Math.min(start + length, chunkStart + expected) - chunkStart;
+                    result.writeBytes(raw, from, to - from);
+                }
+                return result;
+            }catch (RuntimeException e){
+                log.warn("Decompress object failed ", e);
+                result.release();
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.jay.oss.storage.fs;
+
+import com.jay.oss.common.config.OssConfigs;
+import com.jay.oss.common.util.ThreadPoolUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ *  数据目录，一个目录对应一块磁盘
+ *  每个目录有自己的空闲block队列和读写线程池，一块磁盘变慢只会让该目录的队列变长，不会阻塞其他磁盘的读写。
+ *  新对象按照磁盘剩余空间和当前队列深度选择目录。
+ *  同一个文件系统上的多个目录共享队列深度，剩余空间在上报时只统计一次。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/05 16:40
+ */
+@Slf4j
+public class DataDirectory {
+
+    private final int index;
+
+    private final String path;
+
+    private final File dir;
+
+    /**
+     * 目录所在的文件系统，null表示无法获取
+     */
+    private final FileStore fileStore;
+
+    /**
+     * 按剩余空间分级的空闲block
+     */
+    private final FreeSpaceIndex<Block> freeBlocks = new FreeSpaceIndex<>(Block::availableSpace);
+
+    /**
+     * 并发追加模式下，该目录所有写入者共享的活跃block
+     */
+    private volatile Block activeBlock;
+
+    private final Object activeBlockLock = new Object();
+
+    private final ExecutorService writeExecutor;
+
+    private final ExecutorService readExecutor;
+
+    /**
+     * 正在排队和执行的读写数量，同一个文件系统上的目录共享
+     */
+    private final AtomicInteger queueDepth;
+
+    private volatile long usableSpace;
+
+    private volatile long lastSpaceCheck = 0;
+
+    /**
+     * 剩余空间的刷新间隔，避免每次写入都查询文件系统
+     */
+    private static final long SPACE_CHECK_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    public DataDirectory(int index, String path) {
+        this(index, path, null);
+    }
+
+    /**
+     * @param sharedWith 同一个文件系统上已经创建的目录，null表示独占
+     */
+    DataDirectory(int index, String path, DataDirectory sharedWith) {
+        this.index = index;
+        this.path = path;
+        this.dir = new File(path);
+        if(!dir.exists() && !dir.mkdirs()){
+            throw new IllegalStateException("Can't create data directory: " + path);
+        }
+        int threads = Math.max(1, OssConfigs.diskIoThreads());
+        this.writeExecutor = ThreadPoolUtil.newThreadPool(threads, threads, "disk-" + index + "-write-", new ThreadPoolExecutor.AbortPolicy());
+        this.readExecutor = ThreadPoolUtil.newThreadPool(threads, threads, "disk-" + index + "-read-", new ThreadPoolExecutor.AbortPolicy());
+        this.usableSpace = dir.getUsableSpace();
+        this.fileStore = fileStoreOf(dir);
+        this.queueDepth = sharedWith != null ? sharedWith.queueDepth : new AtomicInteger(0);
+    }
+
+    /**
+     * 目录所在的文件系统，目录还没有创建时查找最近的已存在的上级目录
+     * @param dir 目录
+     * @return {@link FileStore} null if unavailable
+     */
+    static FileStore fileStoreOf(File dir){
+        File existing = dir.getAbsoluteFile();
+        while(existing != null && !existing.exists()){
+            existing = existing.getParentFile();
+        }
+        if(existing == null){
+            return null;
+        }
+        try{
+            return Files.getFileStore(existing.toPath());
+        }catch (IOException e){
+            log.warn("Can't get file store of data directory: {}", dir, e);
+            return null;
+        }
+    }
+
+    /**
+     * 取出一个剩余空间足够的block
+     * @param size 对象大小
+     * @return {@link Block} null if no such block
+     */
+    public Block poll(int size){
+        // 优先选择剩余空间较多的block，使block大小分布更均匀
+        return freeBlocks.poll(size + Block.HEADER_LENGTH_V2);
+    }
+
+    /**
+     * 把block放回空闲队列
+     * @param block {@link Block}
+     */
+    public void offer(Block block){
+        freeBlocks.offer(block);
+    }
+
+    /**
+     * 从空闲队列中取出指定的block
+     * @param block {@link Block}
+     * @return 是否取出成功
+     */
+    public boolean take(Block block){
+        return freeBlocks.remove(block);
+    }
+
+    /**
+     * 在该磁盘的线程池中执行读写任务
+     * 线程池关闭后在调用者线程执行
+     * @param task 任务
+     * @param write 是否是写任务
+     */
+    public void execute(Runnable task, boolean write){
+        queueDepth.incrementAndGet();
+        Runnable wrapped = () -> {
+            try{
+                task.run();
+            }finally {
+                queueDepth.decrementAndGet();
+            }
+        };
+        try{
+            (write ? writeExecutor : readExecutor).execute(wrapped);
+        }catch (RejectedExecutionException e){
+            wrapped.run();
+        }
+    }
+
+    /**
+     * 在调用者线程直接执行的IO也计入队列深度
+     */
+    void beginIo(){
+        queueDepth.incrementAndGet();
+    }
+
+    void endIo(){
+        queueDepth.decrementAndGet();
+    }
+
+    public int queueDepth(){
+        return queueDepth.get();
+    }
+
+    /**
+     * 磁盘剩余空间，每秒最多刷新一次
+     * @return bytes
+     */
+    public long usableSpace(){
+        long now = System.nanoTime();
+        if(now - lastSpaceCheck > SPACE_CHECK_INTERVAL){
+            lastSpaceCheck = now;
+            usableSpace = dir.getUsableSpace();
+        }
+        return usableSpace;
+    }
+
+    /**
+     * 放置对象的优先级，剩余空间越多、队列越短，优先级越高
+     * @param size 对象大小
+     * @return 优先级，小于0表示空间不足
+     */
+    public double placementScore(int size){
+        long space = usableSpace();
+        if(space < (long) size + Block.HEADER_LENGTH_V2){
+            return -1;
+        }
+        return space / (1.0 + queueDepth.get());
+    }
+
+    Block getActiveBlock(){
+        return activeBlock;
+    }
+
+    void setActiveBlock(Block block){
+        this.activeBlock = block;
+    }
+
+    Object activeBlockLock(){
+        return activeBlockLock;
+    }
+
+    /**
+     * 列出目录中的block文件
+     * @return block files
+     */
+    public File[] listBlockFiles(){
+        File[] files = dir.listFiles((dir1, name) -> name.startsWith("block_") && !name.endsWith(Block.RETIRED_SUFFIX));
+        return files == null ? new File[0] : files;
+    }
+
+    /**
+     * 删除上次运行时已经废弃、还没有被删除的block文件和它们的墓碑文件
+     * @return 删除的block数量
+     */
+    public int deleteRetiredBlocks(){
+        File[] files = dir.listFiles((dir1, name) -> name.startsWith("block_") && name.endsWith(Block.RETIRED_SUFFIX));
+        if(files == null){
+            return 0;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            String blockId = name.substring(name.indexOf("_") + 1, name.length() - Block.RETIRED_SUFFIX.length());
+            File tombstoneFile = new File(dir, "tombstone_" + blockId);
+            if(!file.delete() || (tombstoneFile.exists() && !tombstoneFile.delete())){
+                log.warn("Failed to delete retired block {}", file);
+            }
+        }
+        return files.length;
+    }
+
+    /**
+     * 同步目录，使目录中文件的创建、改名和删除持久化
+     * @throws IOException e
+     */
+    void sync() throws IOException {
+        try(FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)){
+            channel.force(true);
+        }
+    }
+
+    public void shutdown(){
+        writeExecutor.shutdown();
+        readExecutor.shutdown();
+    }
+
+    public FileStore getFileStore() {
+        return fileStore;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
@@ -0,0 +1,33 @@
+package com.jay.oss.storage.fs;
+
+/**
+ * <p>
+ *  block写入的持久化模式
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/03 10:20
+ */
+public enum DurabilityMode {
+    /**
+     * 不主动刷盘，由操作系统决定何时写回
+     */
+    NONE,
+    /**
+     * 定时刷盘，宕机可能丢失最近一个周期内的写入
+     */
+    PERIODIC,
+    /**
+     * 组提交，多个并发写入共享一次刷盘，刷盘完成后才回复上传成功
+     */
+    GROUP_COMMIT;
+
+    public static DurabilityMode parse(String mode){
+        for (DurabilityMode value : values()) {
+            if(value.name().equalsIgnoreCase(mode)){
+                return value;
+            }
+        }
+        return NONE;
+    }
+}
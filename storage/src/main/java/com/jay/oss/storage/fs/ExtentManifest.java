@@ -0,0 +1,107 @@
+package com.jay.oss.storage.fs;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * <p>
+ *  大对象的extent列表
+ *  超过一个block大小的对象被拆分成多个extent，每个extent独占一个block，最后不足一个extent的尾部数据直接放在manifest记录中。
+ *  manifest记录格式：count(4) | [blockId(4) | offset(4) | length(4)] * count | tail
+ *  对象的第i个字节依次落在各个extent中，extent之后的部分落在尾部数据中。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/07 10:20
+ */
+public class ExtentManifest {
+    private final int[] blockIds;
+    private final int[] offsets;
+    private final int[] lengths;
+
+    private static final int ENTRY_LENGTH = 12;
+
+    public ExtentManifest(int count) {
+        this.blockIds = new int[count];
+        this.offsets = new int[count];
+        this.lengths = new int[count];
+    }
+
+    public void set(int i, ObjectIndex extent){
+        blockIds[i] = extent.getBlockId();
+        offsets[i] = extent.getOffset();
+        lengths[i] = extent.getSize();
+    }
+
+    public int count(){
+        return blockIds.length;
+    }
+
+    public int blockId(int i){
+        return blockIds[i];
+    }
+
+    public int offset(int i){
+        return offsets[i];
+    }
+
+    public int length(int i){
+        return lengths[i];
+    }
+
+    /**
+     * 所有extent的总长度，也是尾部数据在对象中的起始位置
+     * @return bytes
+     */
+    public long extentsLength(){
+        long total = 0;
+        for (int length : lengths) {
+            total += length;
+        }
+        return total;
+    }
+
+    /**
+     * manifest记录中尾部数据之前的长度
+     * @return bytes
+     */
+    public int headerLength(){
+        return headerLength(count());
+    }
+
+    public static int headerLength(int count){
+        return 4 + count * ENTRY_LENGTH;
+    }
+
+    public ByteBuf encode(){
+        ByteBuf buffer = Unpooled.buffer(headerLength());
+        buffer.writeInt(count());
+        for (int i = 0; i < count(); i++) {
+            buffer.writeInt(blockIds[i]);
+            buffer.writeInt(offsets[i]);
+            buffer.writeInt(lengths[i]);
+        }
+        return buffer;
+    }
+
+    /**
+     * 从manifest记录解析extent列表，不改变buffer的readerIndex
+     * @param buffer manifest记录数据
+     * @return {@link ExtentManifest}
+     */
+    public static ExtentManifest decode(ByteBuf buffer){
+        int base = buffer.readerIndex();
+        int count = buffer.getInt(base);
+        if(count < 0 || headerLength(count) > buffer.readableBytes()){
+            throw new IllegalArgumentException("Invalid extent manifest, count: " + count);
+        }
+        ExtentManifest manifest = new ExtentManifest(count);
+        for (int i = 0; i < count; i++) {
+            int entry = base + headerLength(i);
+            manifest.blockIds[i] = buffer.getInt(entry);
+            manifest.offsets[i] = buffer.getInt(entry + 4);
+            manifest.lengths[i] = buffer.getInt(entry + 8);
+        }
+        return manifest;
+    }
+}
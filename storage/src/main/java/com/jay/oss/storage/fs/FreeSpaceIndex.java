@@ -0,0 +1,158 @@
+package com.jay.oss.storage.fs;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+
+/**
+ * <p>
+ *  按剩余空间分级的空闲block索引
+ *  剩余空间在[2^k, 2^(k+1))之间的block放在第k级，每一级是一个无锁栈。
+ *  非空级别记录在一个位图中，查找时直接定位到剩余空间最大的非空级别，不需要遍历和复制队列。
+ *  第k级中所有block的剩余空间都不小于2^k，所以大于等于ceil(log2(size))的级别一定能容纳对象；
+ *  只有floor(log2(size))这一级需要逐个检查，检查次数有上限。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/06 10:15
+ */
+public class FreeSpaceIndex<T> {
+
+    /**
+     * 级别数量，覆盖int的所有非负值
+     */
+    private static final int CLASS_COUNT = 32;
+
+    /**
+     * 在可能容纳对象的级别中最多检查的元素数量
+     */
+    private static final int PARTIAL_CLASS_PROBES = 4;
+
+    private final ConcurrentLinkedDeque<T>[] classes;
+
+    /**
+     * 非空级别位图，第k位为1表示第k级可能非空
+     */
+    private final AtomicLong nonEmpty = new AtomicLong(0);
+
+    private final ToIntFunction<T> spaceFunction;
+
+    @SuppressWarnings("unchecked")
+    public FreeSpaceIndex(ToIntFunction<T> spaceFunction) {
+        this.spaceFunction = spaceFunction;
+        this.classes = new ConcurrentLinkedDeque[CLASS_COUNT];
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            classes[i] = new ConcurrentLinkedDeque<>();
+        }
+    }
+
+    /**
+     * 添加空闲元素
+     * @param element 元素
+     */
+    public void offer(T element){
+        int sizeClass = floorClass(spaceFunction.applyAsInt(element));
+        classes[sizeClass].push(element);
+        setNonEmpty(sizeClass);
+    }
+
+    /**
+     * 取出一个剩余空间不小于required的元素，优先取剩余空间最大的级别
+     * @param required 需要的空间
+     * @return 元素，null if no such element
+     */
+    public T poll(int required){
+        int partialClass = floorClass(required);
+        int fitClass = required <= 1 ? 0 : ceilClass(required);
+        long candidates = nonEmpty.get() & (-1L << fitClass);
+        while(candidates != 0){
+            int sizeClass = 63 - Long.numberOfLeadingZeros(candidates);
+            T element = classes[sizeClass].poll();
+            if(element != null){
+                return element;
+            }
+            clearIfEmpty(sizeClass);
+            candidates &= ~(1L << sizeClass);
+        }
+        // 位图可能在并发清除和恢复标记的间隙中漏掉非空级别，直接检查一遍
+        for (int sizeClass = CLASS_COUNT - 1; sizeClass >= fitClass; sizeClass--) {
+            T element = classes[sizeClass].poll();
+            if(element != null){
+                return element;
+            }
+        }
+        if(partialClass != fitClass){
+            return probe(partialClass, required);
+        }
+        return null;
+    }
+
+    /**
+     * 移除指定元素，元素的剩余空间必须和添加时相同
+     * @param element 元素
+     * @return 是否移除成功
+     */
+    public boolean remove(T element){
+        int sizeClass = floorClass(spaceFunction.applyAsInt(element));
+        boolean removed = classes[sizeClass].removeFirstOccurrence(element);
+        if(removed){
+            clearIfEmpty(sizeClass);
+        }
+        return removed;
+    }
+
+    /**
+     * 检查只有部分元素能容纳对象的级别
+     */
+    private T probe(int sizeClass, int required){
+        ConcurrentLinkedDeque<T> stack = classes[sizeClass];
+        for (int i = 0; i < PARTIAL_CLASS_PROBES; i++) {
+            T element = stack.pollLast();
+            if(element == null){
+                clearIfEmpty(sizeClass);
+                return null;
+            }
+            if(spaceFunction.applyAsInt(element) >= required){
+                return element;
+            }
+            // 空间不够，放回栈顶，下一次从栈底检查其他元素
+            stack.push(element);
+        }
+        return null;
+    }
+
+    private void setNonEmpty(int sizeClass){
+        long bit = 1L << sizeClass;
+        long current;
+        while(((current = nonEmpty.get()) & bit) == 0){
+            if(nonEmpty.compareAndSet(current, current | bit)){
+                return;
+            }
+        }
+    }
+
+    /**
+     * 清除空级别的标记
+     * 清除后重新检查，避免和并发的offer竞争导致非空级别丢失标记
+     */
+    private void clearIfEmpty(int sizeClass){
+        long bit = 1L << sizeClass;
+        long current;
+        while(((current = nonEmpty.get()) & bit) != 0){
+            if(nonEmpty.compareAndSet(current, current & ~bit)){
+                break;
+            }
+        }
+        if(!classes[sizeClass].isEmpty()){
+            setNonEmpty(sizeClass);
+        }
+    }
+
+    private static int floorClass(int space){
+        return space <= 0 ? 0 : 31 - Integer.numberOfLeadingZeros(space);
+    }
+
+    private static int ceilClass(int space){
+        return 32 - Integer.numberOfLeadingZeros(space - 1);
+    }
+}
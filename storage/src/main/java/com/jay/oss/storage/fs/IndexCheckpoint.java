@@ -0,0 +1,191 @@
+package com.jay.oss.storage.fs;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * <p>
+ *  对象索引checkpoint
+ *  将对象索引和每个block的写入位置（high-water mark）保存到磁盘。
+ *  启动时加载checkpoint，只需要扫描每个block在mark之后的部分，启动时间只和最近的写入量有关。
+ *
+ *  文件格式：
+ *  +---------+-----------+--------------+--------------------------+
+ *  |  magic  |  version  |  blockCount  |  blockId  |  mark  | ... |
+ *  +---------+-----------+--------------+--------------------------+
+ *  |  objectId | blockId | offset | size | flags | ... |  entryCount  |
+ *  +---------------------------------------------------+--------------+
+ *  |  crc32  |
+ *  +---------+
+ *  flags第0位为删除标记，第1位为多extent标记
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/01 10:35
+ */
+@Slf4j
+public class IndexCheckpoint {
+
+    public static final String CHECKPOINT_FILE = "index.checkpoint";
+    private static final int MAGIC = 0x544F5353;
+    /**
+     * 版本1的checkpoint保存时，单条删除只改写记录头，checkpoint范围内的删除无法恢复，不再使用
+     */
+    private static final int VERSION = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int ENTRY_SIZE = 21;
+
+    private static final int FLAG_REMOVED = 1;
+    private static final int FLAG_MULTI_EXTENT = 2;
+    private static final int FLAG_COMPRESSED = 4;
+
+    private final File file;
+    private final File tmpFile;
+
+    public IndexCheckpoint(String dataPath) {
+        this.file = new File(dataPath + File.separator + CHECKPOINT_FILE);
+        this.tmpFile = new File(dataPath + File.separator + CHECKPOINT_FILE + ".tmp");
+    }
+
+    /**
+     * 写入checkpoint
+     * 先写入临时文件，完成后原子替换旧的checkpoint，避免写入中途宕机留下不完整的文件
+     * @param blockMarks 每个block的写入位置
+     * @param objectIndexManager {@link ObjectIndexManager}
+     * @throws IOException e
+     */
+    public void write(Map<Integer, Integer> blockMarks, ObjectIndexManager objectIndexManager) throws IOException {
+        CRC32 crc32 = new CRC32();
+        try(FileOutputStream fileOutputStream = new FileOutputStream(tmpFile);
+            DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(fileOutputStream, crc32), BUFFER_SIZE))){
+            outputStream.writeInt(MAGIC);
+            outputStream.writeInt(VERSION);
+            outputStream.writeInt(blockMarks.size());
+            for (Map.Entry<Integer, Integer> entry : blockMarks.entrySet()) {
+                outputStream.writeInt(entry.getKey());
+                outputStream.writeInt(entry.getValue());
+            }
+            long[] count = new long[1];
+            // 索引遍历时不能抛出IOException，包装后在外层还原
+            objectIndexManager.forEach((objectId, blockId, offset, size, removed, multiExtent, compressed) -> {
+                try{
+                    outputStream.writeLong(objectId);
+                    outputStream.writeInt(blockId);
+                    outputStream.writeInt(offset);
+                    outputStream.writeInt(size);
+                    outputStream.writeByte((removed ? FLAG_REMOVED : 0) | (multiExtent ? FLAG_MULTI_EXTENT : 0) | (compressed ? FLAG_COMPRESSED : 0));
+                    count[0]++;
+                }catch (IOException e){
+                    throw new UncheckedIOException(e);
+                }
+            });
+            outputStream.writeLong(count[0]);
+            outputStream.flush();
+            // crc不包含自身
+            outputStream.writeLong(crc32.getValue());
+            outputStream.flush();
+            fileOutputStream.getFD().sync();
+        }catch (UncheckedIOException e){
+            throw e.getCause();
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 校验并读取checkpoint中的block写入位置
+     * @return Map, null if checkpoint doesn't exist or is corrupted
+     */
+    public Map<Integer, Integer> loadBlockMarks(){
+        if(!file.exists()){
+            return null;
+        }
+        if(!verify()){
+            log.warn("Index checkpoint {} is corrupted or outdated, ignored", file);
+            return null;
+        }
+        try(DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))){
+            inputStream.readInt();
+            inputStream.readInt();
+            return readBlockMarks(inputStream);
+        }catch (IOException e){
+            log.warn("Load index checkpoint failed ", e);
+            return null;
+        }
+    }
+
+    /**
+     * 将checkpoint中的索引恢复到索引管理器
+     * @param validBlocks 有效的block，不在集合中的block的索引会被忽略
+     * @param objectIndexManager {@link ObjectIndexManager}
+     * @return 恢复的索引数量
+     * @throws IOException e
+     */
+    public long restore(Set<Integer> validBlocks, ObjectIndexManager objectIndexManager) throws IOException {
+        long restored = 0;
+        try(DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))){
+            inputStream.readInt();
+            inputStream.readInt();
+            Map<Integer, Integer> marks = readBlockMarks(inputStream);
+            long count = (file.length() - 12 - (long) marks.size() * 8 - 16) / ENTRY_SIZE;
+            for (long i = 0; i < count; i++) {
+                long objectId = inputStream.readLong();
+                int blockId = inputStream.readInt();
+                int offset = inputStream.readInt();
+                int size = inputStream.readInt();
+                int flags = inputStream.readByte();
+                if(validBlocks.contains(blockId)){
+                    objectIndexManager.putIndex(objectId, new ObjectIndex(blockId, offset, size,
+                            (flags & FLAG_REMOVED) != 0, (flags & FLAG_MULTI_EXTENT) != 0, (flags & FLAG_COMPRESSED) != 0));
+                    restored++;
+                }
+            }
+        }
+        return restored;
+    }
+
+    private Map<Integer, Integer> readBlockMarks(DataInputStream inputStream) throws IOException {
+        int blockCount = inputStream.readInt();
+        Map<Integer, Integer> marks = new HashMap<>(Math.max(16, blockCount * 2));
+        for (int i = 0; i < blockCount; i++) {
+            marks.put(inputStream.readInt(), inputStream.readInt());
+        }
+        return marks;
+    }
+
+    private boolean verify(){
+        long length = file.length();
+        if(length < 8){
+            return false;
+        }
+        CRC32 crc32 = new CRC32();
+        try(FileInputStream fileInputStream = new FileInputStream(file);
+            CheckedInputStream checkedInputStream = new CheckedInputStream(new BufferedInputStream(fileInputStream, BUFFER_SIZE), crc32);
+            DataInputStream inputStream = new DataInputStream(checkedInputStream)){
+            if(inputStream.readInt() != MAGIC || inputStream.readInt() != VERSION){
+                return false;
+            }
+            long remaining = length - 8 - 8;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while(remaining > 0){
+                int read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if(read < 0){
+                    return false;
+                }
+                remaining -= read;
+            }
+            long expected = crc32.getValue();
+            return inputStream.readLong() == expected;
+        }catch (IOException e){
+            return false;
+        }
+    }
+}
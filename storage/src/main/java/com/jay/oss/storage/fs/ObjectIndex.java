@@ -9,6 +9,8 @@ import lombok.ToString;
  * <p>
  *  对象索引
  *  记录对象在Block中的位置
+ *  超过一个block大小的对象被拆分为多个extent，索引指向记录extent列表的manifest记录，size为对象的完整大小
+ *  压缩存储的对象size为解压后的大小
  * </p>
  *
  * @author Jay
@@ -23,4 +25,20 @@ public class ObjectIndex {
     private int offset;
     private int size;
     private boolean removed;
+    /**
+     * 是否是多extent对象
+     */
+    private boolean multiExtent;
+    /**
+     * 是否压缩存储
+     */
+    private boolean compressed;
+
+    public ObjectIndex(int blockId, int offset, int size, boolean removed) {
+        this(blockId, offset, size, removed, false, false);
+    }
+
+    public ObjectIndex(int blockId, int offset, int size, boolean removed, boolean multiExtent) {
+        this(blockId, offset, size, removed, multiExtent, false);
+    }
 }
@@ -1,23 +1,29 @@
 package com.jay.oss.storage.fs;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 
 /**
  * <p>
  *  对象索引管理器
  *  负责存储对象的Block索引
+ *  索引保存在{@link ObjectIndexTable}中，getObjectIndex返回的是索引的拷贝，
+ *  修改索引需要通过管理器的方法完成。
  * </p>
  *
  * @author Jay
  * @date 2022/01/18 14:48
  */
 public class ObjectIndexManager {
-    private final ConcurrentHashMap<Long, ObjectIndex> indexCache = new ConcurrentHashMap<>(256);
+    private final ObjectIndexTable indexTable = new ObjectIndexTable();
+
+    /**
+     * checkpoint屏障
+     * 写入block和保存索引在读锁中完成，checkpoint获取写锁后记录的block写入位置之前的对象一定已经进入索引
+     */
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
 
     /**
      * 互斥执行操作
@@ -25,22 +31,92 @@ public class ObjectIndexManager {
      * @param function {@link Function}
      */
     public void computeIfAbsent(long objectId, Function<Long, ?extends ObjectIndex> function){
-        indexCache.computeIfAbsent(objectId, function);
+        checkpointLock.readLock().lock();
+        try{
+            indexTable.computeIfAbsent(objectId, function::apply);
+        }finally {
+            checkpointLock.readLock().unlock();
+        }
     }
 
     public ObjectIndex getObjectIndex(long objectId){
-        return indexCache.get(objectId);
+        return indexTable.get(objectId);
     }
 
     public void putIndexes(Map<Long, ObjectIndex> indexMap){
-        this.indexCache.putAll(indexMap);
+        this.indexTable.putAll(indexMap);
+    }
+
+    /**
+     * 合并恢复时扫描到的索引，多个block并行恢复时结果和顺序无关
+     * @param indexMap 一个block中扫描到的索引
+     */
+    public void mergeIndexes(Map<Long, ObjectIndex> indexMap){
+        for (Map.Entry<Long, ObjectIndex> entry : indexMap.entrySet()) {
+            indexTable.merge(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public void putIndex(long objectId, ObjectIndex index){
+        this.indexTable.put(objectId, index);
+    }
+
+    /**
+     * 对象索引和expected相同时替换为新的索引，用于压缩时更新对象位置
+     * @param objectId 对象ID
+     * @param expected 压缩前的索引
+     * @param update 压缩后的索引
+     * @return 是否替换成功，对象在压缩期间被删除时替换失败
+     */
+    public boolean replace(long objectId, ObjectIndex expected, ObjectIndex update){
+        return indexTable.replace(objectId, expected, update);
+    }
+
+    /**
+     * 标记对象删除
+     * @param objectId 对象ID
+     * @return 对象是否存在
+     */
+    public boolean markRemoved(long objectId){
+        return indexTable.markRemoved(objectId);
+    }
+
+    /**
+     * 对象索引和expected相同时标记删除
+     * 删除期间对象可能被压缩移动到新的block，此时标记失败，调用者需要按照新的索引重新删除
+     * @param objectId 对象ID
+     * @param expected 删除的记录对应的索引
+     * @return 是否标记成功
+     */
+    public boolean markRemoved(long objectId, ObjectIndex expected){
+        ObjectIndex removed = new ObjectIndex(expected.getBlockId(), expected.getOffset(), expected.getSize(), true,
+                expected.isMultiExtent(), expected.isCompressed());
+        return indexTable.replace(objectId, expected, removed);
     }
 
     public List<Long> listObjectIds(){
         // 返回没被标记删除的id
-        return indexCache.entrySet().stream()
-                .filter(entry -> !entry.getValue().isRemoved())
-                .map(Map.Entry::getKey)
-                .collect(Collectors.toList());
+        return indexTable.listObjectIds();
+    }
+
+    public void forEach(ObjectIndexTable.IndexVisitor visitor){
+        indexTable.forEach(visitor);
+    }
+
+    public int size(){
+        return indexTable.size();
+    }
+
+    /**
+     * 在没有正在进行的写入时执行操作
+     * @param task 操作
+     */
+    public void runWithoutWrites(Runnable task){
+        checkpointLock.writeLock().lock();
+        try{
+            task.run();
+        }finally {
+            checkpointLock.writeLock().unlock();
+        }
     }
 }
@@ -0,0 +1,462 @@
+package com.jay.oss.storage.fs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongFunction;
+
+/**
+ * <p>
+ *  基于long数组的开放寻址对象索引表
+ *  ConcurrentHashMap<Long, ObjectIndex>中每个对象需要一个Long、一个Node和一个ObjectIndex对象，
+ *  千万级别的小对象会占用数GB堆内存并造成长时间GC。
+ *  该索引表将对象索引打包进三个long数组中：
+ *  +-------------+------------------------+----------------------+
+ *  |  objectId   |  blockId  |  offset    |  size  |  flags      |
+ *  +-------------+------------------------+----------------------+
+ *  每个对象固定占用24字节（按0.75负载因子计算约32字节），并且不会产生额外的小对象。
+ *
+ *  索引表被划分为多个Segment，每个Segment使用StampedLock保护，读操作使用乐观读，不需要加锁。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/05/30 10:12
+ */
+public class ObjectIndexTable {
+    /**
+     * segment数量，必须是2的幂
+     */
+    private static final int SEGMENT_COUNT = 64;
+    private static final int SEGMENT_SHIFT = 64 - Integer.numberOfTrailingZeros(SEGMENT_COUNT);
+
+    /**
+     * computeIfAbsent的分段互斥锁数量，必须是2的幂
+     */
+    private static final int COMPUTE_LOCK_COUNT = 1024;
+
+    private static final int INITIAL_SEGMENT_CAPACITY = 64;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /**
+     * 空槽位标记，objectId为0的对象单独保存
+     */
+    private static final long EMPTY_KEY = 0L;
+
+    static final long FLAG_REMOVED = 1L;
+    static final long FLAG_MULTI_EXTENT = 2L;
+    static final long FLAG_COMPRESSED = 4L;
+    private static final int FLAG_BITS = 8;
+
+    private final Segment[] segments;
+    private final Object[] computeLocks;
+
+    public ObjectIndexTable() {
+        this.segments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(INITIAL_SEGMENT_CAPACITY);
+        }
+        this.computeLocks = new Object[COMPUTE_LOCK_COUNT];
+        for (int i = 0; i < COMPUTE_LOCK_COUNT; i++) {
+            computeLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * 遍历索引表的回调
+     */
+    @FunctionalInterface
+    public interface IndexVisitor {
+        /**
+         * 访问一条索引
+         * @param objectId 对象ID
+         * @param blockId block ID
+         * @param offset 对象在block中的偏移
+         * @param size 对象大小
+         * @param removed 是否被标记删除
+         * @param multiExtent 是否是多extent对象
+         * @param compressed 是否压缩存储
+         */
+        void visit(long objectId, int blockId, int offset, int size, boolean removed, boolean multiExtent, boolean compressed);
+    }
+
+    public ObjectIndex get(long objectId){
+        long hash = hash(objectId);
+        return segmentFor(hash).get(objectId, hash);
+    }
+
+    public boolean containsKey(long objectId){
+        return get(objectId) != null;
+    }
+
+    public void put(long objectId, ObjectIndex index){
+        long hash = hash(objectId);
+        segmentFor(hash).put(objectId, hash, location(index), meta(index));
+    }
+
+    public void putAll(Map<Long, ObjectIndex> indexes){
+        for (Map.Entry<Long, ObjectIndex> entry : indexes.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * 合并恢复时扫描到的索引
+     * 压缩宕机后同一个对象可能在多个block中都有记录，合并结果和合并顺序无关：
+     * 被删除的记录优先，其余的记录按照blockId、offset取最大的一条
+     * @param objectId 对象ID
+     * @param index 扫描到的索引
+     */
+    public void merge(long objectId, ObjectIndex index){
+        while(true){
+            ObjectIndex existing = get(objectId);
+            if(existing == null){
+                if(computeIfAbsent(objectId, k -> index) == index){
+                    return;
+                }
+            }else if(!precedes(index, existing) || replace(objectId, existing, index)){
+                return;
+            }
+        }
+    }
+
+    private static boolean precedes(ObjectIndex index, ObjectIndex other){
+        if(index.isRemoved() != other.isRemoved()){
+            return index.isRemoved();
+        }
+        if(index.getBlockId() != other.getBlockId()){
+            return index.getBlockId() > other.getBlockId();
+        }
+        return index.getOffset() > other.getOffset();
+    }
+
+    /**
+     * 如果对象不存在，调用function创建索引并保存
+     * 同一个objectId的function最多只会被执行一次，function返回null时不保存索引
+     * @param objectId 对象ID
+     * @param function 创建索引的方法
+     * @return {@link ObjectIndex} 已存在或新创建的索引
+     */
+    public ObjectIndex computeIfAbsent(long objectId, LongFunction<? extends ObjectIndex> function){
+        long hash = hash(objectId);
+        Segment segment = segmentFor(hash);
+        ObjectIndex existing = segment.get(objectId, hash);
+        if(existing != null){
+            return existing;
+        }
+        // 只锁住objectId所在的分段锁，function中的磁盘写入不会阻塞segment的读写
+        synchronized (computeLocks[(int) hash & (COMPUTE_LOCK_COUNT - 1)]){
+            existing = segment.get(objectId, hash);
+            if(existing != null){
+                return existing;
+            }
+            ObjectIndex created = function.apply(objectId);
+            if(created != null){
+                segment.put(objectId, hash, location(created), meta(created));
+            }
+            return created;
+        }
+    }
+
+    /**
+     * 只有当前索引和expected相同时才替换为新的索引
+     * @param objectId 对象ID
+     * @param expected 期望的当前索引
+     * @param update 新的索引
+     * @return 是否替换成功
+     */
+    public boolean replace(long objectId, ObjectIndex expected, ObjectIndex update){
+        long hash = hash(objectId);
+        return segmentFor(hash).replace(objectId, hash, location(expected), meta(expected), location(update), meta(update));
+    }
+
+    /**
+     * 标记对象删除
+     * @param objectId 对象ID
+     * @return 对象是否存在
+     */
+    public boolean markRemoved(long objectId){
+        long hash = hash(objectId);
+        return segmentFor(hash).orFlags(objectId, hash, FLAG_REMOVED);
+    }
+
+    public void forEach(IndexVisitor visitor){
+        for (Segment segment : segments) {
+            segment.forEach(visitor);
+        }
+    }
+
+    /**
+     * 列出所有没有被标记删除的对象ID
+     * @return List
+     */
+    public List<Long> listObjectIds(){
+        List<Long> result = new ArrayList<>(size());
+        forEach((objectId, blockId, offset, size, removed, multiExtent, compressed) -> {
+            if(!removed){
+                result.add(objectId);
+            }
+        });
+        return result;
+    }
+
+    public int size(){
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    /**
+     * 索引表数组占用的内存大小
+     * @return bytes
+     */
+    public long memoryUsage(){
+        long usage = 0;
+        for (Segment segment : segments) {
+            usage += (long) segment.table.keys.length * 3 * Long.BYTES;
+        }
+        return usage;
+    }
+
+    private Segment segmentFor(long hash){
+        return segments[(int) (hash >>> SEGMENT_SHIFT)];
+    }
+
+    private static long hash(long key){
+        // murmur3 fmix64
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static long location(ObjectIndex index){
+        return ((long) index.getBlockId() << 32) | (index.getOffset() & 0xFFFFFFFFL);
+    }
+
+    private static long meta(ObjectIndex index){
+        return ((index.getSize() & 0xFFFFFFFFL) << FLAG_BITS) | (index.isRemoved() ? FLAG_REMOVED : 0)
+                | (index.isMultiExtent() ? FLAG_MULTI_EXTENT : 0) | (index.isCompressed() ? FLAG_COMPRESSED : 0);
+    }
+
+    private static ObjectIndex toIndex(long location, long meta){
+        return new ObjectIndex((int) (location >>> 32), (int) location, (int) (meta >>> FLAG_BITS),
+                (meta & FLAG_REMOVED) != 0, (meta & FLAG_MULTI_EXTENT) != 0, (meta & FLAG_COMPRESSED) != 0);
+    }
+
+    /**
+     * segment的数组，扩容时整体替换，保证乐观读看到的三个数组属于同一版本
+     */
+    private static final class Table {
+        final long[] keys;
+        final long[] locations;
+        final long[] metas;
+        final int mask;
+
+        Table(int capacity) {
+            this.keys = new long[capacity];
+            this.locations = new long[capacity];
+            this.metas = new long[capacity];
+            this.mask = capacity - 1;
+        }
+    }
+
+    private static final class Segment {
+        private final StampedLock lock = new StampedLock();
+        private volatile Table table;
+        private volatile int size;
+        /**
+         * objectId为0的对象
+         */
+        private boolean zeroPresent;
+        private long zeroLocation;
+        private long zeroMeta;
+
+        Segment(int capacity) {
+            this.table = new Table(capacity);
+        }
+
+        ObjectIndex get(long key, long hash){
+            long stamp = lock.tryOptimisticRead();
+            ObjectIndex result = find(key, hash);
+            if(!lock.validate(stamp)){
+                stamp = lock.readLock();
+                try{
+                    result = find(key, hash);
+                }finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return result;
+        }
+
+        private ObjectIndex find(long key, long hash){
+            if(key == EMPTY_KEY){
+                return zeroPresent ? toIndex(zeroLocation, zeroMeta) : null;
+            }
+            Table t = this.table;
+            int mask = t.mask;
+            int slot = (int) hash & mask;
+            // 最多探测capacity次，保证乐观读遇到并发写时也能结束
+            for (int i = 0; i <= mask; i++) {
+                long k = t.keys[slot];
+                if(k == key){
+                    return toIndex(t.locations[slot], t.metas[slot]);
+                }
+                if(k == EMPTY_KEY){
+                    return null;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        void put(long key, long hash, long location, long meta){
+            long stamp = lock.writeLock();
+            try{
+                if(key == EMPTY_KEY){
+                    if(!zeroPresent){
+                        zeroPresent = true;
+                        size++;
+                    }
+                    zeroLocation = location;
+                    zeroMeta = meta;
+                    return;
+                }
+                if(size + 1 > table.keys.length * LOAD_FACTOR){
+                    resize();
+                }
+                Table t = this.table;
+                int slot = (int) hash & t.mask;
+                while(true){
+                    long k = t.keys[slot];
+                    if(k == EMPTY_KEY){
+                        // 先写入值再写入key，避免乐观读看到key但读到旧的值
+                        t.locations[slot] = location;
+                        t.metas[slot] = meta;
+                        t.keys[slot] = key;
+                        size++;
+                        return;
+                    }
+                    if(k == key){
+                        t.locations[slot] = location;
+                        t.metas[slot] = meta;
+                        return;
+                    }
+                    slot = (slot + 1) & t.mask;
+                }
+            }finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        boolean replace(long key, long hash, long expectedLocation, long expectedMeta, long location, long meta){
+            long stamp = lock.writeLock();
+            try{
+                if(key == EMPTY_KEY){
+                    if(zeroPresent && zeroLocation == expectedLocation && zeroMeta == expectedMeta){
+                        zeroLocation = location;
+                        zeroMeta = meta;
+                        return true;
+                    }
+                    return false;
+                }
+                Table t = this.table;
+                int slot = (int) hash & t.mask;
+                for (int i = 0; i <= t.mask; i++) {
+                    long k = t.keys[slot];
+                    if(k == key){
+                        if(t.locations[slot] == expectedLocation && t.metas[slot] == expectedMeta){
+                            t.locations[slot] = location;
+                            t.metas[slot] = meta;
+                            return true;
+                        }
+                        return false;
+                    }
+                    if(k == EMPTY_KEY){
+                        return false;
+                    }
+                    slot = (slot + 1) & t.mask;
+                }
+                return false;
+            }finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        boolean orFlags(long key, long hash, long flags){
+            long stamp = lock.writeLock();
+            try{
+                if(key == EMPTY_KEY){
+                    if(zeroPresent){
+                        zeroMeta |= flags;
+                    }
+                    return zeroPresent;
+                }
+                Table t = this.table;
+                int slot = (int) hash & t.mask;
+                for (int i = 0; i <= t.mask; i++) {
+                    long k = t.keys[slot];
+                    if(k == key){
+                        t.metas[slot] |= flags;
+                        return true;
+                    }
+                    if(k == EMPTY_KEY){
+                        return false;
+                    }
+                    slot = (slot + 1) & t.mask;
+                }
+                return false;
+            }finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        void forEach(IndexVisitor visitor){
+            long stamp = lock.readLock();
+            try{
+                if(zeroPresent){
+                    visit(visitor, EMPTY_KEY, zeroLocation, zeroMeta);
+                }
+                Table t = this.table;
+                for (int i = 0; i < t.keys.length; i++) {
+                    if(t.keys[i] != EMPTY_KEY){
+                        visit(visitor, t.keys[i], t.locations[i], t.metas[i]);
+                    }
+                }
+            }finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        private void visit(IndexVisitor visitor, long key, long location, long meta){
+            visitor.visit(key, (int) (location >>> 32), (int) location, (int) (meta >>> FLAG_BITS),
+                    (meta & FLAG_REMOVED) != 0, (meta & FLAG_MULTI_EXTENT) != 0, (meta & FLAG_COMPRESSED) != 0);
+        }
+
+        /**
+         * 两倍扩容，调用者必须持有写锁
+         */
+        private void resize(){
+            Table old = this.table;
+            Table t = new Table(old.keys.length << 1);
+            for (int i = 0; i < old.keys.length; i++) {
+                long key = old.keys[i];
+                if(key != EMPTY_KEY){
+                    int slot = (int) hash(key) & t.mask;
+                    while(t.keys[slot] != EMPTY_KEY){
+                        slot = (slot + 1) & t.mask;
+                    }
+                    t.keys[slot] = key;
+                    t.locations[slot] = old.locations[i];
+                    t.metas[slot] = old.metas[i];
+                }
+            }
+            this.table = t;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.jay.oss.storage.fs;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.jay.oss.common.config.OssConfigs;
+import com.jay.oss.common.prometheus.GaugeManager;
+import io.netty.buffer.ByteBuf;
+import io.prometheus.client.Gauge;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *  热点对象读缓存
+ *  缓存完整对象的堆外ByteBuf，按照字节数限制缓存大小，由Caffeine的W-TinyLFU策略决定准入和淘汰。
+ *  缓存持有ByteBuf的一个引用，读取者拿到的是共享内存的retainedSlice，发送完成后由编码器释放，不需要拷贝。
+ *  被淘汰的ByteBuf在所有读取者释放后才真正回收。
+ *  读取者在computeIfPresent中增加引用计数，淘汰同样在该entry的compute中移除，之后才在removalListener中释放，
+ *  不会出现取出之后、增加引用之前被释放的情况。
+ *  对象内容不可变，缓存以对象ID为key，压缩移动对象不影响缓存内容；删除对象时使缓存失效。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/06 15:20
+ */
+@Slf4j
+public class ObjectReadCache {
+
+    private final Cache<Long, ByteBuf> cache;
+
+    /**
+     * 能被缓存的最大对象大小
+     */
+    private final int maxObjectSize;
+
+    private final AtomicLong evictedBytes = new AtomicLong(0);
+
+    public ObjectReadCache(long capacity, int maxObjectSize) {
+        this.maxObjectSize = maxObjectSize;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(capacity)
+                .weigher((Long id, ByteBuf data) -> data.readableBytes())
+                // 在淘汰线程中直接释放，避免堆外内存延迟回收
+                .executor(Runnable::run)
+                .removalListener((Long id, ByteBuf data, RemovalCause cause) -> {
+                    if(data != null){
+                        if(cause.wasEvicted()){
+                            evictedBytes.addAndGet(data.readableBytes());
+                        }
+                        data.release();
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * 读取缓存的对象
+     * @param objectId 对象ID
+     * @param start 读取的起始位置
+     * @param length 读取长度
+     * @return {@link ByteBuf} 共享缓存内存的切片，使用者负责释放；null if not cached
+     */
+    public ByteBuf get(long objectId, int start, int length){
+        // getIfPresent只用于记录命中率
+        if(cache.getIfPresent(objectId) == null){
+            return null;
+        }
+        ByteBuf[] slice = new ByteBuf[1];
+        cache.asMap().computeIfPresent(objectId, (id, data) -> {
+            slice[0] = data.retainedSlice(data.readerIndex() + start, length);
+            return data;
+        });
+        return slice[0];
+    }
+
+    /**
+     * 从block读取完整对象并放入缓存
+     * @param objectId 对象ID
+     * @param block 对象所在的block，调用者持有引用
+     * @param index {@link ObjectIndex}
+     * @param start 读取的起始位置
+     * @param length 读取长度
+     * @return {@link ByteBuf} 使用者负责释放，null if read failed
+     */
+    public ByteBuf load(long objectId, Block block, ObjectIndex index, int start, int length){
+        if(!isCacheable(index.getSize())){
+            return block.read(index, start, length);
+        }
+        // 读取完整对象，同时校验checksum
+        ByteBuf data = block.read(index, 0, index.getSize());
+        if(data == null){
+            return null;
+        }
+        ByteBuf result = data.retainedSlice(data.readerIndex() + start, length);
+        if(cache.asMap().putIfAbsent(objectId, data) != null){
+            // 并发读取已经放入缓存
+            data.release();
+        }
+        return result;
+    }
+
+    public boolean isCacheable(int size){
+        return size <= maxObjectSize;
+    }
+
+    /**
+     * 删除对象时使缓存失效
+     * @param objectId 对象ID
+     */
+    public void invalidate(long objectId){
+        cache.invalidate(objectId);
+    }
+
+    /**
+     * 更新缓存命中率和淘汰指标
+     */
+    public void recordMetrics(){
+        CacheStats stats = cache.stats();
+        Gauge hitRate = GaugeManager.getGauge("read_cache_hit_rate");
+        if(hitRate != null){
+            hitRate.set(stats.hitRate());
+        }
+        Gauge evictions = GaugeManager.getGauge("read_cache_evictions");
+        if(evictions != null){
+            evictions.set(stats.evictionCount());
+        }
+        Gauge evicted = GaugeManager.getGauge("read_cache_evicted_bytes");
+        if(evicted != null){
+            evicted.set(evictedBytes.get());
+        }
+        Gauge size = GaugeManager.getGauge("read_cache_size");
+        if(size != null){
+            cache.policy().eviction().ifPresent(eviction -> size.set(eviction.weightedSize().orElse(0L)));
+        }
+    }
+
+    public CacheStats stats(){
+        return cache.stats();
+    }
+
+    /**
+     * 根据配置创建读缓存
+     * @return {@link ObjectReadCache} null if disabled
+     */
+    public static ObjectReadCache create(){
+        if(!OssConfigs.enableReadCache()){
+            return null;
+        }
+        long capacity = OssConfigs.readCacheSize() * 1024L * 1024L;
+        int maxObjectSize = OssConfigs.readCacheMaxObjectSize() * 1024;
+        log.info("Object read cache enabled, capacity: {}MB, max object size: {}KB", OssConfigs.readCacheSize(), OssConfigs.readCacheMaxObjectSize());
+        return new ObjectReadCache(capacity, maxObjectSize);
+    }
+}
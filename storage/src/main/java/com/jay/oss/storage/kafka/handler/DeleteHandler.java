@@ -1,9 +1,7 @@
 package com.jay.oss.storage.kafka.handler;
 
 import com.jay.oss.common.kafka.RecordHandler;
-import com.jay.oss.storage.fs.Block;
 import com.jay.oss.storage.fs.BlockManager;
-import com.jay.oss.storage.fs.ObjectIndex;
 import com.jay.oss.storage.fs.ObjectIndexManager;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.kafka.clients.consumer.ConsumerGroupMetadata;
@@ -32,13 +30,7 @@ public class DeleteHandler implements RecordHandler {
     public void handle(Iterable<ConsumerRecord<String, String>> records, ConsumerGroupMetadata groupMetadata) {
         for (ConsumerRecord<String, String> record : records) {
             long objectId = Long.parseLong(record.key());
-            ObjectIndex index = objectIndexManager.getObjectIndex(objectId);
-            Block block;
-            if(index != null && (block = blockManager.getBlockById(index.getBlockId())) != null){
-                if(block.delete(objectId, index.getOffset())){
-                    index.setRemoved(true);
-                }
-            }
+            blockManager.delete(objectId);
         }
     }
 }
@@ -8,9 +8,7 @@ import com.jay.oss.common.entity.request.GetObjectRequest;
 import com.jay.oss.common.kafka.RecordHandler;
 import com.jay.oss.common.remoting.TinyOssCommand;
 import com.jay.oss.common.remoting.TinyOssProtocol;
-import com.jay.oss.storage.fs.Block;
 import com.jay.oss.storage.fs.BlockManager;
-import com.jay.oss.storage.fs.ObjectIndex;
 import com.jay.oss.storage.fs.ObjectIndexManager;
 import io.netty.buffer.ByteBuf;
 import lombok.extern.slf4j.Slf4j;
@@ -65,7 +63,7 @@ public class ReplicaHandler implements RecordHandler {
             // 向目标主机发送GetObject请求
             TinyOssCommand response = (TinyOssCommand)client.sendSync(Url.parseString(url), command, null);
             CommandCode code = response.getCommandCode();
-            if(TinyOssProtocol.DOWNLOAD_RESPONSE.equals(code)){
+            if(TinyOssProtocol.DOWNLOAD_RESPONSE.equals(code) && response.getData() != null){
                 // 保存对象数据
                 saveObject(objectId, response.getData());
             }
@@ -79,17 +77,15 @@ public class ReplicaHandler implements RecordHandler {
 
     /**
      * 保存对象数据
+     * 对象已经存在时不会写入，data在任何情况下都由这里释放
      * @param objectId object ID
      * @param data {@link ByteBuf} object数据
      */
     private void saveObject(long objectId, ByteBuf data) {
-        objectIndexManager.computeIfAbsent(objectId, (id)->{
-            int size = data.readableBytes();
-            Block block = blockManager.getBlockBySize(size);
-            ObjectIndex index = block.write(objectId, data, size);
-            blockManager.offerBlock(block);
+        try{
+            objectIndexManager.computeIfAbsent(objectId, (id)-> blockManager.write(objectId, data, data.readableBytes()));
+        }finally {
             data.release();
-            return index;
-        });
+        }
     }
 }
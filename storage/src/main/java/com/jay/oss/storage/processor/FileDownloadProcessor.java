@@ -2,14 +2,18 @@ package com.jay.oss.storage.processor;
 
 import com.jay.dove.transport.command.AbstractProcessor;
 import com.jay.dove.transport.command.CommandFactory;
+import com.jay.oss.common.config.OssConfigs;
 import com.jay.oss.common.entity.request.GetObjectRequest;
 import com.jay.oss.common.remoting.TinyOssCommand;
 import com.jay.oss.common.remoting.TinyOssProtocol;
 import com.jay.oss.common.util.SerializeUtil;
 import com.jay.oss.storage.fs.Block;
+import com.jay.oss.storage.fs.BlockFileRegion;
 import com.jay.oss.storage.fs.BlockManager;
+import com.jay.oss.storage.fs.DataDirectory;
 import com.jay.oss.storage.fs.ObjectIndex;
 import com.jay.oss.storage.fs.ObjectIndexManager;
+import com.jay.oss.storage.fs.ObjectReadCache;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import lombok.extern.slf4j.Slf4j;
@@ -29,6 +33,8 @@ public class FileDownloadProcessor extends AbstractProcessor {
     private final BlockManager blockManager;
     private final CommandFactory commandFactory;
 
+    private static final int RETRY_TIMES = 3;
+
     public FileDownloadProcessor(ObjectIndexManager objectIndexManager, BlockManager blockManager, CommandFactory commandFactory) {
         this.objectIndexManager = objectIndexManager;
         this.blockManager = blockManager;
@@ -45,24 +51,102 @@ public class FileDownloadProcessor extends AbstractProcessor {
 
     /**
      * 处理下载请求
+     * 在对象所在磁盘的读线程池中读取，慢磁盘不会占用处理器线程
      * @param context {@link ChannelHandlerContext}
      * @param command {@link TinyOssCommand}
      */
     private void processDownload(ChannelHandlerContext context, TinyOssCommand command){
         GetObjectRequest request = SerializeUtil.deserialize(command.getContent(), GetObjectRequest.class);
-        ObjectIndex objectIndex = objectIndexManager.getObjectIndex(request.getObjectId());
-        if(objectIndex == null){
-            sendResponse(context, commandFactory.createResponse(command.getId(), "", TinyOssProtocol.OBJECT_NOT_FOUND));
+        ObjectIndex index = objectIndexManager.getObjectIndex(request.getObjectId());
+        DataDirectory directory = index == null ? null : blockManager.directoryOf(index.getBlockId());
+        if(directory == null){
+            readObject(context, command, request);
+        }else{
+            directory.execute(() -> readObject(context, command, request), false);
+        }
+    }
+
+    private void readObject(ChannelHandlerContext context, TinyOssCommand command, GetObjectRequest request){
+        ObjectReadCache readCache = blockManager.getReadCache();
+        if(readCache != null && readFromCache(context, command, request, readCache)){
             return;
         }
-        Block block = blockManager.getBlockById(objectIndex.getBlockId());
-        if(block != null){
-            int readStart = request.getEnd() == -1 ? 0 : request.getStart();
-            int readLength = request.getEnd() == -1 ? objectIndex.getSize() : request.getEnd() - request.getStart();
-            ByteBuf buffer = block.read(objectIndex.getOffset(), readStart, readLength);
-            sendResponse(context, commandFactory.createResponse(command.getId(), buffer, TinyOssProtocol.DOWNLOAD_RESPONSE));
-        }else{
-            sendResponse(context, commandFactory.createResponse(command.getId(), "", TinyOssProtocol.ERROR));
+        // block被压缩废弃时，对象已经被移动到新的block，重新查询索引
+        for (int i = 0; i < RETRY_TIMES; i++) {
+            ObjectIndex objectIndex = objectIndexManager.getObjectIndex(request.getObjectId());
+            if(objectIndex == null){
+                sendResponse(context, commandFactory.createResponse(command.getId(), "", TinyOssProtocol.OBJECT_NOT_FOUND));
+                return;
+            }
+            if(objectIndex.isMultiExtent()){
+                // 大对象只读取和请求范围重叠的extent
+                int readStart = request.getEnd() == -1 ? 0 : request.getStart();
+                int readLength = request.getEnd() == -1 ? objectIndex.getSize() : request.getEnd() - request.getStart();
+                ByteBuf buffer = blockManager.readExtents(request.getObjectId(), objectIndex, readStart, readLength);
+                if(buffer != null){
+                    sendResponse(context, commandFactory.createResponse(command.getId(), buffer, TinyOssProtocol.DOWNLOAD_RESPONSE));
+                    return;
+                }
+                continue;
+            }
+            Block block = blockManager.retainBlock(objectIndex.getBlockId());
+            if(block == null){
+                continue;
+            }
+            try{
+                int readStart = request.getEnd() == -1 ? 0 : request.getStart();
+                int readLength = request.getEnd() == -1 ? objectIndex.getSize() : request.getEnd() - request.getStart();
+                if(readCache != null && readCache.isCacheable(objectIndex.getSize())){
+                    // 读取完整对象放入缓存
+                    ByteBuf buffer = readCache.load(request.getObjectId(), block, objectIndex, readStart, readLength);
+                    if(buffer == null){
+                        sendResponse(context, commandFactory.createResponse(command.getId(), "", TinyOssProtocol.ERROR));
+                        return;
+                    }
+                    sendResponse(context, commandFactory.createResponse(command.getId(), buffer, TinyOssProtocol.DOWNLOAD_RESPONSE));
+                }else if(OssConfigs.enableZeroCopyDownload() && !objectIndex.isCompressed()){
+                    // 零拷贝模式，通过FileRegion直接发送block文件中的数据，FileRegion持有block的引用；压缩存储的对象需要解压，不使用零拷贝
+                    BlockFileRegion region = block.readRegion(objectIndex.getOffset(), readStart, readLength);
+                    if(region == null){
+                        sendResponse(context, commandFactory.createResponse(command.getId(), "", TinyOssProtocol.ERROR));
+                        return;
+                    }
+                    sendResponse(context, commandFactory.createResponse(command.getId(), region, TinyOssProtocol.DOWNLOAD_RESPONSE));
+                }else{
+                    long start = System.nanoTime();
+                    ByteBuf buffer = block.read(objectIndex, readStart, readLength);
+                    blockManager.recordReadLatency(System.nanoTime() - start);
+                    if(buffer == null){
+                        // 读取失败或数据校验不通过
+                        sendResponse(context, commandFactory.createResponse(command.getId(), "", TinyOssProtocol.ERROR));
+                        return;
+                    }
+                    sendResponse(context, commandFactory.createResponse(command.getId(), buffer, TinyOssProtocol.DOWNLOAD_RESPONSE));
+                }
+                return;
+            }finally {
+                block.release();
+            }
+        }
+        sendResponse(context, commandFactory.createResponse(command.getId(), "", TinyOssProtocol.ERROR));
+    }
+
+    /**
+     * 从读缓存读取对象
+     * @return 是否命中缓存
+     */
+    private boolean readFromCache(ChannelHandlerContext context, TinyOssCommand command, GetObjectRequest request, ObjectReadCache readCache){
+        ObjectIndex objectIndex = objectIndexManager.getObjectIndex(request.getObjectId());
+        if(objectIndex == null || objectIndex.isRemoved()){
+            return false;
+        }
+        int readStart = request.getEnd() == -1 ? 0 : request.getStart();
+        int readLength = request.getEnd() == -1 ? objectIndex.getSize() : request.getEnd() - request.getStart();
+        ByteBuf buffer = readCache.get(request.getObjectId(), readStart, readLength);
+        if(buffer == null){
+            return false;
         }
+        sendResponse(context, commandFactory.createResponse(command.getId(), buffer, TinyOssProtocol.DOWNLOAD_RESPONSE));
+        return true;
     }
 }
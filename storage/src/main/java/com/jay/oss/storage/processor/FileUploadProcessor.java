@@ -12,10 +12,13 @@ import com.jay.oss.common.entity.request.UploadRequest;
 import com.jay.oss.common.kafka.RecordProducer;
 import com.jay.oss.common.remoting.TinyOssCommand;
 import com.jay.oss.common.remoting.TinyOssProtocol;
+import com.jay.oss.common.remoting.UploadStream;
+import com.jay.oss.common.remoting.UploadStreamFactory;
 import com.jay.oss.common.util.NodeInfoCollector;
 import com.jay.oss.common.util.StringUtil;
-import com.jay.oss.storage.fs.Block;
 import com.jay.oss.storage.fs.BlockManager;
+import com.jay.oss.storage.fs.BlockReservation;
+import com.jay.oss.storage.fs.DataDirectory;
 import com.jay.oss.storage.fs.ObjectIndex;
 import com.jay.oss.storage.fs.ObjectIndexManager;
 import io.netty.buffer.ByteBuf;
@@ -24,31 +27,43 @@ import lombok.extern.slf4j.Slf4j;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
 /**
  * <p>
  *  文件上传处理器
+ *  同时作为流式上传的接收端工厂，大对象可以边接收边写入block
  * </p>
  *
  * @author Jay
  * @date 2022/01/18 14:45
  */
 @Slf4j
-public class FileUploadProcessor extends AbstractProcessor {
+public class FileUploadProcessor extends AbstractProcessor implements UploadStreamFactory {
 
     private final DoveClient trackerClient;
     private final BlockManager blockManager;
     private final ObjectIndexManager objectIndexManager;
     private final CommandFactory commandFactory;
     private final RecordProducer storageNodeProducer;
+    /**
+     * 处理器线程池，刷盘回调中的阻塞操作交给该线程池执行
+     */
+    private final ExecutorService executor;
 
-    public FileUploadProcessor(DoveClient trackerClient, ObjectIndexManager objectIndexManager, BlockManager blockManager, CommandFactory commandFactory, RecordProducer storageNodeProducer) {
+    public FileUploadProcessor(DoveClient trackerClient, ObjectIndexManager objectIndexManager, BlockManager blockManager, CommandFactory commandFactory,
+                               RecordProducer storageNodeProducer, ExecutorService executor) {
         this.trackerClient = trackerClient;
         this.objectIndexManager = objectIndexManager;
         this.commandFactory = commandFactory;
         this.storageNodeProducer = storageNodeProducer;
         this.blockManager = blockManager;
+        this.executor = executor;
     }
 
     @Override
@@ -65,46 +80,128 @@ public class FileUploadProcessor extends AbstractProcessor {
 
     /**
      * 处理上传请求
+     * 先选择写入的磁盘，然后在该磁盘的写线程池中完成写入，慢磁盘不会占用处理器线程
      * @param context context
      * @param command {@link TinyOssCommand}
      */
     private void processUploadRequest(ChannelHandlerContext context, TinyOssCommand command){
         ByteBuf data = command.getData();
+        if(data.readableBytes() <= UploadRequest.HEADER_LENGTH){
+            data.release();
+            return;
+        }
+        long objectId = data.readLong();
+        int size = data.readInt();
+        DataDirectory directory = blockManager.selectDirectory(size);
+        directory.execute(()->{
+            try{
+                writeObject(context, command, directory, objectId, size, data);
+            }finally {
+                data.release();
+            }
+        }, true);
+    }
+
+    private void writeObject(ChannelHandlerContext context, TinyOssCommand command, DataDirectory directory, long objectId, int size, ByteBuf data){
+        AtomicBoolean duplicateObject = new AtomicBoolean(true);
+        AtomicReference<ObjectIndex> writtenIndex = new AtomicReference<>();
+        /*
+            computeIfAbsent 保证同一个key的meta只保存一次
+        */
+        objectIndexManager.computeIfAbsent(objectId, (id)->{
+            duplicateObject.set(false);
+            ObjectIndex index = blockManager.write(directory, id, data, size);
+            writtenIndex.set(index);
+            return index;
+        });
+        // 没能够成功进行computeIfAbsent的重复的key，或者写入失败
+        if(duplicateObject.get() || writtenIndex.get() == null){
+            // 发送重复回复报文
+            replyError(context, command.getId());
+        } else{
+            data.skipBytes(size);
+            byte[] replicaLocationBytes = new byte[data.readableBytes()];
+            data.readBytes(replicaLocationBytes);
+            onObjectWritten(context, command.getId(), objectId, size, writtenIndex.get(), replicaLocationBytes);
+        }
+    }
+
+    /**
+     * 创建流式上传接收端
+     * 对象已经存在或者需要拆分成多个extent时，按照完整报文处理。
+     * 该方法在IO线程中调用，预留空间可能需要创建block文件，交给处理器线程池执行
+     */
+    @Override
+    public UploadStream open(ChannelHandlerContext context, int commandId, long objectId, int size, int remaining){
+        if(size <= 0 || remaining < size || BlockManager.isMultiExtent(size) || objectIndexManager.getObjectIndex(objectId) != null){
+            return null;
+        }
+        DataDirectory directory = blockManager.selectDirectory(size);
+        CompletableFuture<BlockReservation> reservation;
         try{
-            if(data.readableBytes() <= UploadRequest.HEADER_LENGTH){
+            reservation = CompletableFuture.supplyAsync(() -> blockManager.reserve(directory, objectId, size), executor);
+        }catch (RejectedExecutionException e){
+            return null;
+        }
+        long bufferSize = OssConfigs.streamingUploadBuffer() * 1024L;
+        return new StreamingUpload(this, blockManager, context, commandId, objectId, size, directory, reservation, bufferSize);
+    }
+
+    /**
+     * 流式上传的数据全部写入后，提交记录并写入索引
+     * @param context {@link ChannelHandlerContext}
+     * @param commandId 报文ID
+     * @param objectId 对象ID
+     * @param size 对象大小
+     * @param reservation 写满数据的{@link BlockReservation}
+     * @param replicaLocationBytes 副本位置
+     */
+    void completeStreamingUpload(ChannelHandlerContext context, int commandId, long objectId, int size, BlockReservation reservation, byte[] replicaLocationBytes){
+        AtomicBoolean duplicateObject = new AtomicBoolean(true);
+        AtomicReference<ObjectIndex> committedIndex = new AtomicReference<>();
+        objectIndexManager.computeIfAbsent(objectId, (id)->{
+            duplicateObject.set(false);
+            ObjectIndex index = blockManager.commit(reservation);
+            committedIndex.set(index);
+            return index;
+        });
+        if(duplicateObject.get()){
+            // 接收期间有相同ID的对象写入
+            blockManager.discard(reservation);
+            replyError(context, commandId);
+        }else if(committedIndex.get() == null){
+            replyError(context, commandId);
+        }else{
+            onObjectWritten(context, commandId, objectId, size, committedIndex.get(), replicaLocationBytes);
+        }
+    }
+
+    /**
+     * 对象刷盘后通知Tracker和复制副本，然后回复
+     * 刷盘之前通知Tracker的话，宕机后Tracker会记录一个已经丢失的副本
+     */
+    private void onObjectWritten(ChannelHandlerContext context, int commandId, long objectId, int size, ObjectIndex index, byte[] replicaLocationBytes){
+        // 没有其他副本地址时（比如纠删码分片）不需要复制
+        List<String> locations = Arrays.stream(StringUtil.toString(replicaLocationBytes).split(";"))
+                .filter(location -> !location.isEmpty())
+                .collect(Collectors.toList());
+        // 按照持久化模式等待刷盘完成，回调在刷盘线程执行，通知Tracker可能阻塞，交给处理器线程池
+        blockManager.sync(index).whenComplete((v, e)->{
+            if(e != null){
+                log.warn("Sync object {} failed ", objectId, e);
+                replyError(context, commandId);
                 return;
             }
-            long objectId = data.readLong();
-            int size = data.readInt();
-            AtomicBoolean duplicateObject = new AtomicBoolean(true);
-            /*
-                computeIfAbsent 保证同一个key的meta只保存一次
-            */
-            objectIndexManager.computeIfAbsent(objectId, (id)->{
-                // 获取chunk文件
-                Block block = blockManager.getBlockBySize(size);
-                ObjectIndex index = block.write(id, data, size);
-                duplicateObject.set(false);
-                blockManager.offerBlock(block);
-                return index;
-            });
-            // 没能够成功进行computeIfAbsent的重复的key
-            if(duplicateObject.get()){
-                // 发送重复回复报文
-                RemotingCommand response = commandFactory.createResponse(command.getId(), "", TinyOssProtocol.ERROR);
-                sendResponse(context, response);
-            } else{
-                data.skipBytes(size);
-                byte[] replicaLocationBytes = new byte[data.readableBytes()];
-                data.readBytes(replicaLocationBytes);
-                String[] locations = StringUtil.toString(replicaLocationBytes).split(";");
-                sendUploadCompleteRecord(objectId, size, Arrays.asList(locations));
-                RemotingCommand response = commandFactory.createResponse(command.getId(), "", TinyOssProtocol.SUCCESS);
+            executor.execute(()->{
+                sendUploadCompleteRecord(objectId, size, locations);
+                RemotingCommand response = commandFactory.createResponse(commandId, "", TinyOssProtocol.SUCCESS);
                 sendResponse(context, response);
-            }
-        }finally {
-            data.release();
-        }
+            });
+        });
+    }
+
+    void replyError(ChannelHandlerContext context, int commandId){
+        sendResponse(context, commandFactory.createResponse(commandId, "", TinyOssProtocol.ERROR));
     }
 
     /**
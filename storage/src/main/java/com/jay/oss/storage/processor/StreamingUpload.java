@@ -0,0 +1,243 @@
+package com.jay.oss.storage.processor;
+
+import com.jay.oss.common.remoting.UploadStream;
+import com.jay.oss.storage.fs.BlockManager;
+import com.jay.oss.storage.fs.BlockReservation;
+import com.jay.oss.storage.fs.DataDirectory;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *  一个流式上传请求
+ *  预留空间在处理器线程池中完成，完成之前到达的数据暂存在接收端，预留完成后回到IO线程按顺序处理。
+ *  IO线程按顺序接收数据并计算校验和，数据段交给磁盘写线程池写入预留的区域。
+ *  等待写入的数据超过上限时暂停读取连接，写入跟上后恢复，每个连接占用的内存和对象大小无关。
+ *  所有数据写完后提交记录头，然后和普通上传一样写入索引并回复。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/08 14:02
+ */
+@Slf4j
+public class StreamingUpload implements UploadStream {
+
+    private final FileUploadProcessor processor;
+    private final BlockManager blockManager;
+    private final ChannelHandlerContext context;
+    private final int commandId;
+    private final long objectId;
+    private final int size;
+    private final DataDirectory directory;
+
+    /**
+     * 预留的空间，预留失败时为null
+     */
+    private volatile BlockReservation reservation;
+
+    /**
+     * 预留是否已经完成，包括失败
+     */
+    private volatile boolean reserved = false;
+
+    /**
+     * 预留完成之前到达的数据，只在IO线程中访问
+     */
+    private final Deque<ByteBuf> waiting = new ArrayDeque<>();
+
+    /**
+     * 对象数据之后的副本位置
+     */
+    private final ByteBuf locations = Unpooled.buffer();
+
+    /**
+     * 已经接收的对象数据长度，只在IO线程中修改
+     */
+    private int received = 0;
+
+    private final AtomicInteger pendingWrites = new AtomicInteger(0);
+
+    /**
+     * 已经接收但还没有写入磁盘的字节数
+     */
+    private final AtomicLong pendingBytes = new AtomicLong(0);
+
+    private final long highWaterMark;
+
+    private final long lowWaterMark;
+
+    private volatile boolean receiveDone = false;
+
+    private volatile boolean aborted = false;
+
+    private volatile boolean failed = false;
+
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    public StreamingUpload(FileUploadProcessor processor, BlockManager blockManager, ChannelHandlerContext context, int commandId,
+                           long objectId, int size, DataDirectory directory, CompletableFuture<BlockReservation> reservation, long bufferSize) {
+        this.processor = processor;
+        this.blockManager = blockManager;
+        this.context = context;
+        this.commandId = commandId;
+        this.objectId = objectId;
+        this.size = size;
+        this.directory = directory;
+        this.highWaterMark = bufferSize;
+        this.lowWaterMark = bufferSize / 2;
+        reservation.whenComplete((r, e) -> {
+            if(e != null){
+                log.warn("Reserve space for object {} failed ", objectId, e);
+            }
+            Runnable task = () -> onReserved(e == null ? r : null);
+            try{
+                context.executor().execute(task);
+            }catch (RejectedExecutionException rejected){
+                // 连接已经关闭，接收端已经放弃，直接释放预留的空间
+                task.run();
+            }
+        });
+    }
+
+    @Override
+    public void append(ByteBuf chunk){
+        if(!reserved){
+            waiting.add(chunk);
+            if(pendingBytes.addAndGet(chunk.readableBytes()) > highWaterMark && context.channel().config().isAutoRead()){
+                context.channel().config().setAutoRead(false);
+            }
+            return;
+        }
+        receive(chunk);
+    }
+
+    /**
+     * 预留完成后在IO线程中处理暂存的数据
+     * @param reservation {@link BlockReservation} null if reserve failed
+     */
+    private void onReserved(BlockReservation reservation){
+        this.reservation = reservation;
+        this.reserved = true;
+        ByteBuf chunk;
+        while((chunk = waiting.poll()) != null){
+            pendingBytes.addAndGet(-chunk.readableBytes());
+            receive(chunk);
+        }
+        Channel channel = context.channel();
+        if(pendingBytes.get() <= lowWaterMark && !channel.config().isAutoRead()){
+            channel.config().setAutoRead(true);
+        }
+        if(receiveDone && pendingWrites.get() == 0){
+            directory.execute(this::finish, true);
+        }
+    }
+
+    private void receive(ByteBuf chunk){
+        if(reservation == null){
+            // 预留失败，丢弃剩余的数据，接收完成后回复错误
+            chunk.release();
+            return;
+        }
+        try{
+            int dataLength = Math.min(chunk.readableBytes(), size - received);
+            if(dataLength > 0){
+                ByteBuf data = chunk.readRetainedSlice(dataLength);
+                int position = reservation.accept(data);
+                received += dataLength;
+                submitWrite(data, position);
+            }
+            if(chunk.isReadable()){
+                locations.writeBytes(chunk);
+            }
+        }finally {
+            chunk.release();
+        }
+    }
+
+    private void submitWrite(ByteBuf data, int position){
+        int length = data.readableBytes();
+        pendingWrites.incrementAndGet();
+        Channel channel = context.channel();
+        if(pendingBytes.addAndGet(length) > highWaterMark && channel.config().isAutoRead()){
+            // 磁盘写入跟不上网络，暂停读取该连接
+            channel.config().setAutoRead(false);
+        }
+        directory.execute(()->{
+            try{
+                if(!failed && !aborted){
+                    reservation.write(data, position);
+                }
+            }catch (Exception e){
+                log.warn("Streaming write object {} failed ", objectId, e);
+                failed = true;
+            }finally {
+                data.release();
+                if(pendingBytes.addAndGet(-length) <= lowWaterMark && !channel.config().isAutoRead()){
+                    channel.config().setAutoRead(true);
+                }
+                if(pendingWrites.decrementAndGet() == 0 && receiveDone){
+                    finish();
+                }
+            }
+        }, true);
+    }
+
+    @Override
+    public void complete(){
+        receiveDone = true;
+        if(reserved && pendingWrites.get() == 0){
+            // 提交记录和写入索引可能阻塞，不在IO线程中执行
+            directory.execute(this::finish, true);
+        }
+    }
+
+    @Override
+    public void abort(){
+        aborted = true;
+        complete();
+    }
+
+    /**
+     * 所有数据写入完成后提交或放弃记录，只执行一次
+     */
+    private void finish(){
+        if(!finished.compareAndSet(false, true)){
+            return;
+        }
+        Channel channel = context.channel();
+        if(!channel.config().isAutoRead()){
+            channel.config().setAutoRead(true);
+        }
+        try{
+            if(reservation == null){
+                if(!aborted){
+                    processor.replyError(context, commandId);
+                }
+                return;
+            }
+            if(aborted || failed || !reservation.isComplete()){
+                blockManager.discard(reservation);
+                if(!aborted){
+                    processor.replyError(context, commandId);
+                }
+                return;
+            }
+            byte[] locationBytes = new byte[locations.readableBytes()];
+            locations.readBytes(locationBytes);
+            processor.completeStreamingUpload(context, commandId, objectId, size, reservation, locationBytes);
+        }finally {
+            locations.release();
+        }
+    }
+}
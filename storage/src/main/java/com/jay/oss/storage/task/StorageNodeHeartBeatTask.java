@@ -52,6 +52,7 @@ public class StorageNodeHeartBeatTask implements Runnable{
                             .ifPresent(response->{
                                 storageTaskManager.addReplicaTasks(response.getReplicaTasks());
                                 storageTaskManager.addDeleteTask(response.getDeleteTasks());
+                                storageTaskManager.addRepairTasks(response.getRepairTasks());
                             });
                 }catch (ConnectException e){
                     log.warn("Can't reach tracker server at: {}", OssConfigs.trackerServerUrl());
@@ -3,19 +3,21 @@ package com.jay.oss.storage.task;
 import com.jay.dove.DoveClient;
 import com.jay.dove.transport.Url;
 import com.jay.dove.transport.command.RemotingCommand;
+import com.jay.oss.common.ec.ReedSolomon;
 import com.jay.oss.common.entity.request.GetObjectRequest;
 import com.jay.oss.common.entity.task.DeleteTask;
 import com.jay.oss.common.entity.task.ReplicaTask;
+import com.jay.oss.common.entity.task.ShardRepairTask;
 import com.jay.oss.common.remoting.TinyOssCommand;
 import com.jay.oss.common.remoting.TinyOssProtocol;
 import com.jay.oss.common.util.Scheduler;
-import com.jay.oss.storage.fs.Block;
 import com.jay.oss.storage.fs.BlockManager;
-import com.jay.oss.storage.fs.ObjectIndex;
 import com.jay.oss.storage.fs.ObjectIndexManager;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -35,13 +37,17 @@ import java.util.concurrent.TimeUnit;
 public class StorageTaskManager {
     private final Queue<ReplicaTask> replicaTasks = new LinkedBlockingQueue<>();
     private final Queue<DeleteTask> deleteTasks = new LinkedBlockingQueue<>();
+    private final Queue<ShardRepairTask> repairTasks = new LinkedBlockingQueue<>();
 
     private final DoveClient storageClient;
     private final BlockManager blockManager;
     private final ObjectIndexManager objectIndexManager;
 
     private static final int REPLICA_COPY_COUNT = 100;
-    private static final int MARK_DELETE_COUNT = 100;
+    /**
+     * 一批删除任务的最大数量，同一批中相同block的对象一起删除
+     */
+    private static final int MARK_DELETE_COUNT = 10000;
 
     private static final int MAX_REPLICA_COPY_COST = 1024 * 1024 * 50;
 
@@ -51,6 +57,7 @@ public class StorageTaskManager {
         this.objectIndexManager = objectIndexManager;
         Scheduler.scheduleAtFixedRate(new ReplicaTaskHandler(), 1000, 1000, TimeUnit.MILLISECONDS);
         Scheduler.scheduleAtFixedRate(new DeleteTaskHandler(), 500, 500, TimeUnit.MILLISECONDS);
+        Scheduler.scheduleAtFixedRate(new RepairTaskHandler(), 1000, 1000, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -63,6 +70,48 @@ public class StorageTaskManager {
         }
     }
 
+    /**
+     * 添加纠删码分片修复任务
+     * @param tasks {@link ShardRepairTask}
+     */
+    public void addRepairTasks(List<ShardRepairTask> tasks){
+        if(tasks != null && !tasks.isEmpty()){
+            repairTasks.addAll(tasks);
+        }
+    }
+
+    /**
+     * 下载其他节点上的完整对象
+     * @param objectId 对象ID
+     * @param location 节点地址
+     * @return {@link ByteBuf} null if not found
+     * @throws Exception e
+     */
+    private ByteBuf downloadObject(long objectId, String location) throws Exception {
+        Url url = Url.parseString(location);
+        GetObjectRequest request = new GetObjectRequest(objectId, 0, -1);
+        RemotingCommand command = storageClient.getCommandFactory().createRequest(request, TinyOssProtocol.DOWNLOAD_FULL, GetObjectRequest.class);
+        TinyOssCommand response = (TinyOssCommand)storageClient.sendSync(url, command, null);
+        if(!TinyOssProtocol.DOWNLOAD_RESPONSE.equals(response.getCommandCode()) || response.getData() == null){
+            return null;
+        }
+        return response.getData();
+    }
+
+    /**
+     * 保存对象数据
+     * 对象已经存在时不会写入，data在任何情况下都由这里释放
+     * @param objectId object ID
+     * @param data {@link ByteBuf} object数据
+     */
+    private void saveObject(long objectId, ByteBuf data) {
+        try{
+            objectIndexManager.computeIfAbsent(objectId, (id)-> blockManager.write(objectId, data, data.readableBytes()));
+        }finally {
+            data.release();
+        }
+    }
+
     /**
      * 添加删除副本任务
      * @param tasks {@link DeleteTask}
@@ -89,13 +138,14 @@ public class StorageTaskManager {
                     break;
                 }
                 try{
-                    Url url = Url.parseString(task.getStorageUrl());
                     cost += task.getSize();
                     taskCount ++;
-                    GetObjectRequest request = new GetObjectRequest(task.getObjectId(), 0, -1);
-                    RemotingCommand command = storageClient.getCommandFactory().createRequest(request, TinyOssProtocol.DOWNLOAD_FULL, GetObjectRequest.class);
-                    TinyOssCommand response = (TinyOssCommand)storageClient.sendSync(url, command, null);
-                    saveObject(task.getObjectId(), response.getData());
+                    ByteBuf data = downloadObject(task.getObjectId(), task.getStorageUrl());
+                    if(data == null){
+                        log.warn("Replica of object {} not found on {}", task.getObjectId(), task.getStorageUrl());
+                        continue;
+                    }
+                    saveObject(task.getObjectId(), data);
                 }catch (Exception e){
                     log.warn("Failed to copy replica from : {}", task.getStorageUrl());
                     replicaTasks.offer(task);
@@ -105,45 +155,88 @@ public class StorageTaskManager {
                 log.info("Replica task done, copied: {} , size: {} bytes, time used: {}ms", taskCount, cost,  (System.currentTimeMillis() - startTime));
             }
         }
-        /**
-         * 保存对象数据
-         * @param objectId object ID
-         * @param data {@link ByteBuf} object数据
-         */
-        private void saveObject(long objectId, ByteBuf data) {
-            objectIndexManager.computeIfAbsent(objectId, (id)->{
-                int size = data.readableBytes();
-                Block block = blockManager.getBlockBySize(size);
-                ObjectIndex index = block.write(objectId, data, size);
-                blockManager.offerBlock(block);
-                data.release();
-                return index;
-            });
+    }
+
+    /**
+     * 纠删码分片修复任务处理器
+     * 从其他节点下载k个分片，解码出丢失的分片后保存在本节点
+     */
+    class RepairTaskHandler implements Runnable{
+        @Override
+        public void run() {
+            int cost = 0;
+            ShardRepairTask task;
+            while(cost < MAX_REPLICA_COPY_COST && (task = repairTasks.poll()) != null){
+                long shardId = task.getShardIds().get(task.getShardIndex());
+                if(objectIndexManager.getObjectIndex(shardId) != null){
+                    continue;
+                }
+                long startTime = System.currentTimeMillis();
+                ReedSolomon codec = new ReedSolomon(task.getDataShards(), task.getParityShards());
+                cost += codec.shardSize(task.getSize()) * task.getDataShards();
+                byte[][] shards = new byte[codec.getTotalShards()][];
+                boolean[] present = new boolean[codec.getTotalShards()];
+                int available = 0;
+                for (int i = 0; i < codec.getTotalShards() && available < task.getDataShards(); i++) {
+                    String location = task.getShardLocations().get(i);
+                    if(i == task.getShardIndex() || location.isEmpty()){
+                        continue;
+                    }
+                    shards[i] = downloadShard(task.getShardIds().get(i), location);
+                    present[i] = shards[i] != null;
+                    available += present[i] ? 1 : 0;
+                }
+                if(available < task.getDataShards()){
+                    log.warn("Repair shard {} failed, only {} shards available", shardId, available);
+                    continue;
+                }
+                codec.reconstruct(shards, present);
+                saveObject(shardId, Unpooled.wrappedBuffer(shards[task.getShardIndex()]));
+                log.info("Shard {} repaired, time used: {}ms", shardId, (System.currentTimeMillis() - startTime));
+            }
+        }
+
+        private byte[] downloadShard(long shardId, String location){
+            try{
+                ByteBuf data = downloadObject(shardId, location);
+                if(data == null){
+                    return null;
+                }
+                try{
+                    byte[] shard = new byte[data.readableBytes()];
+                    data.readBytes(shard);
+                    return shard;
+                }finally {
+                    data.release();
+                }
+            }catch (Exception e){
+                log.warn("Download shard {} from {} failed ", shardId, location, e);
+                return null;
+            }
         }
     }
 
     /**
      * 删除任务处理器
-     * 从删除任务队列消费一个任务，然后在文件系统标记删除
+     * 每次把队列中的删除任务分批取出，按批交给文件系统标记删除
      */
     class DeleteTaskHandler implements Runnable{
         @Override
         public void run() {
             long startTime = System.currentTimeMillis();
             int count = 0;
-            int i = 0;
+            List<Long> batch = new ArrayList<>();
             DeleteTask task;
-            while(i++ < MARK_DELETE_COUNT && (task = deleteTasks.poll()) != null){
-                long objectId = task.getObjectId();
-                ObjectIndex index = objectIndexManager.getObjectIndex(objectId);
-                Block block;
-                if(index != null && !index.isRemoved() && (block = blockManager.getBlockById(index.getBlockId())) != null){
-                    if(block.delete(objectId, index.getOffset())){
-                        index.setRemoved(true);
-                        count++;
-                    }
+            while((task = deleteTasks.poll()) != null){
+                batch.add(task.getObjectId());
+                if(batch.size() >= MARK_DELETE_COUNT){
+                    count += blockManager.delete(batch);
+                    batch.clear();
                 }
             }
+            if(!batch.isEmpty()){
+                count += blockManager.delete(batch);
+            }
             if(count > 0){
                 log.info("{} Objects Marked deleted, time used: {}ms",count, (System.currentTimeMillis() - startTime));
             }
@@ -0,0 +1,183 @@
+import com.jay.oss.common.config.ConfigsManager;
+import com.jay.oss.storage.fs.Block;
+import com.jay.oss.storage.fs.BlockManager;
+import com.jay.oss.storage.fs.ObjectIndex;
+import com.jay.oss.storage.fs.ObjectIndexManager;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ *  批量删除和墓碑测试
+ *  批量删除只统计本次删除的对象；墓碑在全量扫描和checkpoint恢复之后都能恢复删除；
+ *  压缩期间并发删除的对象在压缩和墓碑改写之后仍然是删除状态
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/16 20:30
+ */
+@Slf4j
+public class TestBlockDelete {
+
+    private static final int OBJECT_COUNT = 1000;
+
+    private File dataPath;
+
+    @Before
+    public void setUp() throws IOException {
+        dataPath = Files.createTempDirectory("block_delete").toFile();
+        ConfigsManager.set("oss.data.path", dataPath.getPath());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        ConfigsManager.set("oss.fs.compact_garbage_percent", "30");
+        FileUtils.deleteDirectory(dataPath);
+    }
+
+    @Test
+    public void testBatchDeleteCount(){
+        ObjectIndexManager indexManager = new ObjectIndexManager();
+        BlockManager blockManager = start(indexManager);
+        try{
+            // 重复的ID只删除一次
+            Assert.assertEquals(3, blockManager.delete(Arrays.asList(1L, 2L, 2L, 3L)));
+            // 已经删除的对象和不存在的对象不计入
+            Assert.assertEquals(1, blockManager.delete(Arrays.asList(1L, 4L, OBJECT_COUNT + 1L)));
+            Assert.assertFalse(blockManager.delete(1L));
+            // 记录已经删除时，块内删除不重复统计
+            ObjectIndex index = indexManager.getObjectIndex(5L);
+            Block block = blockManager.getBlockById(index.getBlockId());
+            long deadBytes = block.deadBytes();
+            Assert.assertTrue(block.delete(5L, index.getOffset()));
+            Assert.assertFalse(block.delete(5L, index.getOffset()));
+            Assert.assertEquals(deadBytes + index.getSize() + Block.HEADER_LENGTH_V2, block.deadBytes());
+        }finally {
+            blockManager.shutdown();
+        }
+    }
+
+    @Test
+    public void testTombstonesRecoveredByFullScan(){
+        ObjectIndexManager indexManager = new ObjectIndexManager();
+        BlockManager blockManager = start(indexManager);
+        Assert.assertEquals(10, blockManager.delete(ids(1, 10)));
+        long deadBytes = blockManager.reclaimableBytes();
+        blockManager.shutdown();
+
+        // 没有checkpoint，重启时全量扫描，墓碑中的记录不会被加载为存活对象
+        ObjectIndexManager restoredIndexes = new ObjectIndexManager();
+        BlockManager restarted = new BlockManager(restoredIndexes);
+        restarted.loadBlocks();
+        try{
+            assertDeleted(restoredIndexes, restarted, ids(1, 10));
+            Assert.assertEquals(deadBytes, restarted.reclaimableBytes());
+            Assert.assertEquals(0, restarted.delete(ids(1, 10)));
+        }finally {
+            restarted.shutdown();
+        }
+    }
+
+    @Test
+    public void testDeleteDuringCompaction() throws InterruptedException {
+        ConfigsManager.set("oss.fs.compact_garbage_percent", "10");
+        ObjectIndexManager indexManager = new ObjectIndexManager();
+        BlockManager blockManager = start(indexManager);
+        Assert.assertTrue(blockManager.checkpoint());
+        // 超过压缩阈值
+        Assert.assertEquals(OBJECT_COUNT / 2, blockManager.delete(ids(1, OBJECT_COUNT / 2)));
+        Set<Long> deleted = ConcurrentHashMap.newKeySet();
+        deleted.addAll(ids(1, OBJECT_COUNT / 2));
+        Thread deleter = new Thread(() -> {
+            for (long objectId = OBJECT_COUNT / 2 + 1; objectId <= OBJECT_COUNT; objectId += 3) {
+                if(blockManager.delete(objectId)){
+                    deleted.add(objectId);
+                }
+            }
+        });
+        deleter.start();
+        blockManager.compactBlocks();
+        deleter.join();
+        // 压缩之后的删除留在墓碑中，再执行一次改写墓碑
+        blockManager.compactBlocks();
+        assertState(indexManager, blockManager, deleted);
+        blockManager.shutdown();
+
+        ObjectIndexManager restoredIndexes = new ObjectIndexManager();
+        BlockManager restarted = new BlockManager(restoredIndexes);
+        restarted.loadBlocks();
+        try{
+            assertState(restoredIndexes, restarted, deleted);
+        }finally {
+            restarted.shutdown();
+        }
+    }
+
+    private static BlockManager start(ObjectIndexManager indexManager){
+        BlockManager blockManager = new BlockManager(indexManager);
+        blockManager.loadBlocks();
+        for (long objectId = 1; objectId <= OBJECT_COUNT; objectId++) {
+            byte[] content = content(objectId);
+            indexManager.computeIfAbsent(objectId, id -> blockManager.write(id, Unpooled.wrappedBuffer(content), content.length));
+        }
+        return blockManager;
+    }
+
+    private static byte[] content(long objectId){
+        return ("object-" + objectId).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<Long> ids(long from, long to){
+        List<Long> ids = new ArrayList<>();
+        for (long objectId = from; objectId <= to; objectId++) {
+            ids.add(objectId);
+        }
+        return ids;
+    }
+
+    private static void assertState(ObjectIndexManager indexManager, BlockManager blockManager, Set<Long> deleted){
+        List<Long> live = new ArrayList<>();
+        for (long objectId = 1; objectId <= OBJECT_COUNT; objectId++) {
+            if(!deleted.contains(objectId)){
+                live.add(objectId);
+            }
+        }
+        assertDeleted(indexManager, blockManager, new ArrayList<>(deleted));
+        for (Long objectId : live) {
+            ObjectIndex index = indexManager.getObjectIndex(objectId);
+            Assert.assertNotNull(index);
+            Assert.assertFalse(index.isRemoved());
+            ByteBuf data = blockManager.getBlockById(index.getBlockId()).read(index, 0, index.getSize());
+            try{
+                Assert.assertEquals(new String(content(objectId), StandardCharsets.UTF_8), data.toString(StandardCharsets.UTF_8));
+            }finally {
+                data.release();
+            }
+        }
+    }
+
+    private static void assertDeleted(ObjectIndexManager indexManager, BlockManager blockManager, List<Long> objectIds){
+        for (Long objectId : objectIds) {
+            // 压缩会丢弃被删除的对象，恢复后没有索引
+            ObjectIndex index = indexManager.getObjectIndex(objectId);
+            Assert.assertTrue(index == null || index.isRemoved());
+            Assert.assertFalse(blockManager.delete(objectId));
+        }
+    }
+}
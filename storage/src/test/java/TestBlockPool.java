@@ -0,0 +1,114 @@
+import com.jay.oss.common.config.ConfigsManager;
+import com.jay.oss.storage.fs.Block;
+import com.jay.oss.storage.fs.BlockPool;
+import com.jay.oss.storage.fs.DataDirectory;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ *  空block池测试
+ *  启动后后台补充到池的深度，取出的是预先创建的block，取出后重新补充；
+ *  关闭池时删除没有使用过的block文件
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/16 19:20
+ */
+@Slf4j
+public class TestBlockPool {
+
+    private static final int POOL_SIZE = 2;
+
+    private File dataPath;
+
+    private DataDirectory directory;
+
+    private final AtomicInteger blockIds = new AtomicInteger(1);
+
+    @Before
+    public void setUp() throws IOException {
+        dataPath = Files.createTempDirectory("block_pool").toFile();
+        ConfigsManager.set("oss.fs.block_pool_size", Integer.toString(POOL_SIZE));
+        directory = new DataDirectory(0, dataPath.getPath());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        directory.shutdown();
+        FileUtils.deleteDirectory(dataPath);
+    }
+
+    @Test
+    public void testTakeFromPool() throws InterruptedException {
+        BlockPool pool = new BlockPool(Collections.singletonList(directory), dir -> new Block(blockIds.getAndIncrement(), dir));
+        pool.start();
+        awaitAvailable(pool, POOL_SIZE);
+        Assert.assertEquals(POOL_SIZE, directory.listBlockFiles().length);
+
+        Block block = pool.take(directory);
+        try{
+            Assert.assertEquals(0, pool.misses());
+            Assert.assertEquals(0, block.writePosition());
+            Assert.assertEquals(Block.MAX_BLOCK_SIZE, block.availableSpace());
+            // 取出后补充到池的深度
+            awaitAvailable(pool, POOL_SIZE);
+            Assert.assertEquals(POOL_SIZE + 1, directory.listBlockFiles().length);
+        }finally {
+            block.release();
+        }
+        pool.shutdown();
+        // 池中没有使用过的block被删除
+        Assert.assertEquals(0, directory.listBlockFiles().length);
+    }
+
+    @Test
+    public void testTakeWhenEmpty(){
+        ConfigsManager.set("oss.fs.block_pool_size", "0");
+        BlockPool pool = new BlockPool(Collections.singletonList(directory), dir -> new Block(blockIds.getAndIncrement(), dir));
+        pool.start();
+        Block block = pool.take(directory);
+        try{
+            Assert.assertNotNull(block);
+            Assert.assertEquals(0, pool.available(directory));
+        }finally {
+            block.release();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testMmapPreallocateSizesFile() throws InterruptedException {
+        ConfigsManager.set("oss.fs.enable_mmap", "true");
+        try{
+            BlockPool pool = new BlockPool(Collections.singletonList(directory), dir -> new Block(blockIds.getAndIncrement(), dir));
+            pool.start();
+            awaitAvailable(pool, POOL_SIZE);
+            // 预分配只设置文件长度，不写入数据页
+            for (File file : directory.listBlockFiles()) {
+                Assert.assertEquals(Block.MAX_BLOCK_SIZE, file.length());
+            }
+            pool.shutdown();
+        }finally {
+            ConfigsManager.set("oss.fs.enable_mmap", "false");
+        }
+    }
+
+    private void awaitAvailable(BlockPool pool, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(pool.available(directory) < expected){
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
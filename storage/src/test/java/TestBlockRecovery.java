@@ -0,0 +1,101 @@
+import com.jay.oss.common.config.ConfigsManager;
+import com.jay.oss.storage.fs.BlockManager;
+import com.jay.oss.storage.fs.DataDirectory;
+import com.jay.oss.storage.fs.ObjectIndex;
+import com.jay.oss.storage.fs.ObjectIndexManager;
+import io.netty.buffer.Unpooled;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * <p>
+ *  多数据目录恢复测试
+ *  每个数据目录使用独立的恢复线程池，全量扫描和从checkpoint恢复都能找回所有目录中的对象
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/18 14:10
+ */
+@Slf4j
+public class TestBlockRecovery {
+
+    private static final int OBJECT_COUNT = 300;
+
+    private File dataPath;
+
+    @Before
+    public void setUp() throws IOException {
+        dataPath = Files.createTempDirectory("block_recovery").toFile();
+        ConfigsManager.set("oss.data.path", dataPath.getPath());
+        ConfigsManager.set("oss.data.paths", new File(dataPath, "disk0").getPath() + "," + new File(dataPath, "disk1").getPath());
+        ConfigsManager.set("oss.fs.block_recovery_parallelism", "2");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        ConfigsManager.set("oss.data.paths", "");
+        FileUtils.deleteDirectory(dataPath);
+    }
+
+    @Test
+    public void testRecoverAllDirectories(){
+        ObjectIndexManager indexManager = new ObjectIndexManager();
+        BlockManager blockManager = new BlockManager(indexManager);
+        blockManager.loadBlocks();
+        List<DataDirectory> directories = blockManager.getDirectories();
+        Assert.assertEquals(2, directories.size());
+        // 前一半对象在checkpoint之前写入，后一半在checkpoint之后写入
+        write(indexManager, blockManager, 1, OBJECT_COUNT / 2);
+        Assert.assertTrue(blockManager.checkpoint());
+        write(indexManager, blockManager, OBJECT_COUNT / 2 + 1, OBJECT_COUNT);
+        blockManager.shutdown();
+
+        assertRecovered(directories.size());
+        // 没有checkpoint时全量扫描
+        Assert.assertTrue(new File(dataPath, "index.checkpoint").delete());
+        assertRecovered(directories.size());
+    }
+
+    private static void write(ObjectIndexManager indexManager, BlockManager blockManager, long from, long to){
+        List<DataDirectory> directories = blockManager.getDirectories();
+        for (long objectId = from; objectId <= to; objectId++) {
+            byte[] content = content(objectId);
+            DataDirectory directory = directories.get((int) (objectId % directories.size()));
+            indexManager.computeIfAbsent(objectId, id -> blockManager.write(directory, id, Unpooled.wrappedBuffer(content), content.length));
+        }
+    }
+
+    private static void assertRecovered(int directoryCount){
+        ObjectIndexManager indexManager = new ObjectIndexManager();
+        BlockManager blockManager = new BlockManager(indexManager);
+        blockManager.loadBlocks();
+        try{
+            Assert.assertEquals(OBJECT_COUNT, indexManager.size());
+            for (long objectId = 1; objectId <= OBJECT_COUNT; objectId++) {
+                ObjectIndex index = indexManager.getObjectIndex(objectId);
+                Assert.assertNotNull(index);
+                Assert.assertFalse(index.isRemoved());
+                DataDirectory directory = blockManager.directoryOf(index.getBlockId());
+                Assert.assertNotNull(directory);
+                Assert.assertEquals(objectId % directoryCount, directory.getIndex());
+                Assert.assertEquals(content(objectId).length, index.getSize());
+            }
+        }finally {
+            blockManager.shutdown();
+        }
+    }
+
+    private static byte[] content(long objectId){
+        return ("object-" + objectId).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,102 @@
+import com.jay.oss.common.config.OssConfigs;
+import com.jay.oss.common.util.BufferPool;
+import com.jay.oss.storage.fs.Block;
+import com.jay.oss.storage.fs.DataDirectory;
+import com.jay.oss.storage.fs.ObjectIndex;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PoolArenaMetric;
+import io.netty.buffer.Unpooled;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ *  数据路径内存池泄漏测试
+ *  读写完成并释放后，清空当前线程的缓存，内存池中活跃的分配数量应该回到初始值；
+ *  任何没有释放的ByteBuf都会让活跃分配数量增加；重复读取时内存池复用已经分配的内存，占用的堆外内存不再增长
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/07 16:05
+ */
+@Slf4j
+public class TestBufferPool {
+
+    private static final int OBJECT_COUNT = 100;
+
+    @Test
+    public void testReadWriteReleasesBuffers(){
+        Block block = new Block(Integer.MAX_VALUE, directory());
+        try{
+            long baseline = activeAllocations();
+            long allocations = BufferPool.allocations();
+            List<ObjectIndex> indexes = new ArrayList<>(OBJECT_COUNT);
+            for (int i = 0; i < OBJECT_COUNT; i++) {
+                byte[] content = ("object-" + i).getBytes(StandardCharsets.UTF_8);
+                indexes.add(block.write(i, Unpooled.wrappedBuffer(content), content.length));
+            }
+            readAll(block, indexes);
+            // 读写使用内存池分配，释放后没有遗留的分配
+            Assert.assertTrue(BufferPool.allocations() > allocations);
+            Assert.assertEquals(baseline, activeAllocations());
+            long usedMemory = BufferPool.metric().usedDirectMemory();
+            readAll(block, indexes);
+            Assert.assertEquals(baseline, activeAllocations());
+            Assert.assertEquals(usedMemory, BufferPool.metric().usedDirectMemory());
+            log.info("Pooled allocations: {}, bytes: {}", BufferPool.allocations(), BufferPool.allocatedBytes());
+        }finally {
+            block.release();
+        }
+    }
+
+    @Test
+    public void testUnreleasedBufferDetected(){
+        Block block = new Block(Integer.MAX_VALUE - 1, directory());
+        try{
+            byte[] content = "leak".getBytes(StandardCharsets.UTF_8);
+            ObjectIndex index = block.write(1, Unpooled.wrappedBuffer(content), content.length);
+            long baseline = activeAllocations();
+            ByteBuf leaked = block.read(index.getOffset(), 0, index.getSize());
+            Assert.assertEquals(baseline + 1, activeAllocations());
+            leaked.release();
+            Assert.assertEquals(baseline, activeAllocations());
+        }finally {
+            block.release();
+        }
+    }
+
+    private static void readAll(Block block, List<ObjectIndex> indexes){
+        for (int i = 0; i < indexes.size(); i++) {
+            ObjectIndex index = indexes.get(i);
+            ByteBuf full = block.read(index.getOffset(), 0, index.getSize());
+            Assert.assertEquals("object-" + i, full.toString(StandardCharsets.UTF_8));
+            full.release();
+            ByteBuf range = block.read(index.getOffset(), 1, 3);
+            Assert.assertEquals("bje", range.toString(StandardCharsets.UTF_8));
+            range.release();
+        }
+    }
+
+    private static DataDirectory directory(){
+        return new DataDirectory(0, OssConfigs.dataPath() + File.separator + "test_buffer_pool");
+    }
+
+    /**
+     * 内存池中还没有释放的分配数量
+     * 释放到线程缓存的内存不计入释放，先清空当前线程的缓存
+     */
+    private static long activeAllocations(){
+        BufferPool.allocator().trimCurrentThreadCache();
+        long active = 0;
+        for (PoolArenaMetric arena : BufferPool.metric().directArenas()) {
+            active += arena.numActiveAllocations();
+        }
+        return active;
+    }
+}
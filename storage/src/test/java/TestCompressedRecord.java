@@ -0,0 +1,159 @@
+import com.jay.oss.common.config.ConfigsManager;
+import com.jay.oss.common.util.CompressUtil;
+import com.jay.oss.storage.fs.Block;
+import com.jay.oss.storage.fs.BlockManager;
+import com.jay.oss.storage.fs.CompressedRecord;
+import com.jay.oss.storage.fs.ObjectIndex;
+import com.jay.oss.storage.fs.ObjectIndexManager;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * <p>
+ *  分块压缩记录测试
+ *  范围读取只解压覆盖的分块，覆盖第一个和最后一个字节、跨越分块边界的范围，
+ *  以及压缩后没有变小、按原样存储的分块
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/16 21:15
+ */
+@Slf4j
+public class TestCompressedRecord {
+
+    /**
+     * 分块大小，和配置的单位KB一致
+     */
+    private static final int CHUNK_SIZE = 1024;
+
+    /**
+     * 5个完整分块加上不足一个分块的尾部
+     */
+    private static final int OBJECT_SIZE = CHUNK_SIZE * 5 + 300;
+
+    private File dataPath;
+
+    private ObjectIndexManager indexManager;
+
+    private BlockManager blockManager;
+
+    @Before
+    public void setUp() throws IOException {
+        dataPath = Files.createTempDirectory("compressed_record").toFile();
+        ConfigsManager.set("oss.data.path", dataPath.getPath());
+        ConfigsManager.set("oss.fs.enable_compression", "true");
+        ConfigsManager.set("oss.fs.compression_chunk_size", "1");
+        ConfigsManager.set("oss.fs.compression_min_size", "4");
+        indexManager = new ObjectIndexManager();
+        blockManager = new BlockManager(indexManager);
+        blockManager.loadBlocks();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        blockManager.shutdown();
+        ConfigsManager.set("oss.fs.enable_compression", "false");
+        FileUtils.deleteDirectory(dataPath);
+    }
+
+    @Test
+    public void testRangedRead(){
+        byte[] content = text(OBJECT_SIZE);
+        ObjectIndex index = write(1L, content);
+        Assert.assertTrue(index.isCompressed());
+        Assert.assertEquals(OBJECT_SIZE, index.getSize());
+        assertRanges(index, content);
+    }
+
+    @Test
+    public void testRawChunks(){
+        // 第一个分块可以压缩，之后的分块是随机数据，压缩后没有变小，按原样存储
+        byte[] content = text(OBJECT_SIZE);
+        byte[] random = new byte[OBJECT_SIZE - CHUNK_SIZE * 3];
+        new Random(7).nextBytes(random);
+        System.arraycopy(random, 0, content, CHUNK_SIZE * 3, random.length);
+        ByteBuf record = CompressedRecord.encode(Unpooled.wrappedBuffer(content), OBJECT_SIZE, CompressUtil.getCompressor("lz4"), CHUNK_SIZE, 0);
+        Assert.assertNotNull(record);
+        // 随机数据所在的分块带有原样存储标记
+        int storedLength = record.getInt(9 + 4 * 3);
+        Assert.assertTrue(storedLength < 0);
+        Assert.assertEquals(CHUNK_SIZE, storedLength & Integer.MAX_VALUE);
+
+        ConfigsManager.set("oss.fs.compression_min_saving", "0");
+        try{
+            ObjectIndex index = write(2L, content);
+            Assert.assertTrue(index.isCompressed());
+            assertRanges(index, content);
+        }finally {
+            ConfigsManager.set("oss.fs.compression_min_saving", "20");
+        }
+    }
+
+    @Test
+    public void testIncompressible(){
+        byte[] content = new byte[OBJECT_SIZE];
+        new Random(11).nextBytes(content);
+        // 第一个分块的样本压缩率不够，直接放弃
+        Assert.assertNull(CompressedRecord.encode(Unpooled.wrappedBuffer(content), OBJECT_SIZE, CompressUtil.getCompressor("lz4"), CHUNK_SIZE, 20));
+        Assert.assertNull(CompressedRecord.encode(Unpooled.wrappedBuffer(content), OBJECT_SIZE, CompressUtil.getCompressor("gzip"), CHUNK_SIZE, 20));
+        ObjectIndex index = write(3L, content);
+        Assert.assertFalse(index.isCompressed());
+        assertRanges(index, content);
+    }
+
+    private ObjectIndex write(long objectId, byte[] content){
+        ObjectIndex index = blockManager.write(objectId, Unpooled.wrappedBuffer(content), content.length);
+        Assert.assertNotNull(index);
+        return index;
+    }
+
+    private void assertRanges(ObjectIndex index, byte[] content){
+        // 完整对象、第一个和最后一个字节
+        assertRange(index, content, 0, OBJECT_SIZE);
+        assertRange(index, content, 0, 1);
+        assertRange(index, content, OBJECT_SIZE - 1, 1);
+        // 跨越一个分块边界、跨越多个分块、正好一个分块、最后不完整的分块
+        assertRange(index, content, CHUNK_SIZE - 10, 20);
+        assertRange(index, content, CHUNK_SIZE / 2, CHUNK_SIZE * 3);
+        assertRange(index, content, CHUNK_SIZE * 2, CHUNK_SIZE);
+        assertRange(index, content, CHUNK_SIZE * 5, 300);
+        assertRange(index, content, CHUNK_SIZE * 3 - 1, 2);
+        assertRange(index, content, 100, 0);
+    }
+
+    private void assertRange(ObjectIndex index, byte[] content, int start, int length){
+        Block block = blockManager.getBlockById(index.getBlockId());
+        ByteBuf data = block.read(index, start, length);
+        Assert.assertNotNull(data);
+        try{
+            Assert.assertEquals(length, data.readableBytes());
+            byte[] expected = new byte[length];
+            System.arraycopy(content, start, expected, 0, length);
+            byte[] actual = new byte[length];
+            data.getBytes(data.readerIndex(), actual);
+            Assert.assertArrayEquals("range " + start + "+" + length, expected, actual);
+        }finally {
+            data.release();
+        }
+    }
+
+    private static byte[] text(int size){
+        StringBuilder builder = new StringBuilder(size);
+        for (int i = 0; builder.length() < size; i++) {
+            builder.append("line-").append(i).append(": the quick brown fox jumps over the lazy dog\n");
+        }
+        return builder.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,166 @@
+import com.jay.oss.common.config.ConfigsManager;
+import com.jay.oss.storage.fs.Block;
+import com.jay.oss.storage.fs.BlockManager;
+import com.jay.oss.storage.fs.ObjectIndex;
+import com.jay.oss.storage.fs.ObjectIndexManager;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ *  并发追加写入测试
+ *  多个写入者共享活跃block，写满后切换活跃block，同时后台压缩取出切换下来的block；
+ *  所有写入成功的对象在压缩之后都能读到正确的内容；
+ *  切换之前读到旧活跃block的写入者不能再追加到已经放回空闲队列的block
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/18 10:30
+ */
+@Slf4j
+public class TestConcurrentAppend {
+
+    private static final int WRITERS = 8;
+
+    private static final int OBJECTS_PER_WRITER = 80;
+
+    /**
+     * 总写入量超过两个block，保证活跃block切换
+     */
+    private static final int OBJECT_SIZE = 512 * 1024;
+
+    private File dataPath;
+
+    @Before
+    public void setUp() throws IOException {
+        dataPath = Files.createTempDirectory("concurrent_append").toFile();
+        ConfigsManager.set("oss.data.path", dataPath.getPath());
+        ConfigsManager.set("oss.fs.enable_concurrent_append", "true");
+        ConfigsManager.set("oss.fs.compact_garbage_percent", "10");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        ConfigsManager.set("oss.fs.enable_concurrent_append", "false");
+        FileUtils.deleteDirectory(dataPath);
+    }
+
+    @Test
+    public void testRollDuringCompaction() throws InterruptedException {
+        ObjectIndexManager indexManager = new ObjectIndexManager();
+        BlockManager blockManager = new BlockManager(indexManager);
+        blockManager.loadBlocks();
+        AtomicInteger failed = new AtomicInteger(0);
+        Set<Long> deleted = ConcurrentHashMap.newKeySet();
+        List<Thread> writers = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            long firstId = (long) w * OBJECTS_PER_WRITER + 1;
+            Thread writer = new Thread(() -> {
+                for (long objectId = firstId; objectId < firstId + OBJECTS_PER_WRITER; objectId++) {
+                    byte[] content = content(objectId);
+                    indexManager.computeIfAbsent(objectId, id -> blockManager.write(id, Unpooled.wrappedBuffer(content), content.length));
+                    if(indexManager.getObjectIndex(objectId) == null){
+                        failed.incrementAndGet();
+                        continue;
+                    }
+                    // 删除一半的对象，切换下来的block达到压缩阈值
+                    if(objectId % 2 == 0 && blockManager.delete(objectId)){
+                        deleted.add(objectId);
+                    }
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+        int rounds = 0;
+        while(writers.stream().anyMatch(Thread::isAlive)){
+            blockManager.compactBlocks();
+            rounds++;
+            Thread.sleep(5);
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        blockManager.compactBlocks();
+        log.info("Compaction rounds during writes: {}", rounds);
+        try{
+            Assert.assertEquals(0, failed.get());
+            for (long objectId = 1; objectId <= (long) WRITERS * OBJECTS_PER_WRITER; objectId++) {
+                ObjectIndex index = indexManager.getObjectIndex(objectId);
+                Assert.assertNotNull(index);
+                Assert.assertEquals(deleted.contains(objectId), index.isRemoved());
+                if(!index.isRemoved()){
+                    assertContent(blockManager, objectId, index);
+                }
+            }
+        }finally {
+            blockManager.shutdown();
+        }
+    }
+
+    @Test
+    public void testStaleAppendRejected(){
+        ObjectIndexManager indexManager = new ObjectIndexManager();
+        BlockManager blockManager = new BlockManager(indexManager);
+        blockManager.loadBlocks();
+        try{
+            int firstBlock = -1;
+            long objectId = 1;
+            while(true){
+                byte[] content = content(objectId);
+                ObjectIndex index = blockManager.write(objectId++, Unpooled.wrappedBuffer(content), content.length);
+                Assert.assertNotNull(index);
+                if(firstBlock == -1){
+                    firstBlock = index.getBlockId();
+                }else if(index.getBlockId() != firstBlock){
+                    break;
+                }
+            }
+            // 旧的活跃block仍然有空间写入小对象，但是已经关闭追加
+            Block stale = blockManager.getBlockById(firstBlock);
+            int position = stale.writePosition();
+            Assert.assertTrue(stale.availableSpace() > 1024);
+            Assert.assertNull(stale.append(objectId, Unpooled.wrappedBuffer(new byte[1024]), 1024));
+            Assert.assertEquals(position, stale.writePosition());
+        }finally {
+            blockManager.shutdown();
+        }
+    }
+
+    private static void assertContent(BlockManager blockManager, long objectId, ObjectIndex index){
+        Block block = blockManager.getBlockById(index.getBlockId());
+        Assert.assertNotNull(block);
+        ByteBuf data = block.read(index, 0, index.getSize());
+        Assert.assertNotNull("object " + objectId, data);
+        try{
+            byte[] actual = new byte[data.readableBytes()];
+            data.getBytes(data.readerIndex(), actual);
+            Assert.assertArrayEquals("object " + objectId, content(objectId), actual);
+        }finally {
+            data.release();
+        }
+    }
+
+    private static byte[] content(long objectId){
+        byte[] content = new byte[OBJECT_SIZE];
+        Arrays.fill(content, (byte) objectId);
+        content[0] = (byte) (objectId >>> 8);
+        return content;
+    }
+}
@@ -0,0 +1,131 @@
+import com.jay.oss.common.config.ConfigsManager;
+import com.jay.oss.storage.fs.Block;
+import com.jay.oss.storage.fs.BlockManager;
+import com.jay.oss.storage.fs.ObjectIndex;
+import com.jay.oss.storage.fs.ObjectIndexManager;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * <p>
+ *  大对象extent读写测试
+ *  对象超过一个block时拆分成extent和manifest，覆盖写入、跨extent的范围读取、删除，
+ *  以及manifest删除之后宕机留下的孤立extent在重启时被清理
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/16 15:40
+ */
+@Slf4j
+public class TestExtentObject {
+
+    /**
+     * 一个完整的extent加上放在manifest中的尾部数据
+     */
+    private static final int OBJECT_SIZE = Block.MAX_BLOCK_SIZE + 4096;
+
+    private static final long OBJECT_ID = 1L;
+
+    private File dataPath;
+
+    private byte[] content;
+
+    @Before
+    public void setUp() throws IOException {
+        dataPath = Files.createTempDirectory("extent_object").toFile();
+        ConfigsManager.set("oss.data.path", dataPath.getPath());
+        content = new byte[OBJECT_SIZE];
+        for (int i = 0; i < OBJECT_SIZE; i++) {
+            content[i] = (byte) (i * 31 + (i >>> 8));
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        content = null;
+        FileUtils.deleteDirectory(dataPath);
+    }
+
+    @Test
+    public void testWriteReadDelete(){
+        ObjectIndexManager indexManager = new ObjectIndexManager();
+        BlockManager blockManager = new BlockManager(indexManager);
+        blockManager.loadBlocks();
+        try{
+            ObjectIndex index = write(indexManager, blockManager);
+            Assert.assertTrue(index.isMultiExtent());
+            // 第一个和最后一个字节、跨越extent和尾部数据的范围
+            assertRange(blockManager, index, 0, 1);
+            assertRange(blockManager, index, OBJECT_SIZE - 1, 1);
+            assertRange(blockManager, index, OBJECT_SIZE - 8192, 8192);
+            assertRange(blockManager, index, 1024, 1024 * 1024);
+
+            Assert.assertTrue(blockManager.delete(OBJECT_ID));
+            Assert.assertTrue(indexManager.getObjectIndex(OBJECT_ID).isRemoved());
+            Assert.assertFalse(blockManager.delete(OBJECT_ID));
+            // extent独占的block全部可以回收
+            Assert.assertTrue(blockManager.reclaimableBytes() >= OBJECT_SIZE);
+        }finally {
+            blockManager.shutdown();
+        }
+    }
+
+    @Test
+    public void testOrphanExtentSweptOnRestart(){
+        ObjectIndexManager indexManager = new ObjectIndexManager();
+        BlockManager blockManager = new BlockManager(indexManager);
+        blockManager.loadBlocks();
+        ObjectIndex index = write(indexManager, blockManager);
+        // 模拟删除manifest之后、删除extent之前宕机
+        Block manifestBlock = blockManager.retainBlock(index.getBlockId());
+        Assert.assertNotNull(manifestBlock);
+        try{
+            Assert.assertTrue(manifestBlock.delete(OBJECT_ID, index.getOffset()));
+        }finally {
+            manifestBlock.release();
+        }
+        long reclaimable = blockManager.reclaimableBytes();
+        blockManager.shutdown();
+
+        ObjectIndexManager restoredIndexes = new ObjectIndexManager();
+        BlockManager restarted = new BlockManager(restoredIndexes);
+        restarted.loadBlocks();
+        try{
+            ObjectIndex restored = restoredIndexes.getObjectIndex(OBJECT_ID);
+            Assert.assertTrue(restored == null || restored.isRemoved());
+            Assert.assertTrue(restarted.reclaimableBytes() >= reclaimable + Block.MAX_BLOCK_SIZE - Block.HEADER_LENGTH_V2);
+        }finally {
+            restarted.shutdown();
+        }
+    }
+
+    private ObjectIndex write(ObjectIndexManager indexManager, BlockManager blockManager){
+        ObjectIndex index = blockManager.write(OBJECT_ID, Unpooled.wrappedBuffer(content), OBJECT_SIZE);
+        Assert.assertNotNull(index);
+        indexManager.computeIfAbsent(OBJECT_ID, id -> index);
+        return index;
+    }
+
+    private void assertRange(BlockManager blockManager, ObjectIndex index, int start, int length){
+        ByteBuf range = blockManager.readExtents(OBJECT_ID, index, start, length);
+        Assert.assertNotNull(range);
+        try{
+            Assert.assertEquals(length, range.readableBytes());
+            for (int i = 0; i < length; i++) {
+                Assert.assertEquals(content[start + i], range.getByte(range.readerIndex() + i));
+            }
+        }finally {
+            range.release();
+        }
+    }
+}
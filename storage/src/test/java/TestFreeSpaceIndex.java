@@ -0,0 +1,146 @@
+import com.jay.oss.storage.fs.FreeSpaceIndex;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *  空闲block索引单元测试
+ *  对比原来的synchronizedSortedMap + tailMap方式和分级索引在64个写线程下的分配吞吐量
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/06 11:02
+ */
+@Slf4j
+public class TestFreeSpaceIndex {
+
+    private static final int MAX_SPACE = 128 * 1024 * 1024;
+    private static final int THREAD_COUNT = 64;
+    private static final int BLOCK_COUNT = 256;
+    private static final int LOOP = 200;
+
+    static class FakeBlock {
+        volatile int space;
+
+        FakeBlock(int space) {
+            this.space = space;
+        }
+    }
+
+    @Test
+    public void testPollAndRemove(){
+        FreeSpaceIndex<FakeBlock> index = new FreeSpaceIndex<>(block -> block.space);
+        FakeBlock small = new FakeBlock(1000);
+        FakeBlock medium = new FakeBlock(5000);
+        FakeBlock large = new FakeBlock(100 * 1024 * 1024);
+        index.offer(small);
+        index.offer(medium);
+        index.offer(large);
+        // 剩余空间最大的block优先
+        Assert.assertSame(large, index.poll(100));
+        // 5000在[4096, 8192)级别，需要4500时检查该级别
+        Assert.assertSame(medium, index.poll(4500));
+        Assert.assertNull(index.poll(2000));
+        Assert.assertTrue(index.remove(small));
+        Assert.assertFalse(index.remove(small));
+        Assert.assertNull(index.poll(1));
+    }
+
+    @Test
+    public void testConcurrentAllocation() throws InterruptedException {
+        FreeSpaceIndex<FakeBlock> index = new FreeSpaceIndex<>(block -> block.space);
+        for (int i = 0; i < BLOCK_COUNT; i++) {
+            index.offer(new FakeBlock(MAX_SPACE));
+        }
+        long time = runWriters(size -> index.poll(size), index::offer);
+        log.info("FreeSpaceIndex: {} allocations in {}ms", THREAD_COUNT * LOOP, time);
+
+        SortedMapIndex legacy = new SortedMapIndex();
+        for (int i = 0; i < BLOCK_COUNT; i++) {
+            legacy.offer(new FakeBlock(MAX_SPACE));
+        }
+        long legacyTime = runWriters(legacy::poll, legacy::offer);
+        log.info("synchronizedSortedMap: {} allocations in {}ms", THREAD_COUNT * LOOP, legacyTime);
+    }
+
+    private long runWriters(java.util.function.IntFunction<FakeBlock> poll, java.util.function.Consumer<FakeBlock> offer) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(THREAD_COUNT);
+        AtomicLong failed = new AtomicLong(0);
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            new Thread(()->{
+                try{
+                    start.await();
+                    for (int j = 0; j < LOOP; j++) {
+                        int size = ThreadLocalRandom.current().nextInt(1024, 64 * 1024);
+                        FakeBlock block = poll.apply(size);
+                        if(block == null || block.space < size){
+                            failed.incrementAndGet();
+                            continue;
+                        }
+                        // 模拟写入，写满后重置
+                        block.space = block.space - size < 64 * 1024 ? MAX_SPACE : block.space - size;
+                        offer.accept(block);
+                    }
+                }catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }finally {
+                    finish.countDown();
+                }
+            }).start();
+        }
+        long begin = System.currentTimeMillis();
+        start.countDown();
+        finish.await();
+        Assert.assertEquals(0, failed.get());
+        return System.currentTimeMillis() - begin;
+    }
+
+    /**
+     * 原来BlockManager中的实现
+     */
+    static class SortedMapIndex {
+        private final SortedMap<Integer, BlockingQueue<FakeBlock>> blockSizeMap = Collections.synchronizedSortedMap(new TreeMap<>());
+        private final Object mutex = new Object();
+
+        FakeBlock poll(int size){
+            SortedMap<Integer, BlockingQueue<FakeBlock>> tailMap = blockSizeMap.tailMap(size);
+            ArrayList<BlockingQueue<FakeBlock>> blockQueues;
+            synchronized (blockSizeMap){
+                blockQueues = new ArrayList<>(tailMap.values());
+            }
+            FakeBlock block;
+            for (int i = blockQueues.size() - 1; i >= 0; i--) {
+                if((block = blockQueues.get(i).poll()) != null){
+                    return block;
+                }
+            }
+            return null;
+        }
+
+        void offer(FakeBlock block){
+            BlockingQueue<FakeBlock> queue;
+            int space = block.space;
+            if((queue = blockSizeMap.get(space)) == null){
+                synchronized (mutex){
+                    if((queue = blockSizeMap.get(space)) == null){
+                        queue = new LinkedBlockingQueue<>();
+                        blockSizeMap.put(space, queue);
+                    }
+                }
+            }
+            queue.add(block);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+import com.jay.oss.common.config.ConfigsManager;
+import com.jay.oss.storage.fs.Block;
+import com.jay.oss.storage.fs.BlockManager;
+import com.jay.oss.storage.fs.ObjectIndex;
+import com.jay.oss.storage.fs.ObjectIndexManager;
+import io.netty.buffer.Unpooled;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * <p>
+ *  索引checkpoint重启测试
+ *  checkpoint之后删除的对象位于checkpoint覆盖的范围内，重启时不会被重新扫描，删除必须通过墓碑恢复；
+ *  压缩废弃的block被读取者持有时，宕机重启后不会被重新加载，移动之后删除的对象不会复活
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/16 10:20
+ */
+@Slf4j
+public class TestIndexCheckpoint {
+
+    private static final int OBJECT_COUNT = 100;
+
+    private File dataPath;
+
+    @Before
+    public void setUp() throws IOException {
+        dataPath = Files.createTempDirectory("index_checkpoint").toFile();
+        ConfigsManager.set("oss.data.path", dataPath.getPath());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dataPath);
+    }
+
+    @Test
+    public void testDeleteAfterCheckpointSurvivesRestart(){
+        ObjectIndexManager indexManager = new ObjectIndexManager();
+        BlockManager blockManager = new BlockManager(indexManager);
+        blockManager.loadBlocks();
+        for (long objectId = 1; objectId <= OBJECT_COUNT; objectId++) {
+            byte[] content = ("object-" + objectId).getBytes(StandardCharsets.UTF_8);
+            indexManager.computeIfAbsent(objectId, id -> blockManager.write(id, Unpooled.wrappedBuffer(content), content.length));
+        }
+        Assert.assertTrue(blockManager.checkpoint());
+        // 单条删除和批量删除的记录都在checkpoint覆盖的范围内
+        Assert.assertTrue(blockManager.delete(1L));
+        Assert.assertTrue(blockManager.delete(2L));
+        Assert.assertEquals(2, blockManager.delete(Arrays.asList(3L, 4L)));
+        blockManager.shutdown();
+
+        ObjectIndexManager restoredIndexes = new ObjectIndexManager();
+        BlockManager restarted = new BlockManager(restoredIndexes);
+        restarted.loadBlocks();
+        try{
+            Assert.assertEquals(OBJECT_COUNT, restoredIndexes.size());
+            for (long objectId = 1; objectId <= OBJECT_COUNT; objectId++) {
+                ObjectIndex index = restoredIndexes.getObjectIndex(objectId);
+                Assert.assertNotNull(index);
+                Assert.assertEquals(objectId <= 4, index.isRemoved());
+            }
+            Assert.assertFalse(restarted.delete(1L));
+        }finally {
+            restarted.shutdown();
+        }
+    }
+
+    @Test
+    public void testDeadBytesSurviveTombstoneClear(){
+        ObjectIndexManager indexManager = new ObjectIndexManager();
+        BlockManager blockManager = new BlockManager(indexManager);
+        blockManager.loadBlocks();
+        for (long objectId = 1; objectId <= OBJECT_COUNT; objectId++) {
+            byte[] content = ("object-" + objectId).getBytes(StandardCharsets.UTF_8);
+            indexManager.computeIfAbsent(objectId, id -> blockManager.write(id, Unpooled.wrappedBuffer(content), content.length));
+        }
+        Assert.assertTrue(blockManager.checkpoint());
+        Assert.assertTrue(blockManager.delete(1L));
+        Assert.assertEquals(2, blockManager.delete(Arrays.asList(2L, 3L)));
+        long deadBytes = blockManager.reclaimableBytes();
+        Assert.assertTrue(deadBytes > 0);
+        // 删除比例低于压缩阈值，只把墓碑改写到记录头并在checkpoint之后清除墓碑
+        blockManager.compactBlocks();
+        Assert.assertEquals(deadBytes, blockManager.reclaimableBytes());
+        blockManager.shutdown();
+
+        BlockManager restarted = new BlockManager(new ObjectIndexManager());
+        restarted.loadBlocks();
+        try{
+            Assert.assertEquals(deadBytes, restarted.reclaimableBytes());
+        }finally {
+            restarted.shutdown();
+        }
+    }
+
+    @Test
+    public void testRetiredBlockNotReloaded(){
+        ConfigsManager.set("oss.fs.compact_garbage_percent", "10");
+        ObjectIndexManager indexManager = new ObjectIndexManager();
+        BlockManager blockManager = new BlockManager(indexManager);
+        blockManager.loadBlocks();
+        for (long objectId = 1; objectId <= OBJECT_COUNT; objectId++) {
+            byte[] content = ("object-" + objectId).getBytes(StandardCharsets.UTF_8);
+            indexManager.computeIfAbsent(objectId, id -> blockManager.write(id, Unpooled.wrappedBuffer(content), content.length));
+        }
+        int blockId = indexManager.getObjectIndex(OBJECT_COUNT).getBlockId();
+        Assert.assertTrue(blockManager.checkpoint());
+        for (long objectId = 1; objectId <= OBJECT_COUNT / 2; objectId++) {
+            Assert.assertTrue(blockManager.delete(objectId));
+        }
+        // 模拟缓慢的零拷贝下载，压缩之后旧block的文件不会被删除
+        Block reader = blockManager.retainBlock(blockId);
+        Assert.assertNotNull(reader);
+        try{
+            blockManager.compactBlocks();
+            Assert.assertNotEquals(blockId, indexManager.getObjectIndex(OBJECT_COUNT).getBlockId());
+            File blockDirectory = new File(blockManager.getDirectories().get(0).getPath());
+            Assert.assertFalse(new File(blockDirectory, "block_" + blockId).exists());
+            Assert.assertTrue(new File(blockDirectory, "block_" + blockId + ".retired").exists());
+            // 移动之后删除的对象只在新block中有墓碑
+            for (long objectId = OBJECT_COUNT / 2 + 1; objectId <= OBJECT_COUNT; objectId += 2) {
+                Assert.assertTrue(blockManager.delete(objectId));
+            }
+            // 不释放读取者的引用，模拟宕机
+            blockManager.shutdown();
+
+            ObjectIndexManager restoredIndexes = new ObjectIndexManager();
+            BlockManager restarted = new BlockManager(restoredIndexes);
+            restarted.loadBlocks();
+            try{
+                Assert.assertFalse(new File(blockDirectory, "block_" + blockId + ".retired").exists());
+                for (long objectId = OBJECT_COUNT / 2 + 1; objectId <= OBJECT_COUNT; objectId++) {
+                    ObjectIndex index = restoredIndexes.getObjectIndex(objectId);
+                    Assert.assertNotNull(index);
+                    Assert.assertNotEquals(blockId, index.getBlockId());
+                    Assert.assertEquals("object " + objectId, (objectId - OBJECT_COUNT / 2) % 2 == 1, index.isRemoved());
+                }
+            }finally {
+                restarted.shutdown();
+            }
+        }finally {
+            reader.release();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+import com.jay.oss.storage.fs.ObjectIndex;
+import com.jay.oss.storage.fs.ObjectIndexTable;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ *  对象索引表单元测试
+ *  对比ConcurrentHashMap<Long, ObjectIndex>和ObjectIndexTable的内存占用
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/05/30 14:20
+ */
+@Slf4j
+public class TestObjectIndexTable {
+
+    private static final int OBJECT_COUNT = 1000000;
+
+    @Test
+    public void testPutAndGet(){
+        ObjectIndexTable table = new ObjectIndexTable();
+        for(long i = 0; i < 100000; i++){
+            table.put(i, new ObjectIndex((int)(i % 100), (int) i * 16, (int) i, false));
+        }
+        Assert.assertEquals(100000, table.size());
+        for(long i = 0; i < 100000; i++){
+            ObjectIndex index = table.get(i);
+            Assert.assertNotNull(index);
+            Assert.assertEquals(i % 100, index.getBlockId());
+            Assert.assertEquals((int) i * 16, index.getOffset());
+            Assert.assertEquals(i, index.getSize());
+            Assert.assertFalse(index.isRemoved());
+        }
+        Assert.assertNull(table.get(100001L));
+        Assert.assertTrue(table.markRemoved(0L));
+        Assert.assertTrue(table.markRemoved(99999L));
+        Assert.assertTrue(table.get(99999L).isRemoved());
+        Assert.assertEquals(99998, table.listObjectIds().size());
+    }
+
+    @Test
+    public void testConcurrentComputeIfAbsent() throws InterruptedException {
+        ObjectIndexTable table = new ObjectIndexTable();
+        AtomicInteger computed = new AtomicInteger(0);
+        int threadCount = 16;
+        int loop = 100000;
+        CountDownLatch countDownLatch = new CountDownLatch(threadCount);
+        for(int i = 0; i < threadCount; i++){
+            new Thread(()->{
+                for(long j = 1; j <= loop; j++){
+                    table.computeIfAbsent(j, id->{
+                        computed.incrementAndGet();
+                        return new ObjectIndex(1, (int) id, 1024, false);
+                    });
+                }
+                countDownLatch.countDown();
+            }).start();
+        }
+        countDownLatch.await();
+        // 每个对象只会被计算一次
+        Assert.assertEquals(loop, computed.get());
+        Assert.assertEquals(loop, table.size());
+    }
+
+    @Test
+    public void testMergeOrderIndependent(){
+        ObjectIndex older = new ObjectIndex(1, 4096, 1024, false);
+        ObjectIndex newer = new ObjectIndex(7, 0, 1024, false);
+        ObjectIndex removed = new ObjectIndex(3, 512, 1024, true);
+        ObjectIndex[][] orders = {
+                {older, newer, removed}, {removed, newer, older}, {newer, removed, older}, {older, removed, newer}
+        };
+        for (ObjectIndex[] order : orders) {
+            ObjectIndexTable table = new ObjectIndexTable();
+            for (ObjectIndex index : order) {
+                table.merge(1L, index);
+            }
+            // 被删除的记录优先，和合并顺序无关
+            ObjectIndex merged = table.get(1L);
+            Assert.assertTrue(merged.isRemoved());
+            Assert.assertEquals(3, merged.getBlockId());
+        }
+        ObjectIndexTable table = new ObjectIndexTable();
+        table.merge(2L, newer);
+        table.merge(2L, older);
+        Assert.assertEquals(7, table.get(2L).getBlockId());
+        table = new ObjectIndexTable();
+        table.merge(2L, older);
+        table.merge(2L, newer);
+        Assert.assertEquals(7, table.get(2L).getBlockId());
+    }
+
+    /**
+     * 对比两种索引的堆内存占用
+     * 两种结构用同样的方式测量：GC之后填充前后的已用堆内存之差，即填充的结构的保留堆大小
+     */
+    @Test
+    public void testMemoryFootprint(){
+        long before = usedHeap();
+        Map<Long, ObjectIndex> map = new ConcurrentHashMap<>();
+        for(long i = 1; i <= OBJECT_COUNT; i++){
+            map.put(i * 31, new ObjectIndex((int)(i % 1000), (int) i, 1024, false));
+        }
+        long mapBytes = (usedHeap() - before) / OBJECT_COUNT;
+        Assert.assertEquals(OBJECT_COUNT, map.size());
+        map = null;
+
+        before = usedHeap();
+        ObjectIndexTable table = new ObjectIndexTable();
+        for(long i = 1; i <= OBJECT_COUNT; i++){
+            table.put(i * 31, new ObjectIndex((int)(i % 1000), (int) i, 1024, false));
+        }
+        long tableBytes = (usedHeap() - before) / OBJECT_COUNT;
+        Assert.assertEquals(OBJECT_COUNT, table.size());
+        log.info("Retained heap, ConcurrentHashMap: {} bytes/object, ObjectIndexTable: {} bytes/object (arrays {} KB)",
+                mapBytes, tableBytes, table.memoryUsage() / 1024);
+        // 每个槽位24字节，容量是2的幂且负载不超过0.75
+        long arrayBytes = table.memoryUsage() / OBJECT_COUNT;
+        Assert.assertTrue(arrayBytes >= 24 && arrayBytes <= 64);
+        Assert.assertTrue(tableBytes < mapBytes);
+    }
+
+    /**
+     * GC之后的已用堆内存
+     */
+    private static long usedHeap(){
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // 多次GC直到已用内存不再下降
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            long current = runtime.totalMemory() - runtime.freeMemory();
+            if(current >= used){
+                break;
+            }
+            used = current;
+        }
+        return used;
+    }
+}
@@ -0,0 +1,309 @@
+import com.jay.dove.DoveClient;
+import com.jay.dove.DoveServer;
+import com.jay.dove.serialize.SerializerManager;
+import com.jay.dove.transport.command.CommandCode;
+import com.jay.dove.transport.command.CommandFactory;
+import com.jay.dove.transport.command.CommandHandler;
+import com.jay.dove.transport.command.Processor;
+import com.jay.dove.transport.connection.ConnectionManager;
+import com.jay.dove.transport.protocol.ProtocolManager;
+import com.jay.oss.common.config.ConfigsManager;
+import com.jay.oss.common.config.OssConfigs;
+import com.jay.oss.common.ec.ReedSolomon;
+import com.jay.oss.common.entity.task.ShardRepairTask;
+import com.jay.oss.common.remoting.TinyOssCodec;
+import com.jay.oss.common.remoting.TinyOssCommandFactory;
+import com.jay.oss.common.remoting.TinyOssConnectionFactory;
+import com.jay.oss.common.remoting.TinyOssProtocol;
+import com.jay.oss.common.serialize.ProtostuffSerializer;
+import com.jay.oss.storage.command.StorageNodeCommandHandler;
+import com.jay.oss.storage.fs.BlockManager;
+import com.jay.oss.storage.fs.ObjectIndex;
+import com.jay.oss.storage.fs.ObjectIndexManager;
+import com.jay.oss.storage.task.StorageTaskManager;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * <p>
+ *  纠删码分片修复测试
+ *  进程内启动k+m个storage节点，每个节点使用独立的端口和数据目录，只保存一个分片；
+ *  关闭保存分片的节点后，修复节点的任务处理器从其他节点下载k个分片，解码出丢失的分片并保存；
+ *  任务中仍然有位置、但是节点已经关闭的分片不可用；可用分片不够k个时不修复
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/17 10:20
+ */
+@Slf4j
+public class TestShardRepair {
+
+    private static final int FIRST_PORT = 9940;
+
+    private static final int DATA_SHARDS = 4;
+
+    private static final int PARITY_SHARDS = 2;
+
+    private static final int OBJECT_SIZE = 100 * 1024 + 17;
+
+    private static final long FIRST_SHARD_ID = 100L;
+
+    private File dataPath;
+
+    private ExecutorService executor;
+
+    private final List<StorageNode> nodes = new ArrayList<>();
+
+    private ObjectIndexManager repairIndexes;
+
+    private BlockManager repairBlocks;
+
+    private StorageTaskManager taskManager;
+
+    private byte[][] shards;
+
+    @Before
+    public void setUp() throws IOException {
+        dataPath = Files.createTempDirectory("shard_repair").toFile();
+        // 不连接Kafka，上传完成的通知发送给Tracker，发送失败只记录日志
+        ConfigsManager.set("oss.tracker.enable-tracker-messaging", "true");
+        CommandFactory commandFactory = new TinyOssCommandFactory();
+        DoveClient client = new DoveClient(new ConnectionManager(new TinyOssConnectionFactory()), commandFactory);
+        executor = Executors.newFixedThreadPool(4);
+        SerializerManager.registerSerializer(OssConfigs.PROTOSTUFF_SERIALIZER, new ProtostuffSerializer());
+
+        byte[] data = new byte[OBJECT_SIZE];
+        new Random(13).nextBytes(data);
+        shards = new ReedSolomon(DATA_SHARDS, PARITY_SHARDS).encode(data, 0, OBJECT_SIZE);
+
+        // 分片i保存在节点i
+        NodeRouter router = new NodeRouter();
+        for (int i = 0; i < shards.length; i++) {
+            ConfigsManager.set("oss.data.path", new File(dataPath, "node" + i).getPath());
+            StorageNode node = new StorageNode(FIRST_PORT + i);
+            node.blockManager.loadBlocks();
+            byte[] shard = shards[i];
+            node.indexManager.computeIfAbsent(FIRST_SHARD_ID + i, id -> node.blockManager.write(id, Unpooled.wrappedBuffer(shard), shard.length));
+            router.route(node.port, new StorageNodeCommandHandler(client, commandFactory, executor, node.indexManager, null, node.blockManager));
+            nodes.add(node);
+        }
+        ProtocolManager.registerProtocol(TinyOssProtocol.PROTOCOL_CODE, new TinyOssProtocol(router));
+        for (StorageNode node : nodes) {
+            node.server = new DoveServer(new TinyOssCodec(), node.port, commandFactory);
+            node.server.startup();
+        }
+
+        // 执行修复任务的节点，不保存该对象的分片，只作为客户端下载分片
+        ConfigsManager.set("oss.data.path", new File(dataPath, "repair").getPath());
+        repairIndexes = new ObjectIndexManager();
+        repairBlocks = new BlockManager(repairIndexes);
+        repairBlocks.loadBlocks();
+        taskManager = new StorageTaskManager(client, repairBlocks, repairIndexes);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (StorageNode node : nodes) {
+            node.shutdown();
+        }
+        nodes.clear();
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+        repairBlocks.shutdown();
+        FileUtils.deleteDirectory(dataPath);
+    }
+
+    @Test
+    public void testRepairDataShard() throws InterruptedException {
+        // 数据分片1的节点下线；节点0刚刚关闭，任务中仍然有它的位置，需要用校验分片解码
+        kill(0, 1);
+        taskManager.addRepairTasks(Collections.singletonList(task(1, 1)));
+        long shardId = FIRST_SHARD_ID + 1;
+        await(() -> repairIndexes.getObjectIndex(shardId) != null);
+        Assert.assertArrayEquals(shards[1], read(repairIndexes, repairBlocks, shardId));
+    }
+
+    @Test
+    public void testRepairParityShard() throws InterruptedException {
+        int lost = DATA_SHARDS + 1;
+        kill(lost);
+        taskManager.addRepairTasks(Collections.singletonList(task(lost, lost)));
+        long shardId = FIRST_SHARD_ID + lost;
+        await(() -> repairIndexes.getObjectIndex(shardId) != null);
+        Assert.assertArrayEquals(shards[lost], read(repairIndexes, repairBlocks, shardId));
+    }
+
+    @Test
+    public void testRepairMultipleShards() throws InterruptedException {
+        // 丢失m个分片，每个分片一个修复任务
+        kill(2, DATA_SHARDS);
+        taskManager.addRepairTasks(Collections.singletonList(task(2, 2, DATA_SHARDS)));
+        taskManager.addRepairTasks(Collections.singletonList(task(DATA_SHARDS, 2, DATA_SHARDS)));
+        await(() -> repairIndexes.getObjectIndex(FIRST_SHARD_ID + 2) != null
+                && repairIndexes.getObjectIndex(FIRST_SHARD_ID + DATA_SHARDS) != null);
+        Assert.assertArrayEquals(shards[2], read(repairIndexes, repairBlocks, FIRST_SHARD_ID + 2));
+        Assert.assertArrayEquals(shards[DATA_SHARDS], read(repairIndexes, repairBlocks, FIRST_SHARD_ID + DATA_SHARDS));
+    }
+
+    @Test
+    public void testNotEnoughShards() throws InterruptedException {
+        // 只剩下3个节点，不够解码；节点2的位置仍然在任务中，但是节点已经关闭
+        kill(0, 1, 2);
+        taskManager.addRepairTasks(Collections.singletonList(task(0, 0, 1)));
+        taskManager.addRepairTasks(Collections.singletonList(task(1, 0, 1)));
+        Thread.sleep(2500);
+        Assert.assertNull(repairIndexes.getObjectIndex(FIRST_SHARD_ID));
+        Assert.assertNull(repairIndexes.getObjectIndex(FIRST_SHARD_ID + 1));
+    }
+
+    /**
+     * 关闭storage节点，节点上的分片不可用
+     */
+    private void kill(int... indexes){
+        for (int i : indexes) {
+            nodes.get(i).shutdown();
+        }
+    }
+
+    /**
+     * 修复分片repair，Tracker已经发现丢失的分片位置为空
+     */
+    private ShardRepairTask task(int repair, int... lost){
+        List<Long> shardIds = new ArrayList<>();
+        List<String> locations = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            shardIds.add(FIRST_SHARD_ID + i);
+            locations.add(contains(lost, i) ? "" : nodes.get(i).location());
+        }
+        return new ShardRepairTask(1L, OBJECT_SIZE, DATA_SHARDS, PARITY_SHARDS, repair, shardIds, locations);
+    }
+
+    private static boolean contains(int[] array, int value){
+        for (int i : array) {
+            if(i == value){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] read(ObjectIndexManager indexManager, BlockManager blockManager, long objectId){
+        ObjectIndex index = indexManager.getObjectIndex(objectId);
+        ByteBuf data = blockManager.getBlockById(index.getBlockId()).read(index, 0, index.getSize());
+        try{
+            byte[] bytes = new byte[data.readableBytes()];
+            data.getBytes(data.readerIndex(), bytes);
+            return bytes;
+        }finally {
+            data.release();
+        }
+    }
+
+    /**
+     * 修复任务由后台任务每秒执行一次
+     */
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(!condition.getAsBoolean()){
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * 进程内的storage节点
+     */
+    private static class StorageNode {
+        private final int port;
+        private final ObjectIndexManager indexManager = new ObjectIndexManager();
+        private final BlockManager blockManager = new BlockManager(indexManager);
+        private DoveServer server;
+        private boolean alive = true;
+
+        StorageNode(int port) {
+            this.port = port;
+        }
+
+        String location(){
+            return "127.0.0.1:" + port;
+        }
+
+        void shutdown(){
+            if(alive){
+                alive = false;
+                server.shutdown();
+                blockManager.shutdown();
+            }
+        }
+    }
+
+    /**
+     * 协议在进程内只能注册一个CommandHandler，按照连接的本地端口把请求交给对应节点的handler；
+     * 客户端连接收到的响应不属于任何节点，由第一个节点处理
+     */
+    private static class NodeRouter implements CommandHandler {
+        private final Map<Integer, CommandHandler> handlers = new ConcurrentHashMap<>();
+        private CommandHandler fallback;
+
+        void route(int port, CommandHandler handler){
+            if(fallback == null){
+                fallback = handler;
+            }
+            handlers.put(port, handler);
+        }
+
+        private CommandHandler handlerOf(ChannelHandlerContext context){
+            SocketAddress address = context.channel().localAddress();
+            CommandHandler handler = address instanceof InetSocketAddress ? handlers.get(((InetSocketAddress) address).getPort()) : null;
+            return handler == null ? fallback : handler;
+        }
+
+        @Override
+        public void handleCommand(ChannelHandlerContext context, Object command) {
+            handlerOf(context).handleCommand(context, command);
+        }
+
+        @Override
+        public void registerProcessor(CommandCode code, Processor processor) {
+            handlers.values().forEach(handler -> handler.registerProcessor(code, processor));
+        }
+
+        @Override
+        public void registerDefaultExecutor(ExecutorService executor) {
+            handlers.values().forEach(handler -> handler.registerDefaultExecutor(executor));
+        }
+
+        @Override
+        public ExecutorService getDefaultExecutor() {
+            return fallback.getDefaultExecutor();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext context) {
+            handlerOf(context).channelInactive(context);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+import com.jay.oss.common.config.ConfigsManager;
+import com.jay.oss.common.remoting.TinyOssCommandFactory;
+import com.jay.oss.common.remoting.UploadStream;
+import com.jay.oss.storage.fs.BlockManager;
+import com.jay.oss.storage.fs.ObjectIndex;
+import com.jay.oss.storage.fs.ObjectIndexManager;
+import com.jay.oss.storage.processor.FileUploadProcessor;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * <p>
+ *  流式上传测试
+ *  接收端在预留空间完成之前和之后收到的数据都按顺序写入预留的区域，接收完成后提交记录并写入索引；
+ *  连接中途断开时放弃预留的空间，不写入索引
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/16 17:40
+ */
+@Slf4j
+public class TestStreamingUpload {
+
+    private static final int OBJECT_SIZE = 64 * 1024;
+
+    private static final int CHUNK_SIZE = 4096;
+
+    private File dataPath;
+
+    private ObjectIndexManager indexManager;
+
+    private BlockManager blockManager;
+
+    private ExecutorService executor;
+
+    private FileUploadProcessor processor;
+
+    private EmbeddedChannel channel;
+
+    private ChannelHandlerContext context;
+
+    @Before
+    public void setUp() throws IOException {
+        dataPath = Files.createTempDirectory("streaming_upload").toFile();
+        ConfigsManager.set("oss.data.path", dataPath.getPath());
+        // 不连接Kafka，上传完成的通知发送给Tracker，发送失败只记录日志
+        ConfigsManager.set("oss.tracker.enable-tracker-messaging", "true");
+        indexManager = new ObjectIndexManager();
+        blockManager = new BlockManager(indexManager);
+        blockManager.loadBlocks();
+        executor = Executors.newSingleThreadExecutor();
+        processor = new FileUploadProcessor(null, indexManager, blockManager, new TinyOssCommandFactory(), null, executor);
+        ChannelInboundHandlerAdapter handler = new ChannelInboundHandlerAdapter();
+        channel = new EmbeddedChannel(handler);
+        context = channel.pipeline().context(handler);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        channel.finishAndReleaseAll();
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+        blockManager.shutdown();
+        FileUtils.deleteDirectory(dataPath);
+    }
+
+    @Test
+    public void testStreamingUploadCommitted() throws Exception {
+        byte[] content = content();
+        byte[] locations = "127.0.0.1:9993".getBytes(StandardCharsets.UTF_8);
+        UploadStream stream = processor.open(context, 1, 1L, OBJECT_SIZE, OBJECT_SIZE + locations.length);
+        Assert.assertNotNull(stream);
+        // 预留空间在处理器线程池中完成，先到达的数据暂存在接收端
+        for (int position = 0; position < OBJECT_SIZE; position += CHUNK_SIZE) {
+            stream.append(Unpooled.wrappedBuffer(content, position, CHUNK_SIZE));
+            channel.runPendingTasks();
+        }
+        stream.append(Unpooled.wrappedBuffer(locations));
+        stream.complete();
+        await(() -> indexManager.getObjectIndex(1L) != null);
+
+        ObjectIndex index = indexManager.getObjectIndex(1L);
+        Assert.assertEquals(OBJECT_SIZE, index.getSize());
+        ByteBuf data = blockManager.getBlockById(index.getBlockId()).read(index, 0, OBJECT_SIZE);
+        try{
+            byte[] stored = new byte[OBJECT_SIZE];
+            data.getBytes(data.readerIndex(), stored);
+            Assert.assertArrayEquals(content, stored);
+        }finally {
+            data.release();
+        }
+        Assert.assertTrue(channel.config().isAutoRead());
+        // 已经存在的对象按照完整报文处理
+        Assert.assertNull(processor.open(context, 2, 1L, OBJECT_SIZE, OBJECT_SIZE));
+    }
+
+    @Test
+    public void testAbortDiscardsReservation() throws Exception {
+        byte[] content = content();
+        UploadStream stream = processor.open(context, 1, 2L, OBJECT_SIZE, OBJECT_SIZE);
+        Assert.assertNotNull(stream);
+        stream.append(Unpooled.wrappedBuffer(content, 0, CHUNK_SIZE));
+        stream.abort();
+        // 放弃的记录计入被删除的空间
+        await(() -> blockManager.reclaimableBytes() > 0);
+        Assert.assertNull(indexManager.getObjectIndex(2L));
+    }
+
+    private static byte[] content(){
+        byte[] content = new byte[OBJECT_SIZE];
+        for (int i = 0; i < OBJECT_SIZE; i++) {
+            content[i] = (byte) (i * 7);
+        }
+        return content;
+    }
+
+    /**
+     * 回调在处理器线程池和磁盘线程池中执行，IO线程的任务需要在测试线程中运行
+     */
+    private void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(!condition.getAsBoolean()){
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            channel.runPendingTasks();
+            Thread.sleep(10);
+        }
+    }
+}
@@ -11,6 +11,7 @@ import com.jay.oss.common.kafka.RecordConsumer;
 import com.jay.oss.common.kafka.RecordProducer;
 import com.jay.oss.common.kv.KvStorage;
 import com.jay.oss.common.kv.bitcask.BitCaskStorage;
+import com.jay.oss.common.kv.bitcask.PartitionedBitCaskStorage;
 import com.jay.oss.common.prometheus.GaugeManager;
 import com.jay.oss.common.prometheus.PrometheusServer;
 import com.jay.oss.common.registry.Registry;
@@ -63,7 +64,8 @@ public class Tracker extends AbstractLifeCycle {
             int port = OssConfigs.port();
             TinyOssCommandFactory commandFactory = new TinyOssCommandFactory();
 
-            this.kvStorage = new BitCaskStorage();
+            int kvShards = OssConfigs.kvShards();
+            this.kvStorage = kvShards > 1 ? new PartitionedBitCaskStorage(kvShards) : new BitCaskStorage();
             this.bucketManager = new BucketManager(kvStorage);
             this.objectTracker = new ObjectTracker(kvStorage);
 
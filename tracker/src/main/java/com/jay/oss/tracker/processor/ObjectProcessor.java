@@ -17,13 +17,14 @@ import com.jay.oss.common.kafka.RecordProducer;
 import com.jay.oss.common.remoting.TinyOssCommand;
 import com.jay.oss.common.remoting.TinyOssProtocol;
 import com.jay.oss.common.util.SerializeUtil;
-import com.jay.oss.common.util.StringUtil;
 import com.jay.oss.tracker.meta.BucketManager;
 import com.jay.oss.tracker.task.StorageTaskManager;
 import com.jay.oss.tracker.track.ObjectTracker;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.List;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -74,19 +75,43 @@ public class ObjectProcessor extends TrackerProcessor {
         byte[] content = command.getContent();
         LocateObjectRequest request = SerializeUtil.deserialize(content, LocateObjectRequest.class);
         String objectKey = request.getObjectKey();
-        String objectId = objectTracker.getObjectId(objectKey);
-        if(StringUtil.isNullOrEmpty(objectId)){
+        ObjectMeta meta = objectTracker.getObjectMeta(objectKey);
+        if(meta == null){
             return commandFactory.createResponse(command.getId(), "", TinyOssProtocol.OBJECT_NOT_FOUND);
         }
-        Set<String> locations = objectTracker.getObjectLocations(objectId);
+        if(meta.isErasureCoded()){
+            return locateShards(command, meta);
+        }
+        // 去重的对象从共享的数据读取
+        long dataId = meta.storageObjectId();
+        Set<String> locations = objectTracker.getObjectReplicaLocations(dataId);
         if(locations == null){
             return commandFactory.createResponse(command.getId(), "", TinyOssProtocol.OBJECT_NOT_FOUND);
         }else{
-            LocateObjectResponse response = new LocateObjectResponse(Long.parseLong(objectId), locations);
+            LocateObjectResponse response = new LocateObjectResponse(dataId, locations);
             return commandFactory.createResponse(command.getId(), SerializeUtil.serialize(response, LocateObjectResponse.class), TinyOssProtocol.SUCCESS);
         }
     }
 
+    /**
+     * 定位纠删码对象的分片
+     * 可用的分片少于k个时对象无法读取
+     * @param command {@link TinyOssCommand}
+     * @param meta {@link ObjectMeta}
+     * @return {@link RemotingCommand}
+     */
+    private RemotingCommand locateShards(TinyOssCommand command, ObjectMeta meta){
+        List<String> shardLocations = objectTracker.getShardLocations(meta);
+        long available = shardLocations.stream().filter(location -> !location.isEmpty()).count();
+        if(available < meta.getDataShards()){
+            return commandFactory.createResponse(command.getId(), "", TinyOssProtocol.OBJECT_NOT_FOUND);
+        }
+        Set<String> locations = shardLocations.stream().filter(location -> !location.isEmpty()).collect(Collectors.toSet());
+        LocateObjectResponse response = new LocateObjectResponse(meta.getObjectId(), locations, meta.getShardIds(), shardLocations,
+                meta.getDataShards(), meta.getParityShards(), meta.getSize());
+        return commandFactory.createResponse(command.getId(), SerializeUtil.serialize(response, LocateObjectResponse.class), TinyOssProtocol.SUCCESS);
+    }
+
     /**
      * 删除object
      * @param command {@link TinyOssCommand}
@@ -95,11 +120,33 @@ public class ObjectProcessor extends TrackerProcessor {
     private RemotingCommand deleteObject(TinyOssCommand command){
         DeleteObjectInBucketRequest request = SerializeUtil.deserialize(command.getContent(), DeleteObjectInBucketRequest.class);
         String objectKey = request.getObjectKey();
-        Long objectId = objectTracker.deleteMeta(objectKey);
-        if(objectId == null){
+        ObjectMeta meta = objectTracker.getObjectMeta(objectKey);
+        Long deleted = objectTracker.deleteMeta(objectKey);
+        if(deleted == null){
             return commandFactory.createResponse(command.getId(), "", TinyOssProtocol.OBJECT_NOT_FOUND);
         }
+        // 数据还被其他相同内容的对象共享时，只删除元数据
+        if(meta != null && !objectTracker.releaseContent(meta)){
+            return commandFactory.createResponse(command.getId(), "", TinyOssProtocol.SUCCESS);
+        }
+        if(meta != null && meta.isErasureCoded()){
+            // 删除纠删码对象的所有分片
+            meta.getShardIds().forEach(this::sendDeleteTasks);
+        }else{
+            sendDeleteTasks(meta == null ? deleted : meta.storageObjectId());
+        }
+        return commandFactory.createResponse(command.getId(), "", TinyOssProtocol.SUCCESS);
+    }
+
+    /**
+     * 通知对象所在的storage删除对象数据
+     * @param objectId storage中的对象ID
+     */
+    private void sendDeleteTasks(long objectId){
         Set<String> locations = objectTracker.getObjectReplicaLocations(objectId);
+        if(locations == null){
+            return;
+        }
         if(OssConfigs.enableTrackerMessaging()){
             DeleteTask task = new DeleteTask(0L, objectId);
             for (String location : locations) {
@@ -112,7 +159,6 @@ public class ObjectProcessor extends TrackerProcessor {
                 trackerProducer.send(OssConstants.DELETE_OBJECT_TOPIC + topicSuffix, Long.toString(objectId), Long.toString(objectId));
             }
         }
-        return commandFactory.createResponse(command.getId(), "", TinyOssProtocol.SUCCESS);
     }
 
 
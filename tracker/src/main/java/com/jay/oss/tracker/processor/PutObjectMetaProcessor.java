@@ -16,7 +16,9 @@ import com.jay.oss.tracker.registry.StorageNodeRegistry;
 import com.jay.oss.tracker.track.ObjectTracker;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
@@ -57,20 +59,43 @@ public class PutObjectMetaProcessor extends TrackerProcessor{
             versionId = UUID.randomUUID().toString();
             objectKey = objectKey + "/" + versionId;
         }
+        // 已经有相同内容的数据，共享数据，不需要上传
+        if(OssConfigs.enableDeduplication()){
+            RemotingCommand duplicate = putDuplicate(command, request, objectKey, versionId);
+            if(duplicate != null){
+                return duplicate;
+            }
+        }
         try{
-            // 选择上传点
-            List<StorageNodeInfo> nodes = storageRegistry.selectUploadNode(size, OssConfigs.replicaCount());
-            List<String> urls = nodes.stream().map(StorageNodeInfo::getUrl).collect(Collectors.toList());
-            // 创建元数据
-            ObjectMeta meta = ObjectMeta.builder()
+            ObjectMeta.ObjectMetaBuilder builder = ObjectMeta.builder()
                     .objectId(objectIdGenerator.nextId()).fileName(request.getFilename())
                     .md5(request.getMd5())
                     .size(size).createTime(request.getCreateTime())
-                    .versionId(versionId)
-                    .build();
+                    .versionId(versionId);
+            // 大对象优先使用纠删码，每个分片选择一个不同的节点
+            List<StorageNodeInfo> nodes = selectShardNodes(size);
+            if(nodes != null){
+                int dataShards = OssConfigs.erasureCodingDataShards();
+                List<Long> shardIds = new ArrayList<>(nodes.size());
+                for (int i = 0; i < nodes.size(); i++) {
+                    shardIds.add(objectIdGenerator.nextId());
+                }
+                builder.dataShards(dataShards).parityShards(nodes.size() - dataShards).shardIds(shardIds);
+            }else{
+                // 选择上传点
+                nodes = storageRegistry.selectUploadNode(size, OssConfigs.replicaCount());
+            }
+            List<String> urls = nodes.stream().map(StorageNodeInfo::getUrl).collect(Collectors.toList());
+            // 创建元数据
+            ObjectMeta meta = builder.build();
             // 保存元数据
             if(objectTracker.putMeta(objectKey, meta)){
-                PutObjectMetaResponse putResp = new PutObjectMetaResponse(meta.getObjectId(), urls, versionId);
+                // 纠删码对象的数据不在一个storage对象中，不参与去重
+                if(OssConfigs.enableDeduplication() && !meta.isErasureCoded()){
+                    objectTracker.registerContent(meta);
+                }
+                PutObjectMetaResponse putResp = new PutObjectMetaResponse(meta.getObjectId(), urls, versionId, false,
+                        meta.getShardIds(), meta.getDataShards(), meta.getParityShards());
                 response = commandFactory.createResponse(command.getId(), putResp, PutObjectMetaResponse.class, TinyOssProtocol.SUCCESS);
             }else{
                 // object key 重复
@@ -83,4 +108,54 @@ public class PutObjectMetaProcessor extends TrackerProcessor{
         }
         return response;
     }
+
+    /**
+     * 为纠删码的分片选择storage节点
+     * @param size 对象大小
+     * @return k + m 个不同的节点，不使用纠删码或者节点不足时返回null
+     */
+    private List<StorageNodeInfo> selectShardNodes(int size){
+        if(!OssConfigs.enableErasureCoding() || size < OssConfigs.erasureCodingMinSize() * 1024){
+            return null;
+        }
+        int dataShards = OssConfigs.erasureCodingDataShards();
+        int totalShards = dataShards + OssConfigs.erasureCodingParityShards();
+        int shardSize = (size + dataShards - 1) / dataShards;
+        try{
+            return storageRegistry.selectUploadNode(shardSize, totalShards);
+        }catch (Exception e){
+            log.info("No enough storage nodes for {} erasure coding shards, use replicas instead", totalShards);
+            return null;
+        }
+    }
+
+    /**
+     * 保存共享已有数据的对象元数据
+     * @param command {@link TinyOssCommand}
+     * @param request {@link BucketPutObjectRequest}
+     * @param objectKey object key
+     * @param versionId 版本号
+     * @return {@link RemotingCommand} 没有可以共享的数据时返回null
+     */
+    private RemotingCommand putDuplicate(TinyOssCommand command, BucketPutObjectRequest request, String objectKey, String versionId){
+        Long dataId = objectTracker.acquireDuplicate(request.getMd5(), request.getSize());
+        if(dataId == null){
+            return null;
+        }
+        ObjectMeta meta = ObjectMeta.builder()
+                .objectId(objectIdGenerator.nextId()).fileName(request.getFilename())
+                .md5(request.getMd5())
+                .size(request.getSize()).createTime(request.getCreateTime())
+                .versionId(versionId)
+                .dataObjectId(dataId)
+                .build();
+        if(!objectTracker.putMeta(objectKey, meta)){
+            objectTracker.releaseContent(meta);
+            return commandFactory.createResponse(command.getId(), "", TinyOssProtocol.DUPLICATE_OBJECT_KEY);
+        }
+        Set<String> locations = objectTracker.getObjectReplicaLocations(dataId);
+        List<String> urls = locations == null ? new ArrayList<>() : new ArrayList<>(locations);
+        PutObjectMetaResponse putResp = new PutObjectMetaResponse(dataId, urls, versionId, true, null, 0, 0);
+        return commandFactory.createResponse(command.getId(), putResp, PutObjectMetaResponse.class, TinyOssProtocol.SUCCESS);
+    }
 }
@@ -12,6 +12,7 @@ import com.jay.oss.common.remoting.TinyOssProtocol;
 import com.jay.oss.common.util.SerializeUtil;
 import com.jay.oss.common.entity.task.DeleteTask;
 import com.jay.oss.common.entity.task.ReplicaTask;
+import com.jay.oss.common.entity.task.ShardRepairTask;
 import com.jay.oss.tracker.task.StorageTaskManager;
 import com.jay.oss.tracker.track.ObjectTracker;
 import io.netty.channel.Channel;
@@ -112,8 +113,9 @@ public class SimpleRegistryProcessor extends AbstractProcessor {
         // 从任务队列获取副本复制和删除任务
         List<ReplicaTask> replicaTasks = storageTaskManager.pollReplicaTasks(storageNodeInfo.getUrl(), 100);
         List<DeleteTask> deleteTasks = storageTaskManager.pollDeleteTask(storageNodeInfo.getUrl(), 100);
+        List<ShardRepairTask> repairTasks = storageTaskManager.pollRepairTasks(storageNodeInfo.getUrl(), 10);
         // 通过心跳回复将任务发送给storage节点
-        StorageHeartBeatResponse heartBeatResponse = new StorageHeartBeatResponse(replicaTasks, deleteTasks);
+        StorageHeartBeatResponse heartBeatResponse = new StorageHeartBeatResponse(replicaTasks, deleteTasks, repairTasks);
         byte[] content = SerializeUtil.serialize(heartBeatResponse, StorageHeartBeatResponse.class);
         RemotingCommand response = commandFactory.createResponse(command.getId(), content, TinyOssProtocol.SUCCESS);
         sendResponse(context, response);
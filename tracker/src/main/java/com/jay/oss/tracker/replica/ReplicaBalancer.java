@@ -5,6 +5,7 @@ import com.jay.oss.common.constant.OssConstants;
 import com.jay.oss.common.entity.object.ObjectMeta;
 import com.jay.oss.common.entity.task.DeleteTask;
 import com.jay.oss.common.entity.task.ReplicaTask;
+import com.jay.oss.common.entity.task.ShardRepairTask;
 import com.jay.oss.common.kafka.RecordProducer;
 import com.jay.oss.common.registry.StorageNodeInfo;
 import com.jay.oss.common.util.Scheduler;
@@ -13,6 +14,7 @@ import com.jay.oss.tracker.task.StorageTaskManager;
 import com.jay.oss.tracker.track.ObjectTracker;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
@@ -22,6 +24,7 @@ import java.util.concurrent.TimeUnit;
  *  副本平衡
  *  定期检测每个文件的副本数量
  *  如果副本数量不满足配置要求则重新分配存储节点
+ *  纠删码对象的每个分片只保存一份，丢失的分片由新节点读取其他分片解码修复，不复制整个对象
  * </p>
  *
  * @author Jay
@@ -46,51 +49,63 @@ public class ReplicaBalancer {
     }
 
     public void init() {
-        /*
-            副本再平衡任务
-            1. 检测哪些文件的副本数量小于要求的副本数量，对这些文件重新分配storage，然后向storage发布副本复制任务
-            2. 检测哪些文件的副本数量大于要求的副本数量，向多余的storage发布删除任务
-         */
-        Runnable task = ()->{
-            // 列出所有没被删除的对象
-            Set<Long> objectIds = objectTracker.listObjectIds();
-            int requiredReplicas = OssConfigs.replicaCount();
-            for (Long id : objectIds) {
-                // 获取该对象的所有副本位置
-                Set<String> locations = objectTracker.getObjectReplicaLocations(id);
-                if (locations == null || locations.isEmpty()){
+        // 开启定时检测任务
+        Scheduler.scheduleAtFixedRate(this::balance, OssConfigs.balanceReplicaInterval(), OssConfigs.balanceReplicaInterval(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 副本再平衡任务
+     * 1. 检测哪些文件的副本数量小于要求的副本数量，对这些文件重新分配storage，然后向storage发布副本复制任务
+     * 2. 检测哪些文件的副本数量大于要求的副本数量，向多余的storage发布删除任务
+     */
+    public void balance(){
+        // 列出所有没被删除的对象
+        Set<Long> objectIds = objectTracker.listObjectIds();
+        int requiredReplicas = OssConfigs.replicaCount();
+        // 本轮已经检查过的纠删码对象
+        Set<Long> checkedObjects = new HashSet<>();
+        for (Long id : objectIds) {
+            // 获取该对象的所有副本位置
+            Set<String> locations = objectTracker.getObjectReplicaLocations(id);
+            if (locations == null || locations.isEmpty()){
+                ObjectMeta meta = objectTracker.getObjectMetaById(id);
+                if(meta != null && meta.isErasureCoded()){
+                    balanceShards(meta, checkedObjects);
+                }else{
                     log.warn("No Replicas found for object: {}", id);
+                }
+                continue;
+            }
+            if(locations.size() == requiredReplicas){
+                continue;
+            }
+            // 小于要求的副本数量
+            if (locations.size() < requiredReplicas){
+                ObjectMeta meta = objectTracker.getObjectMetaById(id);
+                if(meta != null && meta.isErasureCoded()){
+                    balanceShards(meta, checkedObjects);
                     continue;
                 }
-                if(locations.size() == requiredReplicas){
+                // 判断是否处于上传时的副本复制阶段
+                if (meta == null || System.currentTimeMillis() - meta.getCreateTime() < POST_BALANCE_TIME) {
                     continue;
                 }
-                // 小于要求的副本数量
-                if (locations.size() < requiredReplicas){
-                    ObjectMeta meta = objectTracker.getObjectMetaById(id);
-                    // 判断是否处于上传时的副本复制阶段
-                    if (meta == null || System.currentTimeMillis() - meta.getCreateTime() < POST_BALANCE_TIME) {
-                        continue;
-                    }
-                    int replicaCount = requiredReplicas - locations.size();
-                    try{
-                        // 分配存储服务器
-                        List<StorageNodeInfo> targetStorages = storageNodeRegistry.balanceReplica(meta.getSize(), replicaCount, locations);
-                        String srcLocation = (String)locations.toArray()[0];
-                        targetStorages.forEach(node-> sendReplicaTask(node.getUrl(), srcLocation, id, meta.getSize()));
-                    }catch (Exception e) {
-                        log.warn("Re-balance replica task failed for: {}, no enough storage nodes", id);
-                    }
-                }else{
-                    // 向多余的storages发送删除任务
-                    locations.stream()
-                            .limit(locations.size() - requiredReplicas)
-                            .forEach(location->sendDeleteTask(location, id));
+                int replicaCount = requiredReplicas - locations.size();
+                try{
+                    // 分配存储服务器
+                    List<StorageNodeInfo> targetStorages = storageNodeRegistry.balanceReplica(meta.getSize(), replicaCount, locations);
+                    String srcLocation = (String)locations.toArray()[0];
+                    targetStorages.forEach(node-> sendReplicaTask(node.getUrl(), srcLocation, id, meta.getSize()));
+                }catch (Exception e) {
+                    log.warn("Re-balance replica task failed for: {}, no enough storage nodes", id);
                 }
+            }else{
+                // 向多余的storages发送删除任务
+                locations.stream()
+                        .limit(locations.size() - requiredReplicas)
+                        .forEach(location->sendDeleteTask(location, id));
             }
-        };
-        // 开启定时检测任务
-        Scheduler.scheduleAtFixedRate(task, OssConfigs.balanceReplicaInterval(), OssConfigs.balanceReplicaInterval(), TimeUnit.MILLISECONDS);
+        }
     }
 
     /**
@@ -110,6 +125,61 @@ public class ReplicaBalancer {
         }
     }
 
+    /**
+     * 检查纠删码对象的分片
+     * 多余的分片副本删除；丢失的分片分配到没有该对象分片的节点，由节点读取k个分片解码修复
+     * @param meta {@link ObjectMeta}
+     * @param checkedObjects 本轮已经检查过的对象，一个对象的多个分片只检查一次
+     */
+    private void balanceShards(ObjectMeta meta, Set<Long> checkedObjects){
+        if(!checkedObjects.add(meta.getObjectId()) || System.currentTimeMillis() - meta.getCreateTime() < POST_BALANCE_TIME){
+            return;
+        }
+        List<Long> shardIds = meta.getShardIds();
+        List<String> shardLocations = objectTracker.getShardLocations(meta);
+        Set<String> excluded = new HashSet<>();
+        int available = 0;
+        for (int i = 0; i < shardIds.size(); i++) {
+            Set<String> locations = objectTracker.getObjectReplicaLocations(shardIds.get(i));
+            if(locations == null || locations.isEmpty()){
+                continue;
+            }
+            available++;
+            excluded.addAll(locations);
+            // 每个分片只保留一份
+            String kept = shardLocations.get(i);
+            long shardId = shardIds.get(i);
+            locations.stream().filter(location -> !location.equals(kept)).forEach(location -> sendDeleteTask(location, shardId));
+        }
+        if(available == shardIds.size()){
+            return;
+        }
+        if(available < meta.getDataShards()){
+            log.error("Erasure coded object {} lost too many shards, available: {}, required: {}", meta.getObjectId(), available, meta.getDataShards());
+            return;
+        }
+        if(!OssConfigs.enableTrackerMessaging()){
+            log.warn("Shard repair of object {} requires tracker messaging", meta.getObjectId());
+            return;
+        }
+        int shardSize = (meta.getSize() + meta.getDataShards() - 1) / meta.getDataShards();
+        for (int i = 0; i < shardIds.size(); i++) {
+            if(!shardLocations.get(i).isEmpty()){
+                continue;
+            }
+            try{
+                // 修复的分片放在没有该对象其他分片的节点上
+                StorageNodeInfo target = storageNodeRegistry.balanceReplica(shardSize, 1, excluded).get(0);
+                excluded.add(target.getUrl());
+                ShardRepairTask task = new ShardRepairTask(0L, meta.getSize(), meta.getDataShards(), meta.getParityShards(),
+                        i, shardIds, shardLocations);
+                taskManager.addRepairTask(target.getUrl(), task);
+            }catch (Exception e){
+                log.warn("Repair shard {} of object {} failed, no enough storage nodes", i, meta.getObjectId());
+            }
+        }
+    }
+
     /**
      * 发布删除多余副本任务
      * @param location storage地址
@@ -2,6 +2,7 @@ package com.jay.oss.tracker.task;
 
 import com.jay.oss.common.entity.task.DeleteTask;
 import com.jay.oss.common.entity.task.ReplicaTask;
+import com.jay.oss.common.entity.task.ShardRepairTask;
 
 import java.util.LinkedList;
 import java.util.List;
@@ -13,7 +14,7 @@ import java.util.stream.Collectors;
 /**
  * <p>
  *  Storage节点任务管理器
- *  管理每个节点的副本复制任务和删除对象任务队列
+ *  管理每个节点的副本复制任务、删除对象任务和纠删码分片修复任务队列
  * </p>
  *
  * @author Jay
@@ -22,12 +23,18 @@ import java.util.stream.Collectors;
 public class StorageTaskManager {
     private final ConcurrentHashMap<String, Queue<ReplicaTask>> replicaTaskQueues = new ConcurrentHashMap<>(64);
     private final ConcurrentHashMap<String, Queue<DeleteTask>> deleteTaskQueues = new ConcurrentHashMap<>(64);
+    private final ConcurrentHashMap<String, Queue<ShardRepairTask>> repairTaskQueues = new ConcurrentHashMap<>(64);
 
     public void addReplicaTask(String storageNode, ReplicaTask task){
         replicaTaskQueues.computeIfAbsent(storageNode, key->new LinkedBlockingQueue<>());
         replicaTaskQueues.get(storageNode).offer(task);
     }
 
+    public void addRepairTask(String storageNode, ShardRepairTask task){
+        repairTaskQueues.computeIfAbsent(storageNode, key->new LinkedBlockingQueue<>());
+        repairTaskQueues.get(storageNode).offer(task);
+    }
+
     public void addDeleteTask(String storageNode, DeleteTask task){
         deleteTaskQueues.computeIfAbsent(storageNode, key->new LinkedBlockingQueue<>());
         deleteTaskQueues.get(storageNode).offer(task);
@@ -70,6 +77,28 @@ public class StorageTaskManager {
         return tasks;
     }
 
+    /**
+     * 获取一定数量的分片修复任务
+     * @param storageNode 节点地址
+     * @param limit 任务数量
+     * @return {@link List} 任务列表
+     */
+    public List<ShardRepairTask> pollRepairTasks(String storageNode, int limit){
+        List<ShardRepairTask> tasks = new LinkedList<>();
+        Queue<ShardRepairTask> queue = repairTaskQueues.get(storageNode);
+        if(queue == null || queue.isEmpty()){
+            return tasks;
+        }
+        for(int i = 0; i < limit; i ++){
+            ShardRepairTask task = queue.poll();
+            if(task == null){
+                break;
+            }
+            tasks.add(task);
+        }
+        return tasks;
+    }
+
     /**
      * 获取一定数量的删除对象任务
      * @param storageNode 节点地址
@@ -0,0 +1,134 @@
+package com.jay.oss.tracker.track;
+
+import com.jay.oss.common.kv.KvStorage;
+import com.jay.oss.common.util.StringUtil;
+
+import java.util.function.LongPredicate;
+
+/**
+ * <p>
+ *  对象内容索引，用于相同内容的对象去重
+ *  记录 md5+大小 到保存数据的对象ID的映射，以及共享该数据的对象数量。
+ *  内容索引和引用计数保存在元数据KV存储中，重启后不丢失。
+ *  同一内容的操作使用同一个锁，不同内容之间互不影响。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/11 10:20
+ */
+public class ContentIndex {
+
+    private static final String CONTENT_PREFIX = "dedup$content$";
+
+    private static final String REFERENCE_PREFIX = "dedup$ref$";
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    private final KvStorage metaStorage;
+
+    public ContentIndex(KvStorage metaStorage) {
+        this.metaStorage = metaStorage;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * 查找相同内容的数据并增加引用计数
+     * @param md5 md5
+     * @param size 对象大小
+     * @param available 数据是否可用，比如首次上传还没有完成时不能共享
+     * @return 保存数据的对象ID，没有可用的相同内容时返回null
+     */
+    public Long acquire(String md5, int size, LongPredicate available){
+        String contentKey = contentKey(md5, size);
+        synchronized (lockOf(contentKey)){
+            Long dataId = getDataId(contentKey);
+            if(dataId == null || !available.test(dataId)){
+                return null;
+            }
+            int references = getReferences(dataId);
+            if(references <= 0 || !metaStorage.put(referenceKey(dataId), StringUtil.getBytes(Integer.toString(references + 1)))){
+                return null;
+            }
+            return dataId;
+        }
+    }
+
+    /**
+     * 登记新上传对象的内容，已经有相同内容的数据时不登记
+     * @param md5 md5
+     * @param size 对象大小
+     * @param objectId 保存数据的对象ID
+     */
+    public void register(String md5, int size, long objectId){
+        String contentKey = contentKey(md5, size);
+        synchronized (lockOf(contentKey)){
+            // 引用计数先于内容索引写入，内容索引存在时引用计数一定存在
+            if(getDataId(contentKey) == null && metaStorage.put(referenceKey(objectId), StringUtil.getBytes("1"))){
+                if(!metaStorage.put(contentKey, StringUtil.getBytes(Long.toString(objectId)))){
+                    metaStorage.delete(referenceKey(objectId));
+                }
+            }
+        }
+    }
+
+    /**
+     * 释放对数据的一个引用
+     * @param md5 md5
+     * @param size 对象大小
+     * @param dataId 保存数据的对象ID
+     * @return 数据是否已经没有引用，可以删除
+     */
+    public boolean release(String md5, int size, long dataId){
+        String contentKey = contentKey(md5, size);
+        synchronized (lockOf(contentKey)){
+            Long indexed = getDataId(contentKey);
+            if(indexed == null || indexed != dataId){
+                // 没有登记的数据只属于一个对象
+                return true;
+            }
+            int references = getReferences(dataId) - 1;
+            if(references > 0){
+                metaStorage.put(referenceKey(dataId), StringUtil.getBytes(Integer.toString(references)));
+                return false;
+            }
+            metaStorage.delete(contentKey);
+            metaStorage.delete(referenceKey(dataId));
+            return true;
+        }
+    }
+
+    /**
+     * 数据是否还被对象引用
+     * @param dataId 保存数据的对象ID
+     * @return boolean
+     */
+    public boolean isReferenced(long dataId){
+        return metaStorage.containsKey(referenceKey(dataId));
+    }
+
+    private Long getDataId(String contentKey){
+        byte[] value = metaStorage.get(contentKey);
+        return value == null ? null : Long.parseLong(StringUtil.toString(value));
+    }
+
+    private int getReferences(long dataId){
+        byte[] value = metaStorage.get(referenceKey(dataId));
+        return value == null ? 0 : Integer.parseInt(StringUtil.toString(value));
+    }
+
+    private Object lockOf(String contentKey){
+        return locks[(contentKey.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    private static String contentKey(String md5, int size){
+        return CONTENT_PREFIX + md5 + "$" + size;
+    }
+
+    private static String referenceKey(long dataId){
+        return REFERENCE_PREFIX + dataId;
+    }
+}
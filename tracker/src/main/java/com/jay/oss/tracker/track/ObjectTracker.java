@@ -8,6 +8,7 @@ import com.jay.oss.common.util.SerializeUtil;
 import com.jay.oss.common.util.StringUtil;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -45,8 +46,14 @@ public class ObjectTracker {
      */
     private final KvStorage metaStorage;
 
+    /**
+     * 对象内容索引，用于相同内容去重
+     */
+    private final ContentIndex contentIndex;
+
     public ObjectTracker(KvStorage metaStorage) {
         this.metaStorage = metaStorage;
+        this.contentIndex = new ContentIndex(metaStorage);
     }
 
     /**
@@ -86,8 +93,14 @@ public class ObjectTracker {
         return null;
     }
 
+    /**
+     * 对象数据是否已经被删除
+     * 对象元数据删除之后，如果数据还被其他相同内容的对象共享，则数据没有被删除
+     * @param objectId 对象ID
+     * @return boolean
+     */
     public boolean isObjectDeleted(long objectId){
-        return !metaStorage.containsKey(Long.toString(objectId));
+        return !metaStorage.containsKey(Long.toString(objectId)) && !contentIndex.isReferenced(objectId);
     }
 
     /**
@@ -101,8 +114,11 @@ public class ObjectTracker {
     }
 
     public Set<String> getObjectLocations(String objectId){
-        if(objectId != null && metaStorage.get(objectId) != null){
-            return getObjectReplicaLocations(Long.parseLong(objectId));
+        if(objectId != null){
+            ObjectMeta meta = getObjectMetaById(Long.parseLong(objectId));
+            if(meta != null){
+                return getObjectReplicaLocations(meta.storageObjectId());
+            }
         }
         return null;
     }
@@ -119,15 +135,78 @@ public class ObjectTracker {
         // 保存objectKey与objectId映射
         if(metaStorage.putIfAbsent(objectKey, StringUtil.getBytes(id))){
             // 保存id与元数据映射
-            if(metaStorage.put(id, serialized)){
+            if(metaStorage.put(id, serialized) && putShardMetas(meta, serialized)){
                 return true;
             }else{
+                metaStorage.delete(id);
                 metaStorage.delete(objectKey);
             }
         }
         return false;
     }
 
+    /**
+     * 纠删码分片ID也映射到对象元数据，分片所在的storage汇报时可以找到所属的对象，分片不会被当作已删除的对象
+     */
+    private boolean putShardMetas(ObjectMeta meta, byte[] serialized){
+        if(!meta.isErasureCoded()){
+            return true;
+        }
+        for (Long shardId : meta.getShardIds()) {
+            if(!metaStorage.put(Long.toString(shardId), serialized)){
+                deleteShardMetas(meta);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void deleteShardMetas(ObjectMeta meta){
+        if(meta != null && meta.isErasureCoded()){
+            for (Long shardId : meta.getShardIds()) {
+                metaStorage.delete(Long.toString(shardId));
+            }
+        }
+    }
+
+    /**
+     * 查找已经上传完成的相同内容的数据，找到时增加数据的引用计数
+     * @param md5 md5
+     * @param size 对象大小
+     * @return 保存数据的对象ID，null if not found
+     */
+    public Long acquireDuplicate(String md5, int size){
+        if(StringUtil.isNullOrEmpty(md5)){
+            return null;
+        }
+        return contentIndex.acquire(md5, size, dataId -> {
+            Set<String> locations = objectLocations.get(dataId);
+            return locations != null && !locations.isEmpty();
+        });
+    }
+
+    /**
+     * 登记新上传对象的内容，之后相同内容的上传可以共享它的数据
+     * @param meta {@link ObjectMeta}
+     */
+    public void registerContent(ObjectMeta meta){
+        if(!StringUtil.isNullOrEmpty(meta.getMd5())){
+            contentIndex.register(meta.getMd5(), meta.getSize(), meta.getObjectId());
+        }
+    }
+
+    /**
+     * 释放对象对数据的引用
+     * @param meta 被删除对象的元数据
+     * @return 数据是否已经没有对象引用，需要从storage删除
+     */
+    public boolean releaseContent(ObjectMeta meta){
+        if(StringUtil.isNullOrEmpty(meta.getMd5())){
+            return true;
+        }
+        return contentIndex.release(meta.getMd5(), meta.getSize(), meta.storageObjectId());
+    }
+
     /**
      * 删除对象元数据
      * @param objectKey objectKey
@@ -136,12 +215,31 @@ public class ObjectTracker {
     public Long deleteMeta(String objectKey){
         cache.invalidate(objectKey);
         String objectId = getObjectId(objectKey);
-        if(objectId != null && metaStorage.delete(objectKey) && metaStorage.delete(objectId)){
+        if(objectId == null){
+            return null;
+        }
+        ObjectMeta meta = getObjectMetaById(Long.parseLong(objectId));
+        if(metaStorage.delete(objectKey) && metaStorage.delete(objectId)){
+            deleteShardMetas(meta);
             return Long.parseLong(objectId);
         }
         return null;
     }
 
+    /**
+     * 纠删码对象每个分片的一个位置
+     * @param meta {@link ObjectMeta}
+     * @return 按分片顺序的位置列表，没有位置的分片为空字符串
+     */
+    public List<String> getShardLocations(ObjectMeta meta){
+        List<String> shardLocations = new ArrayList<>(meta.getShardIds().size());
+        for (Long shardId : meta.getShardIds()) {
+            Set<String> locations = objectLocations.get(shardId);
+            shardLocations.add(locations == null || locations.isEmpty() ? "" : locations.iterator().next());
+        }
+        return shardLocations;
+    }
+
     /**
      * 添加object副本位置
      * @param objectId objectId
@@ -0,0 +1,211 @@
+import com.jay.oss.common.kv.bitcask.BitCaskStorage;
+import com.jay.oss.common.util.StringUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ *  BitCask在线压缩测试
+ *  压缩期间并发的覆盖写和删除在压缩之后和重启之后都保持最新的状态，
+ *  压缩期间的读取不会读到空值或者错误的值，压缩前的删除在重启后不会恢复
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/17 15:20
+ */
+@Slf4j
+public class TestBitCaskCompaction {
+
+    private static final int KEY_COUNT = 5000;
+
+    private File dataPath;
+
+    private BitCaskStorage storage;
+
+    private volatile boolean compacting;
+
+    @Before
+    public void setUp() throws Exception {
+        dataPath = Files.createTempDirectory("bitcask_compaction").toFile();
+        storage = open();
+        for (int i = 0; i < KEY_COUNT; i++) {
+            storage.put(key(i), value(i, 0));
+        }
+        // 覆盖一半的key，产生垃圾记录
+        for (int i = 0; i < KEY_COUNT; i += 2) {
+            storage.put(key(i), value(i, 1));
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dataPath);
+    }
+
+    @Test
+    public void testOverwriteDuringCompaction() throws Exception {
+        int[] versions = new int[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            versions[i] = i % 2 == 0 ? 1 : 0;
+        }
+        // 写线程持续覆盖前一半的key，直到压缩结束
+        runDuringCompaction(() -> {
+            for (int round = 2; compacting || round == 2; round++) {
+                for (int i = 0; i < KEY_COUNT / 2; i++) {
+                    storage.put(key(i), value(i, round));
+                    versions[i] = round;
+                }
+            }
+        });
+        assertVersions(storage, versions);
+        assertVersions(open(), versions);
+    }
+
+    @Test
+    public void testDeleteDuringCompaction() throws Exception {
+        // 压缩前删除的key，删除标记和被删除的记录一起被合并
+        for (int i = 0; i < KEY_COUNT; i += 10) {
+            Assert.assertTrue(storage.delete(key(i)));
+        }
+        runDuringCompaction(() -> {
+            for (int i = 5; i < KEY_COUNT; i += 10) {
+                Assert.assertTrue(storage.delete(key(i)));
+            }
+        });
+        assertDeleted(storage);
+        // 第二次压缩合并压缩期间写入的删除标记
+        storage.compact();
+        assertDeleted(storage);
+        assertDeleted(open());
+    }
+
+    @Test
+    public void testConcurrentGet() throws Exception {
+        AtomicInteger errors = new AtomicInteger(0);
+        AtomicInteger reads = new AtomicInteger(0);
+        List<Thread> readers = new ArrayList<>();
+        compacting = true;
+        for (int t = 0; t < 4; t++) {
+            Thread reader = new Thread(() -> {
+                while(compacting){
+                    for (int i = 0; i < KEY_COUNT; i += 7) {
+                        if(!StringUtil.toString(value(i, i % 2 == 0 ? 1 : 0)).equals(string(storage.get(key(i))))){
+                            errors.incrementAndGet();
+                        }
+                        reads.incrementAndGet();
+                    }
+                }
+            });
+            readers.add(reader);
+            reader.start();
+        }
+        try{
+            for (int i = 0; i < 3; i++) {
+                storage.compact();
+            }
+        }finally {
+            compacting = false;
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+        log.info("Reads during compaction: {}", reads.get());
+        Assert.assertEquals(0, errors.get());
+    }
+
+    @Test
+    public void testRestartAfterCompaction() throws Exception {
+        storage.compact();
+        // 旧chunk和Hint已经删除，只剩下合并chunk和它的Hint
+        String[] chunkFiles = chunkDirectory().list((dir, name) -> name.startsWith("chunk_"));
+        Assert.assertNotNull(chunkFiles);
+        Assert.assertEquals(1, chunkFiles.length);
+        File hintFile = new File(chunkDirectory(), "hint_" + chunkFiles[0].substring("chunk_".length()));
+        Assert.assertTrue(hintFile.exists());
+        int[] versions = new int[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            versions[i] = i % 2 == 0 ? 1 : 0;
+        }
+        assertVersions(open(), versions);
+        // 没有Hint时扫描合并chunk
+        Assert.assertTrue(hintFile.delete());
+        assertVersions(open(), versions);
+    }
+
+    /**
+     * 在压缩期间运行写线程，线程中的断言失败时测试失败
+     */
+    private void runDuringCompaction(Runnable task) throws InterruptedException {
+        List<Throwable> failures = new ArrayList<>();
+        compacting = true;
+        Thread worker = new Thread(() -> {
+            try{
+                task.run();
+            }catch (Throwable e){
+                failures.add(e);
+            }
+        });
+        worker.start();
+        try{
+            storage.compact();
+        }finally {
+            compacting = false;
+            worker.join();
+        }
+        Assert.assertTrue(failures.toString(), failures.isEmpty());
+    }
+
+    private BitCaskStorage open() throws Exception {
+        BitCaskStorage bitCaskStorage = new BitCaskStorage(dataPath.getPath());
+        bitCaskStorage.init();
+        return bitCaskStorage;
+    }
+
+    private File chunkDirectory(){
+        return new File(dataPath.getPath() + BitCaskStorage.CHUNK_DIRECTORY);
+    }
+
+    private static void assertVersions(BitCaskStorage bitCaskStorage, int[] versions){
+        for (int i = 0; i < KEY_COUNT; i++) {
+            Assert.assertEquals(key(i), StringUtil.toString(value(i, versions[i])), string(bitCaskStorage.get(key(i))));
+        }
+        Assert.assertEquals(KEY_COUNT, bitCaskStorage.keys().size());
+    }
+
+    private static void assertDeleted(BitCaskStorage bitCaskStorage){
+        int live = 0;
+        for (int i = 0; i < KEY_COUNT; i++) {
+            if(i % 5 == 0){
+                Assert.assertNull(key(i), bitCaskStorage.get(key(i)));
+                Assert.assertFalse(bitCaskStorage.containsKey(key(i)));
+            }else{
+                Assert.assertEquals(StringUtil.toString(value(i, i % 2 == 0 ? 1 : 0)), string(bitCaskStorage.get(key(i))));
+                live++;
+            }
+        }
+        Assert.assertEquals(live, bitCaskStorage.keys().size());
+    }
+
+    private static String key(int i){
+        return "bucket/object-" + i;
+    }
+
+    private static byte[] value(int i, int version){
+        return StringUtil.getBytes("value-" + i + "-v" + version + "-0123456789abcdef0123456789abcdef");
+    }
+
+    private static String string(byte[] value){
+        return value == null ? null : StringUtil.toString(value);
+    }
+}
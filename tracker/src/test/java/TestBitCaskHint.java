@@ -0,0 +1,160 @@
+import com.jay.oss.common.kv.bitcask.BitCaskStorage;
+import com.jay.oss.common.util.StringUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.function.BooleanSupplier;
+
+/**
+ * <p>
+ *  BitCask Hint恢复测试
+ *  重启后扫描的chunk在后台生成Hint，之后的重启从Hint恢复，删除标记仍然有效；
+ *  Hint损坏时退回到扫描chunk；被压缩回收的chunk不会留下Hint
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/17 16:40
+ */
+@Slf4j
+public class TestBitCaskHint {
+
+    private static final int KEY_COUNT = 2000;
+
+    private File dataPath;
+
+    @Before
+    public void setUp() throws IOException {
+        dataPath = Files.createTempDirectory("bitcask_hint").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dataPath);
+    }
+
+    @Test
+    public void testTombstonesSurviveRestart() throws Exception {
+        BitCaskStorage storage = open();
+        for (int i = 0; i < KEY_COUNT; i++) {
+            storage.put(key(i), value(i));
+        }
+        // 重启后写入进入新的chunk，上一次的chunk扫描后在后台生成Hint
+        storage = open();
+        awaitHint(0);
+        for (int i = 0; i < KEY_COUNT; i += 3) {
+            Assert.assertTrue(storage.delete(key(i)));
+        }
+        storage = open();
+        awaitHint(1);
+
+        // 两个chunk都从Hint恢复，删除标记在chunk_1的Hint中
+        storage = open();
+        assertContent(storage);
+        Assert.assertEquals(KEY_COUNT - (KEY_COUNT + 2) / 3, storage.keys().size());
+    }
+
+    @Test
+    public void testCorruptHintFallback() throws Exception {
+        BitCaskStorage storage = open();
+        for (int i = 0; i < KEY_COUNT; i++) {
+            storage.put(key(i), value(i));
+        }
+        storage = open();
+        awaitHint(0);
+        for (int i = 0; i < KEY_COUNT; i += 3) {
+            storage.delete(key(i));
+        }
+        storage = open();
+        awaitHint(1);
+
+        // 截断Hint，最后一条记录不完整
+        File hint = hintFile(1);
+        try(RandomAccessFile file = new RandomAccessFile(hint, "rw")){
+            file.setLength(file.length() - 3);
+        }
+        storage = open();
+        assertContent(storage);
+        // 写入的不是合法的Hint格式
+        Files.write(hintFile(0).toPath(), new byte[]{0x7F, 0x7F, 0x7F, 0x7F, 1, 2});
+        storage = open();
+        assertContent(storage);
+    }
+
+    @Test
+    public void testNoHintForCompactedChunk() throws Exception {
+        BitCaskStorage storage = open();
+        for (int i = 0; i < KEY_COUNT; i++) {
+            storage.put(key(i), value(i));
+        }
+        for (int i = 0; i < KEY_COUNT; i += 3) {
+            storage.delete(key(i));
+        }
+        // 重启后立即压缩，后台Hint任务和回收并发执行
+        storage = open();
+        storage.compact();
+        awaitHint(1);
+        // Hint任务执行完之后，被回收的chunk_0没有Hint
+        storage.put("flush", value(0));
+        storage = open();
+        awaitHint(2);
+        Assert.assertFalse(hintFile(0).exists());
+        Assert.assertFalse(new File(chunkDirectory(), "chunk_0").exists());
+        assertContent(storage);
+    }
+
+    private BitCaskStorage open() throws Exception {
+        BitCaskStorage bitCaskStorage = new BitCaskStorage(dataPath.getPath());
+        bitCaskStorage.init();
+        return bitCaskStorage;
+    }
+
+    private File chunkDirectory(){
+        return new File(dataPath.getPath() + BitCaskStorage.CHUNK_DIRECTORY);
+    }
+
+    private File hintFile(int chunkId){
+        return new File(chunkDirectory(), "hint_" + chunkId);
+    }
+
+    /**
+     * Hint在后台线程生成
+     */
+    private void awaitHint(int chunkId) throws InterruptedException {
+        await(() -> hintFile(chunkId).exists());
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(!condition.getAsBoolean()){
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static void assertContent(BitCaskStorage storage){
+        for (int i = 0; i < KEY_COUNT; i++) {
+            if(i % 3 == 0){
+                Assert.assertNull(key(i), storage.get(key(i)));
+                Assert.assertFalse(storage.containsKey(key(i)));
+            }else{
+                Assert.assertArrayEquals(key(i), value(i), storage.get(key(i)));
+            }
+        }
+    }
+
+    private static String key(int i){
+        return "bucket/object-" + i;
+    }
+
+    private static byte[] value(int i){
+        return StringUtil.getBytes("value-" + i);
+    }
+}
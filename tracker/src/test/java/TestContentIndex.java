@@ -0,0 +1,138 @@
+import com.jay.oss.common.kv.KvStorage;
+import com.jay.oss.tracker.track.ContentIndex;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ *  内容去重索引测试
+ *  acquire、register和release的引用计数，最后一个引用释放后数据可以删除，内容索引被清除
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/16 22:10
+ */
+@Slf4j
+public class TestContentIndex {
+
+    private static final String MD5 = "1B2M2Y8AsgTpgAmY7PhCfg==";
+
+    private static final int SIZE = 1024;
+
+    private ContentIndex contentIndex;
+
+    /**
+     * 内存中的KV存储
+     */
+    private static class MemoryStorage implements KvStorage {
+        private final Map<String, byte[]> map = new ConcurrentHashMap<>();
+
+        @Override
+        public void init() {
+        }
+
+        @Override
+        public byte[] get(String key) {
+            return map.get(key);
+        }
+
+        @Override
+        public boolean putIfAbsent(String key, byte[] value) {
+            return map.putIfAbsent(key, value) == null;
+        }
+
+        @Override
+        public boolean put(String key, byte[] value) {
+            map.put(key, value);
+            return true;
+        }
+
+        @Override
+        public boolean delete(String key) {
+            return map.remove(key) != null;
+        }
+
+        @Override
+        public List<String> keys() {
+            return new ArrayList<>(map.keySet());
+        }
+
+        @Override
+        public boolean containsKey(String key) {
+            return map.containsKey(key);
+        }
+    }
+
+    @Before
+    public void setUp(){
+        contentIndex = new ContentIndex(new MemoryStorage());
+    }
+
+    @Test
+    public void testAcquireAndRelease(){
+        Assert.assertNull(contentIndex.acquire(MD5, SIZE, id -> true));
+        contentIndex.register(MD5, SIZE, 1L);
+        Assert.assertTrue(contentIndex.isReferenced(1L));
+        // 数据不可用时不能共享
+        Assert.assertNull(contentIndex.acquire(MD5, SIZE, id -> false));
+        // 大小不同的内容不共享
+        Assert.assertNull(contentIndex.acquire(MD5, SIZE + 1, id -> true));
+        Assert.assertEquals(Long.valueOf(1L), contentIndex.acquire(MD5, SIZE, id -> true));
+        Assert.assertEquals(Long.valueOf(1L), contentIndex.acquire(MD5, SIZE, id -> true));
+
+        // 三个引用，最后一个释放后才能删除
+        Assert.assertFalse(contentIndex.release(MD5, SIZE, 1L));
+        Assert.assertFalse(contentIndex.release(MD5, SIZE, 1L));
+        Assert.assertTrue(contentIndex.release(MD5, SIZE, 1L));
+        Assert.assertFalse(contentIndex.isReferenced(1L));
+        // 内容索引已经清除，不会共享已经删除的数据
+        Assert.assertNull(contentIndex.acquire(MD5, SIZE, id -> true));
+    }
+
+    @Test
+    public void testRegisterKeepsExisting(){
+        contentIndex.register(MD5, SIZE, 1L);
+        contentIndex.register(MD5, SIZE, 2L);
+        Assert.assertFalse(contentIndex.isReferenced(2L));
+        Assert.assertEquals(Long.valueOf(1L), contentIndex.acquire(MD5, SIZE, id -> true));
+        // 没有登记的数据只属于一个对象，可以直接删除
+        Assert.assertTrue(contentIndex.release(MD5, SIZE, 2L));
+        Assert.assertTrue(contentIndex.isReferenced(1L));
+    }
+
+    @Test
+    public void testConcurrentReferences() throws InterruptedException {
+        contentIndex.register(MD5, SIZE, 1L);
+        int threadCount = 4;
+        int rounds = 1000;
+        AtomicInteger failures = new AtomicInteger(0);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < rounds; i++) {
+                    Long dataId = contentIndex.acquire(MD5, SIZE, id -> true);
+                    // 登记者持有一个引用，其他引用的释放不会让数据被删除
+                    if(dataId == null || contentIndex.release(MD5, SIZE, dataId)){
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(0, failures.get());
+        Assert.assertTrue(contentIndex.release(MD5, SIZE, 1L));
+        Assert.assertFalse(contentIndex.isReferenced(1L));
+    }
+}
@@ -0,0 +1,137 @@
+import com.jay.oss.common.config.ConfigsManager;
+import com.jay.oss.common.kv.bitcask.BitCaskStorage;
+import com.jay.oss.common.kv.bitcask.PartitionedBitCaskStorage;
+import com.jay.oss.common.util.StringUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * <p>
+ *  分区BitCask存储测试
+ *  key按哈希路由到固定的分区目录，重启后能读到每个分区的数据；
+ *  分区数量和已有数据不一致、或者存在未分区的数据时拒绝启动
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/17 14:30
+ */
+@Slf4j
+public class TestPartitionedBitCaskStorage {
+
+    private static final int PARTITION_COUNT = 4;
+
+    private static final int KEY_COUNT = 1000;
+
+    private File dataPath;
+
+    @Before
+    public void setUp() throws IOException {
+        dataPath = Files.createTempDirectory("partitioned_bitcask").toFile();
+        ConfigsManager.set("oss.data.path", dataPath.getPath());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dataPath);
+    }
+
+    @Test
+    public void testRouting() throws Exception {
+        PartitionedBitCaskStorage storage = new PartitionedBitCaskStorage(PARTITION_COUNT);
+        storage.init();
+        for (int i = 0; i < KEY_COUNT; i++) {
+            Assert.assertTrue(storage.put(key(i), value(i)));
+        }
+        Assert.assertEquals(KEY_COUNT, storage.keys().size());
+
+        // 每个分区目录只保存哈希到该分区的key
+        Set<String> found = new HashSet<>();
+        for (int partition = 0; partition < PARTITION_COUNT; partition++) {
+            BitCaskStorage partitionStorage = new BitCaskStorage(dataPath.getPath() + PartitionedBitCaskStorage.PARTITION_DIRECTORY + partition);
+            partitionStorage.init();
+            Assert.assertFalse(partitionStorage.keys().isEmpty());
+            for (String key : partitionStorage.keys()) {
+                Assert.assertEquals(partition, (key.hashCode() & 0x7fffffff) % PARTITION_COUNT);
+                Assert.assertTrue(found.add(key));
+            }
+        }
+        Assert.assertEquals(KEY_COUNT, found.size());
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        PartitionedBitCaskStorage storage = new PartitionedBitCaskStorage(PARTITION_COUNT);
+        storage.init();
+        for (int i = 0; i < KEY_COUNT; i++) {
+            storage.put(key(i), value(i));
+        }
+        // 偶数key覆盖，每10个key删除一个
+        for (int i = 0; i < KEY_COUNT; i += 2) {
+            storage.put(key(i), value(i + KEY_COUNT));
+        }
+        for (int i = 0; i < KEY_COUNT; i += 10) {
+            Assert.assertTrue(storage.delete(key(i)));
+        }
+        Assert.assertFalse(storage.putIfAbsent(key(1), value(0)));
+
+        PartitionedBitCaskStorage reloaded = new PartitionedBitCaskStorage(PARTITION_COUNT);
+        reloaded.init();
+        Assert.assertEquals(KEY_COUNT - KEY_COUNT / 10, reloaded.keys().size());
+        for (int i = 0; i < KEY_COUNT; i++) {
+            if(i % 10 == 0){
+                Assert.assertNull(reloaded.get(key(i)));
+                Assert.assertFalse(reloaded.containsKey(key(i)));
+            }else{
+                byte[] expected = i % 2 == 0 ? value(i + KEY_COUNT) : value(i);
+                Assert.assertArrayEquals(key(i), expected, reloaded.get(key(i)));
+            }
+        }
+    }
+
+    @Test
+    public void testPartitionCountMismatch() throws Exception {
+        new PartitionedBitCaskStorage(PARTITION_COUNT).init();
+        Assert.assertEquals(Integer.toString(PARTITION_COUNT),
+                StringUtil.toString(Files.readAllBytes(new File(dataPath, "kv_partitions").toPath())));
+        try{
+            new PartitionedBitCaskStorage(PARTITION_COUNT * 2).init();
+            Assert.fail("partition count changed");
+        }catch (IllegalStateException e){
+            log.info("Rejected: {}", e.getMessage());
+        }
+        // 相同的分区数量可以正常启动
+        new PartitionedBitCaskStorage(PARTITION_COUNT).init();
+    }
+
+    @Test
+    public void testRejectNonPartitionedData() throws Exception {
+        File chunkDirectory = new File(dataPath.getPath() + BitCaskStorage.CHUNK_DIRECTORY);
+        Assert.assertTrue(chunkDirectory.mkdirs());
+        Assert.assertTrue(new File(chunkDirectory, "chunk_0").createNewFile());
+        try{
+            new PartitionedBitCaskStorage(PARTITION_COUNT).init();
+            Assert.fail("non-partitioned chunks loaded");
+        }catch (IllegalStateException e){
+            log.info("Rejected: {}", e.getMessage());
+        }
+        Assert.assertFalse(new File(dataPath, "kv_partitions").exists());
+    }
+
+    private static String key(int i){
+        return "bucket-" + (i % 7) + "/object-" + i;
+    }
+
+    private static byte[] value(int i){
+        return StringUtil.getBytes("value-" + i);
+    }
+}
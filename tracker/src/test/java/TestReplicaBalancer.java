@@ -0,0 +1,182 @@
+import com.jay.dove.serialize.SerializerManager;
+import com.jay.oss.common.config.ConfigsManager;
+import com.jay.oss.common.config.OssConfigs;
+import com.jay.oss.common.entity.object.ObjectMeta;
+import com.jay.oss.common.entity.task.DeleteTask;
+import com.jay.oss.common.entity.task.ShardRepairTask;
+import com.jay.oss.common.kv.bitcask.BitCaskStorage;
+import com.jay.oss.common.registry.StorageNodeInfo;
+import com.jay.oss.common.registry.simple.SimpleRegistry;
+import com.jay.oss.common.serialize.ProtostuffSerializer;
+import com.jay.oss.tracker.registry.StorageNodeRegistry;
+import com.jay.oss.tracker.replica.ReplicaBalancer;
+import com.jay.oss.tracker.replica.SpaceBalancedReplicaSelector;
+import com.jay.oss.tracker.task.StorageTaskManager;
+import com.jay.oss.tracker.track.ObjectTracker;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>
+ *  纠删码分片平衡测试
+ *  k+m个节点各保存一个分片，节点下线后丢失的分片分配到没有该对象分片的存活节点修复，
+ *  多个丢失的分片分配到不同的节点；丢失超过m个分片时不修复；同一个分片的多余位置被删除
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/06/18 16:20
+ */
+@Slf4j
+public class TestReplicaBalancer {
+
+    private static final int DATA_SHARDS = 4;
+
+    private static final int PARITY_SHARDS = 2;
+
+    private static final int SHARD_NODES = DATA_SHARDS + PARITY_SHARDS;
+
+    /**
+     * 不保存分片的备用节点
+     */
+    private static final int SPARE_NODES = 2;
+
+    private static final int OBJECT_SIZE = 100 * 1024 + 17;
+
+    private static final long FIRST_SHARD_ID = 100L;
+
+    private File dataPath;
+
+    private SimpleRegistry registry;
+
+    private ObjectTracker objectTracker;
+
+    private StorageTaskManager taskManager;
+
+    private ReplicaBalancer balancer;
+
+    @Before
+    public void setUp() throws Exception {
+        dataPath = Files.createTempDirectory("replica_balancer").toFile();
+        ConfigsManager.set("oss.tracker.enable-tracker-messaging", "true");
+        SerializerManager.registerSerializer(OssConfigs.PROTOSTUFF_SERIALIZER, new ProtostuffSerializer());
+        BitCaskStorage metaStorage = new BitCaskStorage(dataPath.getPath());
+        metaStorage.init();
+        objectTracker = new ObjectTracker(metaStorage);
+        taskManager = new StorageTaskManager();
+        registry = new SimpleRegistry();
+        // 分片节点的剩余空间比备用节点多，只按空间选择会选中已经有分片的节点
+        for (int i = 0; i < SHARD_NODES + SPARE_NODES; i++) {
+            long space = i < SHARD_NODES ? 1024 * 1024 * 1024 : (i + 1) * 1024 * 1024;
+            registry.putStorageNode(StorageNodeInfo.builder().url(node(i)).space(space).available(true).build());
+        }
+        balancer = new ReplicaBalancer(objectTracker, taskManager, new StorageNodeRegistry(registry, new SpaceBalancedReplicaSelector()), null);
+
+        List<Long> shardIds = new ArrayList<>();
+        for (int i = 0; i < SHARD_NODES; i++) {
+            shardIds.add(FIRST_SHARD_ID + i);
+        }
+        // 创建时间早于平衡等待时间
+        ObjectMeta meta = ObjectMeta.builder().objectId(1L).size(OBJECT_SIZE).createTime(0L).fileName("object")
+                .dataShards(DATA_SHARDS).parityShards(PARITY_SHARDS).shardIds(shardIds).build();
+        Assert.assertTrue(objectTracker.putMeta("bucket/object", meta));
+        for (int i = 0; i < SHARD_NODES; i++) {
+            objectTracker.addObjectReplicasLocation(node(i), Collections.singletonList(FIRST_SHARD_ID + i));
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        ConfigsManager.set("oss.tracker.enable-tracker-messaging", "false");
+        FileUtils.deleteDirectory(dataPath);
+    }
+
+    @Test
+    public void testRepairOnOtherNodes(){
+        offline(1);
+        offline(4);
+        balancer.balance();
+        // 分片节点和下线节点都不会收到修复任务，每个备用节点修复一个分片
+        for (int i = 0; i < SHARD_NODES; i++) {
+            Assert.assertTrue(node(i), taskManager.pollRepairTasks(node(i), 10).isEmpty());
+        }
+        Set<Integer> repaired = new HashSet<>();
+        for (int i = SHARD_NODES; i < SHARD_NODES + SPARE_NODES; i++) {
+            List<ShardRepairTask> tasks = taskManager.pollRepairTasks(node(i), 10);
+            Assert.assertEquals(node(i), 1, tasks.size());
+            ShardRepairTask task = tasks.get(0);
+            repaired.add(task.getShardIndex());
+            Assert.assertEquals(DATA_SHARDS, task.getDataShards());
+            Assert.assertEquals(OBJECT_SIZE, task.getSize());
+            for (int shard = 0; shard < SHARD_NODES; shard++) {
+                String expected = shard == 1 || shard == 4 ? "" : node(shard);
+                Assert.assertEquals(expected, task.getShardLocations().get(shard));
+            }
+        }
+        Assert.assertEquals(new HashSet<>(Arrays.asList(1, 4)), repaired);
+    }
+
+    @Test
+    public void testNotEnoughNodes(){
+        // 只剩一个备用节点，只能修复一个分片
+        offline(SHARD_NODES + 1);
+        offline(0);
+        offline(3);
+        balancer.balance();
+        Assert.assertEquals(1, taskManager.pollRepairTasks(node(SHARD_NODES), 10).size());
+        for (int i = 0; i < SHARD_NODES + SPARE_NODES; i++) {
+            Assert.assertTrue(node(i), taskManager.pollRepairTasks(node(i), 10).isEmpty());
+        }
+    }
+
+    @Test
+    public void testTooManyShardsLost(){
+        for (int i = 0; i <= PARITY_SHARDS; i++) {
+            offline(i);
+        }
+        balancer.balance();
+        for (int i = 0; i < SHARD_NODES + SPARE_NODES; i++) {
+            Assert.assertTrue(node(i), taskManager.pollRepairTasks(node(i), 10).isEmpty());
+        }
+    }
+
+    @Test
+    public void testDuplicateShardDeleted(){
+        // 分片2在备用节点上多了一份，删除其中一份，不需要修复
+        long shardId = FIRST_SHARD_ID + 2;
+        objectTracker.addObjectReplicasLocation(node(SHARD_NODES), Collections.singletonList(shardId));
+        balancer.balance();
+        List<DeleteTask> deleteTasks = new ArrayList<>(taskManager.pollDeleteTask(node(2), 10));
+        deleteTasks.addAll(taskManager.pollDeleteTask(node(SHARD_NODES), 10));
+        Assert.assertEquals(1, deleteTasks.size());
+        Assert.assertEquals(shardId, deleteTasks.get(0).getObjectId());
+        for (int i = 0; i < SHARD_NODES + SPARE_NODES; i++) {
+            Assert.assertTrue(node(i), taskManager.pollRepairTasks(node(i), 10).isEmpty());
+        }
+    }
+
+    /**
+     * 节点下线，注册中心标记为不可用，Tracker删除它保存的分片位置
+     */
+    private void offline(int i){
+        registry.setStorageNodeOffline(node(i));
+        objectTracker.onStorageNodeOffline(node(i));
+    }
+
+    private static String node(int i){
+        return "127.0.0.1:" + (9000 + i);
+    }
+}